@@ -0,0 +1,257 @@
+package com.alex.ai.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 多轮对话配置属性
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "conversation")
+public class ConversationProperties {
+
+    /**
+     * 会话配置
+     */
+    private SessionConfig session = new SessionConfig();
+
+    /**
+     * RAG 配置
+     */
+    private RagConfig rag = new RagConfig();
+
+    /**
+     * 会话历史存储配置
+     */
+    private StoreConfig store = new StoreConfig();
+
+    /**
+     * 历史窗口配置
+     */
+    private HistoryConfig history = new HistoryConfig();
+
+    /**
+     * 流式响应配置
+     */
+    private StreamConfig stream = new StreamConfig();
+
+    @Data
+    public static class SessionConfig {
+        /**
+         * 会话过期时间（分钟，按最后访问时间计算）
+         */
+        private int expireMinutes = 30;
+
+        /**
+         * 最大会话数量（超出后按 W-TinyLFU 策略淘汰）
+         */
+        private int maxSessions = 1000;
+
+        /**
+         * 历史存储方式：heap（堆内对象）| offheap（空闲会话编码到堆外缓冲区，活跃时按需解码）
+         */
+        private String storage = "heap";
+
+        /**
+         * offheap 存储时，空闲超过该时间（秒）的会话由后台线程编码到堆外
+         */
+        private long offheapIdleSeconds = 120;
+
+        /**
+         * offheap 存储的堆外内存上限（MB），达到上限后空闲会话留在堆内
+         */
+        private long offheapMaxMb = 256;
+
+        /**
+         * 单个会话允许排队的最大请求数（含正在执行的请求），超出返回 429
+         */
+        private int maxQueueDepth = 4;
+
+        /**
+         * 同一会话请求的排队等待超时（秒）
+         */
+        private int queueTimeoutSeconds = 60;
+
+        /**
+         * 空闲会话溢写到本地磁盘
+         */
+        private SpillConfig spill = new SpillConfig();
+
+        /**
+         * 停机快照与启动恢复
+         */
+        private SnapshotConfig snapshot = new SnapshotConfig();
+    }
+
+    @Data
+    public static class SnapshotConfig {
+        /**
+         * 是否启用：停机时将内存中的会话写入快照，启动后在后台恢复
+         */
+        private boolean enabled = false;
+
+        /**
+         * 快照目录（段文件大小、磁盘上限与保留时间沿用 spill 配置）
+         */
+        private String directory = "data/snapshot";
+
+        /**
+         * 停机时并行写入快照的线程数
+         */
+        private int threads = 4;
+
+        /**
+         * 停机快照的最长耗时（秒），超时未写入的会话丢弃
+         */
+        private int shutdownTimeoutSeconds = 20;
+
+        /**
+         * 启动后后台预热的时间预算（秒），预算内未恢复的会话在首次访问时加载
+         */
+        private int restoreBudgetSeconds = 10;
+    }
+
+    @Data
+    public static class SpillConfig {
+        /**
+         * 是否启用：启用后被淘汰（过期或超出数量）的会话写入本地段文件，再次访问时自动加载
+         */
+        private boolean enabled = false;
+
+        /**
+         * 段文件目录
+         */
+        private String directory = "data/sessions";
+
+        /**
+         * 单个段文件大小（MB），写满后滚动
+         */
+        private long segmentSizeMb = 64;
+
+        /**
+         * 段文件总大小上限（MB），写入时超出先回收空间，仍放不下时拒绝溢写
+         */
+        private long maxDiskMb = 1024;
+
+        /**
+         * 溢写会话的保留时间（小时）
+         */
+        private long ttlHours = 168;
+    }
+
+    @Data
+    public static class HistoryConfig {
+        /**
+         * 历史窗口的 token 预算（系统提示词 + 摘要 + 最近对话，本地分词器估算）
+         */
+        private int maxTokens = 3000;
+
+        /**
+         * 是否将移出窗口的对话合并为摘要
+         */
+        private boolean summaryEnabled = true;
+
+        /**
+         * 摘要长度上限（字）
+         */
+        private int summaryMaxChars = 300;
+
+        /**
+         * 摘要后台线程数
+         */
+        private int summaryThreads = 2;
+
+        /**
+         * 摘要任务队列容量
+         */
+        private int summaryQueueCapacity = 200;
+    }
+
+    @Data
+    public static class StreamConfig {
+        /**
+         * 客户端断开后是否把已生成的部分回答写入历史
+         * false 时整轮丢弃（连同用户消息），历史保持本轮之前的状态
+         */
+        private boolean storePartialOnCancel = false;
+    }
+
+    @Data
+    public static class RagConfig {
+        /**
+         * 历史中的用户消息是否附带紧凑的引用记录（参考资料标题）
+         */
+        private boolean citationInHistory = false;
+    }
+
+    @Data
+    public static class StoreConfig {
+        /**
+         * 存储类型：memory（仅本机内存）| file（本地磁盘）| redis（多副本共享）
+         */
+        private String type = "memory";
+
+        private FileConfig file = new FileConfig();
+
+        private RedisConfig redis = new RedisConfig();
+
+        /**
+         * 批量写入间隔（毫秒）
+         */
+        private long flushIntervalMs = 200;
+
+        /**
+         * 待写入会话数达到该值时立即写入
+         */
+        private int maxPending = 100;
+
+        /**
+         * 读缓存有效期（秒）；命中时先向存储查询版本号，有效期只限制缓存占用
+         */
+        private long readCacheTtlSeconds = 60;
+
+        /**
+         * 读缓存最大条目数
+         */
+        private int readCacheMaxEntries = 1000;
+    }
+
+    @Data
+    public static class FileConfig {
+        /**
+         * 存储目录
+         */
+        private String directory = "data/conversations";
+    }
+
+    @Data
+    public static class RedisConfig {
+        private String host = "localhost";
+
+        private int port = 6379;
+
+        private String password;
+
+        private int database = 0;
+
+        /**
+         * 键前缀
+         */
+        private String keyPrefix = "conversation:";
+
+        /**
+         * 历史过期时间（分钟，0 表示不过期）
+         */
+        private long ttlMinutes = 1440;
+
+        /**
+         * 连接和读取超时（毫秒）
+         */
+        private long timeoutMs = 2000;
+    }
+}
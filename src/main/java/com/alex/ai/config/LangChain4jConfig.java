@@ -1,7 +1,12 @@
 package com.alex.ai.config;
 
-import dev.langchain4j.memory.ChatMemory;
-import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import com.alex.ai.service.BatchingChatMemoryStore;
+import com.alex.ai.service.FileChatMemoryStore;
+import com.alex.ai.service.ModelRouter;
+import com.alex.ai.service.RedisChatMemoryStore;
+import com.alex.ai.service.RoutingChatModel;
+import com.alex.ai.service.RoutingStreamingChatModel;
+import com.alex.ai.service.VersionedChatMemoryStore;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.request.ChatRequest;
@@ -11,17 +16,22 @@ import dev.langchain4j.model.openai.OpenAiChatModel;
 import dev.langchain4j.model.openai.OpenAiEmbeddingModel;
 import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
 import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
 import dev.langchain4j.store.embedding.inmemory.InMemoryEmbeddingStore;
 import dev.langchain4j.store.embedding.chroma.ChromaApiVersion;
 import dev.langchain4j.store.embedding.chroma.ChromaEmbeddingStore;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.data.message.AiMessage;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
 
 /**
  * LangChain4j 配置类
@@ -67,11 +77,53 @@ public class LangChain4jConfig {
     @Value("${rag.vector-store.chroma.collection-name:ai-knowledge}")
     private String chromaCollectionName;
 
+    /**
+     * 配置多端点路由（model.routing.enabled=true 时启用）
+     * 
+     * 每个端点各自构建 OpenAI 兼容的 ChatModel / StreamingChatModel，
+     * 端点内不重试，失败由路由切换到下一个端点
+     */
+    @Bean
+    @ConditionalOnProperty(name = "model.routing.enabled", havingValue = "true")
+    public ModelRouter modelRouter(ModelRoutingProperties routing) {
+        List<ModelRouter.Endpoint> endpoints = routing.getEndpoints().stream()
+            .map(endpoint -> {
+                String key = endpoint.getApiKey() != null && !endpoint.getApiKey().isEmpty() ? endpoint.getApiKey() : apiKey;
+                String model = endpoint.getModelName() != null && !endpoint.getModelName().isEmpty() ? endpoint.getModelName() : modelName;
+                String name = endpoint.getName() != null ? endpoint.getName() : endpoint.getBaseUrl();
+                ChatModel chat = OpenAiChatModel.builder()
+                    .apiKey(key)
+                    .baseUrl(endpoint.getBaseUrl())
+                    .modelName(model)
+                    .temperature(temperature)
+                    .maxTokens(maxTokens)
+                    .timeout(Duration.ofSeconds(routing.getTimeoutSeconds()))
+                    .maxRetries(0)
+                    .build();
+                StreamingChatModel streaming = OpenAiStreamingChatModel.builder()
+                    .apiKey(key)
+                    .baseUrl(endpoint.getBaseUrl())
+                    .modelName(model)
+                    .temperature(temperature)
+                    .maxTokens(maxTokens)
+                    .timeout(Duration.ofSeconds(routing.getTimeoutSeconds()))
+                    .build();
+                return new ModelRouter.Endpoint(name, chat, streaming);
+            })
+            .toList();
+        return new ModelRouter(endpoints, routing.getEwmaAlpha(), routing.getErrorRateThreshold(),
+            Duration.ofSeconds(routing.getCooldownSeconds()), Duration.ofMillis(routing.getFirstTokenTimeoutMs()));
+    }
+
     /**
      * 配置流式 ChatModel Bean
      */
     @Bean
-    public StreamingChatModel streamingChatModel() {
+    public StreamingChatModel streamingChatModel(ObjectProvider<ModelRouter> modelRouter) {
+        ModelRouter router = modelRouter.getIfAvailable();
+        if (router != null) {
+            return new RoutingStreamingChatModel(router);
+        }
         if ("demo".equals(apiKey) || apiKey == null || apiKey.isEmpty() || apiKey.equals("your-api-key-here")) {
             return null; // 不支持流式 Demo
         }
@@ -90,10 +142,15 @@ public class LangChain4jConfig {
 
     /**
      * 配置 ChatModel Bean
+     * 启用多端点路由时返回路由模型；
      * 如果没有配置 API Key，将使用占位符（启动不会失败，但调用时会报错）
      */
     @Bean
-    public ChatModel chatModel() {
+    public ChatModel chatModel(ObjectProvider<ModelRouter> modelRouter) {
+        ModelRouter router = modelRouter.getIfAvailable();
+        if (router != null) {
+            return new RoutingChatModel(router);
+        }
         if ("demo".equals(apiKey) || apiKey == null || apiKey.isEmpty() || apiKey.equals("your-api-key-here")) {
             // 如果没有配置 API Key，创建一个占位实现
             return new DemoChatModel();
@@ -112,12 +169,33 @@ public class LangChain4jConfig {
     }
 
     /**
-     * 配置对话记忆存储（内存模式）
-     * 生产环境可替换为 Redis 或数据库实现
+     * 配置会话历史存储
+     * 
+     * 支持三种模式：
+     * - memory: 仅保存在本机内存（默认，不创建存储）
+     * - file: 本地磁盘，重启后会话保留
+     * - redis: Redis，多个副本共享会话，负载均衡无需会话粘滞
+     * 
+     * 持久化存储外层包装批量写入和读缓存，通过 conversation.store.type 配置切换；
+     * 会话元数据（RAG 开关）随历史一起保存，写入按版本号比较，多副本并发写同一会话不会互相覆盖
      */
     @Bean
-    public ChatMemory chatMemory() {
-        return MessageWindowChatMemory.withMaxMessages(10);
+    public ChatMemoryStore chatMemoryStore(ConversationProperties conversationProperties) {
+        ConversationProperties.StoreConfig store = conversationProperties.getStore();
+        VersionedChatMemoryStore delegate;
+        if ("file".equalsIgnoreCase(store.getType())) {
+            delegate = new FileChatMemoryStore(Path.of(store.getFile().getDirectory()));
+        } else if ("redis".equalsIgnoreCase(store.getType())) {
+            ConversationProperties.RedisConfig redis = store.getRedis();
+            delegate = new RedisChatMemoryStore(redis.getHost(), redis.getPort(), redis.getPassword(),
+                redis.getDatabase(), redis.getKeyPrefix(), Duration.ofMinutes(redis.getTtlMinutes()),
+                Duration.ofMillis(redis.getTimeoutMs()));
+        } else {
+            log.info("会话历史存储: 本机内存（重启后会话丢失）");
+            return null;
+        }
+        return new BatchingChatMemoryStore(delegate, Duration.ofMillis(store.getFlushIntervalMs()),
+            store.getMaxPending(), Duration.ofSeconds(store.getReadCacheTtlSeconds()), store.getReadCacheMaxEntries());
     }
 
     /**
@@ -0,0 +1,78 @@
+package com.alex.ai.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 多模型端点路由配置属性
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "model.routing")
+public class ModelRoutingProperties {
+
+    /**
+     * 是否启用多端点路由（关闭时只使用 langchain4j.open-ai.chat-model 配置的单个端点）
+     */
+    private boolean enabled = false;
+
+    /**
+     * OpenAI 兼容端点列表
+     */
+    private List<EndpointConfig> endpoints = new ArrayList<>();
+
+    /**
+     * 延迟与错误率的 EWMA 平滑系数（0-1，越大越偏重最近的调用）
+     */
+    private double ewmaAlpha = 0.2;
+
+    /**
+     * 错误率（EWMA）达到该值时端点进入冷却期
+     */
+    private double errorRateThreshold = 0.5;
+
+    /**
+     * 冷却期（秒），期间该端点只作为最后的备选
+     */
+    private int cooldownSeconds = 30;
+
+    /**
+     * 非流式调用超时（秒），超时即切换到下一个端点
+     */
+    private int timeoutSeconds = 60;
+
+    /**
+     * 流式调用首个 token 超时（毫秒），超时即切换到下一个端点
+     */
+    private long firstTokenTimeoutMs = 10000;
+
+    @Data
+    public static class EndpointConfig {
+        /**
+         * 端点名称（用于日志和指标）
+         */
+        private String name;
+
+        /**
+         * API 地址
+         */
+        private String baseUrl;
+
+        /**
+         * API Key（为空时使用 langchain4j.open-ai.chat-model.api-key）
+         */
+        private String apiKey;
+
+        /**
+         * 模型名称（为空时使用 langchain4j.open-ai.chat-model.model-name）
+         */
+        private String modelName;
+    }
+}
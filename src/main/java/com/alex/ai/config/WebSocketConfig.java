@@ -0,0 +1,59 @@
+package com.alex.ai.config;
+
+import com.alex.ai.controller.ChatWebSocketHandler;
+import com.alex.ai.security.RateLimiter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+
+/**
+ * WebSocket 配置
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Configuration
+@EnableWebSocket
+@RequiredArgsConstructor
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final ChatWebSocketHandler chatWebSocketHandler;
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        // 与 CorsConfig 保持一致，允许任意来源
+        registry.addHandler(chatWebSocketHandler, "/api/chat/ws")
+            .addInterceptors(new ClientIpInterceptor())
+            .setAllowedOriginPatterns("*");
+    }
+
+    /**
+     * 握手时按 HTTP 接口相同的规则解析客户端 IP，供按 IP 限流使用
+     */
+    private static class ClientIpInterceptor implements HandshakeInterceptor {
+
+        @Override
+        public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                       WebSocketHandler wsHandler, Map<String, Object> attributes) {
+            if (request instanceof ServletServerHttpRequest servletRequest) {
+                attributes.put(ChatWebSocketHandler.CLIENT_IP_ATTRIBUTE,
+                    RateLimiter.clientIp(servletRequest.getServletRequest()));
+            }
+            return true;
+        }
+
+        @Override
+        public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response,
+                                   WebSocketHandler wsHandler, Exception exception) {
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.alex.ai.controller;
 
+import com.alex.ai.exception.BusinessException;
 import com.alex.ai.model.ChatRequest;
 import com.alex.ai.model.ChatResponse;
 import com.alex.ai.security.RateLimit;
+import com.alex.ai.service.ChatExecutor;
 import com.alex.ai.service.ChatService;
 import com.alex.ai.service.ConversationService;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
@@ -13,8 +16,12 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.time.LocalDateTime;
 import java.util.Arrays;
@@ -36,6 +43,13 @@ public class ChatController {
 
     private final ChatService chatService;
     private final ConversationService conversationService;
+    private final ChatExecutor chatExecutor;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * 会话分页查询的单页上限
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
 
     /**
      * 简单对话接口
@@ -52,6 +66,23 @@ public class ChatController {
         return ResponseEntity.ok(ChatResponse.success(response));
     }
 
+    /**
+     * 流式简单对话接口（SSE）
+     * 
+     * 事件格式与流式多轮对话相同：每个事件为一段 token，最后一个事件为 done；
+     * 未配置流式模型时完整回答作为一个事件返回。
+     * 
+     * @param request 聊天请求
+     * @return SSE 事件流
+     */
+    @Operation(summary = "流式简单对话", description = "单轮问答的流式版本，逐 token 返回")
+    @PostMapping(value = "/simple/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @RateLimit(requestsPerMinute = 30, keyPrefix = "chat-simple")
+    public Flux<ServerSentEvent<String>> streamSimpleChat(@Valid @RequestBody ChatRequest request) {
+        log.info("收到流式简单对话请求: {}", request.getMessage());
+        return toEvents(chatService.streamChat(null, request.getMessage()));
+    }
+
     /**
      * 带系统提示词的对话接口
      * 
@@ -71,6 +102,24 @@ public class ChatController {
         return ResponseEntity.ok(ChatResponse.success(response));
     }
 
+    /**
+     * 流式带系统提示词的对话接口（SSE）
+     * 
+     * @param request 聊天请求（包含系统提示词）
+     * @return SSE 事件流，最后一个事件为 done
+     */
+    @Operation(summary = "流式上下文对话", description = "上下文对话的流式版本，逐 token 返回")
+    @PostMapping(value = "/with-context/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @RateLimit(requestsPerMinute = 30, keyPrefix = "chat-context")
+    public Flux<ServerSentEvent<String>> streamChatWithContext(@Valid @RequestBody ChatRequest request) {
+        log.info("收到流式上下文对话请求");
+        String systemPrompt = request.getSystemPrompt() != null 
+            ? request.getSystemPrompt() 
+            : "你是一个友好、专业的 AI 助手。";
+        
+        return toEvents(chatService.streamChat(systemPrompt, request.getMessage()));
+    }
+
     /**
      * 多轮对话接口（支持上下文）
      * 
@@ -86,36 +135,81 @@ public class ChatController {
             : "default-session";
         
         log.info("会话 {} 收到消息", sessionId);
-        String response = conversationService.continueConversation(sessionId, request.getMessage());
+        String response = chatExecutor.call(() -> conversationService.continueConversation(sessionId, request.getMessage()));
         return ResponseEntity.ok(ChatResponse.success(response, sessionId));
     }
 
     /**
      * 流式多轮对话接口（SSE）
      * 
+     * 每个事件带事件 ID；连接中断后带上 Last-Event-ID 和相同的会话 ID、消息重新请求，
+     * 从断点续传同一个回答，不重新调用模型。回答已过期、断点无法续传或上次已收到完整回答时按新请求处理。
+     * 
      * @param request 聊天请求（包含会话 ID）
+     * @param lastEventId 断线重连时客户端收到的最后一个事件 ID
      * @return SSE 流
      */
-    @Operation(summary = "流式多轮对话", description = "支持上下文记忆的流式对话，实时返回 AI 响应")
+    @Operation(summary = "流式多轮对话", description = "支持上下文记忆的流式对话，实时返回 AI 响应；支持 Last-Event-ID 断点续传")
     @PostMapping(value = "/conversation/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
     @RateLimit(requestsPerMinute = 20, keyPrefix = "chat-stream")
-    public SseEmitter streamConversation(@Valid @RequestBody ChatRequest request) {
+    public SseEmitter streamConversation(
+        @Valid @RequestBody ChatRequest request,
+        @Parameter(description = "断线重连时收到的最后一个事件 ID") @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
         String sessionId = request.getSessionId() != null 
             ? request.getSessionId() 
             : "default-session";
         
-        log.info("会话 {} 收到流式消息", sessionId);
-        
         SseEmitter emitter = new SseEmitter(60000L); // 60秒超时
         
-        // 异步处理
-        new Thread(() -> {
-            conversationService.streamConversation(sessionId, request.getMessage(), emitter);
-        }).start();
+        // 断点续传只读取缓冲区，不占用模型调用名额
+        if (lastEventId != null && conversationService.resumeStream(lastEventId, sessionId, request.getMessage(), emitter)) {
+            log.info("会话 {} 从 {} 续传流式响应", sessionId, lastEventId);
+            return emitter;
+        }
+        
+        log.info("会话 {} 收到流式消息", sessionId);
+        
+        // 在托管执行器中异步处理（JDK 21+ 为虚拟线程），并发名额在连接结束时归还
+        chatExecutor.stream(emitter, () ->
+            conversationService.streamConversation(sessionId, request.getMessage(), emitter));
         
         return emitter;
     }
 
+    /**
+     * 响应式流式多轮对话接口（SSE）
+     * 
+     * 返回 Flux，由 Spring MVC 异步写出：等待模型期间不占用任何线程，
+     * 下游写出慢时按需拉取 token（背压），适合大量长时间等待的连接。
+     * 
+     * @param request 聊天请求（包含会话 ID）
+     * @return SSE 事件流，最后一个事件为 done
+     */
+    @Operation(summary = "响应式流式多轮对话", description = "与流式多轮对话相同的事件格式，基于 Flux 实现，连接等待期间不占用线程")
+    @PostMapping(value = "/conversation/flux", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @RateLimit(requestsPerMinute = 20, keyPrefix = "chat-stream")
+    public Flux<ServerSentEvent<String>> fluxConversation(@Valid @RequestBody ChatRequest request) {
+        String sessionId = request.getSessionId() != null 
+            ? request.getSessionId() 
+            : "default-session";
+        
+        log.info("会话 {} 收到响应式流式消息", sessionId);
+        
+        return chatExecutor.stream(toEvents(conversationService.streamReply(sessionId, request.getMessage())));
+    }
+
+    /**
+     * token 流转换为 SSE 事件：每个 token 一个事件，最后是完成信号
+     * 
+     * 订阅后才出现的业务异常（如模型并发名额已满）作为 error 事件返回，事件内容为错误信息。
+     */
+    private static Flux<ServerSentEvent<String>> toEvents(Flux<String> tokens) {
+        return tokens.map(token -> ServerSentEvent.builder(token).build())
+            .concatWith(Mono.just(ServerSentEvent.builder("[DONE]").event("done").build()))
+            .onErrorResume(BusinessException.class,
+                e -> Mono.just(ServerSentEvent.builder(e.getMessage()).event("error").build()));
+    }
+
     /**
      * 清除会话
      * 
@@ -131,6 +225,24 @@ public class ChatController {
         return ResponseEntity.ok(ChatResponse.success("会话已清除", sessionId));
     }
 
+    /**
+     * 分叉会话
+     * 
+     * @param sessionId 原会话 ID
+     * @param keepMessages 保留的对话消息数（可选）
+     * @return 新会话 ID
+     */
+    @Operation(summary = "分叉会话", description = "基于指定会话创建新会话，共享已有历史；可只保留前 N 条对话消息后重新提问")
+    @PostMapping("/conversation/{sessionId}/fork")
+    public ResponseEntity<ChatResponse> forkConversation(
+        @Parameter(description = "会话 ID", required = true) @PathVariable String sessionId,
+        @Parameter(description = "保留的对话消息数（不含系统提示词），不传则全部保留")
+        @RequestParam(required = false) Integer keepMessages) {
+        log.info("分叉会话: {}", sessionId);
+        String forkId = conversationService.forkSession(sessionId, keepMessages);
+        return ResponseEntity.ok(ChatResponse.success("会话已分叉", forkId));
+    }
+
     /**
      * 健康检查接口
      */
@@ -168,6 +280,40 @@ public class ChatController {
         return ResponseEntity.ok(result);
     }
 
+    /**
+     * 分页查询会话（NDJSON 流式输出）
+     * 
+     * 每行一个会话的 JSON；下一页游标通过响应头 X-Next-Cursor 返回，没有更多数据时不返回该头。
+     */
+    @Operation(summary = "分页查询会话", description = "按会话 ID 游标分页，支持按空闲时间、消息数和 RAG 开关过滤，以 NDJSON 流式返回")
+    @GetMapping(value = "/sessions/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamSessions(
+        @Parameter(description = "上一页返回的游标") @RequestParam(required = false) String cursor,
+        @Parameter(description = "每页条数（1-1000）") @RequestParam(defaultValue = "100") int limit,
+        @Parameter(description = "最小空闲时间（秒）") @RequestParam(required = false) Long minIdleSeconds,
+        @Parameter(description = "最大空闲时间（秒）") @RequestParam(required = false) Long maxIdleSeconds,
+        @Parameter(description = "最少消息数") @RequestParam(required = false) Integer minMessages,
+        @Parameter(description = "最多消息数") @RequestParam(required = false) Integer maxMessages,
+        @Parameter(description = "RAG 开关") @RequestParam(required = false) Boolean ragEnabled) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw BusinessException.badRequest("limit 取值范围为 1-" + MAX_PAGE_SIZE);
+        }
+        ConversationService.SessionPage page = conversationService.listSessions(cursor, limit,
+            new ConversationService.SessionFilter(minIdleSeconds, maxIdleSeconds, minMessages, maxMessages, ragEnabled));
+        StreamingResponseBody body = out -> {
+            for (ConversationService.SessionSummary session : page.sessions()) {
+                out.write(objectMapper.writeValueAsBytes(session));
+                out.write('\n');
+            }
+            out.flush();
+        };
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON);
+        if (page.nextCursor() != null) {
+            response.header("X-Next-Cursor", page.nextCursor());
+        }
+        return response.body(body);
+    }
+
     /**
      * 获取指定会话的信息
      */
@@ -196,10 +342,16 @@ public class ChatController {
             "GET /health - 健康检查",
             "GET /info - 系统信息",
             "GET /sessions - 会话列表",
+            "GET /sessions/stream - 分页查询会话（NDJSON）",
             "GET /config - 配置信息",
             "POST /simple - 简单对话",
+            "POST /simple/stream - 流式简单对话（SSE）",
             "POST /with-context - 上下文对话",
+            "POST /with-context/stream - 流式上下文对话（SSE）",
             "POST /conversation - 多轮对话",
+            "POST /conversation/flux - 响应式流式对话（SSE）",
+            "WS /ws - WebSocket 对话（多会话复用）",
+            "POST /conversation/{id}/fork - 分叉会话",
             "DELETE /conversation/{id} - 清除会话"
         ));
         return ResponseEntity.ok(config);
@@ -0,0 +1,338 @@
+package com.alex.ai.controller;
+
+import com.alex.ai.exception.BusinessException;
+import com.alex.ai.model.ChatSocketMessage;
+import com.alex.ai.security.RateLimiter;
+import com.alex.ai.service.ChatExecutor;
+import com.alex.ai.service.ConversationService;
+import com.alex.ai.service.SseStreamWriter;
+import com.alex.ai.service.StreamReplayBuffer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WebSocket 对话通道
+ *
+ * 一个连接上复用多个会话：客户端发送 chat 帧发起一轮对话，服务端以 delta 帧推送 token，
+ * 以 done / error 帧结束该轮；cancel 帧取消进行中的一轮（取消上游模型调用）。
+ * 常驻的客户端只需要一次握手，每一轮对话不再重复建立 HTTP 连接。
+ *
+ * 每一轮与 /conversation/flux 相同：经由 ConversationService.streamReply 生成，
+ * 受 ChatExecutor 并发上限约束，并与 HTTP 流式接口共用按客户端 IP 的 chat-stream 限流桶；
+ * 同一会话的多轮仍按 SessionLanes 排队执行。
+ * 写出与 SSE 相同经 SseStreamWriter：每个连接一个有界队列，模型回调线程只入队，
+ * 由写出线程按顺序写出；队列满时按 chat.stream.writer.slow-consumer-policy 处理
+ * （coalesce 只合并同一轮对话的 delta 帧；连接被关闭时取消该连接上的对话）。
+ * 连接关闭时取消该连接上所有进行中的对话。
+ * error 帧只包含固定的错误码和提示，异常详情只记录在服务端日志中。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ChatWebSocketHandler extends TextWebSocketHandler implements MeterBinder {
+
+    private static final String DEFAULT_SESSION = "default-session";
+
+    /**
+     * 握手时记录的客户端 IP（会话属性名）
+     */
+    public static final String CLIENT_IP_ATTRIBUTE = ChatWebSocketHandler.class.getName() + ".clientIp";
+
+    /**
+     * 与 HTTP 流式对话接口相同的限流桶（见 ChatController 的 @RateLimit）
+     */
+    private static final String RATE_LIMIT_KEY_PREFIX = "chat-stream";
+    private static final int RATE_LIMIT_PER_MINUTE = 20;
+
+    private final ConversationService conversationService;
+    private final ChatExecutor chatExecutor;
+    private final ObjectMapper objectMapper;
+    private final RateLimiter rateLimiter;
+    private final SseStreamWriter streamWriter;
+
+    @Value("${chat.websocket.max-turns-per-connection:16}")
+    private int maxTurnsPerConnection = 16;
+
+    /**
+     * 当前连接（按 WebSocket 会话 ID）
+     */
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+
+    private final LongAdder turns = new LongAdder();
+    private final LongAdder cancelledTurns = new LongAdder();
+
+    /**
+     * 单个 WebSocket 连接：有界写出通道 + 客户端 IP + 进行中的对话（按对话 ID）
+     */
+    private record Connection(SseStreamWriter.Channel channel, String clientIp, Map<String, Disposable> turns) {}
+
+    /**
+     * WebSocket 写出目标：delta 帧（事件名为 null）在写出时编码，其余帧入队前已编码为 JSON
+     */
+    private final class SocketSink implements SseStreamWriter.Sink {
+        private final WebSocketSession session;
+
+        private SocketSink(WebSocketSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void send(StreamReplayBuffer.Frame frame) throws IOException {
+            String payload = frame.event() == null
+                ? objectMapper.writeValueAsString(ChatSocketMessage.of(ChatSocketMessage.DELTA, frame.id(), frame.data()))
+                : frame.data();
+            session.sendMessage(new TextMessage(payload));
+        }
+
+        /**
+         * 通道随连接存在，只有被慢客户端策略关闭时才会结束
+         */
+        @Override
+        public void complete() {
+            close(CloseStatus.SESSION_NOT_RELIABLE);
+        }
+
+        @Override
+        public void completeWithError(Throwable error) {
+            close(CloseStatus.SERVER_ERROR);
+        }
+
+        /**
+         * 帧的 ID 为对话 ID，只合并同一轮对话的 delta 帧
+         */
+        @Override
+        public boolean sameStream(StreamReplayBuffer.Frame previous, StreamReplayBuffer.Frame next) {
+            return Objects.equals(previous.id(), next.id());
+        }
+
+        private void close(CloseStatus status) {
+            try {
+                session.close(status);
+            } catch (IOException e) {
+                log.debug("WebSocket 关闭失败: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        Map<String, Disposable> active = new ConcurrentHashMap<>();
+        SseStreamWriter.Channel channel = streamWriter.open(new SocketSink(session), () -> {
+            // 客户端过慢或写出失败：取消该连接上的对话
+            log.info("WebSocket 客户端过慢或已断开，取消连接 {} 上的对话", session.getId());
+            cancelTurns(active);
+        });
+        connections.put(session.getId(), new Connection(channel, clientIp(session), active));
+        log.info("WebSocket 连接建立: {}", session.getId());
+    }
+
+    /**
+     * 握手时记录的客户端 IP，没有记录时使用连接的远端地址
+     */
+    private static String clientIp(WebSocketSession session) {
+        if (session.getAttributes().get(CLIENT_IP_ATTRIBUTE) instanceof String ip) {
+            return ip;
+        }
+        InetSocketAddress remote = session.getRemoteAddress();
+        return remote != null ? remote.getAddress().getHostAddress() : "unknown";
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        Connection connection = connections.get(session.getId());
+        if (connection == null) {
+            return;
+        }
+        ChatSocketMessage frame;
+        try {
+            frame = objectMapper.readValue(message.getPayload(), ChatSocketMessage.class);
+        } catch (JsonProcessingException e) {
+            send(connection, ChatSocketMessage.error(null, 400, "无法解析的消息"));
+            return;
+        }
+        String type = frame.getType() == null ? "" : frame.getType();
+        switch (type) {
+            case ChatSocketMessage.CHAT -> startTurn(connection, frame);
+            case ChatSocketMessage.CANCEL -> cancelTurn(connection, frame.getId());
+            case ChatSocketMessage.PING -> send(connection, ChatSocketMessage.of(ChatSocketMessage.PONG, frame.getId(), null));
+            default -> send(connection, ChatSocketMessage.error(frame.getId(), 400, "不支持的消息类型: " + type));
+        }
+    }
+
+    /**
+     * 发起一轮对话
+     */
+    private void startTurn(Connection connection, ChatSocketMessage frame) {
+        String id = frame.getId();
+        if (id == null || id.isBlank()) {
+            send(connection, ChatSocketMessage.error(null, 400, "缺少对话 ID"));
+            return;
+        }
+        if (frame.getMessage() == null || frame.getMessage().isBlank()) {
+            send(connection, ChatSocketMessage.error(id, 400, "消息内容不能为空"));
+            return;
+        }
+        if (!rateLimiter.tryConsume(RATE_LIMIT_KEY_PREFIX + ":" + connection.clientIp(), RATE_LIMIT_PER_MINUTE)) {
+            log.warn("WebSocket 对话被限流: ip={}", connection.clientIp());
+            send(connection, ChatSocketMessage.error(id, 429, "请求过于频繁，请稍后再试"));
+            return;
+        }
+        if (connection.turns().size() >= maxTurnsPerConnection) {
+            send(connection, ChatSocketMessage.error(id, 429, "进行中的对话过多，请稍后重试"));
+            return;
+        }
+        // 先登记再订阅：streamReply 可能同步结束（例如命中缓存）
+        Disposable.Swap turn = Disposables.swap();
+        if (connection.turns().putIfAbsent(id, turn) != null) {
+            send(connection, ChatSocketMessage.error(id, 400, "对话 ID 已在进行中: " + id));
+            return;
+        }
+
+        String sessionId = frame.getSessionId() != null ? frame.getSessionId() : DEFAULT_SESSION;
+        Flux<String> tokens;
+        try {
+            tokens = chatExecutor.stream(conversationService.streamReply(sessionId, frame.getMessage()));
+        } catch (BusinessException e) {
+            connection.turns().remove(id, turn);
+            sendError(connection, id, e);
+            return;
+        }
+        turns.increment();
+        turn.update(tokens.subscribe(
+            token -> connection.channel().offer(new StreamReplayBuffer.Frame(id, null, token)),
+            error -> {
+                connection.turns().remove(id, turn);
+                sendError(connection, id, error);
+            },
+            () -> {
+                connection.turns().remove(id, turn);
+                send(connection, ChatSocketMessage.of(ChatSocketMessage.DONE, id, null));
+            }));
+    }
+
+    /**
+     * 取消进行中的一轮对话
+     */
+    private void cancelTurn(Connection connection, String id) {
+        Disposable turn = id != null ? connection.turns().remove(id) : null;
+        if (turn == null) {
+            send(connection, ChatSocketMessage.error(id, 404, "对话不存在或已结束"));
+            return;
+        }
+        turn.dispose();
+        cancelledTurns.increment();
+        send(connection, ChatSocketMessage.of(ChatSocketMessage.CANCELLED, id, null));
+    }
+
+    /**
+     * 一轮对话失败：客户端只收到错误码和固定提示，异常详情记录在日志中
+     */
+    private void sendError(Connection connection, String id, Throwable error) {
+        int code = error instanceof BusinessException business ? business.getCode() : 500;
+        if (code >= 500) {
+            log.error("WebSocket 对话 {} 失败", id, error);
+        } else {
+            log.warn("WebSocket 对话 {} 失败: code={}, message={}", id, code, error.getMessage());
+        }
+        send(connection, ChatSocketMessage.error(id, code, errorText(code)));
+    }
+
+    private static String errorText(int code) {
+        return switch (code) {
+            case 400 -> "请求参数错误";
+            case 404 -> "会话不存在";
+            case 429 -> "请求过于频繁，请稍后再试";
+            default -> "系统繁忙，请稍后重试";
+        };
+    }
+
+    /**
+     * 控制帧（done、error 等）入队前编码为 JSON，与 delta 帧按顺序写出
+     */
+    private void send(Connection connection, ChatSocketMessage frame) {
+        try {
+            String payload = objectMapper.writeValueAsString(frame);
+            connection.channel().offer(new StreamReplayBuffer.Frame(frame.getId(), frame.getType(), payload));
+        } catch (JsonProcessingException e) {
+            log.warn("WebSocket 帧编码失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 取消连接上所有进行中的对话
+     *
+     * @return 取消的对话数
+     */
+    private static int cancelTurns(Map<String, Disposable> turns) {
+        int cancelled = 0;
+        for (String id : turns.keySet()) {
+            Disposable turn = turns.remove(id);
+            if (turn != null) {
+                turn.dispose();
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    @Override
+    public void handleTransportError(WebSocketSession session, Throwable exception) {
+        log.info("WebSocket 传输错误: {} - {}", session.getId(), exception.getMessage());
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        Connection connection = connections.remove(session.getId());
+        if (connection == null) {
+            return;
+        }
+        connection.channel().cancel();
+        int active = cancelTurns(connection.turns());
+        log.info("WebSocket 连接关闭: {} ({})，取消进行中的对话 {} 个", session.getId(), status, active);
+    }
+
+    /**
+     * 当前连接数
+     */
+    int connectionCount() {
+        return connections.size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("chat.websocket.connections", connections, Map::size)
+            .description("当前 WebSocket 对话连接数")
+            .register(registry);
+        FunctionCounter.builder("chat.websocket.turns", turns, LongAdder::sum)
+            .description("通过 WebSocket 发起的对话轮数")
+            .register(registry);
+        FunctionCounter.builder("chat.websocket.turns.cancelled", cancelledTurns, LongAdder::sum)
+            .description("客户端通过 cancel 帧取消的对话轮数")
+            .register(registry);
+    }
+}
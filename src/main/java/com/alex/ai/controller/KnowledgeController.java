@@ -37,17 +37,20 @@ public class KnowledgeController {
     /**
      * 添加知识
      */
-    @Operation(summary = "添加知识", description = "将文本内容添加到知识库，支持长文本自动分段")
+    @Operation(summary = "添加知识", description = "将文本内容添加到知识库，支持长文本自动分段，近似重复片段会被折叠")
     @PostMapping
     public ResponseEntity<Map<String, Object>> addKnowledge(@Valid @RequestBody AddKnowledgeRequest request) {
         log.info("添加知识请求: {}", request.getTitle());
         
-        String entryId = knowledgeService.addKnowledge(request.getTitle(), request.getContent());
+        IngestResult result = knowledgeService.ingestKnowledge(request.getTitle(), request.getContent());
         
         Map<String, Object> response = new HashMap<>();
         response.put("success", true);
-        response.put("id", entryId);
+        response.put("id", result.id());
         response.put("message", "知识添加成功");
+        response.put("totalSegments", result.totalSegments());
+        response.put("storedSegments", result.storedSegments());
+        response.put("collapsed", result.collapsed());
         
         return ResponseEntity.ok(response);
     }
@@ -141,6 +144,21 @@ public class KnowledgeController {
         return ResponseEntity.ok(response);
     }
 
+    /**
+     * 获取知识库分布统计
+     */
+    @Operation(summary = "知识库分布统计", description = "按来源统计片段数，按日期统计新增条目")
+    @GetMapping("/stats/histogram")
+    public ResponseEntity<Map<String, Object>> getHistogram() {
+        KnowledgeHistogram histogram = knowledgeService.getHistogram();
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("data", histogram);
+        
+        return ResponseEntity.ok(response);
+    }
+
     // ==================== 请求 DTO ====================
 
     @Data
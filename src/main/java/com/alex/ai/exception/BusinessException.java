@@ -11,6 +11,8 @@ import lombok.Getter;
 @Getter
 public class BusinessException extends RuntimeException {
 
+    private static final long serialVersionUID = 1L;
+
     /**
      * 错误码
      */
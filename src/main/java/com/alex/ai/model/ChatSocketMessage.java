@@ -0,0 +1,72 @@
+package com.alex.ai.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+
+/**
+ * WebSocket 对话帧
+ *
+ * 一个连接上可以同时进行多个会话的多轮对话，每一轮由客户端指定的 id 区分：
+ * - 客户端 → 服务端：chat（发起一轮对话）、cancel（取消进行中的一轮）、ping
+ * - 服务端 → 客户端：delta（token 增量）、done（本轮结束）、cancelled、error、pong
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Data
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChatSocketMessage {
+
+    public static final String CHAT = "chat";
+    public static final String CANCEL = "cancel";
+    public static final String PING = "ping";
+    public static final String DELTA = "delta";
+    public static final String DONE = "done";
+    public static final String CANCELLED = "cancelled";
+    public static final String ERROR = "error";
+    public static final String PONG = "pong";
+
+    /**
+     * 帧类型
+     */
+    private String type;
+
+    /**
+     * 本轮对话 ID（客户端生成，同一连接内唯一）
+     */
+    private String id;
+
+    /**
+     * 会话 ID（chat 帧使用）
+     */
+    private String sessionId;
+
+    /**
+     * 用户消息（chat 帧使用）
+     */
+    private String message;
+
+    /**
+     * token 增量（delta 帧）或错误信息（error 帧）
+     */
+    private String data;
+
+    /**
+     * 错误码（error 帧使用）
+     */
+    private Integer code;
+
+    public static ChatSocketMessage of(String type, String id, String data) {
+        ChatSocketMessage frame = new ChatSocketMessage();
+        frame.setType(type);
+        frame.setId(id);
+        frame.setData(data);
+        return frame;
+    }
+
+    public static ChatSocketMessage error(String id, int code, String message) {
+        ChatSocketMessage frame = of(ERROR, id, message);
+        frame.setCode(code);
+        return frame;
+    }
+}
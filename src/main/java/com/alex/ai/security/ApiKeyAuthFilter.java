@@ -26,6 +26,8 @@ import java.nio.charset.StandardCharsets;
  * 
  * 仅当 api.security.enabled=true 时启用
  * 
+ * 浏览器无法为 WebSocket 握手设置请求头，握手请求也可以通过查询参数 apiKey 提供
+ * 
  * @author Alex
  * @since 2026-01-05
  */
@@ -40,6 +42,11 @@ public class ApiKeyAuthFilter extends OncePerRequestFilter {
     private final ObjectMapper objectMapper;
     private final AntPathMatcher pathMatcher = new AntPathMatcher();
 
+    /**
+     * WebSocket 握手时携带 API Key 的查询参数
+     */
+    private static final String WEBSOCKET_KEY_PARAM = "apiKey";
+
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
             throws ServletException, IOException {
@@ -54,6 +61,9 @@ public class ApiKeyAuthFilter extends OncePerRequestFilter {
 
         // 获取 API Key
         String apiKey = request.getHeader(securityProperties.getHeaderName());
+        if ((apiKey == null || apiKey.isEmpty()) && isWebSocketHandshake(request)) {
+            apiKey = request.getParameter(WEBSOCKET_KEY_PARAM);
+        }
 
         // 验证 API Key
         if (apiKey == null || apiKey.isEmpty()) {
@@ -80,6 +90,13 @@ public class ApiKeyAuthFilter extends OncePerRequestFilter {
             .anyMatch(pattern -> pathMatcher.match(pattern, path));
     }
 
+    /**
+     * 是否为 WebSocket 握手请求
+     */
+    private boolean isWebSocketHandshake(HttpServletRequest request) {
+        return "websocket".equalsIgnoreCase(request.getHeader("Upgrade"));
+    }
+
     /**
      * 发送未授权响应
      */
@@ -0,0 +1,82 @@
+package com.alex.ai.security;
+
+import com.alex.ai.config.ApiSecurityProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.github.bucket4j.Bucket;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限流器 - 按 key 维护 Bucket4j 令牌桶
+ *
+ * HTTP 接口通过 {@link RateLimitAspect} 使用，WebSocket 对话通道直接调用，
+ * 相同 key 共享同一个令牌桶。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Component
+@RequiredArgsConstructor
+public class RateLimiter {
+
+    private final ApiSecurityProperties securityProperties;
+
+    /**
+     * 限流桶缓存（按 key 存储）
+     * 使用 Caffeine 缓存，自动过期清理
+     */
+    private final Cache<String, Bucket> bucketCache = Caffeine.newBuilder()
+        .expireAfterAccess(10, TimeUnit.MINUTES)
+        .maximumSize(10000)
+        .build();
+
+    /**
+     * 尝试消耗一个令牌
+     *
+     * @param key 限流 key（如 "chat-stream:127.0.0.1"）
+     * @param requestsPerMinute 每分钟最大请求数
+     * @return 是否放行；未启用限流时始终放行
+     */
+    public boolean tryConsume(String key, int requestsPerMinute) {
+        if (!securityProperties.getRateLimit().isEnabled()) {
+            return true;
+        }
+        return bucketCache.get(key, k -> createBucket(requestsPerMinute)).tryConsume(1);
+    }
+
+    /**
+     * 创建令牌桶
+     * 使用 Bucket4j 新版 API（简化的 builder 模式）
+     */
+    private Bucket createBucket(int requestsPerMinute) {
+        return Bucket.builder()
+            .addLimit(limit -> limit
+                .capacity(requestsPerMinute)
+                .refillGreedy(requestsPerMinute, Duration.ofMinutes(1)))
+            .build();
+    }
+
+    /**
+     * 获取客户端真实 IP
+     */
+    public static String clientIp(HttpServletRequest request) {
+        // 优先从代理头获取真实 IP
+        String ip = request.getHeader("X-Forwarded-For");
+        if (ip != null && !ip.isEmpty() && !"unknown".equalsIgnoreCase(ip)) {
+            // X-Forwarded-For 可能包含多个 IP，取第一个
+            return ip.split(",")[0].trim();
+        }
+
+        ip = request.getHeader("X-Real-IP");
+        if (ip != null && !ip.isEmpty() && !"unknown".equalsIgnoreCase(ip)) {
+            return ip;
+        }
+
+        return request.getRemoteAddr();
+    }
+}
@@ -0,0 +1,320 @@
+package com.alex.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import dev.langchain4j.data.message.ChatMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量写入 + 读缓存的会话存储装饰器
+ *
+ * - 写入：先更新读缓存（写穿），再登记为待写入；同一会话的多次更新合并为最后一次，
+ *   由后台线程按固定间隔（或待写入数量达到上限时）批量条件写入底层存储。
+ *   条件写入以合并前的版本为预期版本，其他副本在此期间写过该会话时写入失败，
+ *   此时在最新记录上重放本机追加的消息后重新登记，不会覆盖其他副本追加的轮次
+ * - 读取：依次查待写入、写入中、读缓存；读缓存命中时先向底层存储查询版本号，
+ *   版本不一致（其他副本已更新）时丢弃缓存重新加载，因此不会读到过期的历史
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+public class BatchingChatMemoryStore implements VersionedChatMemoryStore, AutoCloseable {
+
+    /**
+     * 支持批量写入的底层存储
+     */
+    public interface BatchWriter {
+        /**
+         * 批量条件写入
+         *
+         * @param batch 会话 ID -> 更新
+         * @return 版本冲突、未写入的会话 ID
+         */
+        Set<Object> write(Map<Object, Update> batch);
+    }
+
+    /**
+     * 一次条件写入
+     *
+     * @param expectedVersion 预期的当前版本
+     * @param session 新的会话记录（为 null 表示删除）
+     */
+    public record Update(long expectedVersion, StoredSession session) {}
+
+    /**
+     * 待写入的变更
+     *
+     * @param base 变更所基于的存储记录（冲突时在最新记录上重放本机追加的消息）
+     * @param session 最新的会话记录（为 null 表示删除）
+     */
+    private record Pending(StoredSession base, StoredSession session) {
+        StoredSession local() {
+            return session != null ? session : StoredSession.EMPTY;
+        }
+    }
+
+    private final VersionedChatMemoryStore delegate;
+    private final int maxPending;
+    private final Cache<Object, StoredSession> readCache;
+    private final Map<Object, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Object, Pending> inFlight = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param delegate 底层存储
+     * @param flushInterval 批量写入间隔
+     * @param maxPending 待写入会话数达到该值时立即写入
+     * @param readCacheTtl 读缓存有效期
+     * @param readCacheMaxEntries 读缓存最大条目数
+     */
+    public BatchingChatMemoryStore(VersionedChatMemoryStore delegate, Duration flushInterval, int maxPending,
+                                   Duration readCacheTtl, int readCacheMaxEntries) {
+        this.delegate = delegate;
+        this.maxPending = maxPending;
+        this.readCache = Caffeine.newBuilder()
+            .expireAfterWrite(readCacheTtl)
+            .maximumSize(readCacheMaxEntries)
+            .build();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-memory-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        long intervalMillis = flushInterval.toMillis();
+        flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public StoredSession load(Object memoryId) {
+        Pending change = localChange(memoryId);
+        if (change != null) {
+            return change.local();
+        }
+        StoredSession cached = readCache.getIfPresent(memoryId);
+        if (cached != null && delegate.version(memoryId) == cached.version()) {
+            return cached;
+        }
+        StoredSession loaded = delegate.load(memoryId);
+        readCache.put(memoryId, loaded);
+        return loaded;
+    }
+
+    @Override
+    public long version(Object memoryId) {
+        return load(memoryId).version();
+    }
+
+    /**
+     * 本机版本一致时登记写入（底层存储的版本在批量写入时比较）
+     */
+    @Override
+    public boolean compareAndSet(Object memoryId, long expectedVersion, StoredSession session) {
+        StoredSession loaded = load(memoryId);
+        synchronized (this) {
+            StoredSession current = current(memoryId, loaded);
+            if (current.version() != expectedVersion) {
+                return false;
+            }
+            enqueue(memoryId, current, session);
+            return true;
+        }
+    }
+
+    /**
+     * 不比较版本写入历史（保留已有的元数据）
+     */
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        StoredSession loaded = load(memoryId);
+        synchronized (this) {
+            StoredSession current = current(memoryId, loaded);
+            enqueue(memoryId, current, new StoredSession(messages, current.metadata(), current.version() + 1));
+        }
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        StoredSession loaded = load(memoryId);
+        synchronized (this) {
+            enqueue(memoryId, current(memoryId, loaded), null);
+        }
+    }
+
+    /**
+     * 加锁后再查一次本机变更：加载期间可能有批量写入完成或冲突重放
+     */
+    private StoredSession current(Object memoryId, StoredSession loaded) {
+        Pending change = localChange(memoryId);
+        return change != null ? change.local() : loaded;
+    }
+
+    private Pending localChange(Object memoryId) {
+        Pending change = pending.get(memoryId);
+        return change != null ? change : inFlight.get(memoryId);
+    }
+
+    /**
+     * 登记变更：与尚未写入的变更合并时沿用其基线
+     */
+    private void enqueue(Object memoryId, StoredSession current, StoredSession session) {
+        Pending previous = localChange(memoryId);
+        StoredSession base = previous != null ? previous.base() : current;
+        readCache.put(memoryId, session != null ? session : StoredSession.EMPTY);
+        pending.put(memoryId, new Pending(base, session));
+        if (pending.size() >= maxPending) {
+            flusher.execute(this::flush);
+        }
+    }
+
+    /**
+     * 将待写入的变更批量写入底层存储
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            Map<Object, Pending> batch = new LinkedHashMap<>();
+            synchronized (this) {
+                for (Object memoryId : pending.keySet()) {
+                    Pending change = pending.remove(memoryId);
+                    if (change != null) {
+                        inFlight.put(memoryId, change);
+                        batch.put(memoryId, change);
+                    }
+                }
+            }
+            try {
+                Set<Object> conflicts = writeBatch(batch);
+                Map<Object, StoredSession> latest = new HashMap<>();
+                for (Object memoryId : conflicts) {
+                    latest.put(memoryId, delegate.load(memoryId));
+                }
+                synchronized (this) {
+                    batch.forEach((memoryId, change) -> {
+                        if (conflicts.contains(memoryId)) {
+                            rebase(memoryId, change, latest.get(memoryId));
+                        } else {
+                            // 写入期间登记的新变更改以本次写入的结果为基线
+                            pending.computeIfPresent(memoryId, (id, next) -> new Pending(change.local(), next.session()));
+                        }
+                    });
+                    inFlight.clear();
+                }
+                log.debug("批量写入会话历史: {} 个会话，{} 个版本冲突", batch.size(), conflicts.size());
+            } catch (Exception e) {
+                log.warn("批量写入会话历史失败，稍后重试: {}", e.getMessage());
+                synchronized (this) {
+                    // 写入失败的变更重新登记（已有更新的变更以新的为准）
+                    inFlight.forEach(pending::putIfAbsent);
+                    inFlight.clear();
+                }
+            }
+        }
+    }
+
+    private Set<Object> writeBatch(Map<Object, Pending> batch) {
+        Map<Object, Update> updates = new LinkedHashMap<>();
+        batch.forEach((memoryId, change) -> updates.put(memoryId, new Update(change.base().version(), change.session())));
+        if (delegate instanceof BatchWriter writer) {
+            return writer.write(updates);
+        }
+        Set<Object> conflicts = new HashSet<>();
+        updates.forEach((memoryId, update) -> {
+            if (update.session() == null) {
+                delegate.deleteMessages(memoryId);
+            } else if (!delegate.compareAndSet(memoryId, update.expectedVersion(), update.session())) {
+                conflicts.add(memoryId);
+            }
+        });
+        return conflicts;
+    }
+
+    /**
+     * 版本冲突：在其他副本写入后的最新记录上重放本机追加的消息，下次批量写入时重试
+     */
+    private void rebase(Object memoryId, Pending change, StoredSession latest) {
+        if (pending.containsKey(memoryId)) {
+            // 写入期间又有新变更，它包含本次的消息，写入时同样会冲突并重放
+            return;
+        }
+        List<ChatMessage> merged = replay(change.base().messages(), change.local().messages(), latest.messages());
+        if (merged == null) {
+            log.warn("会话 {} 已被其他副本更新，本机未写入的变更无法合并，以存储中的版本为准", memoryId);
+            readCache.put(memoryId, latest);
+            return;
+        }
+        StoredSession session = new StoredSession(merged, change.local().metadata(),
+            Math.max(latest.version(), change.local().version()) + 1);
+        log.info("会话 {} 已被其他副本更新，本机追加的 {} 条消息在最新历史上重放", memoryId,
+            merged.size() - latest.messages().size());
+        readCache.put(memoryId, session);
+        pending.put(memoryId, new Pending(latest, session));
+    }
+
+    /**
+     * 本机追加的消息：本机历史中基线最后一条消息之后的部分
+     *
+     * @return 最新历史 + 本机追加的消息；会话已被删除、或基线最后一条消息已移出本机窗口时返回 null
+     */
+    static List<ChatMessage> replay(List<ChatMessage> base, List<ChatMessage> local, List<ChatMessage> latest) {
+        if (latest.isEmpty() || local.isEmpty()) {
+            return null;
+        }
+        int start = -1;
+        if (base.isEmpty()) {
+            start = ChatHistory.of(local).headSize();
+        } else {
+            ChatMessage anchor = base.get(base.size() - 1);
+            // 同一份历史中的消息对象在本机各版本之间共享，按引用定位
+            for (int i = local.size() - 1; i >= 0 && start < 0; i--) {
+                if (local.get(i) == anchor) {
+                    start = i + 1;
+                }
+            }
+        }
+        if (start < 0) {
+            return null;
+        }
+        ChatHistory merged = ChatHistory.of(latest);
+        for (ChatMessage message : local.subList(start, local.size())) {
+            merged = merged.append(message);
+        }
+        return merged.toList();
+    }
+
+    /**
+     * 停止定时刷新，写出剩余的脏数据后关闭底层存储
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        if (delegate instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                log.warn("关闭会话历史存储失败: {}", e.getMessage());
+            }
+        }
+    }
+}
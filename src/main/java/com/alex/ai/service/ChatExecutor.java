@@ -0,0 +1,204 @@
+package com.alex.ai.service;
+
+import com.alex.ai.exception.BusinessException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 对话任务执行器 - 统一管理流式响应线程和模型调用并发
+ *
+ * LLM 调用的耗时主要是等待上游，占用的线程数不应成为并发上限：
+ * - 运行在 JDK 21+ 时，流式任务使用虚拟线程（每个任务一个，按名称区分）
+ * - 运行在 JDK 17 时，回退为有界平台线程池
+ *
+ * 无论哪种线程，同时进行的模型调用数都由 max-concurrent 限制（对应上游容量），
+ * 超出时直接返回 429，而不是无限创建线程或排队占用内存。
+ * 流式响应的模型回调是异步的，名额在 SSE 连接结束（完成、超时或出错）时才归还。
+ * 响应式接口返回的 Flux 由 {@link #stream(Flux)} 包装，在流结束时归还名额。
+ * 阻塞接口通过 {@link #call(Supplier)} 在当前请求线程上执行，同样受该上限约束；
+ * 配合 spring.threads.virtual.enabled=true，Tomcat 请求线程在 JDK 21+ 上也是虚拟线程。
+ * 单轮对话经 {@link SingleFlight} 合并，名额在 leader 内部占用（见 {@link ChatService}），
+ * 等待 leader 结果的 follower 不占用名额。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+public class ChatExecutor implements MeterBinder {
+
+    @Value("${chat.executor.max-concurrent:200}")
+    private int maxConcurrent;
+
+    @Value("${chat.executor.virtual-threads:true}")
+    private boolean virtualThreadsEnabled;
+
+    private Semaphore permits;
+    private ExecutorService executor;
+    private boolean virtual;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        permits = new Semaphore(maxConcurrent);
+        executor = virtualThreadsEnabled ? newVirtualThreadExecutor("chat-stream-") : null;
+        virtual = executor != null;
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = new ThreadPoolExecutor(0, maxConcurrent, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "chat-stream-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        log.info("对话执行器: {}，最大并发模型调用: {}", virtual ? "虚拟线程" : "平台线程池", maxConcurrent);
+    }
+
+    /**
+     * 创建虚拟线程执行器（JDK 21+），当前 JDK 不支持时返回 null
+     *
+     * 通过反射调用，保持项目在 JDK 17 上可编译。
+     */
+    static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 在后台启动流式响应任务，SSE 连接结束时归还并发名额
+     *
+     * @param emitter 本次请求的 SSE 连接（占用其 onCompletion 回调）
+     * @param task 启动流式响应的任务
+     * @throws BusinessException 并发模型调用已达上限（429）
+     */
+    public void stream(SseEmitter emitter, Runnable task) {
+        acquire();
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable releaseOnce = () -> {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        };
+        emitter.onCompletion(releaseOnce);
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    releaseOnce.run();
+                    throw e;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseOnce.run();
+            rejected.increment();
+            throw BusinessException.tooManyRequests("服务繁忙，请稍后重试");
+        }
+    }
+
+    /**
+     * 响应式流式响应：立即占用并发名额，流结束（完成、出错或取消）时归还
+     *
+     * @param source 响应流（由 Spring MVC 订阅并异步写出，不占用线程）
+     * @throws BusinessException 并发模型调用已达上限（429）
+     */
+    public <T> Flux<T> stream(Flux<T> source) {
+        acquire();
+        AtomicBoolean released = new AtomicBoolean();
+        return source.doFinally(signal -> {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        });
+    }
+
+    /**
+     * 在当前线程执行阻塞调用，受并发上限约束
+     *
+     * @throws BusinessException 并发模型调用已达上限（429）
+     */
+    public <T> T call(Supplier<T> task) {
+        acquire();
+        try {
+            return task.get();
+        } finally {
+            release();
+        }
+    }
+
+    private void acquire() {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            throw BusinessException.tooManyRequests("当前对话请求过多，请稍后重试");
+        }
+        inFlight.incrementAndGet();
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * 正在进行的模型调用数
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        String type = virtual ? "virtual" : "platform";
+        Gauge.builder("chat.executor.inflight", inFlight, AtomicInteger::get)
+            .description("正在进行的模型调用数")
+            .tag("threads", type)
+            .register(registry);
+        Gauge.builder("chat.executor.capacity", this, e -> e.maxConcurrent)
+            .description("模型调用并发上限")
+            .register(registry);
+        FunctionCounter.builder("chat.executor.rejected", rejected, LongAdder::sum)
+            .description("因并发已满被拒绝的请求数")
+            .register(registry);
+    }
+}
@@ -0,0 +1,170 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 不可变的会话历史（持久化数据结构）
+ *
+ * 历史分为两部分：
+ * - 头部：系统提示词和可选的摘要消息（至多两条，替换时直接复制）
+ * - 正文：对话消息组成的单向链表，节点从最新消息指向更早的消息
+ *
+ * 追加消息只新建一个节点，原有节点被新旧版本共享，因此从同一段历史分叉出的多个会话
+ * 只各自持有分叉之后的新消息。移出最早的消息只需缩小可见长度，不修改共享节点；
+ * 不可见的旧节点超过可见部分时，重建可见部分，让旧节点可以被回收。
+ *
+ * 所有操作都返回新实例，可以在线程之间安全共享。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+public final class ChatHistory {
+
+    /**
+     * 不可见节点超过该数量且多于可见节点时重建链表
+     */
+    private static final int COMPACT_THRESHOLD = 16;
+
+    private final List<ChatMessage> head;
+    private final Node tail;
+    private final int bodySize;
+
+    /**
+     * 正文节点（depth 为从链表起点到该节点的节点数）
+     */
+    private record Node(ChatMessage message, Node previous, int depth) {}
+
+    private ChatHistory(List<ChatMessage> head, Node tail, int bodySize) {
+        this.head = head;
+        this.tail = tail;
+        this.bodySize = bodySize;
+    }
+
+    /**
+     * 由消息列表构建历史：首条系统消息及其后的摘要作为头部，其余作为正文
+     */
+    public static ChatHistory of(List<ChatMessage> messages) {
+        int headSize = 0;
+        if (!messages.isEmpty() && messages.get(0) instanceof SystemMessage) {
+            headSize = messages.size() > 1 && HistorySummarizer.isSummary(messages.get(1)) ? 2 : 1;
+        }
+        return rebuild(List.copyOf(messages.subList(0, headSize)), messages.subList(headSize, messages.size()));
+    }
+
+    /**
+     * 追加一条消息
+     */
+    public ChatHistory append(ChatMessage message) {
+        return new ChatHistory(head, new Node(message, tail, tail == null ? 1 : tail.depth + 1), bodySize + 1);
+    }
+
+    /**
+     * 移出正文中最早的若干条消息（头部保留）
+     */
+    public ChatHistory dropOldest(int count) {
+        if (count <= 0) {
+            return this;
+        }
+        int remaining = Math.max(0, bodySize - count);
+        if (remaining == 0) {
+            return new ChatHistory(head, null, 0);
+        }
+        int hidden = tail.depth - remaining;
+        if (hidden > COMPACT_THRESHOLD && hidden > remaining) {
+            return rebuild(head, body().subList(count, bodySize));
+        }
+        return new ChatHistory(head, tail, remaining);
+    }
+
+    /**
+     * 只保留正文中最早的若干条消息，用于从历史中的某一点分叉
+     */
+    public ChatHistory truncate(int count) {
+        if (count >= bodySize) {
+            return this;
+        }
+        Node node = tail;
+        for (int i = count; i < bodySize; i++) {
+            node = node.previous();
+        }
+        return count <= 0 ? new ChatHistory(head, null, 0) : new ChatHistory(head, node, count);
+    }
+
+    /**
+     * 写入或替换摘要消息
+     */
+    public ChatHistory withSummary(String summary) {
+        SystemMessage message = HistorySummarizer.toMessage(summary);
+        List<ChatMessage> newHead = head.isEmpty() ? List.of(message) : List.of(head.get(0), message);
+        return new ChatHistory(newHead, tail, bodySize);
+    }
+
+    /**
+     * 当前摘要正文（没有摘要时为 null）
+     */
+    public String summary() {
+        return head.size() > 1 ? HistorySummarizer.textOf(head.get(1)) : null;
+    }
+
+    /**
+     * 头部消息数（系统提示词 + 摘要）
+     */
+    public int headSize() {
+        return head.size();
+    }
+
+    /**
+     * 正文消息数
+     */
+    public int bodySize() {
+        return bodySize;
+    }
+
+    public int size() {
+        return head.size() + bodySize;
+    }
+
+    /**
+     * 最新的一条消息
+     */
+    public ChatMessage last() {
+        return bodySize > 0 ? tail.message() : head.isEmpty() ? null : head.get(head.size() - 1);
+    }
+
+    /**
+     * 正文消息（从早到晚）
+     */
+    public List<ChatMessage> body() {
+        ChatMessage[] messages = new ChatMessage[bodySize];
+        Node node = tail;
+        for (int i = bodySize - 1; i >= 0; i--) {
+            messages[i] = node.message();
+            node = node.previous();
+        }
+        return Collections.unmodifiableList(Arrays.asList(messages));
+    }
+
+    /**
+     * 完整历史（头部 + 正文），不可修改
+     */
+    public List<ChatMessage> toList() {
+        List<ChatMessage> messages = new ArrayList<>(size());
+        messages.addAll(head);
+        messages.addAll(body());
+        return Collections.unmodifiableList(messages);
+    }
+
+    private static ChatHistory rebuild(List<ChatMessage> head, List<ChatMessage> body) {
+        ChatHistory history = new ChatHistory(head, null, 0);
+        for (ChatMessage message : body) {
+            history = history.append(message);
+        }
+        return history;
+    }
+}
@@ -1,15 +1,42 @@
 package com.alex.ai.service;
 
+import com.alex.ai.exception.BusinessException;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 聊天服务 - 基础对话功能
  * 
+ * 单轮对话没有会话状态，相同的（系统提示词, 问题）在响应缓存精确层未命中时
+ * 经 SingleFlight 合并：并发的相同请求只调用一次模型。语义层在合并后的 leader 中查询，
+ * follower 直接共享 leader 的结果，不会各自计算一次问题向量。
+ * 并发名额（ChatExecutor）只由实际调用模型的 leader 占用，缓存命中和 follower 不占用名额；
+ * 名额已满时抛出 429，不返回演示响应。
+ * 
+ * 流式版本使用 StreamingChatModel，未配置流式模型时退化为一次性返回完整回答。
+ * 
  * @author Alex
  * @since 2025-12-31
  */
@@ -20,6 +47,21 @@ public class ChatService {
 
     private final ChatModel chatModel;
 
+    @Autowired(required = false)
+    private ResponseCache responseCache;
+
+    @Autowired(required = false)
+    private SingleFlight singleFlight;
+
+    @Autowired(required = false)
+    private ChatExecutor chatExecutor;
+
+    @Autowired(required = false)
+    private StreamingChatModel streamingChatModel;
+
+    @Autowired(required = false)
+    private TokenCoalescer tokenCoalescer;
+
     /**
      * 简单对话 - 单轮问答
      * 
@@ -28,18 +70,25 @@ public class ChatService {
      */
     public String chat(String userInput) {
         log.info("接收到用户消息: {}", userInput);
+        ResponseCache.Lookup exact = lookupCache(null, userInput);
+        if (exact != null && exact.hit().isPresent()) {
+            return exact.hit().get();
+        }
         try {
-            // LangChain4j 1.x: 使用 chat() 方法代替 generate()
-            var response = chatModel.chat(userInput);
-            log.info("AI 响应: {}", response);
-            return response;
+            return coalesce(null, userInput, exact, cached -> {
+                // LangChain4j 1.x: 使用 chat() 方法代替 generate()
+                var response = chatModel.chat(userInput);
+                log.info("AI 响应: {}", response);
+                if (cached != null) {
+                    cached.store(response);
+                }
+                return response;
+            });
+        } catch (BusinessException e) {
+            throw e;
         } catch (Exception e) {
             log.warn("聊天服务调用失败: {}", e.getMessage());
-            return "⚠️ 服务当前处于演示模式\n\n" +
-                   "请配置有效的 OpenAI API Key：\n" +
-                   "1. export OPENAI_API_KEY=your-api-key\n" +
-                   "2. 重启应用：mvn spring-boot:run\n\n" +
-                   "您的消息：" + userInput;
+            return demoReply(null, userInput);
         }
     }
 
@@ -52,21 +101,231 @@ public class ChatService {
      */
     public String chatWithContext(String systemPrompt, String userInput) {
         log.info("系统提示词: {}, 用户消息: {}", systemPrompt, userInput);
+        ResponseCache.Lookup exact = lookupCache(systemPrompt, userInput);
+        if (exact != null && exact.hit().isPresent()) {
+            return exact.hit().get();
+        }
         try {
-            // LangChain4j 1.x: 使用 chat() 方法，传入消息列表
-            var response = chatModel.chat(
-                SystemMessage.from(systemPrompt),
-                UserMessage.from(userInput)
-            );
-            String result = response.aiMessage().text();
-            log.info("AI 响应: {}", result);
-            return result;
+            return coalesce(systemPrompt, userInput, exact, cached -> {
+                // LangChain4j 1.x: 使用 chat() 方法，传入消息列表
+                var response = chatModel.chat(
+                    SystemMessage.from(systemPrompt),
+                    UserMessage.from(userInput)
+                );
+                String result = response.aiMessage().text();
+                log.info("AI 响应: {}", result);
+                if (cached != null) {
+                    cached.store(result);
+                }
+                return result;
+            });
+        } catch (BusinessException e) {
+            throw e;
         } catch (Exception e) {
             log.warn("聊天服务调用失败: {}", e.getMessage());
+            return demoReply(systemPrompt, userInput);
+        }
+    }
+
+    /**
+     * 流式对话 - 单轮问答，逐 token 返回
+     * 
+     * @param systemPrompt 系统提示词（为空表示不带系统提示词，等同于 {@link #chat(String)}）
+     * @param userInput 用户输入
+     * @return token 流；未配置流式模型时只有一个元素（完整回答）
+     */
+    public Flux<String> streamChat(String systemPrompt, String userInput) {
+        log.info("接收到流式消息: {}", userInput);
+        if (streamingChatModel == null) {
+            // 未配置流式模型，退化为阻塞调用
+            return Mono.fromCallable(() -> systemPrompt == null
+                    ? chat(userInput)
+                    : chatWithContext(systemPrompt, userInput))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flux();
+        }
+        return Flux.defer(() -> {
+            ResponseCache.Lookup exact = lookupCache(systemPrompt, userInput);
+            if (exact != null && exact.hit().isPresent()) {
+                return Flux.just(exact.hit().get());
+            }
+            List<ChatMessage> messages = new ArrayList<>();
+            if (systemPrompt != null) {
+                messages.add(SystemMessage.from(systemPrompt));
+            }
+            messages.add(UserMessage.from(userInput));
+            Supplier<Flux<String>> leader = () -> {
+                ResponseCache.Lookup cached = exact != null ? exact.semantic() : null;
+                if (cached != null && cached.hit().isPresent()) {
+                    return Flux.just(cached.hit().get());
+                }
+                return limit(modelStream(messages, cached));
+            };
+            Flux<String> tokens = singleFlight != null
+                ? singleFlight.stream(requestKey(systemPrompt, userInput), leader)
+                : Flux.defer(leader);
+            // 与阻塞接口一致：模型调用失败且尚未发出任何 token 时返回演示响应
+            AtomicBoolean emitted = new AtomicBoolean();
+            tokens = tokens.doOnNext(token -> emitted.set(true))
+                .onErrorResume(e -> {
+                    if (emitted.get() || e instanceof BusinessException) {
+                        return Flux.error(e);
+                    }
+                    log.warn("流式聊天服务调用失败: {}", e.getMessage());
+                    return Flux.just(demoReply(systemPrompt, userInput));
+                });
+            // 合并相邻 token，减少帧数和刷新次数（首个 token 立即发出）
+            return tokenCoalescer != null ? tokenCoalescer.coalesce(tokens) : tokens;
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 调用流式模型，下游取消时取消模型调用
+     */
+    private Flux<String> modelStream(List<ChatMessage> messages, ResponseCache.Lookup cached) {
+        return Flux.create(sink -> {
+            TokenStream stream = new TokenStream(cached, sink);
+            sink.onCancel(stream::cancel);
+            try {
+                streamingChatModel.chat(messages, stream);
+            } catch (RuntimeException e) {
+                stream.onError(e);
+            }
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    /**
+     * 模型调用占用并发名额，流结束时归还
+     */
+    private Flux<String> limit(Flux<String> tokens) {
+        return chatExecutor != null ? chatExecutor.stream(tokens) : tokens;
+    }
+
+    /**
+     * 单轮流式响应：把模型回调桥接到 FluxSink
+     * 
+     * 完成、出错、取消只有最先发生的一个生效；取消句柄随首个 token 到达，
+     * 在此之前取消时，首个 token 到达后立即取消。
+     */
+    private static final class TokenStream implements StreamingChatResponseHandler {
+        private final ResponseCache.Lookup cached;
+        private final FluxSink<String> sink;
+        private final AtomicBoolean terminated = new AtomicBoolean();
+        private volatile StreamingHandle handle;
+
+        private TokenStream(ResponseCache.Lookup cached, FluxSink<String> sink) {
+            this.cached = cached;
+            this.sink = sink;
+        }
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            accept(partialResponse, null);
+        }
+
+        @Override
+        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+            accept(partialResponse.text(), context.streamingHandle());
+        }
+
+        private void accept(String token, StreamingHandle current) {
+            if (current != null) {
+                handle = current;
+            }
+            if (terminated.get()) {
+                if (current != null) {
+                    current.cancel();
+                }
+                return;
+            }
+            sink.next(token);
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse response) {
+            if (!terminated.compareAndSet(false, true)) {
+                return;
+            }
+            String answer = response.aiMessage().text();
+            log.info("流式响应完成，总长度: {}", answer == null ? 0 : answer.length());
+            if (cached != null && answer != null) {
+                cached.store(answer);
+            }
+            sink.complete();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (terminated.compareAndSet(false, true)) {
+                sink.error(error);
+            }
+        }
+
+        void cancel() {
+            if (!terminated.compareAndSet(false, true)) {
+                return;
+            }
+            StreamingHandle current = handle;
+            if (current != null) {
+                current.cancel();
+            }
+            log.info("客户端断开，取消流式响应");
+        }
+    }
+
+    /**
+     * 模型调用失败时的演示响应
+     */
+    private static String demoReply(String systemPrompt, String userInput) {
+        if (systemPrompt == null) {
             return "⚠️ 服务当前处于演示模式\n\n" +
-                   "请配置有效的 OpenAI API Key 后重启应用。\n" +
-                   "系统提示词：" + systemPrompt + "\n" +
+                   "请配置有效的 OpenAI API Key：\n" +
+                   "1. export OPENAI_API_KEY=your-api-key\n" +
+                   "2. 重启应用：mvn spring-boot:run\n\n" +
                    "您的消息：" + userInput;
         }
+        return "⚠️ 服务当前处于演示模式\n\n" +
+               "请配置有效的 OpenAI API Key 后重启应用。\n" +
+               "系统提示词：" + systemPrompt + "\n" +
+               "您的消息：" + userInput;
+    }
+
+    /**
+     * 查询响应缓存的精确层（单轮对话不依赖知识库，作用域只区分系统提示词）
+     * 
+     * @return 查询结果，未启用缓存时返回 null
+     */
+    private ResponseCache.Lookup lookupCache(String systemPrompt, String userInput) {
+        if (responseCache == null) {
+            return null;
+        }
+        return responseCache.lookupExact(ResponseCache.scope(systemPrompt, -1), userInput);
+    }
+
+    /**
+     * 合并并发的相同请求（key 与响应缓存使用相同的归一化规则）
+     * 
+     * leader 先查询语义层，未命中才占用并发名额调用模型；follower 共享 leader 的结果。
+     * 
+     * @param exact 精确层的查询结果（未启用缓存时为 null）
+     * @param call 模型调用，参数为语义层的查询结果，用于写入回答
+     */
+    private String coalesce(String systemPrompt, String userInput, ResponseCache.Lookup exact,
+                            Function<ResponseCache.Lookup, String> call) {
+        Supplier<String> leader = () -> {
+            ResponseCache.Lookup cached = exact != null ? exact.semantic() : null;
+            if (cached != null && cached.hit().isPresent()) {
+                return cached.hit().get();
+            }
+            return chatExecutor != null ? chatExecutor.call(() -> call.apply(cached)) : call.apply(cached);
+        };
+        if (singleFlight == null) {
+            return leader.get();
+        }
+        return singleFlight.call(requestKey(systemPrompt, userInput), leader);
+    }
+
+    private static String requestKey(String systemPrompt, String userInput) {
+        return ResponseCache.scope(systemPrompt, -1) + "\u0000" + ResponseCache.normalize(userInput);
     }
 }
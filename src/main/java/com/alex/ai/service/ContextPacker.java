@@ -0,0 +1,156 @@
+package com.alex.ai.service;
+
+import com.alex.ai.service.KnowledgeService.RelevantKnowledge;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * RAG 上下文打包器
+ *
+ * 在 token 预算内挑选参考资料：
+ * - 同一来源的相邻片段合并为一段，去掉分段时重复的重叠文本
+ * - 按「相关度 / token 数」从高到低贪心装填，直到用满预算
+ * - 输出顺序仍按相关度从高到低
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+class ContextPacker {
+
+    /**
+     * 判定为相邻片段所需的最小重叠字符数
+     */
+    private static final int MIN_OVERLAP = 20;
+
+    private final TokenCounter tokenCounter;
+    private final int maxOverlap;
+
+    /**
+     * @param tokenCounter 本地 token 计数器
+     * @param maxOverlap 分段时相邻片段的最大重叠字符数
+     */
+    ContextPacker(TokenCounter tokenCounter, int maxOverlap) {
+        this.tokenCounter = tokenCounter;
+        this.maxOverlap = maxOverlap;
+    }
+
+    /**
+     * 打包后的参考资料块
+     *
+     * @param content 合并、去重叠后的文本
+     * @param score 组内最高相关度
+     * @param sourceId 来源知识条目 ID
+     * @param tokens token 数
+     */
+    record Block(String content, double score, String sourceId, int tokens) {}
+
+    /**
+     * 在预算内打包候选片段
+     *
+     * @param candidates 检索到的候选片段（按相关度降序）
+     * @param tokenBudget 参考资料可用的 token 预算
+     * @return 选中的参考资料块（按相关度降序）
+     */
+    List<Block> pack(List<RelevantKnowledge> candidates, int tokenBudget) {
+        List<Merged> merged = mergeAdjacent(candidates);
+
+        List<Block> blocks = merged.stream()
+            .map(m -> new Block(m.text, m.score, m.sourceId, tokenCounter.count(m.text)))
+            .filter(b -> b.tokens() > 0)
+            .sorted(Comparator.comparingDouble((Block b) -> b.score() / b.tokens()).reversed())
+            .toList();
+
+        List<Block> selected = new ArrayList<>();
+        int used = 0;
+        for (Block block : blocks) {
+            if (used + block.tokens() <= tokenBudget) {
+                selected.add(block);
+                used += block.tokens();
+            }
+        }
+
+        // 预算连最相关的一段都放不下时，截断该段，避免完全丢失参考资料
+        if (selected.isEmpty() && !blocks.isEmpty() && tokenBudget > 0) {
+            Block best = blocks.stream().max(Comparator.comparingDouble(Block::score)).orElseThrow();
+            int chars = (int) ((long) best.content().length() * tokenBudget / best.tokens());
+            String truncated = best.content().substring(0, Math.max(0, Math.min(chars, best.content().length())));
+            if (!truncated.isEmpty()) {
+                selected.add(new Block(truncated, best.score(), best.sourceId(), tokenCounter.count(truncated)));
+            }
+        }
+
+        selected.sort(Comparator.comparingDouble(Block::score).reversed());
+        return selected;
+    }
+
+    /**
+     * 合并同一来源中首尾重叠的相邻片段
+     */
+    private List<Merged> mergeAdjacent(List<RelevantKnowledge> candidates) {
+        List<Merged> merged = new ArrayList<>();
+        for (RelevantKnowledge candidate : candidates) {
+            if (candidate.content() == null || candidate.content().isBlank()) {
+                continue;
+            }
+            merged.add(new Merged(candidate.content(), candidate.score(), candidate.sourceId()));
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            outer:
+            for (int i = 0; i < merged.size(); i++) {
+                for (int j = 0; j < merged.size(); j++) {
+                    if (i == j) {
+                        continue;
+                    }
+                    Merged first = merged.get(i);
+                    Merged second = merged.get(j);
+                    if (first.sourceId == null || !Objects.equals(first.sourceId, second.sourceId)) {
+                        continue;
+                    }
+                    int overlap = overlap(first.text, second.text);
+                    if (overlap > 0) {
+                        first.text = first.text + second.text.substring(overlap);
+                        first.score = Math.max(first.score, second.score);
+                        merged.remove(j);
+                        changed = true;
+                        break outer;
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 计算 first 的后缀与 second 的前缀的重叠长度，不足 MIN_OVERLAP 时返回 0
+     */
+    private int overlap(String first, String second) {
+        int max = Math.min(maxOverlap, Math.min(first.length(), second.length()));
+        for (int k = max; k >= MIN_OVERLAP; k--) {
+            if (first.regionMatches(first.length() - k, second, 0, k)) {
+                return k;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 合并过程中的可变中间结果
+     */
+    private static class Merged {
+        private String text;
+        private double score;
+        private final String sourceId;
+
+        Merged(String text, double score, String sourceId) {
+            this.text = text;
+            this.score = score;
+            this.sourceId = sourceId;
+        }
+    }
+}
@@ -1,91 +1,280 @@
 package com.alex.ai.service;
 
+import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
 import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
-import jakarta.annotation.PostConstruct;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import com.alex.ai.config.ConversationProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import jakarta.annotation.PreDestroy;
+import com.alex.ai.exception.BusinessException;
+import lombok.AccessLevel;
 import lombok.Data;
-import lombok.RequiredArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 多轮对话服务 - 支持上下文记忆和 RAG 知识增强
  * 
  * 改进版：增加会话过期自动清理机制
+ * 会话存放在有界 Caffeine 缓存中（W-TinyLFU 容量淘汰 + 访问过期），
+ * 任意时刻内存占用都不超过上限，无需定时全量扫描。
+ * 启用溢写后，被淘汰的会话写入本地段文件，再次访问时透明加载。
+ * 启用快照后，停机时内存中的会话写入快照，启动后在后台恢复，发布不丢失上下文。
  * 
  * @author Alex
  * @since 2025-12-31
  */
 @Slf4j
 @Service
-@RequiredArgsConstructor
-public class ConversationService {
+public class ConversationService implements MeterBinder {
 
     private final ChatModel chatModel;
     
+    private final ConversationProperties properties;
+    
     @Autowired(required = false)
     private StreamingChatModel streamingChatModel;
     
     @Autowired(required = false)
     private KnowledgeService knowledgeService;
     
-    /**
-     * 会话过期时间（分钟），默认 30 分钟
-     */
-    @Value("${conversation.session.expire-minutes:30}")
-    private int sessionExpireMinutes;
+    @Autowired(required = false)
+    private ResponseCache responseCache;
     
-    /**
-     * 清理任务执行间隔（分钟），默认 5 分钟
-     */
-    @Value("${conversation.session.cleanup-interval-minutes:5}")
-    private int cleanupIntervalMinutes;
+    @Autowired(required = false)
+    private RetrievalGate retrievalGate;
+    
+    @Autowired(required = false)
+    private TokenCoalescer tokenCoalescer;
+    
+    @Autowired(required = false)
+    private StreamReplayBuffer streamReplayBuffer;
+    
+    @Autowired(required = false)
+    private SseStreamWriter sseStreamWriter;
     
     /**
-     * 最大会话数量，默认 1000
+     * 会话历史持久化存储（未配置时历史只保存在本机内存）
      */
-    @Value("${conversation.session.max-sessions:1000}")
-    private int maxSessions;
+    @Autowired(required = false)
+    private ChatMemoryStore chatMemoryStore;
     
-    // 会话存储 (sessionId -> SessionData)
-    private final Map<String, SessionData> sessions = new ConcurrentHashMap<>();
+    // 会话存储 (sessionId -> SessionData)，容量和过期由 Caffeine 管理
+    private final Cache<String, SessionData> sessions;
+    
+    // 会话 ID 有序索引，供运维分页查询，不遍历 Caffeine 内部的并发 Map
+    private final NavigableSet<String> sessionIndex = new ConcurrentSkipListSet<>();
+    
+    // 会话串行执行通道
+    private final SessionLanes sessionLanes;
+    
+    // 堆外历史编码器（storage=offheap 时启用）及定时编码空闲会话的线程
+    private final HistoryCodec historyCodec;
+    private final ScheduledExecutorService compactExecutor;
+    
+    // 滑出窗口的历史摘要器（后台线程池）
+    private final HistorySummarizer historySummarizer;
+    
+    // 空闲会话溢写存储（spill.enabled=true 时启用）及其单线程写入器
+    private final SessionSpillStore spillStore;
+    private final ScheduledExecutorService spillExecutor;
+    
+    // 已淘汰、等待写入磁盘的会话，写入前再次访问可直接取回
+    private final Map<String, SessionData> spilling = new ConcurrentHashMap<>();
+    
+    // 正在从磁盘加载的会话，同一会话的并发请求等待同一次加载
+    private final Map<String, CompletableFuture<SessionData>> loadingSessions = new ConcurrentHashMap<>();
+    
+    // 停机快照（后台打开，打开前为 null；恢复完成后仍保留，剩余会话在首次访问时加载）
+    private volatile SessionSpillStore snapshotStore;
+    
+    private volatile boolean shuttingDown;
+    
+    // 溢写会话的加载耗时（注册指标后可用）
+    private volatile Timer reloadTimer;
+    
+    // 客户端断开而取消的流式响应数
+    private final LongAdder cancelledStreams = new LongAdder();
+    
+    @Autowired(required = false)
+    private TokenCounter tokenCounter = TokenCounter.defaultCounter();
     
-    // 会话 RAG 开关 (sessionId -> enableRag)
-    private final Map<String, Boolean> sessionRagEnabled = new ConcurrentHashMap<>();
+    // 默认系统提示词
+    private static final String SYSTEM_PROMPT = "你是一个友好、专业的 AI 助手，能够帮助用户解决各种问题。当提供了参考资料时，请优先基于参考资料回答。";
     
-    // 最大历史消息数
-    private static final int MAX_HISTORY = 20;
+    // 持久化存储中 RAG 开关的元数据键
+    static final String RAG_ENABLED_METADATA_KEY = "ragEnabled";
     
-    // 定时清理任务调度器
-    private ScheduledExecutorService cleanupScheduler;
+    // 缓存回答通过 SSE 回放时每帧的字符数
+    private static final int REPLAY_CHUNK_SIZE = 16;
+    
+    // 溢写时会话正在处理请求，稍后重试的间隔（毫秒）
+    private static final long SPILL_RETRY_MILLIS = 1000;
+    
+    public ConversationService(ChatModel chatModel) {
+        this(chatModel, new ConversationProperties());
+    }
+
+    @Autowired
+    public ConversationService(ChatModel chatModel, ConversationProperties properties) {
+        this.chatModel = chatModel;
+        this.properties = properties;
+        ConversationProperties.SessionConfig session = properties.getSession();
+        this.sessions = Caffeine.newBuilder()
+            .maximumSize(session.getMaxSessions())
+            .expireAfterAccess(Duration.ofMinutes(session.getExpireMinutes()))
+            .scheduler(Scheduler.systemScheduler())
+            .evictionListener((String sessionId, SessionData sessionData, RemovalCause cause) -> sessionIndex.remove(sessionId))
+            .removalListener(this::onSessionRemoved)
+            .recordStats()
+            .build();
+        this.sessionLanes = new SessionLanes(session.getMaxQueueDepth(),
+            Duration.ofSeconds(session.getQueueTimeoutSeconds()));
+        if ("offheap".equalsIgnoreCase(session.getStorage())) {
+            this.historyCodec = new HistoryCodec(session.getOffheapMaxMb() * 1024 * 1024);
+            this.compactExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-compact");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, session.getOffheapIdleSeconds() / 2);
+            this.compactExecutor.scheduleWithFixedDelay(this::compactIdleSessions, period, period, TimeUnit.SECONDS);
+        } else {
+            this.historyCodec = null;
+            this.compactExecutor = null;
+        }
+        ConversationProperties.HistoryConfig history = properties.getHistory();
+        this.historySummarizer = history.isSummaryEnabled()
+            ? new HistorySummarizer(chatModel, history.getSummaryMaxChars(),
+                history.getSummaryThreads(), history.getSummaryQueueCapacity())
+            : null;
+        ConversationProperties.SpillConfig spill = session.getSpill();
+        if (spill.isEnabled()) {
+            this.spillStore = new SessionSpillStore(Path.of(spill.getDirectory()),
+                spill.getSegmentSizeMb() * 1024 * 1024, spill.getMaxDiskMb() * 1024 * 1024,
+                Duration.ofHours(spill.getTtlHours()), historyCodec != null ? historyCodec : new HistoryCodec());
+            this.spillExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "session-spill");
+                t.setDaemon(true);
+                return t;
+            });
+            this.spillExecutor.scheduleWithFixedDelay(spillStore::evictOldSegments, 5, 5, TimeUnit.MINUTES);
+        } else {
+            this.spillStore = null;
+            this.spillExecutor = null;
+        }
+        log.info("会话存储已初始化，过期时间: {} 分钟，最大会话数: {}，历史存储: {}，溢写: {}",
+            session.getExpireMinutes(), session.getMaxSessions(), historyCodec != null ? "堆外" : "堆内",
+            spillStore != null ? spill.getDirectory() : "关闭");
+    }
 
     /**
      * 会话数据封装类
      */
     @Data
     public static class SessionData {
-        private final List<ChatMessage> messages;
+        /**
+         * 会话历史（不可变，分叉的会话共享同一前缀；空闲会话编码到堆外后为 null）
+         */
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private ChatHistory history;
+        
+        /**
+         * 堆外编码的历史
+         */
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private HistoryCodec.Encoded encoded;
+        
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private HistoryCodec codec;
         private Instant lastAccessTime;
         private Instant createdTime;
+        private volatile boolean ragEnabled = true;
+        
+        /**
+         * 持久化存储中的版本号（写入时作为预期版本）
+         */
+        private volatile long storeVersion;
+        
+        /**
+         * 历史消息数（编码到堆外后仍可读取，供会话列表过滤）
+         */
+        @Setter(AccessLevel.NONE)
+        private volatile int messageCount;
+        
+        /**
+         * 等待合并到摘要的历史消息（由 synchronized 保护）
+         */
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private final List<ChatMessage> summaryQueue = new ArrayList<>();
+        
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private boolean summarizing;
         
         public SessionData(List<ChatMessage> messages) {
-            this.messages = messages;
+            this(ChatHistory.of(messages));
+        }
+        
+        public SessionData(ChatHistory history) {
+            this.history = history;
+            this.messageCount = history.size();
             this.createdTime = Instant.now();
             this.lastAccessTime = Instant.now();
         }
@@ -94,31 +283,111 @@ public class ConversationService {
             this.lastAccessTime = Instant.now();
         }
         
-        public boolean isExpired(int expireMinutes) {
-            return Instant.now().isAfter(lastAccessTime.plusSeconds(expireMinutes * 60L));
+        /**
+         * 获取历史（需在会话通道内调用），已编码到堆外时按需解码
+         */
+        public synchronized ChatHistory getHistory() {
+            if (history == null) {
+                history = ChatHistory.of(codec.decode(encoded));
+                encoded = null;
+            }
+            return history;
+        }
+        
+        /**
+         * 替换历史（需在会话通道内调用）
+         */
+        public synchronized void setHistory(ChatHistory history) {
+            discard();
+            this.history = history;
+            this.messageCount = history.size();
+        }
+        
+        /**
+         * 获取历史消息的只读快照（需在会话通道内调用）
+         */
+        public List<ChatMessage> getMessages() {
+            return getHistory().toList();
+        }
+        
+        /**
+         * 将历史编码到堆外并释放堆上的消息对象（需在会话通道内调用）
+         * 
+         * @return 是否编码（已编码或堆外内存已满时返回 false，历史留在堆内）
+         */
+        synchronized boolean compact(HistoryCodec codec) {
+            if (history == null) {
+                return false;
+            }
+            HistoryCodec.Encoded result = codec.encode(history.toList());
+            if (result == null) {
+                return false;
+            }
+            this.codec = codec;
+            this.encoded = result;
+            this.history = null;
+            return true;
+        }
+        
+        /**
+         * 会话移除时归还堆外的块
+         */
+        synchronized void discard() {
+            if (encoded != null) {
+                codec.released(encoded);
+                encoded = null;
+            }
+        }
+        
+        /**
+         * 登记待摘要的消息
+         * 
+         * @return 是否需要启动摘要任务（已有任务在运行时由其继续处理）
+         */
+        synchronized boolean queueForSummary(List<ChatMessage> evicted) {
+            summaryQueue.addAll(evicted);
+            if (summarizing) {
+                return false;
+            }
+            summarizing = true;
+            return true;
+        }
+        
+        /**
+         * 取出全部待摘要消息，队列为空时结束摘要任务
+         */
+        synchronized List<ChatMessage> drainSummaryQueue() {
+            if (summaryQueue.isEmpty()) {
+                summarizing = false;
+                return List.of();
+            }
+            List<ChatMessage> drained = new ArrayList<>(summaryQueue);
+            summaryQueue.clear();
+            return drained;
+        }
+        
+        /**
+         * 摘要失败时放回队首，下次滑出窗口时一并重试
+         */
+        synchronized void requeueForSummary(List<ChatMessage> failed) {
+            summaryQueue.addAll(0, failed);
+            summarizing = false;
         }
     }
 
     /**
-     * 初始化定时清理任务
+     * 应用就绪后在后台线程中恢复停机快照
+     * 
+     * 不在构造器中启动：字段注入（记忆存储、指标等）完成前恢复的会话会绕过这些依赖。
      */
-    @PostConstruct
-    public void initCleanupTask() {
-        cleanupScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "session-cleanup");
-            t.setDaemon(true);
-            return t;
-        });
-        
-        cleanupScheduler.scheduleAtFixedRate(
-            this::cleanupExpiredSessions,
-            cleanupIntervalMinutes,
-            cleanupIntervalMinutes,
-            TimeUnit.MINUTES
-        );
-        
-        log.info("会话清理任务已启动，间隔: {} 分钟，过期时间: {} 分钟，最大会话数: {}",
-            cleanupIntervalMinutes, sessionExpireMinutes, maxSessions);
+    @EventListener(ApplicationReadyEvent.class)
+    public void startSnapshotRestore() {
+        if (!properties.getSession().getSnapshot().isEnabled()) {
+            return;
+        }
+        Thread restore = new Thread(this::restoreSnapshot, "session-restore");
+        restore.setDaemon(true);
+        restore.start();
     }
 
     /**
@@ -126,72 +395,359 @@ public class ConversationService {
      */
     @PreDestroy
     public void shutdown() {
-        if (cleanupScheduler != null && !cleanupScheduler.isShutdown()) {
-            cleanupScheduler.shutdown();
+        shuttingDown = true;
+        if (historySummarizer != null) {
+            historySummarizer.shutdown();
+        }
+        if (compactExecutor != null) {
+            compactExecutor.shutdownNow();
+        }
+        if (properties.getSession().getSnapshot().isEnabled()) {
+            snapshotSessions();
+        }
+        if (spillExecutor != null) {
+            spillExecutor.shutdown();
             try {
-                if (!cleanupScheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                    cleanupScheduler.shutdownNow();
-                }
+                spillExecutor.awaitTermination(10, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
-                cleanupScheduler.shutdownNow();
                 Thread.currentThread().interrupt();
             }
+            spillStore.close();
         }
-        log.info("会话服务已关闭，清理了 {} 个会话", sessions.size());
+        log.info("会话服务已关闭，清理了 {} 个会话", sessions.estimatedSize());
     }
 
     /**
-     * 清理过期会话
+     * 会话移除回调（过期、容量淘汰、手动清除）
      */
-    private void cleanupExpiredSessions() {
+    private void onSessionRemoved(String sessionId, SessionData sessionData, RemovalCause cause) {
+        if (sessionData == null) {
+            return;
+        }
+        if (spillStore != null && cause.wasEvicted()) {
+            spilling.put(sessionId, sessionData);
+            try {
+                spillExecutor.execute(() -> spill(sessionId, sessionData));
+                log.debug("会话 {} 已淘汰（{}），等待写入磁盘", sessionId, cause);
+                return;
+            } catch (RejectedExecutionException e) {
+                // 服务关闭中
+                spilling.remove(sessionId, sessionData);
+            }
+        }
+        sessionData.discard();
+        switch (cause) {
+            case EXPIRED -> log.debug("清理过期会话: {}", sessionId);
+            case SIZE -> log.debug("清理超额会话: {}", sessionId);
+            default -> { }
+        }
+    }
+
+    /**
+     * 将淘汰的会话写入磁盘（溢写线程）
+     * 
+     * 在会话通道内写入，保证拿到的是最后一轮结束后的历史；
+     * 写入前会话已被再次访问（从 spilling 中取回）时跳过。
+     * 会话正在处理请求时不等待（溢写线程只有一个），稍后重试。
+     */
+    private void spill(String sessionId, SessionData sessionData) {
+        if (spilling.get(sessionId) != sessionData) {
+            return;
+        }
+        SessionLanes.Permit permit = sessionLanes.tryAcquire(sessionId);
+        if (permit == null) {
+            try {
+                spillExecutor.schedule(() -> spill(sessionId, sessionData), SPILL_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 服务关闭中
+                if (spilling.remove(sessionId, sessionData)) {
+                    sessionData.discard();
+                }
+            }
+            return;
+        }
         try {
-            int beforeCount = sessions.size();
-            
-            // 清理过期会话
-            sessions.entrySet().removeIf(entry -> {
-                if (entry.getValue().isExpired(sessionExpireMinutes)) {
-                    sessionRagEnabled.remove(entry.getKey());
-                    log.debug("清理过期会话: {}", entry.getKey());
-                    return true;
+            if (spilling.get(sessionId) == sessionData) {
+                spillStore.put(sessionId, sessionData.getMessages(), sessionData.isRagEnabled());
+                spilling.remove(sessionId, sessionData);
+                log.debug("会话 {} 已写入磁盘", sessionId);
+            }
+        } catch (Exception e) {
+            log.warn("会话 {} 写入磁盘失败: {}", sessionId, e.getMessage());
+            if (spilling.remove(sessionId, sessionData)) {
+                sessionData.discard();
+            }
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * 从磁盘（溢写或快照）加载会话，加载后删除磁盘记录
+     */
+    private Optional<SessionData> reload(SessionSpillStore store, String sessionId) {
+        long start = System.nanoTime();
+        try {
+            Optional<SessionSpillStore.Spilled> spilled = store.load(sessionId);
+            if (spilled.isEmpty()) {
+                return Optional.empty();
+            }
+            store.remove(sessionId);
+            SessionData sessionData = new SessionData(new ArrayList<>(spilled.get().messages()));
+            sessionData.setRagEnabled(spilled.get().ragEnabled());
+            Timer timer = reloadTimer;
+            if (timer != null) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            log.debug("从磁盘加载会话: {}，{} 条消息", sessionId, sessionData.getMessages().size());
+            return Optional.of(sessionData);
+        } catch (Exception e) {
+            log.warn("加载会话 {} 失败，创建新会话: {}", sessionId, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 停机快照：并行写入内存中的全部会话
+     * 
+     * 每个会话在自己的通道内写入，等待正在进行的一轮结束；超过时限未写入的会话丢弃。
+     */
+    private void snapshotSessions() {
+        ConversationProperties.SnapshotConfig config = properties.getSession().getSnapshot();
+        SessionSpillStore target = openSnapshotStore();
+        long start = System.nanoTime();
+        AtomicInteger written = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(config.getThreads(), r -> {
+            Thread t = new Thread(r, "session-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Map.Entry<String, SessionData> entry : sessions.asMap().entrySet()) {
+            pool.execute(() -> {
+                SessionLanes.Permit permit = null;
+                try {
+                    permit = sessionLanes.acquire(entry.getKey());
+                    SessionData sessionData = entry.getValue();
+                    target.put(entry.getKey(), sessionData.getMessages(), sessionData.isRagEnabled());
+                    written.incrementAndGet();
+                } catch (Exception e) {
+                    log.warn("会话 {} 写入快照失败: {}", entry.getKey(), e.getMessage());
+                } finally {
+                    if (permit != null) {
+                        permit.release();
+                    }
                 }
-                return false;
             });
-            
-            // 如果会话数量仍超过上限，清理最老的会话
-            if (sessions.size() > maxSessions) {
-                int toRemove = sessions.size() - maxSessions;
-                sessions.entrySet().stream()
-                    .sorted((a, b) -> a.getValue().getLastAccessTime().compareTo(b.getValue().getLastAccessTime()))
-                    .limit(toRemove)
-                    .map(Map.Entry::getKey)
-                    .toList()
-                    .forEach(sessionId -> {
-                        sessions.remove(sessionId);
-                        sessionRagEnabled.remove(sessionId);
-                        log.debug("清理超额会话: {}", sessionId);
-                    });
+        }
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(config.getShutdownTimeoutSeconds(), TimeUnit.SECONDS)) {
+                pool.shutdownNow();
+                log.warn("会话快照超时，部分会话未写入");
             }
-            
-            int afterCount = sessions.size();
-            if (beforeCount != afterCount) {
-                log.info("会话清理完成: {} -> {} (清理了 {} 个)", beforeCount, afterCount, beforeCount - afterCount);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+        log.info("会话快照完成: 写入 {} 个会话，快照共 {} 个会话，耗时 {} ms", written.get(), target.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * 启动恢复（后台线程）：打开快照，在时间预算内将会话预热到内存
+     * 
+     * 不阻塞启动；预热期间到达的请求直接从快照加载对应会话，
+     * 预算用完或内存会话数达到上限后停止预热，剩余会话在首次访问时加载。
+     */
+    private void restoreSnapshot() {
+        ConversationProperties.SessionConfig config = properties.getSession();
+        SessionSpillStore store;
+        try {
+            store = openSnapshotStore();
+        } catch (Exception e) {
+            log.warn("打开会话快照失败，跳过恢复: {}", e.getMessage());
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getSnapshot().getRestoreBudgetSeconds());
+        int restored = 0;
+        for (String sessionId : store.sessionIds()) {
+            if (shuttingDown || System.nanoTime() > deadline || sessions.estimatedSize() >= config.getMaxSessions()) {
+                break;
+            }
+            if (sessions.asMap().containsKey(sessionId)) {
+                continue;
+            }
+            // 与请求线程并发时同一会话只加载一次
+            loadSession(sessionId);
+            restored++;
+        }
+        log.info("会话快照恢复: 预热 {} 个会话，{} 个会话待首次访问时加载", restored, store.size());
+    }
+
+    /**
+     * 打开快照存储（恢复线程与停机快照共用同一实例）
+     */
+    private synchronized SessionSpillStore openSnapshotStore() {
+        if (snapshotStore != null) {
+            return snapshotStore;
+        }
+        ConversationProperties.SessionConfig config = properties.getSession();
+        ConversationProperties.SpillConfig spill = config.getSpill();
+        snapshotStore = new SessionSpillStore(Path.of(config.getSnapshot().getDirectory()),
+            spill.getSegmentSizeMb() * 1024 * 1024, spill.getMaxDiskMb() * 1024 * 1024,
+            Duration.ofHours(spill.getTtlHours()), historyCodec != null ? historyCodec : new HistoryCodec());
+        return snapshotStore;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, sessions, "conversation.sessions");
+        FunctionCounter.builder("conversation.stream.cancelled", cancelledStreams, LongAdder::sum)
+            .description("客户端断开后取消的流式响应数")
+            .register(registry);
+        if (historyCodec != null) {
+            Gauge.builder("conversation.sessions.offheap.bytes", historyCodec, HistoryCodec::offHeapBytes)
+                .description("堆外编码的会话历史占用字节数")
+                .baseUnit("bytes")
+                .register(registry);
+            Gauge.builder("conversation.sessions.offheap.reserved.bytes", historyCodec, HistoryCodec::reservedOffHeapBytes)
+                .description("为会话历史申请并常驻复用的堆外字节数")
+                .baseUnit("bytes")
+                .register(registry);
+        }
+        if (spillStore != null) {
+            reloadTimer = Timer.builder("conversation.sessions.reload")
+                .description("从磁盘加载溢写会话的耗时")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+            Gauge.builder("conversation.sessions.spilled", spillStore, SessionSpillStore::size)
+                .description("溢写到磁盘的会话数")
+                .register(registry);
+            Gauge.builder("conversation.sessions.spill.disk.bytes", spillStore, SessionSpillStore::diskBytes)
+                .description("溢写段文件占用的磁盘字节数")
+                .baseUnit("bytes")
+                .register(registry);
+        }
+        if (properties.getSession().getSnapshot().isEnabled()) {
+            Gauge.builder("conversation.sessions.snapshot.pending", this, service -> {
+                    SessionSpillStore snapshot = service.snapshotStore;
+                    return snapshot != null ? snapshot.size() : 0;
+                })
+                .description("快照中尚未恢复的会话数")
+                .register(registry);
+        }
+    }
+
+    /**
+     * 将空闲超过阈值的会话历史编码到堆外（编码线程定时调用）
+     * 
+     * 按最近访问时间从旧到新遍历，遇到未达到阈值的会话即停止；
+     * 正在处理请求或排队的会话直接跳过，不阻塞编码线程，下一轮再处理。
+     */
+    void compactIdleSessions() {
+        Instant threshold = Instant.now().minusSeconds(properties.getSession().getOffheapIdleSeconds());
+        List<String> idle = sessions.policy().expireAfterAccess()
+            .map(policy -> policy.oldest(entries -> entries
+                .takeWhile(entry -> !entry.getValue().getLastAccessTime().isAfter(threshold))
+                .map(Map.Entry::getKey)
+                .toList()))
+            .orElse(List.of());
+        int compacted = 0;
+        for (String sessionId : idle) {
+            SessionLanes.Permit permit = sessionLanes.tryAcquire(sessionId);
+            if (permit == null) {
+                continue;
+            }
+            try {
+                SessionData sessionData = sessions.policy().getIfPresentQuietly(sessionId);
+                if (sessionData != null && sessionData.compact(historyCodec)) {
+                    compacted++;
+                }
+            } catch (Exception e) {
+                log.warn("会话 {} 历史编码失败，保留堆内历史: {}", sessionId, e.getMessage());
+            } finally {
+                permit.release();
             }
+        }
+        if (compacted > 0) {
+            log.debug("{} 个空闲会话的历史已编码到堆外", compacted);
+        }
+    }
+
+    /**
+     * 从快照加载会话（快照尚未打开时等待打开完成，避免启动初期的请求拿到空会话）
+     */
+    private Optional<SessionData> restoreFromSnapshot(String sessionId) {
+        try {
+            return reload(openSnapshotStore(), sessionId);
         } catch (Exception e) {
-            log.error("会话清理任务异常", e);
+            log.warn("打开会话快照失败: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 获取会话，不在内存中时从磁盘加载或创建新会话
+     * 
+     * 磁盘加载在 Caffeine 的 compute 之外进行，避免 I/O 期间占住缓存的桶锁；
+     * 同一会话的并发请求等待同一次加载，加载完成后以 putIfAbsent 放入缓存。
+     * 
+     * @param sessionId 会话 ID
+     * @return 会话数据
+     */
+    private SessionData loadSession(String sessionId) {
+        SessionData cached = sessions.getIfPresent(sessionId);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<SessionData> created = new CompletableFuture<>();
+        CompletableFuture<SessionData> loading = loadingSessions.putIfAbsent(sessionId, created);
+        if (loading != null) {
+            return loading.join();
+        }
+        try {
+            SessionData loaded = createSession(sessionId);
+            SessionData existing = sessions.asMap().putIfAbsent(sessionId, loaded);
+            SessionData sessionData = existing != null ? existing : loaded;
+            created.complete(sessionData);
+            return sessionData;
+        } catch (RuntimeException | Error e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingSessions.remove(sessionId, created);
         }
     }
 
     /**
-     * 创建新的会话
+     * 创建新的会话（依次尝试溢写文件、停机快照，都没有时创建空会话）
      * 
      * @param sessionId 会话 ID
      * @return 会话数据
      */
     private SessionData createSession(String sessionId) {
+        sessionIndex.add(sessionId);
+        if (spillStore != null) {
+            SessionData pending = spilling.remove(sessionId);
+            if (pending != null) {
+                return pending;
+            }
+            Optional<SessionData> reloaded = reload(spillStore, sessionId);
+            if (reloaded.isPresent()) {
+                return reloaded.get();
+            }
+        }
+        if (properties.getSession().getSnapshot().isEnabled() && !shuttingDown) {
+            Optional<SessionData> restored = restoreFromSnapshot(sessionId);
+            if (restored.isPresent()) {
+                return restored.get();
+            }
+        }
         log.info("创建新会话: {}", sessionId);
         List<ChatMessage> messages = new ArrayList<>();
         // 添加系统提示词
-        messages.add(SystemMessage.from("你是一个友好、专业的 AI 助手，能够帮助用户解决各种问题。当提供了参考资料时，请优先基于参考资料回答。"));
+        messages.add(SystemMessage.from(SYSTEM_PROMPT));
         return new SessionData(messages);
     }
 
@@ -199,12 +755,71 @@ public class ConversationService {
      * 获取或创建会话
      * 
      * @param sessionId 会话 ID
-     * @return 消息列表
+     * @return 会话数据
      */
-    private List<ChatMessage> getOrCreateSession(String sessionId) {
-        SessionData sessionData = sessions.computeIfAbsent(sessionId, this::createSession);
+    private SessionData getOrCreateSession(String sessionId) {
+        SessionData sessionData = loadSession(sessionId);
         sessionData.touch(); // 更新访问时间
-        return sessionData.getMessages();
+        restoreHistory(sessionId, sessionData);
+        return sessionData;
+    }
+
+    /**
+     * 从持久化存储加载会话历史和元数据
+     * 多副本部署时，会话的上一轮可能由其他副本处理，因此每轮都以存储中的历史为准
+     */
+    private void restoreHistory(String sessionId, SessionData sessionData) {
+        if (chatMemoryStore == null) {
+            return;
+        }
+        try {
+            if (chatMemoryStore instanceof VersionedChatMemoryStore versioned) {
+                VersionedChatMemoryStore.StoredSession stored = versioned.load(sessionId);
+                if (!stored.messages().isEmpty()) {
+                    sessionData.setHistory(ChatHistory.of(stored.messages()));
+                }
+                String ragEnabled = stored.metadata().get(RAG_ENABLED_METADATA_KEY);
+                if (ragEnabled != null) {
+                    sessionData.setRagEnabled(Boolean.parseBoolean(ragEnabled));
+                }
+                sessionData.setStoreVersion(stored.version());
+                return;
+            }
+            List<ChatMessage> stored = chatMemoryStore.getMessages(sessionId);
+            if (!stored.isEmpty()) {
+                sessionData.setHistory(ChatHistory.of(stored));
+            }
+        } catch (Exception e) {
+            log.warn("加载会话 {} 历史失败，使用本机历史: {}", sessionId, e.getMessage());
+        }
+    }
+
+    /**
+     * 将会话历史和元数据写入持久化存储（需在会话通道内调用）
+     * 存储支持版本号时以本轮开始时加载的版本为预期版本，其他副本已写入时不覆盖
+     */
+    private void persistHistory(String sessionId, SessionData sessionData) {
+        if (chatMemoryStore == null) {
+            return;
+        }
+        try {
+            if (chatMemoryStore instanceof VersionedChatMemoryStore versioned) {
+                long expected = sessionData.getStoreVersion();
+                VersionedChatMemoryStore.StoredSession session = new VersionedChatMemoryStore.StoredSession(
+                    sessionData.getMessages(),
+                    Map.of(RAG_ENABLED_METADATA_KEY, String.valueOf(sessionData.isRagEnabled())),
+                    expected + 1);
+                if (versioned.compareAndSet(sessionId, expected, session)) {
+                    sessionData.setStoreVersion(session.version());
+                } else {
+                    log.warn("会话 {} 已被其他副本更新，本轮未写入存储，下一轮以存储中的历史为准", sessionId);
+                }
+                return;
+            }
+            chatMemoryStore.updateMessages(sessionId, sessionData.getMessages());
+        } catch (Exception e) {
+            log.warn("保存会话 {} 历史失败: {}", sessionId, e.getMessage());
+        }
     }
 
     /**
@@ -214,7 +829,14 @@ public class ConversationService {
      * @param enabled 是否启用 RAG
      */
     public void setRagEnabled(String sessionId, boolean enabled) {
-        sessionRagEnabled.put(sessionId, enabled);
+        SessionLanes.Permit permit = sessionLanes.acquire(sessionId);
+        try {
+            SessionData sessionData = getOrCreateSession(sessionId);
+            sessionData.setRagEnabled(enabled);
+            persistHistory(sessionId, sessionData);
+        } finally {
+            permit.release();
+        }
         log.info("会话 {} RAG 状态: {}", sessionId, enabled ? "启用" : "禁用");
     }
 
@@ -222,33 +844,199 @@ public class ConversationService {
      * 检查会话是否启用 RAG
      */
     public boolean isRagEnabled(String sessionId) {
-        return sessionRagEnabled.getOrDefault(sessionId, true); // 默认启用
+        SessionData sessionData = sessions.getIfPresent(sessionId);
+        if (sessionData == null && chatMemoryStore instanceof VersionedChatMemoryStore versioned) {
+            // 会话由其他副本处理过，以存储中的设置为准
+            String ragEnabled = versioned.load(sessionId).metadata().get(RAG_ENABLED_METADATA_KEY);
+            return ragEnabled == null || Boolean.parseBoolean(ragEnabled);
+        }
+        return sessionData == null || sessionData.isRagEnabled(); // 默认启用
     }
 
     /**
      * 对用户输入进行 RAG 增强处理
      * 
+     * 增强后的提示词只用于本轮请求，不写入会话历史，
+     * 避免后续每一轮都重复发送旧的参考资料。
+     * 
      * @param sessionId 会话 ID
      * @param input 用户原始输入
-     * @return RAG 增强后的输入（如果有相关知识）或原始输入
+     * @return 增强结果（没有相关知识时 prompt 即原始输入）
      */
-    private String processWithRag(String sessionId, String input) {
-        if (knowledgeService == null || !isRagEnabled(sessionId)) {
-            return input;
+    private KnowledgeService.AugmentedPrompt processWithRag(String sessionId, String input) {
+        KnowledgeService.AugmentedPrompt original = new KnowledgeService.AugmentedPrompt(input, List.of(), null);
+        if (!shouldRetrieve(sessionId, input)) {
+            return original;
         }
         
         try {
             // 直接尝试 RAG 增强，让向量库决定是否有相关内容
             // 不再检查 totalEntries()，因为元数据存储在内存中会在重启后丢失
             // 而向量数据持久化在 Chroma 中，可以正常检索
-            String augmented = knowledgeService.buildAugmentedPrompt(input);
-            if (!augmented.equals(input)) {
+            KnowledgeService.AugmentedPrompt augmented = knowledgeService.augment(input);
+            if (augmented == null) {
+                return original;
+            }
+            if (augmented.augmented()) {
                 log.info("已应用 RAG 增强，会话: {}", sessionId);
             }
             return augmented;
         } catch (Exception e) {
             log.warn("RAG 处理异常，使用原始输入: {}", e.getMessage());
-            return input;
+            return original;
+        }
+    }
+
+    /**
+     * RAG 处理（非阻塞），检索失败时使用原始输入
+     */
+    private Mono<KnowledgeService.AugmentedPrompt> processWithRagAsync(String sessionId, String input) {
+        KnowledgeService.AugmentedPrompt original = new KnowledgeService.AugmentedPrompt(input, List.of(), null);
+        if (!shouldRetrieve(sessionId, input)) {
+            return Mono.just(original);
+        }
+        return knowledgeService.augmentAsync(input)
+            .doOnNext(augmented -> {
+                if (augmented.augmented()) {
+                    log.info("已应用 RAG 增强，会话: {}", sessionId);
+                }
+            })
+            .defaultIfEmpty(original)
+            .onErrorResume(e -> {
+                log.warn("RAG 处理异常，使用原始输入: {}", e.getMessage());
+                return Mono.just(original);
+            });
+    }
+
+    private boolean shouldRetrieve(String sessionId, String input) {
+        if (knowledgeService == null || !isRagEnabled(sessionId)) {
+            return false;
+        }
+        // 寒暄、致谢、"继续"等输入无需检索，省去一次 Embedding 调用和向量搜索
+        return retrievalGate == null || retrievalGate.evaluate(input).retrieve();
+    }
+
+    /**
+     * 写入历史的用户消息：原始输入，可选附带引用记录
+     */
+    private UserMessage historyMessage(String input, KnowledgeService.AugmentedPrompt augmented) {
+        if (properties.getRag().isCitationInHistory() && augmented.augmented()) {
+            return UserMessage.from(input + "\n（" + augmented.citation() + "）");
+        }
+        return UserMessage.from(input);
+    }
+
+    /**
+     * 构造本轮请求的消息列表：历史副本，最后一条用户消息替换为增强后的提示词
+     */
+    private List<ChatMessage> buildRequest(ChatHistory history, KnowledgeService.AugmentedPrompt augmented) {
+        List<ChatMessage> messages = history.toList();
+        if (!augmented.augmented()) {
+            return messages;
+        }
+        List<ChatMessage> request = new ArrayList<>(messages.subList(0, messages.size() - 1));
+        request.add(UserMessage.from(augmented.prompt()));
+        return request;
+    }
+
+    /**
+     * 按 token 预算限制历史（保留系统消息、摘要和最近的对话）
+     * 
+     * 超出预算时从最早的轮次开始移出窗口，移出的轮次交给后台合并到摘要，
+     * 请求线程只做本地 token 计数，不等待摘要生成。
+     */
+    private void trimHistory(String sessionId, SessionData sessionData) {
+        ChatHistory history = sessionData.getHistory();
+        List<ChatMessage> messages = history.toList();
+        int budget = properties.getHistory().getMaxTokens();
+        int head = history.headSize();
+        
+        int[] tokens = new int[messages.size()];
+        int total = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            tokens[i] = tokenCounter.count(messages.get(i));
+            total += tokens[i];
+        }
+        
+        // 至少保留最新的一条用户消息
+        int cut = head;
+        while (total > budget && cut < messages.size() - 1) {
+            // 一轮 = 用户消息及其后的 AI 消息
+            int end = cut + 1;
+            while (end < messages.size() - 1 && !(messages.get(end) instanceof UserMessage)) {
+                end++;
+            }
+            for (int i = cut; i < end; i++) {
+                total -= tokens[i];
+            }
+            cut = end;
+        }
+        if (cut == head) {
+            return;
+        }
+        
+        List<ChatMessage> evicted = messages.subList(head, cut);
+        sessionData.setHistory(history.dropOldest(evicted.size()));
+        log.info("会话 {} 历史超出 {} tokens 预算，{} 条消息移出窗口", sessionId, budget, evicted.size());
+        if (historySummarizer != null && sessionData.queueForSummary(evicted)) {
+            summarizeEvicted(sessionId, sessionData, history.summary());
+        }
+    }
+
+    /**
+     * 后台合并移出窗口的消息到摘要，完成后在会话通道内替换摘要消息
+     * 
+     * @param previous 当前摘要（在请求线程持有会话通道时读取）
+     */
+    private void summarizeEvicted(String sessionId, SessionData sessionData, String previous) {
+        try {
+            historySummarizer.execute(() -> {
+                String current = previous;
+                List<ChatMessage> batch;
+                // 摘要期间又有消息移出窗口时继续合并
+                while (!(batch = sessionData.drainSummaryQueue()).isEmpty()) {
+                    try {
+                        String summary = historySummarizer.summarize(current, batch);
+                        if (!applySummary(sessionId, sessionData, summary)) {
+                            throw new IllegalStateException("会话繁忙");
+                        }
+                        current = summary;
+                    } catch (Exception e) {
+                        log.warn("会话 {} 摘要失败，{} 条消息稍后重试: {}", sessionId, batch.size(), e.getMessage());
+                        sessionData.requeueForSummary(batch);
+                        return;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("摘要任务队列已满，会话 {} 的消息稍后重试", sessionId);
+            sessionData.requeueForSummary(List.of());
+        }
+    }
+
+    /**
+     * 在会话通道内写入摘要消息，与请求线程互斥
+     * 
+     * @return 是否写入成功
+     */
+    private boolean applySummary(String sessionId, SessionData sessionData, String summary) {
+        if (sessions.asMap().get(sessionId) != sessionData) {
+            // 会话已清除或过期
+            return true;
+        }
+        SessionLanes.Permit permit;
+        try {
+            permit = sessionLanes.acquire(sessionId);
+        } catch (BusinessException e) {
+            return false;
+        }
+        try {
+            ChatHistory history = sessionData.getHistory().withSummary(summary);
+            sessionData.setHistory(history);
+            persistHistory(sessionId, sessionData);
+            return true;
+        } finally {
+            permit.release();
         }
     }
 
@@ -261,31 +1049,43 @@ public class ConversationService {
      */
     public String continueConversation(String sessionId, String input) {
         log.info("会话 {} 接收消息: {}", sessionId, input);
+        // 同一会话的请求排队依次执行，排队过多时直接拒绝
+        SessionLanes.Permit permit = sessionLanes.acquire(sessionId);
         try {
             // 获取会话历史
-            List<ChatMessage> messages = getOrCreateSession(sessionId);
+            SessionData sessionData = getOrCreateSession(sessionId);
+            ChatHistory history = sessionData.getHistory();
             
-            // RAG 增强处理
-            String processedInput = processWithRag(sessionId, input);
+            // 首轮对话先查响应缓存
+            ResponseCache.Lookup cached = lookupFirstTurnCache(sessionId, history, input);
+            if (cached != null && cached.hit().isPresent()) {
+                String answer = cached.hit().get();
+                history = history.append(UserMessage.from(input)).append(AiMessage.from(answer));
+                sessionData.setHistory(history);
+                persistHistory(sessionId, sessionData);
+                log.info("会话 {} 首轮命中响应缓存", sessionId);
+                return answer;
+            }
             
-            // 添加用户消息
-            messages.add(UserMessage.from(processedInput));
+            // RAG 增强处理
+            KnowledgeService.AugmentedPrompt augmented = processWithRag(sessionId, input);
             
-            // 限制历史消息数量（保留系统消息 + 最近的对话）
-            if (messages.size() > MAX_HISTORY) {
-                List<ChatMessage> trimmed = new ArrayList<>();
-                trimmed.add(messages.get(0)); // 保留系统消息
-                trimmed.addAll(messages.subList(messages.size() - MAX_HISTORY + 1, messages.size()));
-                messages.clear();
-                messages.addAll(trimmed);
-            }
+            // 历史只记录原始输入
+            sessionData.setHistory(history.append(historyMessage(input, augmented)));
+            trimHistory(sessionId, sessionData);
             
             // 调用 AI 模型 (LangChain4j 1.x: chat() 返回 ChatResponse)
-            ChatResponse response = chatModel.chat(messages);
+            // 参考资料只放在本轮请求中
+            ChatResponse response = chatModel.chat(buildRequest(sessionData.getHistory(), augmented));
             String aiResponse = response.aiMessage().text();
             
             // 添加 AI 响应到历史
-            messages.add(response.aiMessage());
+            history = sessionData.getHistory().append(response.aiMessage());
+            sessionData.setHistory(history);
+            persistHistory(sessionId, sessionData);
+            if (cached != null) {
+                cached.store(aiResponse);
+            }
             
             log.info("会话 {} 响应成功", sessionId);
             return aiResponse;
@@ -293,93 +1093,356 @@ public class ConversationService {
         } catch (Exception e) {
             log.error("会话 {} 处理失败: {}", sessionId, e.getMessage(), e);
             return "抱歉，处理您的请求时遇到了问题：" + e.getMessage();
+        } finally {
+            permit.release();
         }
     }
 
     /**
      * 流式对话 - 支持 SSE 实时返回
      * 
+     * 启用续传缓冲区时每帧带事件 ID，连接中断后可通过 {@link #resumeStream} 续传。
+     * 
      * @param sessionId 会话 ID
      * @param input 用户输入
      * @param emitter SSE 发送器
      */
     public void streamConversation(String sessionId, String input, SseEmitter emitter) {
+        Flux<String> tokens = streamReply(sessionId, input);
+        sendFrames(sessionId, streamReplayBuffer != null
+            ? streamReplayBuffer.start(sessionId, input, tokens)
+            : StreamReplayBuffer.plain(tokens), emitter);
+    }
+
+    /**
+     * 按 Last-Event-ID 续传流式响应（不调用模型）
+     * 
+     * @param lastEventId 客户端收到的最后一个事件 ID
+     * @param sessionId 会话 ID
+     * @param input 用户输入（须与生成该响应的输入一致）
+     * @param emitter SSE 发送器
+     * @return 是否续传成功；响应已过期、断点已被覆盖、不属于该会话和输入，
+     *         或客户端已收到完整响应时返回 false，由调用方重新生成
+     */
+    public boolean resumeStream(String lastEventId, String sessionId, String input, SseEmitter emitter) {
+        if (streamReplayBuffer == null) {
+            return false;
+        }
+        Optional<Flux<StreamReplayBuffer.Frame>> frames = streamReplayBuffer.resume(lastEventId, sessionId, input);
+        frames.ifPresent(flux -> sendFrames(lastEventId, flux, emitter));
+        return frames.isPresent();
+    }
+
+    private void sendFrames(String streamName, Flux<StreamReplayBuffer.Frame> frames, SseEmitter emitter) {
+        Disposable.Swap subscription = Disposables.swap();
+        // 连接超时或出错（客户端断开）时取消订阅，进而取消上游模型调用
+        emitter.onTimeout(subscription::dispose);
+        emitter.onError(error -> subscription.dispose());
+        if (sseStreamWriter != null) {
+            // 模型回调线程只入队，写出由独立线程完成，慢客户端不会拖慢上游读取
+            SseStreamWriter.Channel channel = sseStreamWriter.open(emitter, subscription::dispose);
+            subscription.update(frames.subscribe(channel::offer, channel::error, channel::complete));
+            return;
+        }
+        subscription.update(frames.subscribe(
+            frame -> {
+                try {
+                    // 发送每一帧，并立即刷新
+                    SseEmitter.SseEventBuilder event = SseEmitter.event().data(frame.data());
+                    if (frame.id() != null) {
+                        event.id(frame.id());
+                    }
+                    if (frame.event() != null) {
+                        event.name(frame.event());
+                    }
+                    emitter.send(event);
+                } catch (IOException e) {
+                    log.info("流式响应发送失败（{}），客户端可能已断开: {}", streamName, e.getMessage());
+                    subscription.dispose();
+                }
+            },
+            emitter::completeWithError,
+            emitter::complete));
+    }
+
+    /**
+     * 流式对话（响应式）- 逐个返回模型生成的 token
+     * 
+     * 会话排队、加载和 RAG 检索都不阻塞订阅线程：排队通过 CompletableFuture 链等待，
+     * 会话加载和检索在 boundedElastic 调度器上执行。模型回调写入支持背压的 FluxSink，
+     * 下游消费慢时 token 暂存在缓冲区中，由下游按需请求。
+     * 
+     * 本轮在模型响应结束（完成或失败）时释放会话通道；模型调用开始前取消订阅则立即释放。
+     * 
+     * @param sessionId 会话 ID
+     * @param input 用户输入
+     * @return token 流，模型出错时以错误结束
+     */
+    public Flux<String> streamReply(String sessionId, String input) {
         log.info("会话 {} 接收流式消息: {}", sessionId, input);
         
         if (streamingChatModel == null) {
             // 如果不支持流式，使用传统方式
-            try {
-                String response = continueConversation(sessionId, input);
-                emitter.send(SseEmitter.event().data(response));
-                emitter.complete();
-            } catch (Exception e) {
-                log.error("发送响应失败", e);
-                emitter.completeWithError(e);
-            }
-            return;
+            return Mono.fromCallable(() -> continueConversation(sessionId, input))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flux();
         }
         
-        try {
-            // 获取会话历史
-            List<ChatMessage> messages = getOrCreateSession(sessionId);
-            
-            // RAG 增强处理
-            String processedInput = processWithRag(sessionId, input);
-            
-            // 添加用户消息
-            messages.add(UserMessage.from(processedInput));
+        return Flux.defer(() -> {
+            // 同一会话的请求排队依次执行，流式响应结束（完成或失败）时释放
+            CompletableFuture<SessionLanes.Permit> queued = sessionLanes.acquireAsync(sessionId);
+            AtomicBoolean finished = new AtomicBoolean();
+            AtomicBoolean modelStarted = new AtomicBoolean();
+            Runnable finish = () -> {
+                if (finished.compareAndSet(false, true)) {
+                    queued.thenAccept(SessionLanes.Permit::release);
+                }
+            };
+            return Mono.fromFuture(queued, true)
+                .publishOn(Schedulers.boundedElastic())
+                .flatMapMany(permit -> replyTurn(sessionId, input, finish, modelStarted))
+                .doOnError(e -> {
+                    if (!modelStarted.get()) {
+                        log.error("会话 {} 处理失败: {}", sessionId, e.getMessage(), e);
+                        finish.run();
+                    }
+                })
+                .doOnCancel(() -> {
+                    if (!modelStarted.get()) {
+                        finish.run();
+                    }
+                });
+        });
+    }
+
+    private Flux<String> replyTurn(String sessionId, String input, Runnable finish, AtomicBoolean modelStarted) {
+        // 获取会话历史
+        SessionData sessionData = getOrCreateSession(sessionId);
+        ChatHistory history = sessionData.getHistory();
+        
+        // 首轮对话先查响应缓存，命中则直接回放
+        ResponseCache.Lookup cached = lookupFirstTurnCache(sessionId, history, input);
+        if (cached != null && cached.hit().isPresent()) {
+            String answer = cached.hit().get();
+            history = history.append(UserMessage.from(input)).append(AiMessage.from(answer));
+            sessionData.setHistory(history);
+            persistHistory(sessionId, sessionData);
+            log.info("会话 {} 首轮命中响应缓存，回放缓存回答", sessionId);
+            finish.run();
+            return Flux.fromIterable(replayChunks(answer));
+        }
+        
+        // RAG 增强处理
+        return processWithRagAsync(sessionId, input).flatMapMany(augmented -> {
+            // 历史只记录原始输入，参考资料只放在本轮请求中
+            sessionData.setHistory(sessionData.getHistory().append(historyMessage(input, augmented)));
+            trimHistory(sessionId, sessionData);
+            List<ChatMessage> request = buildRequest(sessionData.getHistory(), augmented);
             
-            // 限制历史消息数量
-            if (messages.size() > MAX_HISTORY) {
-                List<ChatMessage> trimmed = new ArrayList<>();
-                trimmed.add(messages.get(0)); // 保留系统消息
-                trimmed.addAll(messages.subList(messages.size() - MAX_HISTORY + 1, messages.size()));
-                messages.clear();
-                messages.addAll(trimmed);
+            Flux<String> tokens = Flux.create(sink -> {
+                modelStarted.set(true);
+                TurnStream turn = new TurnStream(sessionId, sessionData, cached, finish, sink);
+                // 下游取消（客户端断开、超时）时取消上游模型调用
+                sink.onCancel(turn::cancel);
+                // 调用流式 API (LangChain4j 1.x: 使用 StreamingChatResponseHandler)
+                try {
+                    streamingChatModel.chat(request, turn);
+                } catch (RuntimeException e) {
+                    turn.onError(e);
+                }
+            }, FluxSink.OverflowStrategy.BUFFER);
+            // 合并相邻 token，减少帧数和刷新次数（首个 token 立即发出）
+            return tokenCoalescer != null ? tokenCoalescer.coalesce(tokens) : tokens;
+        });
+    }
+
+    /**
+     * 一轮流式响应：把模型回调桥接到 FluxSink，下游取消时取消上游模型调用
+     * 
+     * 完成、出错、取消三者只有最先发生的一个生效，之后到达的回调被忽略，
+     * 不会把无人接收的回答写入历史。取消句柄随首个 token 一起到达，
+     * 在此之前取消时，首个 token 到达后立即取消。
+     */
+    private final class TurnStream implements StreamingChatResponseHandler {
+        private final String sessionId;
+        private final SessionData sessionData;
+        private final ResponseCache.Lookup cached;
+        private final Runnable finish;
+        private final FluxSink<String> sink;
+        private final StringBuilder answer = new StringBuilder();
+        private final AtomicBoolean terminated = new AtomicBoolean();
+        private volatile StreamingHandle handle;
+
+        private TurnStream(String sessionId, SessionData sessionData, ResponseCache.Lookup cached,
+                           Runnable finish, FluxSink<String> sink) {
+            this.sessionId = sessionId;
+            this.sessionData = sessionData;
+            this.cached = cached;
+            this.finish = finish;
+            this.sink = sink;
+        }
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            accept(partialResponse, null);
+        }
+
+        @Override
+        public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+            accept(partialResponse.text(), context.streamingHandle());
+        }
+
+        private void accept(String token, StreamingHandle current) {
+            if (current != null) {
+                handle = current;
             }
-            
-            // 用于收集完整响应的缓冲区
-            StringBuilder fullResponse = new StringBuilder();
-            
-            // 调用流式 API (LangChain4j 1.x: 使用 StreamingChatResponseHandler)
-            streamingChatModel.chat(messages, new StreamingChatResponseHandler() {
-                @Override
-                public void onPartialResponse(String partialResponse) {
-                    try {
-                        fullResponse.append(partialResponse);
-                        // 发送每个 token，并立即刷新
-                        emitter.send(SseEmitter.event().data(partialResponse));
-                        log.debug("发送 token: {}", partialResponse);
-                    } catch (IOException e) {
-                        log.error("发送 token 失败", e);
-                    }
+            if (terminated.get()) {
+                if (current != null) {
+                    current.cancel();
                 }
+                return;
+            }
+            synchronized (answer) {
+                answer.append(token);
+            }
+            sink.next(token);
+        }
 
-                @Override
-                public void onCompleteResponse(ChatResponse response) {
-                    try {
-                        // 添加 AI 响应到历史
-                        messages.add(response.aiMessage());
-                        // 发送完成信号
-                        emitter.send(SseEmitter.event().name("done").data("[DONE]"));
-                        emitter.complete();
-                        log.info("会话 {} 流式响应完成，总长度: {}", sessionId, fullResponse.length());
-                    } catch (IOException e) {
-                        log.error("完成信号发送失败", e);
-                        emitter.completeWithError(e);
-                    }
+        @Override
+        public void onCompleteResponse(ChatResponse response) {
+            if (!terminated.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                // 添加 AI 响应到历史
+                ChatHistory updated = sessionData.getHistory().append(response.aiMessage());
+                sessionData.setHistory(updated);
+                persistHistory(sessionId, sessionData);
+                if (cached != null) {
+                    cached.store(response.aiMessage().text());
                 }
+            } finally {
+                finish.run();
+            }
+            log.info("会话 {} 流式响应完成，总长度: {}", sessionId, answerLength());
+            sink.complete();
+        }
 
-                @Override
-                public void onError(Throwable error) {
-                    log.error("会话 {} 流式处理失败", sessionId, error);
-                    emitter.completeWithError(error);
+        @Override
+        public void onError(Throwable error) {
+            if (!terminated.compareAndSet(false, true)) {
+                return;
+            }
+            log.error("会话 {} 流式处理失败", sessionId, error);
+            finish.run();
+            sink.error(error);
+        }
+
+        /**
+         * 客户端断开：取消模型调用，按配置保留部分回答或丢弃本轮
+         */
+        void cancel() {
+            if (!terminated.compareAndSet(false, true)) {
+                return;
+            }
+            StreamingHandle current = handle;
+            if (current != null) {
+                current.cancel();
+            }
+            cancelledStreams.increment();
+            try {
+                String partial;
+                synchronized (answer) {
+                    partial = answer.toString();
                 }
-            });
-            
-        } catch (Exception e) {
-            log.error("会话 {} 处理失败: {}", sessionId, e.getMessage(), e);
-            emitter.completeWithError(e);
+                ChatHistory history = sessionData.getHistory();
+                if (properties.getStream().isStorePartialOnCancel() && !partial.isEmpty()) {
+                    ChatHistory updated = history.append(AiMessage.from(partial));
+                    sessionData.setHistory(updated);
+                    persistHistory(sessionId, sessionData);
+                } else if (history.bodySize() > 0 && history.last() instanceof UserMessage) {
+                    // 丢弃本轮的用户消息，历史保持本轮之前的状态
+                    sessionData.setHistory(history.truncate(history.bodySize() - 1));
+                }
+            } finally {
+                finish.run();
+            }
+            log.info("会话 {} 客户端已断开，取消模型调用（已生成 {} 字）", sessionId, answerLength());
+        }
+
+        private int answerLength() {
+            synchronized (answer) {
+                return answer.length();
+            }
+        }
+    }
+
+    /**
+     * 缓存回答按固定码点数切分，模拟流式输出
+     */
+    private static List<String> replayChunks(String answer) {
+        int[] codePoints = answer.codePoints().toArray();
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < codePoints.length; i += REPLAY_CHUNK_SIZE) {
+            int end = Math.min(i + REPLAY_CHUNK_SIZE, codePoints.length);
+            chunks.add(new String(codePoints, i, end - i));
+        }
+        return chunks;
+    }
+
+    /**
+     * 查询首轮对话的响应缓存
+     * 仅在会话只有系统提示词时查询；启用 RAG 时作用域包含知识库版本
+     * 
+     * @return 查询结果，非首轮或未启用缓存时返回 null
+     */
+    private ResponseCache.Lookup lookupFirstTurnCache(String sessionId, ChatHistory history, String input) {
+        if (responseCache == null || history.size() != 1) {
+            return null;
+        }
+        long knowledgeVersion = knowledgeService != null && isRagEnabled(sessionId)
+            ? knowledgeService.getVersion()
+            : -1;
+        String systemPrompt = ((SystemMessage) history.last()).text();
+        return responseCache.lookup(ResponseCache.scope(systemPrompt, knowledgeVersion), input);
+    }
+
+
+    /**
+     * 分叉会话
+     * 
+     * 新会话与原会话共享同一段不可变历史，不复制消息，之后两者各自追加互不影响。
+     * 可只保留前若干条对话消息，用于「从这里修改后重新发送」。
+     * 
+     * @param sessionId 原会话 ID
+     * @param keepMessages 保留的对话消息数（不含系统提示词和摘要），null 表示全部保留
+     * @return 新会话 ID
+     */
+    public String forkSession(String sessionId, Integer keepMessages) {
+        if (keepMessages != null && keepMessages < 0) {
+            throw BusinessException.badRequest("keepMessages 不能为负数");
+        }
+        if (!sessionExists(sessionId)) {
+            throw BusinessException.notFound("会话不存在: " + sessionId);
+        }
+        // 等待原会话正在进行的一轮结束，分叉点落在完整的轮次之后
+        SessionLanes.Permit permit = sessionLanes.acquire(sessionId);
+        try {
+            SessionData source = getOrCreateSession(sessionId);
+            ChatHistory history = source.getHistory();
+            if (keepMessages != null) {
+                history = history.truncate(keepMessages);
+            }
+            String forkId = UUID.randomUUID().toString();
+            SessionData fork = new SessionData(history);
+            fork.setRagEnabled(source.isRagEnabled());
+            sessionIndex.add(forkId);
+            sessions.put(forkId, fork);
+            persistHistory(forkId, fork);
+            log.info("会话 {} 分叉为 {}，保留 {} 条消息", sessionId, forkId, history.size());
+            return forkId;
+        } finally {
+            permit.release();
         }
     }
 
@@ -390,7 +1453,35 @@ public class ConversationService {
      */
     public void clearSession(String sessionId) {
         log.info("清除会话: {}", sessionId);
-        sessions.remove(sessionId);
+        sessions.asMap().computeIfPresent(sessionId, (id, sessionData) -> {
+            sessionIndex.remove(id);
+            return null;
+        });
+        if (spillStore != null) {
+            SessionData pending = spilling.remove(sessionId);
+            // 与溢写任务同一线程执行，保证排在已提交的写入之后
+            spillExecutor.execute(() -> {
+                if (pending != null) {
+                    pending.discard();
+                }
+                try {
+                    spillStore.remove(sessionId);
+                } catch (IOException e) {
+                    log.warn("删除会话 {} 的磁盘记录失败: {}", sessionId, e.getMessage());
+                }
+            });
+        }
+        SessionSpillStore snapshot = snapshotStore;
+        if (snapshot != null) {
+            try {
+                snapshot.remove(sessionId);
+            } catch (IOException e) {
+                log.warn("删除会话 {} 的快照记录失败: {}", sessionId, e.getMessage());
+            }
+        }
+        if (chatMemoryStore != null) {
+            chatMemoryStore.deleteMessages(sessionId);
+        }
     }
 
     /**
@@ -399,7 +1490,7 @@ public class ConversationService {
      * @return 当前活跃会话数
      */
     public int getSessionCount() {
-        return sessions.size();
+        return (int) sessions.estimatedSize();
     }
 
     /**
@@ -408,7 +1499,79 @@ public class ConversationService {
      * @return 会话 ID 列表
      */
     public java.util.Set<String> getSessionIds() {
-        return sessions.keySet();
+        return java.util.Collections.unmodifiableSet(sessionIndex);
+    }
+
+    /**
+     * 会话摘要信息（运维查询用）
+     */
+    public record SessionSummary(String sessionId, int messageCount, boolean ragEnabled,
+                                 Instant createdTime, Instant lastAccessTime, long idleSeconds) {}
+
+    /**
+     * 会话列表过滤条件（字段为 null 表示不过滤）
+     */
+    public record SessionFilter(Long minIdleSeconds, Long maxIdleSeconds,
+                                Integer minMessages, Integer maxMessages, Boolean ragEnabled) {
+
+        public static SessionFilter none() {
+            return new SessionFilter(null, null, null, null, null);
+        }
+
+        boolean matches(SessionSummary session) {
+            return (minIdleSeconds == null || session.idleSeconds() >= minIdleSeconds)
+                && (maxIdleSeconds == null || session.idleSeconds() <= maxIdleSeconds)
+                && (minMessages == null || session.messageCount() >= minMessages)
+                && (maxMessages == null || session.messageCount() <= maxMessages)
+                && (ragEnabled == null || session.ragEnabled() == ragEnabled);
+        }
+    }
+
+    /**
+     * 一页会话列表
+     * 
+     * @param sessions 本页会话（按会话 ID 排序）
+     * @param nextCursor 下一页游标（没有更多数据时为 null）
+     */
+    public record SessionPage(List<SessionSummary> sessions, String nextCursor) {}
+
+    /**
+     * 按游标分页查询内存中的会话
+     * 
+     * 从有序索引中取游标之后的会话 ID，逐个读取会话元数据（不解码历史、不进入会话通道）。
+     * 单页最多检查 limit * 10 个会话，过滤条件很严格时可能返回不足一页但带游标的结果。
+     * 
+     * @param cursor 上一页返回的游标（首页为 null）
+     * @param limit 每页条数
+     * @param filter 过滤条件
+     * @return 会话列表
+     */
+    public SessionPage listSessions(String cursor, int limit, SessionFilter filter) {
+        NavigableSet<String> ids = cursor == null || cursor.isEmpty() ? sessionIndex : sessionIndex.tailSet(cursor, false);
+        int maxScanned = limit * 10;
+        int scanned = 0;
+        String last = null;
+        Instant now = Instant.now();
+        List<SessionSummary> page = new ArrayList<>(limit);
+        for (String sessionId : ids) {
+            if (page.size() >= limit || scanned >= maxScanned) {
+                return new SessionPage(page, last);
+            }
+            scanned++;
+            last = sessionId;
+            // 不记为访问：查询不影响过期和淘汰
+            SessionData sessionData = sessions.policy().getIfPresentQuietly(sessionId);
+            if (sessionData == null) {
+                continue;
+            }
+            SessionSummary summary = new SessionSummary(sessionId, sessionData.getMessageCount(),
+                sessionData.isRagEnabled(), sessionData.getCreatedTime(), sessionData.getLastAccessTime(),
+                Duration.between(sessionData.getLastAccessTime(), now).toSeconds());
+            if (filter.matches(summary)) {
+                page.add(summary);
+            }
+        }
+        return new SessionPage(page, null);
     }
 
     /**
@@ -418,6 +1581,16 @@ public class ConversationService {
      * @return 是否存在
      */
     public boolean sessionExists(String sessionId) {
-        return sessions.containsKey(sessionId);
+        if (sessions.asMap().containsKey(sessionId)) {
+            return true;
+        }
+        if (spillStore != null && (spilling.containsKey(sessionId) || spillStore.contains(sessionId))) {
+            return true;
+        }
+        SessionSpillStore snapshot = snapshotStore;
+        if (snapshot != null && snapshot.contains(sessionId)) {
+            return true;
+        }
+        return chatMemoryStore != null && !chatMemoryStore.getMessages(sessionId).isEmpty();
     }
 }
@@ -1,5 +1,7 @@
 package com.alex.ai.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
@@ -10,8 +12,13 @@ import dev.langchain4j.store.embedding.EmbeddingStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 向量嵌入服务 - 负责文本向量化和相似度搜索
@@ -30,6 +37,20 @@ public class EmbeddingService {
     private final String modelName;
     private final String baseUrl;
 
+    /**
+     * 近期查询向量缓存（同一问题在响应缓存、检索门控和相似度搜索中只向量化一次）
+     */
+    private final Cache<String, Embedding> queryEmbeddingCache = Caffeine.newBuilder()
+        .expireAfterWrite(2, TimeUnit.MINUTES)
+        .maximumSize(512)
+        .build();
+
+    /**
+     * 知识库向量质心（向量累加和与数量），用于判断问题是否落在知识库覆盖范围内
+     */
+    private double[] centroidSum;
+    private long centroidCount;
+
     /**
      * 构造函数注入（从 Spring 容器获取已配置的 Bean）
      */
@@ -86,21 +107,58 @@ public class EmbeddingService {
      * @return 存储的文档 ID 列表
      */
     public List<String> storeTexts(List<String> texts, String source, String title, long createdAt) {
+        return storeTexts(texts, source, title, createdAt, null);
+    }
+
+    /**
+     * 批量存储文本片段（带标题、创建时间和近似重复分组）
+     * 
+     * @param texts 文本列表
+     * @param source 来源标识
+     * @param title 知识条目标题（用于恢复时显示）
+     * @param createdAt 创建时间戳
+     * @param groups 与 texts 一一对应的近似重复分组 ID（元素为 null 表示不分组），用于重启后恢复
+     * @return 存储的文档 ID 列表
+     */
+    public List<String> storeTexts(List<String> texts, String source, String title, long createdAt, List<String> groups) {
+        return storeTexts(texts, source, title, createdAt, groups, null);
+    }
+
+    /**
+     * 批量存储文本片段（带标题、创建时间、近似重复分组和引用的分组）
+     * 
+     * @param texts 文本列表
+     * @param source 来源标识
+     * @param title 知识条目标题（用于恢复时显示）
+     * @param createdAt 创建时间戳
+     * @param groups 与 texts 一一对应的近似重复分组 ID（元素为 null 表示不分组），用于重启后恢复
+     * @param sharedGroups 该条目因重复而跳过、由其他条目存储的分组，写入每个片段的元数据，用于重启后恢复引用
+     * @return 存储的文档 ID 列表
+     */
+    public List<String> storeTexts(List<String> texts, String source, String title, long createdAt,
+                                   List<String> groups, List<String> sharedGroups) {
         log.info("批量存储 {} 个文本片段, 来源: {}, 标题: {}", texts.size(), source, title);
         
-        List<TextSegment> segments = texts.stream()
-            .map(text -> {
-                var metadata = dev.langchain4j.data.document.Metadata.from("source", source);
-                if (title != null && !title.isEmpty()) {
-                    metadata.put("title", title);
-                }
-                metadata.put("createdAt", String.valueOf(createdAt));
-                return TextSegment.from(text, metadata);
-            })
-            .toList();
+        List<TextSegment> segments = new ArrayList<>(texts.size());
+        for (int i = 0; i < texts.size(); i++) {
+            var metadata = dev.langchain4j.data.document.Metadata.from("source", source);
+            if (title != null && !title.isEmpty()) {
+                metadata.put("title", title);
+            }
+            metadata.put("createdAt", String.valueOf(createdAt));
+            String group = groups != null && i < groups.size() ? groups.get(i) : null;
+            if (group != null) {
+                metadata.put("group", group);
+            }
+            if (sharedGroups != null && !sharedGroups.isEmpty()) {
+                metadata.put("refs", String.join(",", sharedGroups));
+            }
+            segments.add(TextSegment.from(texts.get(i), metadata));
+        }
         
         List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
         List<String> ids = embeddingStore.addAll(embeddings, segments);
+        accumulateCentroid(embeddings);
         
         log.info("批量存储完成, 共 {} 条记录", ids.size());
         return ids;
@@ -162,8 +220,27 @@ public class EmbeddingService {
             query.length() > 50 ? query.substring(0, 50) + "..." : query, 
             maxResults, minScore);
         
-        Embedding queryEmbedding = embeddingModel.embed(query).content();
-        
+        return searchByEmbedding(embedQuery(query), maxResults, minScore);
+    }
+
+    /**
+     * 相似度搜索（非阻塞）
+     *
+     * 查询向量命中缓存时不切换线程；向量化和向量库查询是阻塞的 HTTP 调用，
+     * 在 boundedElastic 调度器上执行，调用方线程（如事件循环）不会被占用。
+     *
+     * @param query 查询文本
+     * @param maxResults 最大返回数量
+     * @param minScore 最小相似度阈值 (0-1)
+     * @return 匹配的文本片段列表
+     */
+    public Mono<List<EmbeddingMatch<TextSegment>>> searchAsync(String query, int maxResults, double minScore) {
+        return embedQueryAsync(query)
+            .flatMap(embedding -> Mono.fromCallable(() -> searchByEmbedding(embedding, maxResults, minScore))
+                .subscribeOn(Schedulers.boundedElastic()));
+    }
+
+    private List<EmbeddingMatch<TextSegment>> searchByEmbedding(Embedding queryEmbedding, int maxResults, double minScore) {
         // LangChain4j 1.x: 使用 EmbeddingSearchRequest 和 search() 方法
         EmbeddingSearchRequest searchRequest = EmbeddingSearchRequest.builder()
             .queryEmbedding(queryEmbedding)
@@ -178,6 +255,79 @@ public class EmbeddingService {
         return matches;
     }
 
+    /**
+     * 查询文本向量化（带短期缓存）
+     * 
+     * @param query 查询文本
+     * @return 查询向量
+     */
+    public Embedding embedQuery(String query) {
+        return queryEmbeddingCache.get(query, q -> embeddingModel.embed(q).content());
+    }
+
+    /**
+     * 查询文本向量化（非阻塞，缓存命中时直接返回）
+     *
+     * @param query 查询文本
+     * @return 查询向量
+     */
+    public Mono<Embedding> embedQueryAsync(String query) {
+        Embedding cached = queryEmbeddingCache.getIfPresent(query);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return Mono.fromCallable(() -> embedQuery(query)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * 将已有向量计入知识库质心（启动恢复时使用）
+     * 
+     * @param matches 向量库中的文档
+     */
+    public void rebuildCentroid(List<EmbeddingMatch<TextSegment>> matches) {
+        List<Embedding> embeddings = matches.stream()
+            .map(EmbeddingMatch::embedding)
+            .filter(Objects::nonNull)
+            .toList();
+        synchronized (this) {
+            centroidSum = null;
+            centroidCount = 0;
+        }
+        accumulateCentroid(embeddings);
+    }
+
+    /**
+     * 获取知识库向量质心
+     * 
+     * @return 质心向量，知识库为空时返回 null
+     */
+    public synchronized float[] getCentroid() {
+        if (centroidSum == null || centroidCount == 0) {
+            return null;
+        }
+        float[] centroid = new float[centroidSum.length];
+        for (int i = 0; i < centroid.length; i++) {
+            centroid[i] = (float) (centroidSum[i] / centroidCount);
+        }
+        return centroid;
+    }
+
+    private synchronized void accumulateCentroid(List<Embedding> embeddings) {
+        for (Embedding embedding : embeddings) {
+            float[] vector = embedding.vector();
+            if (centroidSum == null) {
+                centroidSum = new double[vector.length];
+            }
+            if (vector.length != centroidSum.length) {
+                continue;
+            }
+            for (int i = 0; i < vector.length; i++) {
+                centroidSum[i] += vector[i];
+            }
+            centroidCount++;
+        }
+    }
+
     /**
      * 简化的相似度搜索（使用默认参数）
      * 
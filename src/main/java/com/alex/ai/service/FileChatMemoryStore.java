@@ -0,0 +1,128 @@
+package com.alex.ai.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 本地磁盘会话历史存储
+ *
+ * 每个会话一个 JSON 文件（文件名为会话 ID 的 SHA-256），内容为版本号、会话元数据和历史，
+ * 写入先落临时文件再原子替换，进程崩溃不会留下半截文件。
+ * 版本比较和写入在同一把锁内完成；目录只应由一个进程使用。
+ * 适合单机部署时让会话在重启后保留。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+public class FileChatMemoryStore implements VersionedChatMemoryStore {
+
+    private static final TypeReference<Map<String, String>> METADATA_TYPE = new TypeReference<>() {};
+
+    private final Path directory;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public FileChatMemoryStore(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("无法创建会话存储目录: " + directory, e);
+        }
+        log.info("会话历史存储: 本地磁盘 {}", directory.toAbsolutePath());
+    }
+
+    @Override
+    public StoredSession load(Object memoryId) {
+        Path file = file(memoryId);
+        if (!Files.exists(file)) {
+            return StoredSession.EMPTY;
+        }
+        try {
+            JsonNode root = objectMapper.readTree(Files.readString(file, StandardCharsets.UTF_8));
+            if (root.isArray()) {
+                // 旧格式：只有历史
+                return new StoredSession(ChatMessageDeserializer.messagesFromJson(root.toString()), Map.of(), 1);
+            }
+            return new StoredSession(ChatMessageDeserializer.messagesFromJson(root.get("messages").toString()),
+                objectMapper.convertValue(root.get("metadata"), METADATA_TYPE), root.get("version").asLong());
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取会话历史失败: " + memoryId, e);
+        }
+    }
+
+    @Override
+    public long version(Object memoryId) {
+        return load(memoryId).version();
+    }
+
+    @Override
+    public synchronized boolean compareAndSet(Object memoryId, long expectedVersion, StoredSession session) {
+        if (load(memoryId).version() != expectedVersion) {
+            return false;
+        }
+        write(memoryId, session);
+        return true;
+    }
+
+    /**
+     * 不比较版本直接写入历史（保留已有的元数据）
+     */
+    @Override
+    public synchronized void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        StoredSession current = load(memoryId);
+        write(memoryId, new StoredSession(messages, current.metadata(), current.version() + 1));
+    }
+
+    @Override
+    public synchronized void deleteMessages(Object memoryId) {
+        try {
+            Files.deleteIfExists(file(memoryId));
+        } catch (IOException e) {
+            throw new UncheckedIOException("删除会话历史失败: " + memoryId, e);
+        }
+    }
+
+    private void write(Object memoryId, StoredSession session) {
+        Path file = file(memoryId);
+        try {
+            ObjectNode root = objectMapper.createObjectNode();
+            root.put("version", session.version());
+            root.set("metadata", objectMapper.valueToTree(session.metadata()));
+            root.set("messages", objectMapper.readTree(ChatMessageSerializer.messagesToJson(session.messages())));
+            Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            Files.writeString(temp, objectMapper.writeValueAsString(root), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("写入会话历史失败: " + memoryId, e);
+        }
+    }
+
+    private Path file(Object memoryId) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(String.valueOf(memoryId).getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest) + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.alex.ai.service;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 堆外历史的块存储
+ *
+ * 按需向 JVM 申请大块 direct 内存（slab），每个 slab 切成固定大小的块，
+ * 编码后的历史按块存放，块用完后显式归还到空闲列表，slab 本身常驻复用，
+ * 不会每次编码都 allocateDirect、也不依赖 GC 和 Cleaner 回收堆外内存。
+ *
+ * 内容相同的块只存一份（按内容哈希查找，命中后逐字节比较确认）并按引用计数回收：
+ * 分叉出的会话与原会话编码后共享相同的前缀块，首轮命中响应缓存的相同历史也只存一份。
+ *
+ * 所有分配和回收在同一把锁内完成；块在引用计数归零前内容不变，读取不加锁。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+final class HistoryArena {
+
+    /**
+     * 块大小（字节）
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    /**
+     * 每个 slab 的块数（slab 大小 1 MB）
+     */
+    private static final int BLOCKS_PER_SLAB = 1024;
+
+    private final int maxSlabs;
+    private final List<ByteBuffer> slabs = new CopyOnWriteArrayList<>();
+
+    // 以下数组按块编号索引，随 slab 增加扩容
+    private int[] refCounts = new int[0];
+    private int[] lengths = new int[0];
+    private long[] hashes = new long[0];
+
+    private int[] freeBlocks = new int[0];
+    private int freeCount;
+
+    /**
+     * 内容哈希 -> 块编号（哈希冲突时只索引其中一个块，另一个不参与共享）
+     */
+    private final Map<Long, Integer> index = new HashMap<>();
+
+    private volatile long usedBlocks;
+
+    /**
+     * @param maxBytes 堆外内存上限（向上取整到 slab 大小）
+     */
+    HistoryArena(long maxBytes) {
+        long slabBytes = (long) BLOCK_SIZE * BLOCKS_PER_SLAB;
+        this.maxSlabs = (int) Math.max(1, (maxBytes + slabBytes - 1) / slabBytes);
+    }
+
+    /**
+     * 写入编码后的历史
+     *
+     * @return 块编号（按顺序），堆外内存已达上限时返回 null
+     */
+    synchronized int[] store(byte[] bytes) {
+        int count = (bytes.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            int offset = i * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, bytes.length - offset);
+            long hash = hash(bytes, offset, length);
+            Integer shared = index.get(hash);
+            if (shared != null && contentEquals(shared, bytes, offset, length)) {
+                refCounts[shared]++;
+                blocks[i] = shared;
+                continue;
+            }
+            int block = allocate();
+            if (block < 0) {
+                release(Arrays.copyOf(blocks, i));
+                return null;
+            }
+            slab(block).put(position(block), bytes, offset, length);
+            refCounts[block] = 1;
+            lengths[block] = length;
+            hashes[block] = hash;
+            index.putIfAbsent(hash, block);
+            blocks[i] = block;
+        }
+        return blocks;
+    }
+
+    /**
+     * 读取历史的字节（调用方持有这些块的引用）
+     */
+    byte[] read(int[] blocks, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < blocks.length; i++) {
+            int offset = i * BLOCK_SIZE;
+            slab(blocks[i]).get(position(blocks[i]), bytes, offset, Math.min(BLOCK_SIZE, length - offset));
+        }
+        return bytes;
+    }
+
+    /**
+     * 释放对这些块的引用，引用计数归零的块回到空闲列表
+     */
+    synchronized void release(int[] blocks) {
+        for (int block : blocks) {
+            if (--refCounts[block] > 0) {
+                continue;
+            }
+            index.remove(hashes[block], block);
+            freeBlocks[freeCount++] = block;
+            usedBlocks--;
+        }
+    }
+
+    /**
+     * 正在使用的块占用的字节数
+     */
+    long usedBytes() {
+        return usedBlocks * BLOCK_SIZE;
+    }
+
+    /**
+     * 已向 JVM 申请的 direct 内存字节数（slab 常驻复用）
+     */
+    long reservedBytes() {
+        return (long) slabs.size() * BLOCKS_PER_SLAB * BLOCK_SIZE;
+    }
+
+    private int allocate() {
+        if (freeCount == 0 && !grow()) {
+            return -1;
+        }
+        usedBlocks++;
+        return freeBlocks[--freeCount];
+    }
+
+    private boolean grow() {
+        if (slabs.size() >= maxSlabs) {
+            return false;
+        }
+        int first = slabs.size() * BLOCKS_PER_SLAB;
+        slabs.add(ByteBuffer.allocateDirect(BLOCKS_PER_SLAB * BLOCK_SIZE));
+        int capacity = first + BLOCKS_PER_SLAB;
+        refCounts = Arrays.copyOf(refCounts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        freeBlocks = Arrays.copyOf(freeBlocks, capacity);
+        // 编号小的块先分配
+        for (int block = capacity - 1; block >= first; block--) {
+            freeBlocks[freeCount++] = block;
+        }
+        return true;
+    }
+
+    private boolean contentEquals(int block, byte[] bytes, int offset, int length) {
+        if (lengths[block] != length) {
+            return false;
+        }
+        ByteBuffer slab = slab(block);
+        int position = position(block);
+        for (int i = 0; i < length; i++) {
+            if (slab.get(position + i) != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer slab(int block) {
+        return slabs.get(block / BLOCKS_PER_SLAB);
+    }
+
+    private static int position(int block) {
+        return (block % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+    }
+
+    /**
+     * 64 位 FNV-1a，混入长度区分末尾的不满块
+     */
+    private static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L ^ length;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i];
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,244 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 会话历史的紧凑二进制编码
+ *
+ * 空闲会话的历史编码后存入堆外块存储（{@link HistoryArena}），堆上只剩块编号数组，
+ * 不再持有大量 ChatMessage 和长字符串，老年代大小和 GC 停顿不随空闲会话数增长。
+ * 堆外编码不写消息数（读到末尾为止），同一前缀的历史编码出相同的前缀块，分叉的会话可以共享。
+ *
+ * 编码格式：消息数（varint，仅写入磁盘时），每条消息一个类型字节 + 内容：
+ * - 系统消息：常见系统提示词存入共享字典，只写字典编号
+ * - 用户/AI 纯文本消息：UTF-8 长度前缀字符串
+ * - 其他消息（多模态、工具调用等）：回退为 LangChain4j JSON
+ *
+ * 写入磁盘时不使用字典（{@link #toBytes(List)}），保证进程重启后仍可解码。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+class HistoryCodec {
+
+    private static final byte SYSTEM_REF = 1;
+    private static final byte SYSTEM = 2;
+    private static final byte USER = 3;
+    private static final byte AI = 4;
+    private static final byte JSON = 5;
+
+    /**
+     * 系统提示词字典容量上限，超出后新的提示词按普通字符串编码
+     */
+    private static final int MAX_DICTIONARY_SIZE = 256;
+
+    private final Map<String, Integer> dictionaryIndex = new ConcurrentHashMap<>();
+    private final List<String> dictionary = new CopyOnWriteArrayList<>();
+    private final HistoryArena arena;
+
+    /**
+     * 编码到堆外的历史（持有块的引用，解码或丢弃时归还，只归还一次）
+     */
+    static final class Encoded {
+        private final int[] blocks;
+        private final int length;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Encoded(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        /**
+         * 编码后的字节数
+         */
+        int length() {
+            return length;
+        }
+    }
+
+    HistoryCodec() {
+        this(256L * 1024 * 1024);
+    }
+
+    /**
+     * @param maxOffHeapBytes 堆外内存上限
+     */
+    HistoryCodec(long maxOffHeapBytes) {
+        this.arena = new HistoryArena(maxOffHeapBytes);
+    }
+
+    /**
+     * 编码到堆外块存储
+     *
+     * @return 编码结果，堆外内存已达上限时返回 null（历史留在堆内）
+     */
+    Encoded encode(List<ChatMessage> messages) {
+        byte[] bytes = write(messages, true, false);
+        int[] blocks = arena.store(bytes);
+        return blocks != null ? new Encoded(blocks, bytes.length) : null;
+    }
+
+    /**
+     * 编码为不依赖提示词字典的字节数组，用于写入磁盘（进程重启后仍可解码）
+     */
+    byte[] toBytes(List<ChatMessage> messages) {
+        return write(messages, false, true);
+    }
+
+    /**
+     * 解码 {@link #toBytes(List)} 的结果
+     */
+    List<ChatMessage> fromBytes(ByteBuffer buffer) {
+        return read(buffer, readVarInt(buffer));
+    }
+
+    private byte[] write(List<ChatMessage> messages, boolean useDictionary, boolean withCount) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        if (withCount) {
+            writeVarInt(out, messages.size());
+        }
+        for (ChatMessage message : messages) {
+            if (useDictionary && message instanceof SystemMessage system && !HistorySummarizer.isSummary(system)) {
+                Integer ref = intern(system.text());
+                if (ref != null) {
+                    out.write(SYSTEM_REF);
+                    writeVarInt(out, ref);
+                } else {
+                    out.write(SYSTEM);
+                    writeString(out, system.text());
+                }
+            } else if (message instanceof SystemMessage system) {
+                out.write(SYSTEM);
+                writeString(out, system.text());
+            } else if (message instanceof UserMessage user && user.hasSingleText() && user.name() == null) {
+                out.write(USER);
+                writeString(out, user.singleText());
+            } else if (message instanceof AiMessage ai && isPlainText(ai)) {
+                out.write(AI);
+                writeString(out, ai.text());
+            } else {
+                out.write(JSON);
+                writeString(out, ChatMessageSerializer.messageToJson(message));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 从堆外解码，并归还占用的块
+     */
+    List<ChatMessage> decode(Encoded encoded) {
+        List<ChatMessage> messages = read(ByteBuffer.wrap(arena.read(encoded.blocks, encoded.length)), -1);
+        released(encoded);
+        return messages;
+    }
+
+    /**
+     * @param count 消息数，为 -1 时读到末尾
+     */
+    private List<ChatMessage> read(ByteBuffer buffer, int count) {
+        List<ChatMessage> messages = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; count < 0 ? buffer.hasRemaining() : i < count; i++) {
+            byte type = buffer.get();
+            messages.add(switch (type) {
+                case SYSTEM_REF -> SystemMessage.from(dictionary.get(readVarInt(buffer)));
+                case SYSTEM -> SystemMessage.from(readString(buffer));
+                case USER -> UserMessage.from(readString(buffer));
+                case AI -> AiMessage.from(readString(buffer));
+                case JSON -> ChatMessageDeserializer.messageFromJson(readString(buffer));
+                default -> throw new IllegalStateException("无法识别的消息类型: " + type);
+            });
+        }
+        return messages;
+    }
+
+    /**
+     * 编码不再使用（解码或会话移除）时调用，归还占用的块（重复调用只归还一次）
+     */
+    void released(Encoded encoded) {
+        if (encoded.released.compareAndSet(false, true)) {
+            arena.release(encoded.blocks);
+        }
+    }
+
+    /**
+     * 当前编码历史占用的堆外字节数（按块计，块真正归还后才减少）
+     */
+    long offHeapBytes() {
+        return arena.usedBytes();
+    }
+
+    /**
+     * 已申请并常驻复用的堆外字节数
+     */
+    long reservedOffHeapBytes() {
+        return arena.reservedBytes();
+    }
+
+    private static boolean isPlainText(AiMessage ai) {
+        return ai.text() != null && !ai.hasToolExecutionRequests() && ai.thinking() == null
+            && (ai.attributes() == null || ai.attributes().isEmpty());
+    }
+
+    private Integer intern(String text) {
+        Integer ref = dictionaryIndex.get(text);
+        if (ref != null || dictionary.size() >= MAX_DICTIONARY_SIZE) {
+            return ref;
+        }
+        synchronized (dictionary) {
+            return dictionaryIndex.computeIfAbsent(text, t -> {
+                dictionary.add(t);
+                return dictionary.size() - 1;
+            });
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarInt(buffer);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,124 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对话历史摘要器
+ *
+ * 将滑出 token 窗口的历史轮次与已有摘要合并为新的摘要。
+ * 摘要在独立的后台线程池中生成，不占用请求线程；队列满时任务被拒绝，由调用方稍后重试。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+class HistorySummarizer {
+
+    /**
+     * 摘要消息前缀，用于在历史中识别摘要
+     */
+    static final String SUMMARY_PREFIX = "【此前对话摘要】\n";
+
+    private static final String SUMMARY_PROMPT =
+        "你负责压缩对话历史。请将「已有摘要」和「新增对话」合并为一份简洁的摘要，"
+        + "保留用户的目标、偏好、关键事实、已给出的结论和未解决的问题，省略寒暄和重复内容。"
+        + "只输出摘要正文，不超过 %d 字。";
+
+    private final ChatModel chatModel;
+    private final int maxChars;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param chatModel 用于生成摘要的模型
+     * @param maxChars 摘要长度上限（字）
+     * @param threads 后台线程数
+     * @param queueCapacity 等待队列容量
+     */
+    HistorySummarizer(ChatModel chatModel, int maxChars, int threads, int queueCapacity) {
+        this.chatModel = chatModel;
+        this.maxChars = maxChars;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread t = new Thread(r, "history-summarizer-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 在后台线程池中执行摘要任务
+     *
+     * @throws java.util.concurrent.RejectedExecutionException 队列已满
+     */
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * 生成摘要（在后台线程中调用）
+     *
+     * @param previousSummary 已有摘要（可为 null）
+     * @param turns 滑出窗口的历史轮次
+     * @return 合并后的新摘要
+     */
+    String summarize(String previousSummary, List<ChatMessage> turns) {
+        String summary = chatModel.chat(List.of(
+            SystemMessage.from(SUMMARY_PROMPT.formatted(maxChars)),
+            UserMessage.from(buildInput(previousSummary, turns))
+        )).aiMessage().text();
+        log.debug("已合并 {} 条历史消息到摘要，摘要长度: {}", turns.size(), summary.length());
+        return summary;
+    }
+
+    private static String buildInput(String previousSummary, List<ChatMessage> turns) {
+        StringBuilder input = new StringBuilder();
+        input.append("【已有摘要】\n").append(previousSummary != null ? previousSummary : "（无）").append("\n\n");
+        input.append("【新增对话】\n");
+        for (ChatMessage message : turns) {
+            if (message instanceof UserMessage user) {
+                input.append("用户：").append(user.singleText()).append('\n');
+            } else if (message instanceof AiMessage ai && ai.text() != null) {
+                input.append("助手：").append(ai.text()).append('\n');
+            }
+        }
+        return input.toString();
+    }
+
+    /**
+     * 判断是否为摘要消息
+     */
+    static boolean isSummary(ChatMessage message) {
+        return message instanceof SystemMessage system && system.text().startsWith(SUMMARY_PREFIX);
+    }
+
+    /**
+     * 构造摘要消息
+     */
+    static SystemMessage toMessage(String summary) {
+        return SystemMessage.from(SUMMARY_PREFIX + summary);
+    }
+
+    /**
+     * 从摘要消息中取出摘要正文
+     */
+    static String textOf(ChatMessage message) {
+        return ((SystemMessage) message).text().substring(SUMMARY_PREFIX.length());
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,13 +1,19 @@
 package com.alex.ai.service;
 
+import com.alex.ai.exception.BusinessException;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
 import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 知识库服务 - 管理 RAG 知识库的增删改查
@@ -33,6 +39,16 @@ public class KnowledgeService {
      */
     private final Map<String, KnowledgeEntry> knowledgeEntries = new ConcurrentHashMap<>();
 
+    /**
+     * 增量维护的统计计数（添加、删除、恢复时更新）
+     */
+    private final KnowledgeStatsCollector statsCollector = new KnowledgeStatsCollector();
+
+    /**
+     * 知识库版本号，每次增删后递增（用于响应缓存等按知识库状态区分的场景）
+     */
+    private final AtomicLong version = new AtomicLong();
+
     /**
      * 分段大小（字符数）
      */
@@ -43,8 +59,76 @@ public class KnowledgeService {
      */
     private static final int SEGMENT_OVERLAP = 50;
 
+    /**
+     * 片段 SimHash 指纹索引（入库去重）
+     */
+    private final SimHashIndex simHashIndex = new SimHashIndex();
+
+    /**
+     * 片段元数据中记录近似重复分组的键
+     */
+    private static final String GROUP_METADATA_KEY = "group";
+
+    /**
+     * 片段元数据中记录引用的其他条目分组（因重复而跳过的片段）的键
+     */
+    private static final String REFS_METADATA_KEY = "refs";
+
+    /**
+     * 向量 ID -> 近似重复分组（检索时同组只保留一条）
+     */
+    private final Map<String, String> segmentGroups = new ConcurrentHashMap<>();
+
+    /**
+     * 是否启用入库近似重复检测
+     */
+    @Value("${rag.dedup.enabled:true}")
+    private boolean dedupEnabled = true;
+
+    /**
+     * 汉明距离不超过该值的片段直接跳过（64 位指纹，不超过 3 时召回完整）
+     */
+    @Value("${rag.dedup.skip-distance:3}")
+    private int dedupSkipDistance = 3;
+
+    /**
+     * 汉明距离不超过该值的片段仍然入库，但与原片段关联为同组
+     */
+    @Value("${rag.dedup.link-distance:6}")
+    private int dedupLinkDistance = 6;
+
+    /**
+     * 参与去重的最小片段长度（过短的文本指纹不可靠）
+     */
+    @Value("${rag.dedup.min-length:100}")
+    private int dedupMinLength = 100;
+
+    /**
+     * 参考资料的 token 预算
+     */
+    private final int contextMaxTokens;
+
+    /**
+     * 构建提示词时检索的候选片段数
+     */
+    @Value("${rag.context.candidates:6}")
+    private int contextCandidates = 6;
+
+    /**
+     * 本地 token 计数器
+     */
+    private final TokenCounter tokenCounter;
+
     public KnowledgeService(EmbeddingService embeddingService) {
+        this(embeddingService, TokenCounter.defaultCounter(), 1500);
+    }
+
+    @Autowired
+    public KnowledgeService(EmbeddingService embeddingService, TokenCounter tokenCounter,
+                            @Value("${rag.context.max-tokens:1500}") int contextMaxTokens) {
         this.embeddingService = embeddingService;
+        this.tokenCounter = tokenCounter;
+        this.contextMaxTokens = contextMaxTokens;
     }
 
     /**
@@ -61,6 +145,7 @@ public class KnowledgeService {
                 log.info("向量库为空，无需恢复");
                 return;
             }
+            embeddingService.rebuildCentroid(matches);
             
             // 按 source 分组统计
             Map<String, List<EmbeddingMatch<TextSegment>>> sourceGroups = new HashMap<>();
@@ -101,16 +186,39 @@ public class KnowledgeService {
                     }
                 }
                 
-                // 创建知识条目（不包含完整的 segmentIds，因为无法完全恢复）
+                // 创建知识条目（片段 ID 即向量 ID，删除时用于清理分组）
                 KnowledgeEntry knowledgeEntry = new KnowledgeEntry(
                     sourceId,
                     title,
                     totalChars,
                     segments.size(),
-                    List.of(), // segmentIds 无法完全恢复
+                    segments.stream().map(EmbeddingMatch::embeddingId).filter(Objects::nonNull).toList(),
                     createdAt
                 );
-                knowledgeEntries.put(sourceId, knowledgeEntry);
+                putEntry(knowledgeEntry);
+                
+                // 恢复指纹索引和近似重复分组，使重启后的入库去重与检索折叠依然生效
+                for (int i = 0; i < segments.size(); i++) {
+                    TextSegment segment = segments.get(i).embedded();
+                    String group = segment.metadata().getString(GROUP_METADATA_KEY);
+                    if (group == null || group.isEmpty()) {
+                        if (segment.text().length() < dedupMinLength) {
+                            continue;
+                        }
+                        // 早期入库的片段没有记录分组，按独立分组恢复
+                        group = sourceId + "#" + i;
+                    }
+                    simHashIndex.add(new SimHashIndex.Fingerprint(
+                        SimHashIndex.fingerprint(segment.text()), sourceId, i, group));
+                    segmentGroups.put(segments.get(i).embeddingId(), group);
+                }
+                // 恢复因重复而跳过的片段对其他条目分组的引用
+                String refs = segments.get(0).embedded().metadata().getString(REFS_METADATA_KEY);
+                if (refs != null && !refs.isEmpty()) {
+                    for (String group : refs.split(",")) {
+                        simHashIndex.reference(group, sourceId);
+                    }
+                }
             }
             
             log.info("✅ 从向量库恢复了 {} 条知识条目", knowledgeEntries.size());
@@ -127,6 +235,22 @@ public class KnowledgeService {
      * @return 知识条目 ID
      */
     public String addKnowledge(String title, String content) {
+        return ingestKnowledge(title, content).id();
+    }
+
+    /**
+     * 添加知识到知识库，并返回近似重复检测结果
+     * 
+     * 向量化之前先用 SimHash 指纹与已入库片段比对：
+     * - 汉明距离不超过 skip 阈值：视为重复，跳过向量化和存储
+     * - 汉明距离不超过 link 阈值：正常存储，但与原片段归为同组，检索时只保留得分最高的一条
+     * 
+     * @param title 知识标题（用于显示和管理）
+     * @param content 知识内容
+     * @return 入库结果（包含被折叠的片段）
+     * @throws BusinessException 所有片段都与已有知识重复时（409）
+     */
+    public IngestResult ingestKnowledge(String title, String content) {
         log.info("添加知识: {}, 内容长度: {} 字符", title, content.length());
         
         String entryId = UUID.randomUUID().toString().substring(0, 8);
@@ -135,24 +259,79 @@ public class KnowledgeService {
         List<String> segments = splitText(content, SEGMENT_SIZE, SEGMENT_OVERLAP);
         log.info("文本分为 {} 个片段", segments.size());
         
+        // 近似重复检测（只与已入库的其他条目比较，同一文档内的重复不处理）
+        // 查找与登记在同一把锁内完成，并发上传同一文档时只有一方会被向量化
+        List<String> toStore = new ArrayList<>();
+        List<SimHashIndex.Fingerprint> fingerprints = new ArrayList<>();
+        List<CollapsedSegment> collapsed = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            if (!dedupEnabled || segment.length() < dedupMinLength) {
+                toStore.add(segment);
+                fingerprints.add(null);
+                continue;
+            }
+            var reservation = simHashIndex.reserve(SimHashIndex.fingerprint(segment), entryId, i,
+                dedupSkipDistance, dedupLinkDistance);
+            var match = reservation.match();
+            if (match != null) {
+                collapsed.add(new CollapsedSegment(i, reservation.skipped() ? DedupAction.SKIPPED : DedupAction.LINKED,
+                    match.fingerprint().source(), match.fingerprint().segmentIndex(), match.distance()));
+            }
+            if (!reservation.skipped()) {
+                toStore.add(segment);
+                fingerprints.add(reservation.fingerprint());
+            }
+        }
+        if (!collapsed.isEmpty()) {
+            log.info("检测到 {} 个近似重复片段（跳过 {} 个）", collapsed.size(),
+                collapsed.stream().filter(c -> c.action() == DedupAction.SKIPPED).count());
+        }
+        if (toStore.isEmpty()) {
+            // 所有片段都与已有知识重复，不创建空条目
+            simHashIndex.discard(entryId);
+            Set<String> duplicateOf = new LinkedHashSet<>();
+            collapsed.forEach(c -> duplicateOf.add(c.duplicateOf()));
+            throw new BusinessException(409, "内容与已有知识重复（" + String.join(", ", duplicateOf) + "），未添加");
+        }
+        
         long createdAt = System.currentTimeMillis();
         
-        // 存储所有分段到向量库（带标题和创建时间，便于恢复时显示）
-        List<String> segmentIds = embeddingService.storeTexts(segments, entryId, title, createdAt);
+        // 存储所有分段到向量库（带标题、创建时间、分组和引用的分组，便于恢复时显示、折叠和保留共享内容）
+        List<String> groups = fingerprints.stream()
+            .map(fingerprint -> fingerprint != null ? fingerprint.group() : null)
+            .toList();
+        List<String> segmentIds;
+        try {
+            segmentIds = embeddingService.storeTexts(toStore, entryId, title, createdAt, groups,
+                simHashIndex.sharedGroups(entryId));
+        } catch (RuntimeException e) {
+            // 向量化失败，撤销预留的指纹，之后的相同内容可以重新入库
+            simHashIndex.discard(entryId);
+            throw e;
+        }
+        
+        // 登记片段分组，供检索折叠使用
+        for (int i = 0; i < fingerprints.size(); i++) {
+            SimHashIndex.Fingerprint fingerprint = fingerprints.get(i);
+            if (fingerprint != null && segmentIds != null && i < segmentIds.size()) {
+                segmentGroups.put(segmentIds.get(i), fingerprint.group());
+            }
+        }
         
         // 记录知识条目元数据
         KnowledgeEntry entry = new KnowledgeEntry(
             entryId, 
             title, 
             content.length(), 
-            segments.size(),
-            segmentIds,
+            toStore.size(),
+            segmentIds != null ? segmentIds : List.of(),
             createdAt
         );
-        knowledgeEntries.put(entryId, entry);
+        putEntry(entry);
         
         log.info("知识添加成功, ID: {}", entryId);
-        return entryId;
+        return new IngestResult(entryId, segments.size(), toStore.size(), collapsed);
     }
 
     /**
@@ -165,9 +344,36 @@ public class KnowledgeService {
     public List<RelevantKnowledge> retrieveKnowledge(String query, int maxResults) {
         log.info("检索知识: '{}'", query.length() > 50 ? query.substring(0, 50) + "..." : query);
         
-        List<EmbeddingMatch<TextSegment>> matches = embeddingService.search(query, maxResults, 0.3);
-        
+        return collapse(embeddingService.search(query, candidateCount(maxResults), 0.3), maxResults);
+    }
+
+    /**
+     * 检索相关知识（非阻塞）
+     *
+     * @param query 查询文本
+     * @param maxResults 最大返回数量
+     * @return 相关知识内容列表
+     */
+    public Mono<List<RelevantKnowledge>> retrieveKnowledgeAsync(String query, int maxResults) {
+        return embeddingService.searchAsync(query, candidateCount(maxResults), 0.3)
+            .map(matches -> collapse(matches, maxResults));
+    }
+
+    /**
+     * 多取一些候选，折叠近似重复片段后再截取
+     */
+    private int candidateCount(int maxResults) {
+        return segmentGroups.isEmpty() ? maxResults : maxResults * 2;
+    }
+
+    private List<RelevantKnowledge> collapse(List<EmbeddingMatch<TextSegment>> matches, int maxResults) {
+        Set<String> seenGroups = new HashSet<>();
         return matches.stream()
+            .filter(match -> {
+                String group = match.embeddingId() != null ? segmentGroups.get(match.embeddingId()) : null;
+                return group == null || seenGroups.add(group);
+            })
+            .limit(maxResults)
             .map(match -> new RelevantKnowledge(
                 match.embedded().text(),
                 match.score(),
@@ -179,32 +385,84 @@ public class KnowledgeService {
     /**
      * 构建 RAG 增强的提示词
      * 
+     * 检索若干候选片段后交给 ContextPacker：合并同源相邻片段、去掉重叠文本，
+     * 并按「相关度 / token 数」在预算内挑选，控制每轮请求的输入规模。
+     * 
      * @param userQuery 用户原始问题
      * @return 包含相关知识的增强提示词
      */
     public String buildAugmentedPrompt(String userQuery) {
-        List<RelevantKnowledge> relevantDocs = retrieveKnowledge(userQuery, 3);
-        
+        return augment(userQuery).prompt();
+    }
+
+    /**
+     * 构建增强提示词，同时返回引用的知识来源
+     * 
+     * @param userQuery 用户原始问题
+     * @return 增强结果；未检索到相关知识时 prompt 即原始问题，来源为空
+     */
+    public AugmentedPrompt augment(String userQuery) {
+        return pack(userQuery, retrieveKnowledge(userQuery, contextCandidates));
+    }
+
+    /**
+     * 构建增强提示词（非阻塞），检索在 boundedElastic 调度器上执行
+     *
+     * @param userQuery 用户原始问题
+     * @return 增强结果
+     */
+    public Mono<AugmentedPrompt> augmentAsync(String userQuery) {
+        return retrieveKnowledgeAsync(userQuery, contextCandidates)
+            .map(relevantDocs -> pack(userQuery, relevantDocs));
+    }
+
+    private AugmentedPrompt pack(String userQuery, List<RelevantKnowledge> relevantDocs) {
         if (relevantDocs.isEmpty()) {
             log.info("未找到相关知识，使用原始问题");
-            return userQuery;
+            return AugmentedPrompt.none(userQuery);
+        }
+        
+        List<ContextPacker.Block> blocks = new ContextPacker(tokenCounter, SEGMENT_OVERLAP * 2)
+            .pack(relevantDocs, contextMaxTokens);
+        if (blocks.isEmpty()) {
+            log.info("参考资料超出 token 预算，使用原始问题");
+            return AugmentedPrompt.none(userQuery);
         }
         
         StringBuilder contextBuilder = new StringBuilder();
         contextBuilder.append("请根据以下参考资料回答用户的问题。如果参考资料不足以回答问题，请基于你的知识回答，但要说明这不是来自参考资料。\n\n");
         contextBuilder.append("【参考资料】\n");
         
-        for (int i = 0; i < relevantDocs.size(); i++) {
-            RelevantKnowledge doc = relevantDocs.get(i);
-            contextBuilder.append(String.format("[%d] (相关度: %.2f)\n%s\n\n", 
-                i + 1, doc.score(), doc.content()));
+        int tokens = 0;
+        Set<String> sourceIds = new LinkedHashSet<>();
+        for (int i = 0; i < blocks.size(); i++) {
+            ContextPacker.Block block = blocks.get(i);
+            contextBuilder.append('[').append(i + 1).append("]\n")
+                .append(block.content()).append("\n\n");
+            tokens += block.tokens();
+            if (block.sourceId() != null) {
+                sourceIds.add(block.sourceId());
+            }
         }
         
         contextBuilder.append("【用户问题】\n");
         contextBuilder.append(userQuery);
         
-        log.info("构建增强提示词，包含 {} 条参考资料", relevantDocs.size());
-        return contextBuilder.toString();
+        log.info("构建增强提示词，{} 条候选打包为 {} 段参考资料，约 {} tokens",
+            relevantDocs.size(), blocks.size(), tokens);
+        return new AugmentedPrompt(contextBuilder.toString(), List.copyOf(sourceIds), buildCitation(sourceIds));
+    }
+
+    /**
+     * 生成紧凑的引用记录，如「参考资料：《标题A》《标题B》」
+     */
+    private String buildCitation(Set<String> sourceIds) {
+        StringBuilder citation = new StringBuilder("参考资料：");
+        for (String sourceId : sourceIds) {
+            KnowledgeEntry entry = knowledgeEntries.get(sourceId);
+            citation.append('《').append(entry != null ? entry.title() : sourceId).append('》');
+        }
+        return citation.toString();
     }
 
     /**
@@ -250,13 +508,34 @@ public class KnowledgeService {
     /**
      * 删除知识条目
      * 注意：内存版无法真正删除向量库中的数据，仅移除元数据记录
+     * 其他条目入库时因重复而跳过、实际引用本条目的片段转交给引用方，不随本条目删除
      * 
      * @param entryId 知识条目 ID
      * @return 是否删除成功
      */
     public boolean deleteKnowledge(String entryId) {
-        KnowledgeEntry removed = knowledgeEntries.remove(entryId);
+        AtomicReference<KnowledgeEntry> holder = new AtomicReference<>();
+        knowledgeEntries.computeIfPresent(entryId, (id, entry) -> {
+            statsCollector.onRemoved(entry);
+            holder.set(entry);
+            return null;
+        });
+        KnowledgeEntry removed = holder.get();
         if (removed != null) {
+            version.incrementAndGet();
+            // 仍被其他条目引用的片段（对方入库时因重复而跳过）转交给引用方，其余片段移除分组
+            Map<String, String> heirs = simHashIndex.removeSource(entryId);
+            Map<String, List<String>> inherited = new HashMap<>();
+            for (String segmentId : removed.segmentIds()) {
+                String group = segmentGroups.get(segmentId);
+                String heir = group != null ? heirs.get(group) : null;
+                if (heir != null) {
+                    inherited.computeIfAbsent(heir, k -> new ArrayList<>()).add(segmentId);
+                } else {
+                    segmentGroups.remove(segmentId);
+                }
+            }
+            inherited.forEach(this::inheritSegments);
             log.info("知识条目已删除: {} - {}", entryId, removed.title());
             // TODO: 生产环境需要实现向量库的删除操作
             return true;
@@ -264,19 +543,63 @@ public class KnowledgeService {
         return false;
     }
 
+    /**
+     * 把被删除条目仍被引用的片段转交给引用方，之后随引用方一起删除
+     */
+    private void inheritSegments(String heirId, List<String> segmentIds) {
+        knowledgeEntries.computeIfPresent(heirId, (id, entry) -> {
+            List<String> merged = new ArrayList<>(entry.segmentIds());
+            merged.addAll(segmentIds);
+            return new KnowledgeEntry(entry.id(), entry.title(), entry.contentLength(), entry.segmentCount(),
+                List.copyOf(merged), entry.createdAt());
+        });
+        log.info("{} 个共享片段转交给知识条目 {}", segmentIds.size(), heirId);
+    }
+
     /**
      * 获取知识库统计信息
+     * 计数在增删时增量维护，此处直接读取，复杂度 O(1)
      */
     public KnowledgeStats getStats() {
-        int totalEntries = knowledgeEntries.size();
-        int totalSegments = knowledgeEntries.values().stream()
-            .mapToInt(KnowledgeEntry::segmentCount)
-            .sum();
-        long totalChars = knowledgeEntries.values().stream()
-            .mapToLong(KnowledgeEntry::contentLength)
-            .sum();
-        
-        return new KnowledgeStats(totalEntries, totalSegments, totalChars, embeddingService.getModelInfo());
+        KnowledgeStatsCollector.Totals totals = statsCollector.totals();
+        return new KnowledgeStats(
+            totals.entries(),
+            totals.segments(),
+            totals.characters(),
+            embeddingService.getModelInfo()
+        );
+    }
+
+    /**
+     * 获取知识库版本号（每次增删后递增）
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * 获取知识库分布统计（按来源、按日期）
+     */
+    public KnowledgeHistogram getHistogram() {
+        return new KnowledgeHistogram(
+            statsCollector.segmentsBySource(),
+            statsCollector.entriesByDay()
+        );
+    }
+
+    /**
+     * 写入知识条目并同步更新统计计数（与条目写入在同一次原子操作中完成）
+     * 若覆盖了同 ID 的旧条目，先扣除旧条目的计数
+     */
+    private void putEntry(KnowledgeEntry entry) {
+        knowledgeEntries.compute(entry.id(), (id, previous) -> {
+            if (previous != null) {
+                statsCollector.onRemoved(previous);
+            }
+            statsCollector.onAdded(entry);
+            return entry;
+        });
+        version.incrementAndGet();
     }
 
     /**
@@ -357,6 +680,30 @@ public class KnowledgeService {
         String sourceId
     ) {}
 
+    /**
+     * 增强提示词及其引用的知识来源
+     * 
+     * @param prompt 发送给模型的提示词（未命中知识时为原始问题）
+     * @param sourceIds 引用的知识条目 ID
+     * @param citation 紧凑的引用记录，未引用时为 null
+     */
+    public record AugmentedPrompt(
+        String prompt,
+        List<String> sourceIds,
+        String citation
+    ) {
+        static AugmentedPrompt none(String userQuery) {
+            return new AugmentedPrompt(userQuery, List.of(), null);
+        }
+
+        /**
+         * 是否引用了知识库内容
+         */
+        public boolean augmented() {
+            return !sourceIds.isEmpty();
+        }
+    }
+
     /**
      * 知识库统计信息
      */
@@ -367,6 +714,54 @@ public class KnowledgeService {
         String embeddingModel
     ) {}
 
+    /**
+     * 入库结果
+     */
+    public record IngestResult(
+        String id,
+        int totalSegments,
+        int storedSegments,
+        List<CollapsedSegment> collapsed
+    ) {}
+
+    /**
+     * 被折叠的近似重复片段
+     */
+    public record CollapsedSegment(
+        int segmentIndex,
+        DedupAction action,
+        String duplicateOf,
+        int duplicateOfSegment,
+        int distance
+    ) {}
+
+    /**
+     * 近似重复处理方式
+     */
+    public enum DedupAction {
+        /** 跳过，不做向量化 */
+        SKIPPED,
+        /** 入库，但与原片段关联为同组 */
+        LINKED
+    }
+
+    /**
+     * 知识库分布统计
+     */
+    public record KnowledgeHistogram(
+        Map<String, Long> segmentsBySource,
+        Map<String, DailyStats> entriesByDay
+    ) {}
+
+    /**
+     * 单日新增统计
+     */
+    public record DailyStats(
+        long entries,
+        long segments,
+        long characters
+    ) {}
+
     /**
      * 知识条目详情（包含完整片段内容）
      */
@@ -0,0 +1,127 @@
+package com.alex.ai.service;
+
+import com.alex.ai.service.KnowledgeService.KnowledgeEntry;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 知识库统计计数器
+ *
+ * 在添加、删除、恢复知识条目时增量维护统计数据，
+ * 读取总量为 O(1)，不再随知识条目数量线性增长。
+ * 总量保存在不可变的 {@link Totals} 中，每次变更整体替换，
+ * 并发入库时读取方看到的条目数、片段数、字符数始终来自同一次变更。
+ * 直方图按来源（条目标题）和创建日期汇总，计数归零的桶立即移除，
+ * 读取复杂度只与来源数、日期数相关。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+class KnowledgeStatsCollector {
+
+    private final AtomicReference<Totals> totals = new AtomicReference<>(Totals.EMPTY);
+
+    /**
+     * 按来源统计的片段数（标题 -> 片段数）
+     */
+    private final Map<String, Long> segmentsBySource = new ConcurrentHashMap<>();
+
+    /**
+     * 按创建日期统计（日期 -> 当日计数）
+     */
+    private final Map<LocalDate, KnowledgeService.DailyStats> byDay = new ConcurrentHashMap<>();
+
+    private final ZoneId zoneId;
+
+    KnowledgeStatsCollector() {
+        this(ZoneId.systemDefault());
+    }
+
+    KnowledgeStatsCollector(ZoneId zoneId) {
+        this.zoneId = zoneId;
+    }
+
+    /**
+     * 记录新增（或恢复）的知识条目
+     */
+    void onAdded(KnowledgeEntry entry) {
+        apply(entry, 1);
+    }
+
+    /**
+     * 记录被删除的知识条目
+     */
+    void onRemoved(KnowledgeEntry entry) {
+        apply(entry, -1);
+    }
+
+    private void apply(KnowledgeEntry entry, int sign) {
+        totals.updateAndGet(current -> current.add(entry, sign));
+        segmentsBySource.compute(sourceOf(entry), (source, count) -> {
+            long next = (count != null ? count : 0L) + (long) sign * entry.segmentCount();
+            return next > 0 ? next : null;
+        });
+        byDay.compute(dayOf(entry), (day, stats) -> {
+            long entries = (stats != null ? stats.entries() : 0L) + sign;
+            if (entries <= 0) {
+                return null;
+            }
+            return new KnowledgeService.DailyStats(entries,
+                (stats != null ? stats.segments() : 0L) + (long) sign * entry.segmentCount(),
+                (stats != null ? stats.characters() : 0L) + (long) sign * entry.contentLength());
+        });
+    }
+
+    /**
+     * 当前总量（一致的快照）
+     */
+    Totals totals() {
+        return totals.get();
+    }
+
+    /**
+     * 按来源的片段数直方图
+     */
+    Map<String, Long> segmentsBySource() {
+        return new TreeMap<>(segmentsBySource);
+    }
+
+    /**
+     * 按日期的条目直方图
+     */
+    Map<String, KnowledgeService.DailyStats> entriesByDay() {
+        Map<String, KnowledgeService.DailyStats> result = new TreeMap<>();
+        byDay.forEach((day, stats) -> result.put(day.toString(), stats));
+        return result;
+    }
+
+    /**
+     * 来源：条目标题，没有标题时使用条目 ID
+     */
+    private static String sourceOf(KnowledgeEntry entry) {
+        return entry.title() != null && !entry.title().isBlank() ? entry.title() : entry.id();
+    }
+
+    private LocalDate dayOf(KnowledgeEntry entry) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(entry.createdAt()), zoneId);
+    }
+
+    /**
+     * 知识库总量
+     */
+    record Totals(int entries, int segments, long characters) {
+        static final Totals EMPTY = new Totals(0, 0, 0);
+
+        Totals add(KnowledgeEntry entry, int sign) {
+            return new Totals(entries + sign,
+                segments + sign * entry.segmentCount(),
+                characters + (long) sign * entry.contentLength());
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.exception.ContentFilteredException;
+import dev.langchain4j.exception.InvalidRequestException;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 模型端点路由器 - 记录每个端点的健康状况并给出调用顺序
+ *
+ * 每个端点维护两个 EWMA 延迟（非流式为整次调用耗时，流式为首个 token 耗时）和一个 EWMA 错误率。
+ * 调用顺序：健康端点按「期望的成功调用耗时」= 延迟 / (1 - 错误率) 升序，尚无样本的端点优先（用于探测）；
+ * 错误率达到阈值的端点进入冷却期，期间排在最后，只在其他端点全部失败时使用。
+ *
+ * 请求本身无效（参数错误、内容过滤）时换端点也不会成功，不切换、也不计入端点错误率。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+public class ModelRouter implements MeterBinder {
+
+    /**
+     * 调用类型
+     */
+    public enum Kind {
+        CHAT, STREAM
+    }
+
+    private final List<Endpoint> endpoints;
+    private final double alpha;
+    private final double errorRateThreshold;
+    private final long cooldownNanos;
+    private final Duration firstTokenTimeout;
+    private final ScheduledExecutorService timer;
+    private final LongAdder failovers = new LongAdder();
+
+    public ModelRouter(List<Endpoint> endpoints, double alpha, double errorRateThreshold,
+                       Duration cooldown, Duration firstTokenTimeout) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("至少需要配置一个模型端点");
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.alpha = alpha;
+        this.errorRateThreshold = errorRateThreshold;
+        this.cooldownNanos = cooldown.toNanos();
+        this.firstTokenTimeout = firstTokenTimeout;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "model-router-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        log.info("模型端点路由: {}", this.endpoints.stream().map(Endpoint::name).toList());
+    }
+
+    /**
+     * 单个模型端点及其统计
+     */
+    public static final class Endpoint {
+        private final String name;
+        private final ChatModel chatModel;
+        private final StreamingChatModel streamingModel;
+        private final double[] latencyMs = new double[Kind.values().length];
+        private final boolean[] sampled = new boolean[Kind.values().length];
+        private double errorRate;
+        private boolean cooling;
+        private long unhealthyUntil;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        public Endpoint(String name, ChatModel chatModel, StreamingChatModel streamingModel) {
+            this.name = name;
+            this.chatModel = chatModel;
+            this.streamingModel = streamingModel;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        ChatModel chatModel() {
+            return chatModel;
+        }
+
+        StreamingChatModel streamingModel() {
+            return streamingModel;
+        }
+
+        synchronized double latencyMs(Kind kind) {
+            return latencyMs[kind.ordinal()];
+        }
+
+        synchronized double errorRate() {
+            return errorRate;
+        }
+
+        synchronized boolean isHealthy(long now) {
+            return !cooling || now - unhealthyUntil >= 0;
+        }
+
+        /**
+         * 期望的成功调用耗时；尚无样本时为 0（优先探测）
+         */
+        private synchronized double expectedMs(Kind kind) {
+            if (!sampled[kind.ordinal()]) {
+                return 0;
+            }
+            return latencyMs[kind.ordinal()] / Math.max(0.05, 1 - errorRate);
+        }
+    }
+
+    /**
+     * 本次调用的端点顺序：健康端点按期望耗时升序，冷却中的端点在最后
+     */
+    List<Endpoint> rank(Kind kind) {
+        long now = System.nanoTime();
+        List<Endpoint> healthy = new ArrayList<>();
+        List<Endpoint> cooling = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isHealthy(now)) {
+                healthy.add(endpoint);
+            } else {
+                cooling.add(endpoint);
+            }
+        }
+        healthy.sort(Comparator.comparingDouble(endpoint -> endpoint.expectedMs(kind)));
+        cooling.sort(Comparator.comparingLong(endpoint -> endpoint.unhealthyUntil - now));
+        healthy.addAll(cooling);
+        return healthy;
+    }
+
+    void recordSuccess(Endpoint endpoint, Kind kind, long elapsedNanos) {
+        double elapsedMs = elapsedNanos / 1_000_000.0;
+        endpoint.calls.increment();
+        synchronized (endpoint) {
+            int i = kind.ordinal();
+            endpoint.latencyMs[i] = endpoint.sampled[i] ? ewma(endpoint.latencyMs[i], elapsedMs) : elapsedMs;
+            endpoint.sampled[i] = true;
+            endpoint.errorRate = ewma(endpoint.errorRate, 0);
+        }
+    }
+
+    void recordFailure(Endpoint endpoint, Throwable error) {
+        endpoint.calls.increment();
+        endpoint.failures.increment();
+        boolean tripped = false;
+        synchronized (endpoint) {
+            endpoint.errorRate = ewma(endpoint.errorRate, 1);
+            long now = System.nanoTime();
+            if (endpoint.errorRate >= errorRateThreshold && endpoint.isHealthy(now)) {
+                endpoint.cooling = true;
+                endpoint.unhealthyUntil = now + cooldownNanos;
+                tripped = true;
+            }
+        }
+        if (tripped) {
+            log.warn("模型端点 {} 错误率 {}，进入冷却期: {}", endpoint.name,
+                String.format(Locale.ROOT, "%.2f", endpoint.errorRate()), error.getMessage());
+        }
+    }
+
+    /**
+     * 切换到下一个端点
+     */
+    void recordFailover(Endpoint from, Throwable error) {
+        failovers.increment();
+        log.warn("模型端点 {} 调用失败，切换到下一个端点: {}", from.name, error.getMessage());
+    }
+
+    /**
+     * 请求本身无效：换端点也不会成功，端点也没有问题
+     */
+    static boolean isRequestError(Throwable error) {
+        return error instanceof InvalidRequestException || error instanceof ContentFilteredException;
+    }
+
+    ScheduledFuture<?> scheduleFirstTokenTimeout(Runnable task) {
+        return timer.schedule(task, firstTokenTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private double ewma(double current, double sample) {
+        return current + alpha * (sample - current);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("chat.model.failover", failovers, LongAdder::sum)
+            .description("模型调用切换到下一个端点的次数")
+            .register(registry);
+        for (Endpoint endpoint : endpoints) {
+            for (Kind kind : Kind.values()) {
+                Gauge.builder("chat.model.endpoint.latency", endpoint, e -> e.latencyMs(kind))
+                    .description("端点延迟 EWMA（毫秒；流式为首个 token 耗时）")
+                    .tag("endpoint", endpoint.name)
+                    .tag("kind", kind.name().toLowerCase(Locale.ROOT))
+                    .baseUnit("milliseconds")
+                    .register(registry);
+            }
+            Gauge.builder("chat.model.endpoint.error.rate", endpoint, Endpoint::errorRate)
+                .description("端点错误率 EWMA")
+                .tag("endpoint", endpoint.name)
+                .register(registry);
+            Gauge.builder("chat.model.endpoint.healthy", endpoint, e -> e.isHealthy(System.nanoTime()) ? 1 : 0)
+                .description("端点是否健康（1 健康，0 冷却中）")
+                .tag("endpoint", endpoint.name)
+                .register(registry);
+            FunctionCounter.builder("chat.model.endpoint.calls", endpoint.calls, LongAdder::sum)
+                .description("端点调用次数")
+                .tag("endpoint", endpoint.name)
+                .register(registry);
+            FunctionCounter.builder("chat.model.endpoint.failures", endpoint.failures, LongAdder::sum)
+                .description("端点调用失败次数")
+                .tag("endpoint", endpoint.name)
+                .register(registry);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ChatMessageDeserializer;
+import dev.langchain4j.data.message.ChatMessageSerializer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Redis 会话历史存储
+ *
+ * 每个会话保存为 {@code <prefix><sessionId>} 下的哈希，并设置过期时间：
+ * - version：版本号，每次写入加一
+ * - messages：历史 JSON
+ * - meta.*：会话元数据（如 RAG 开关）
+ *
+ * 写入通过 Lua 脚本在服务端比较版本号后再写入（CAS），多个副本同时写同一会话时只有一方成功。
+ * 多个应用副本共享同一份历史，负载均衡无需会话粘滞。
+ * 通过 RESP 协议通信，任何兼容 Redis 协议（支持 EVAL）的服务均可使用。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+public class RedisChatMemoryStore implements VersionedChatMemoryStore, BatchingChatMemoryStore.BatchWriter, AutoCloseable {
+
+    private static final String VERSION_FIELD = "version";
+    private static final String MESSAGES_FIELD = "messages";
+    private static final String METADATA_PREFIX = "meta.";
+
+    /**
+     * ARGV[1] 预期版本、ARGV[2] 新版本（* 表示不比较 / 当前版本加一），ARGV[3] 过期秒数，其余为待写入的字段/值
+     * 版本一致时写入并返回新版本，否则返回 0
+     */
+    private static final String CAS_SCRIPT = """
+        local current = tonumber(redis.call('HGET', KEYS[1], 'version') or '0')
+        if ARGV[1] ~= '*' and current ~= tonumber(ARGV[1]) then return 0 end
+        local version = ARGV[2] == '*' and current + 1 or tonumber(ARGV[2])
+        redis.call('HSET', KEYS[1], 'version', version, unpack(ARGV, 4))
+        if tonumber(ARGV[3]) > 0 then redis.call('EXPIRE', KEYS[1], ARGV[3]) end
+        return version
+        """;
+
+    private final RespClient client;
+    private final String keyPrefix;
+    private final long ttlSeconds;
+
+    /**
+     * @param client RESP 客户端
+     * @param keyPrefix 键前缀
+     * @param ttl 历史过期时间（为 0 表示不过期）
+     */
+    RedisChatMemoryStore(RespClient client, String keyPrefix, Duration ttl) {
+        this.client = client;
+        this.keyPrefix = keyPrefix;
+        this.ttlSeconds = ttl.toSeconds();
+    }
+
+    public RedisChatMemoryStore(String host, int port, String password, int database,
+                                String keyPrefix, Duration ttl, Duration timeout) {
+        this(new RespClient(host, port, password, database, timeout), keyPrefix, ttl);
+        log.info("会话历史存储: Redis {}:{}/{}，键前缀: {}", host, port, database, keyPrefix);
+    }
+
+    @Override
+    public StoredSession load(Object memoryId) {
+        Object reply = client.execute("HGETALL", key(memoryId));
+        if (!(reply instanceof List<?> fields) || fields.isEmpty()) {
+            return StoredSession.EMPTY;
+        }
+        long version = 0;
+        List<ChatMessage> messages = List.of();
+        Map<String, String> metadata = new HashMap<>();
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            String field = (String) fields.get(i);
+            String value = (String) fields.get(i + 1);
+            if (VERSION_FIELD.equals(field)) {
+                version = Long.parseLong(value);
+            } else if (MESSAGES_FIELD.equals(field)) {
+                messages = ChatMessageDeserializer.messagesFromJson(value);
+            } else if (field.startsWith(METADATA_PREFIX)) {
+                metadata.put(field.substring(METADATA_PREFIX.length()), value);
+            }
+        }
+        return new StoredSession(messages, metadata, version);
+    }
+
+    @Override
+    public long version(Object memoryId) {
+        Object version = client.execute("HGET", key(memoryId), VERSION_FIELD);
+        return version == null ? 0 : Long.parseLong((String) version);
+    }
+
+    @Override
+    public boolean compareAndSet(Object memoryId, long expectedVersion, StoredSession session) {
+        return written(client.execute(casCommand(memoryId, expectedVersion, session)));
+    }
+
+    /**
+     * 不比较版本直接写入历史（保留已有的元数据）
+     */
+    @Override
+    public void updateMessages(Object memoryId, List<ChatMessage> messages) {
+        client.execute(casCommand(memoryId, "*", "*", messages, Map.of()));
+    }
+
+    @Override
+    public void deleteMessages(Object memoryId) {
+        client.execute("DEL", key(memoryId));
+    }
+
+    /**
+     * 批量写入：一次管道往返完成全部条件写入和删除
+     */
+    @Override
+    public Set<Object> write(Map<Object, BatchingChatMemoryStore.Update> batch) {
+        List<Object> memoryIds = new ArrayList<>(batch.size());
+        List<String[]> commands = new ArrayList<>(batch.size());
+        batch.forEach((memoryId, update) -> {
+            memoryIds.add(memoryId);
+            commands.add(update.session() == null
+                ? new String[]{"DEL", key(memoryId)}
+                : casCommand(memoryId, update.expectedVersion(), update.session()));
+        });
+        List<Object> replies = client.pipeline(commands);
+        Set<Object> conflicts = new HashSet<>();
+        for (int i = 0; i < memoryIds.size(); i++) {
+            if (batch.get(memoryIds.get(i)).session() != null && !written(replies.get(i))) {
+                conflicts.add(memoryIds.get(i));
+            }
+        }
+        return conflicts;
+    }
+
+    private String[] casCommand(Object memoryId, long expectedVersion, StoredSession session) {
+        return casCommand(memoryId, String.valueOf(expectedVersion), String.valueOf(session.version()),
+            session.messages(), session.metadata());
+    }
+
+    private String[] casCommand(Object memoryId, String expectedVersion, String version, List<ChatMessage> messages,
+                                Map<String, String> metadata) {
+        List<String> command = new ArrayList<>(List.of("EVAL", CAS_SCRIPT, "1", key(memoryId), expectedVersion,
+            version, String.valueOf(ttlSeconds), MESSAGES_FIELD, ChatMessageSerializer.messagesToJson(messages)));
+        metadata.forEach((name, value) -> {
+            command.add(METADATA_PREFIX + name);
+            command.add(value);
+        });
+        return command.toArray(String[]::new);
+    }
+
+    /**
+     * 写入脚本返回新版本号，版本冲突时返回 0
+     */
+    private static boolean written(Object reply) {
+        return reply instanceof Long version && version > 0;
+    }
+
+    private String key(Object memoryId) {
+        return keyPrefix + memoryId;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
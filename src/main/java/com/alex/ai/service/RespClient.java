@@ -0,0 +1,209 @@
+package com.alex.ai.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 极简 RESP（Redis 序列化协议）客户端
+ *
+ * 只实现会话存储需要的部分：单连接、同步请求、管道批量发送。
+ * 兼容 Redis 及其他 RESP 协议实现（KeyDB、Dragonfly 等）。
+ * 连接断开时自动重连并重试一次。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+class RespClient implements AutoCloseable {
+
+    private final String host;
+    private final int port;
+    private final String password;
+    private final int database;
+    private final int timeoutMillis;
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    RespClient(String host, int port, String password, int database, Duration timeout) {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.database = database;
+        this.timeoutMillis = (int) timeout.toMillis();
+    }
+
+    /**
+     * 服务端返回的错误回复
+     */
+    static class RespException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RespException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 执行单条命令
+     *
+     * @return 简单字符串/批量字符串为 String，整数为 Long，数组为 List，空值为 null
+     */
+    synchronized Object execute(String... command) {
+        return pipeline(List.<String[]>of(command)).get(0);
+    }
+
+    /**
+     * 管道方式批量执行命令：一次写出全部命令，再依次读取回复
+     */
+    synchronized List<Object> pipeline(List<String[]> commands) {
+        try {
+            return sendAll(commands);
+        } catch (IOException first) {
+            // 连接可能已被服务端关闭，重连后重试一次
+            disconnect();
+            try {
+                return sendAll(commands);
+            } catch (IOException e) {
+                disconnect();
+                throw new UncheckedIOException("RESP 请求失败: " + host + ":" + port, e);
+            }
+        }
+    }
+
+    private List<Object> sendAll(List<String[]> commands) throws IOException {
+        ensureConnected();
+        for (String[] command : commands) {
+            writeCommand(command);
+        }
+        out.flush();
+        List<Object> replies = new ArrayList<>(commands.size());
+        RespException error = null;
+        for (int i = 0; i < commands.size(); i++) {
+            try {
+                replies.add(readReply());
+            } catch (RespException e) {
+                // 读完剩余回复再抛出，保持连接上的请求/回复对齐
+                error = error == null ? e : error;
+                replies.add(null);
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return replies;
+    }
+
+    private void ensureConnected() throws IOException {
+        if (socket != null && socket.isConnected() && !socket.isClosed()) {
+            return;
+        }
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress(host, port), timeoutMillis);
+        s.setSoTimeout(timeoutMillis);
+        s.setTcpNoDelay(true);
+        socket = s;
+        in = new BufferedInputStream(s.getInputStream());
+        out = new BufferedOutputStream(s.getOutputStream());
+        if (password != null && !password.isEmpty()) {
+            writeCommand(new String[]{"AUTH", password});
+            out.flush();
+            readReply();
+        }
+        if (database > 0) {
+            writeCommand(new String[]{"SELECT", String.valueOf(database)});
+            out.flush();
+            readReply();
+        }
+    }
+
+    private void writeCommand(String[] command) throws IOException {
+        out.write(('*' + String.valueOf(command.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        for (String arg : command) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            out.write(('$' + String.valueOf(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(bytes);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    private Object readReply() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException("连接已关闭");
+        }
+        String line = readLine();
+        return switch (type) {
+            case '+' -> line;
+            case '-' -> throw new RespException(line);
+            case ':' -> Long.parseLong(line);
+            case '$' -> readBulk(Integer.parseInt(line));
+            case '*' -> {
+                int count = Integer.parseInt(line);
+                if (count < 0) {
+                    yield null;
+                }
+                List<Object> items = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    items.add(readReply());
+                }
+                yield items;
+            }
+            default -> throw new IOException("无法识别的 RESP 回复类型: " + (char) type);
+        };
+    }
+
+    private String readBulk(int length) throws IOException {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("连接已关闭");
+        }
+        readLine();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new EOFException("连接已关闭");
+            }
+            buffer.write(b);
+        }
+        in.read(); // '\n'
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // 关闭失败无需处理
+            }
+            socket = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        disconnect();
+    }
+}
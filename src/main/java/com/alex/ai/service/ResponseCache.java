@@ -0,0 +1,267 @@
+package com.alex.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 对话响应缓存
+ *
+ * 两级缓存：
+ * - 精确层：以「作用域 + 归一化后的问题」为 key，命中无需任何远程调用
+ * - 语义层：精确层未命中时计算问题向量，与同作用域下已缓存问题做余弦相似度比较，超过阈值即命中
+ *
+ * 语义层按作用域建立索引，查询只扫描同作用域的条目；该作用域没有条目时不计算问题向量，
+ * 写入回答时再异步计算，未命中的请求不会为空的语义层多一次远程向量化调用。
+ *
+ * 两层可以分开查询：{@link #lookupExact} 只查精确层，未命中时由调用方在合并相同请求之后
+ * 调用 {@link Lookup#semantic()} 查询语义层，并发的相同问题只计算一次问题向量。
+ *
+ * 作用域由系统提示词和知识库版本组成，知识库变更或提示词不同的回答互不复用。
+ * 两层均有 TTL 和容量上限（Caffeine 管理）。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+public class ResponseCache {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern TRAILING_PUNCTUATION = Pattern.compile("[\\p{Punct}？！。，、；：～…\\s]+$");
+
+    private final EmbeddingService embeddingService;
+    private final boolean enabled;
+    private final boolean semanticEnabled;
+    private final double similarityThreshold;
+
+    /**
+     * 精确层（key -> 回答）
+     */
+    private final Cache<String, String> exactCache;
+
+    /**
+     * 语义层（key -> 问题向量与回答）
+     */
+    private final Cache<String, SemanticEntry> semanticCache;
+
+    /**
+     * 语义层的作用域索引（作用域 -> key -> 条目），随语义层条目的写入、过期和淘汰同步维护
+     */
+    private final Map<String, Map<String, SemanticEntry>> semanticByScope = new ConcurrentHashMap<>();
+
+    public ResponseCache(
+            EmbeddingService embeddingService,
+            @Value("${chat.cache.enabled:true}") boolean enabled,
+            @Value("${chat.cache.ttl-minutes:10}") int ttlMinutes,
+            @Value("${chat.cache.max-entries:1000}") int maxEntries,
+            @Value("${chat.cache.semantic.enabled:true}") boolean semanticEnabled,
+            @Value("${chat.cache.semantic.threshold:0.95}") double similarityThreshold,
+            @Value("${chat.cache.semantic.max-entries:500}") int semanticMaxEntries) {
+        this.embeddingService = embeddingService;
+        this.enabled = enabled;
+        this.semanticEnabled = semanticEnabled;
+        this.similarityThreshold = similarityThreshold;
+        this.exactCache = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+            .maximumSize(maxEntries)
+            .build();
+        this.semanticCache = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+            .maximumSize(semanticMaxEntries)
+            .executor(Runnable::run)
+            .removalListener((String key, SemanticEntry entry, RemovalCause cause) -> {
+                if (key != null && entry != null) {
+                    unindex(key, entry);
+                }
+            })
+            .build();
+        log.info("响应缓存: enabled={}, semantic={}, threshold={}, ttl={} 分钟",
+            enabled, semanticEnabled, similarityThreshold, ttlMinutes);
+    }
+
+    /**
+     * 构造缓存作用域
+     *
+     * @param systemPrompt 系统提示词（为空表示无系统提示词）
+     * @param knowledgeVersion 知识库版本（不依赖知识库的对话传 -1）
+     */
+    public static String scope(String systemPrompt, long knowledgeVersion) {
+        String prompt = systemPrompt == null ? "" : systemPrompt;
+        return UUID.nameUUIDFromBytes(prompt.getBytes(StandardCharsets.UTF_8)) + ":" + knowledgeVersion;
+    }
+
+    /**
+     * 查询缓存（精确层未命中时查询语义层）
+     *
+     * @param scope 作用域（见 {@link #scope(String, long)}）
+     * @param question 用户问题
+     * @return 查询结果，未命中时可通过 {@link Lookup#store(String)} 写入回答
+     */
+    public Lookup lookup(String scope, String question) {
+        return lookupExact(scope, question).semantic();
+    }
+
+    /**
+     * 只查询精确层，不计算问题向量
+     *
+     * @param scope 作用域（见 {@link #scope(String, long)}）
+     * @param question 用户问题
+     * @return 查询结果，未命中时可通过 {@link Lookup#semantic()} 继续查询语义层
+     */
+    public Lookup lookupExact(String scope, String question) {
+        if (!enabled) {
+            return new Lookup(null, null, null, null, null);
+        }
+        String key = scope + "\u0000" + normalize(question);
+
+        String exact = exactCache.getIfPresent(key);
+        if (exact != null) {
+            log.info("响应缓存命中（精确）");
+            return new Lookup(key, scope, question, null, exact);
+        }
+        return new Lookup(key, scope, question, null, null);
+    }
+
+    private Lookup lookupSemantic(String key, String scope, String question) {
+        Map<String, SemanticEntry> candidates = semanticEnabled ? semanticByScope.get(scope) : null;
+        if (candidates == null || candidates.isEmpty()) {
+            // 同作用域没有语义条目，不需要计算问题向量
+            return new Lookup(key, scope, question, null, null);
+        }
+        float[] vector;
+        try {
+            vector = embeddingService.embedQuery(question).vector();
+        } catch (Exception e) {
+            log.debug("问题向量化失败，跳过语义缓存: {}", e.getMessage());
+            return new Lookup(key, scope, question, null, null);
+        }
+
+        String bestAnswer = null;
+        double bestScore = similarityThreshold;
+        for (Map.Entry<String, SemanticEntry> candidate : candidates.entrySet()) {
+            double score = cosine(vector, candidate.getValue().vector());
+            // 作用域索引可能还保留着已过期、尚未清理的条目
+            if (score >= bestScore && semanticCache.getIfPresent(candidate.getKey()) != null) {
+                bestAnswer = candidate.getValue().answer();
+                bestScore = score;
+            }
+        }
+        if (bestAnswer != null) {
+            log.info("响应缓存命中（语义），相似度: {}", String.format("%.3f", bestScore));
+            return new Lookup(key, scope, question, vector, bestAnswer);
+        }
+        return new Lookup(key, scope, question, vector, null);
+    }
+
+    /**
+     * 写入语义层并登记到作用域索引
+     */
+    private void putSemantic(String key, SemanticEntry entry) {
+        semanticByScope.computeIfAbsent(entry.scope(), k -> new ConcurrentHashMap<>()).put(key, entry);
+        semanticCache.put(key, entry);
+    }
+
+    /**
+     * 语义层条目被移除（过期、淘汰或被覆盖）时从作用域索引中移除，空作用域一并移除
+     */
+    private void unindex(String key, SemanticEntry entry) {
+        semanticByScope.computeIfPresent(entry.scope(), (scope, entries) -> {
+            entries.remove(key, entry);
+            return entries.isEmpty() ? null : entries;
+        });
+    }
+
+    /**
+     * 问题归一化：去除首尾及多余空白、统一小写、忽略结尾标点
+     */
+    static String normalize(String question) {
+        String normalized = WHITESPACE.matcher(question.trim()).replaceAll(" ").toLowerCase();
+        return TRAILING_PUNCTUATION.matcher(normalized).replaceAll("");
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+
+    private record SemanticEntry(String scope, float[] vector, String answer) {}
+
+    /**
+     * 一次缓存查询的结果
+     * 未命中时保留已计算的 key 和问题向量，写入时无需重复计算
+     */
+    public final class Lookup {
+        private final String key;
+        private final String scope;
+        private final String question;
+        private final float[] vector;
+        private final String answer;
+
+        private Lookup(String key, String scope, String question, float[] vector, String answer) {
+            this.key = key;
+            this.scope = scope;
+            this.question = question;
+            this.vector = vector;
+            this.answer = answer;
+        }
+
+        /**
+         * 命中的回答
+         */
+        public Optional<String> hit() {
+            return Optional.ofNullable(answer);
+        }
+
+        /**
+         * 精确层未命中时查询语义层（可能需要一次远程向量化调用）
+         *
+         * @return 语义层的查询结果；已命中、已查询过语义层或未启用缓存时返回自身
+         */
+        public Lookup semantic() {
+            if (key == null || answer != null || vector != null) {
+                return this;
+            }
+            return lookupSemantic(key, scope, question);
+        }
+
+        /**
+         * 写入回答（仅在未命中时生效）
+         */
+        public void store(String response) {
+            if (key == null || answer != null || response == null || response.isBlank()) {
+                return;
+            }
+            exactCache.put(key, response);
+            if (vector != null) {
+                putSemantic(key, new SemanticEntry(scope, vector, response));
+            } else if (semanticEnabled) {
+                // 查询时没有计算问题向量（作用域为空），异步补算后写入语义层
+                embeddingService.embedQueryAsync(question).subscribe(
+                    embedding -> putSemantic(key, new SemanticEntry(scope, embedding.vector(), response)),
+                    e -> log.debug("问题向量化失败，跳过语义缓存: {}", e.getMessage()));
+            }
+        }
+    }
+}
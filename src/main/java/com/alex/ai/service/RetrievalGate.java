@@ -0,0 +1,349 @@
+package com.alex.ai.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 检索门控 - 判断当前轮次是否值得执行 RAG 检索
+ *
+ * 检索意味着一次远程 Embedding 调用加一次向量搜索。对寒暄、致谢、"继续"这类输入，
+ * 检索既慢又无用，门控在本地提前拦截：
+ * 1. 规则：空输入；整条输入由寒暄/致谢/确认/续写短语和语气词组成（如"谢谢你"、"好的谢谢"）；
+ *    整条输入是询问助手自身的问题（如"你是谁"）
+ * 2. 轻量分类器：对规则未覆盖的输入（"哈哈哈哈"、"太厉害了"、"原来如此"）用逻辑回归估计检索的必要性，
+ *    低于阈值时跳过
+ * 3. 可选：问题向量与知识库质心的相似度低于阈值时跳过（需要一次 Embedding 调用，默认关闭）
+ *
+ * 分类器特征都在本地计算：寒暄词覆盖率、情绪/反应词、疑问标记、求知类词、英文术语或数字、
+ * 去掉寒暄词后的内容长度（对数）。短关键词（"年假政策"、"k8s"）和追问（"好的，那报销呢"）
+ * 得分都远高于阈值，照常检索；阈值偏低，宁可多检索一次也不漏掉需要知识库的问题。
+ * 判定结果按原因计数，并通过 Micrometer 暴露跳过率。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+public class RetrievalGate implements MeterBinder {
+
+    private static final Pattern NON_WORD = Pattern.compile("[\\p{Punct}\\p{IsPunctuation}\\p{So}\\s]+");
+
+    /**
+     * 寒暄、致谢、确认、续写类短语（归一化后比较）
+     */
+    private static final Set<String> SMALL_TALK = Set.of(
+        "你好", "您好", "哈喽", "嗨", "早上好", "晚上好", "在吗", "在不在",
+        "hi", "hello", "hey",
+        "谢谢", "多谢", "感谢", "谢啦", "thanks", "thankyou", "thx",
+        "好的", "好", "嗯", "嗯嗯", "ok", "okay", "收到", "明白", "明白了", "知道了", "懂了", "可以", "行",
+        "继续", "接着说", "继续说", "然后呢", "还有吗", "continue", "goon", "more",
+        "再见", "拜拜", "bye", "goodbye"
+    );
+
+    /**
+     * 可以附在寒暄短语前后的称呼和语气词（单独出现不构成寒暄）
+     */
+    private static final Set<String> FILLERS = Set.of(
+        "你", "您", "啊", "呀", "哈", "哈哈", "啦", "了", "哦", "噢", "喔"
+    );
+
+    /**
+     * 与助手自身相关的闲聊（知识库无法提供帮助）
+     */
+    private static final Set<String> ABOUT_ASSISTANT = Set.of(
+        "你是谁", "你叫什么", "你叫什么名字", "你的名字", "你能做什么", "你会什么", "whoareyou"
+    );
+
+    /**
+     * 情绪、称赞和确认类反应词（出现时通常不需要知识库）
+     */
+    private static final List<String> REACTIONS = List.of(
+        "哈哈", "嘿嘿", "呵呵", "笑死", "厉害", "牛", "棒", "赞", "不错", "太好了", "有帮助", "辛苦",
+        "可爱", "有意思", "好玩", "确实", "原来如此", "是的", "对对", "了解", "晓得", "没事", "没问题",
+        "好吧", "行吧", "好嘞", "好滴", "嗯哼", "晚安", "666",
+        "lol", "haha", "nice", "cool", "great", "awesome"
+    );
+
+    /**
+     * 疑问/求知类特征词
+     */
+    private static final List<String> QUESTION_WORDS = List.of(
+        "什么", "怎么", "如何", "为什么", "为何", "哪", "是否", "多少", "几",
+        "介绍", "解释", "区别", "原理", "步骤", "配置", "用法", "方法", "教程", "文档", "流程", "规定", "政策",
+        "how", "what", "why", "which", "where", "when", "explain"
+    );
+
+    private static final Pattern TECH_TERM = Pattern.compile("[a-z][a-z0-9_.\\-]+|\\d+");
+
+    /**
+     * 寒暄短语和语气词，按长度降序（计算覆盖率时优先匹配长短语）
+     */
+    private static final List<String> PHATIC = Stream.concat(SMALL_TALK.stream(), FILLERS.stream())
+        .distinct()
+        .sorted(Comparator.comparingInt(String::length).reversed())
+        .toList();
+
+    /**
+     * 逻辑回归权重：在约 120 条标注的对话轮次（知识问答 / 寒暄与反应）上以 L2 正则拟合
+     * 顺序：截距、寒暄词覆盖率、反应词、疑问标记、求知类词、英文术语或数字、ln(1 + 内容长度)
+     */
+    private static final double BIAS = -1.08;
+    private static final double W_PHATIC_COVERAGE = -0.98;
+    private static final double W_REACTION = -3.13;
+    private static final double W_QUESTION_MARK = 1.04;
+    private static final double W_QUESTION_WORD = 0.88;
+    private static final double W_TECH_TERM = 0.95;
+    private static final double W_CONTENT_LENGTH = 1.38;
+
+    private static final Pattern SMALL_TALK_MESSAGE = wholeMessage(SMALL_TALK);
+
+    private static final Pattern ABOUT_ASSISTANT_MESSAGE = wholeMessage(ABOUT_ASSISTANT);
+
+    private final EmbeddingService embeddingService;
+
+    @Value("${rag.gate.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${rag.gate.classifier.enabled:true}")
+    private boolean classifierEnabled = true;
+
+    /**
+     * 分类器估计的检索必要性低于该值时跳过
+     */
+    @Value("${rag.gate.classifier.threshold:0.35}")
+    private double classifierThreshold = 0.35;
+
+    @Value("${rag.gate.centroid.enabled:false}")
+    private boolean centroidEnabled = false;
+
+    @Value("${rag.gate.centroid.min-similarity:0.2}")
+    private double centroidMinSimilarity = 0.2;
+
+    private final LongAdder evaluated = new LongAdder();
+    private final Map<Reason, LongAdder> decisions = new EnumMap<>(Reason.class);
+
+    public RetrievalGate(EmbeddingService embeddingService) {
+        this.embeddingService = embeddingService;
+        for (Reason reason : Reason.values()) {
+            decisions.put(reason, new LongAdder());
+        }
+    }
+
+    /**
+     * 判定原因
+     */
+    public enum Reason {
+        /** 门控关闭，始终检索 */
+        DISABLED(true),
+        /** 未命中跳过规则且分类器关闭，默认检索 */
+        DEFAULT(true),
+        /** 分类器判定需要检索 */
+        CLASSIFIER(true),
+        /** 空输入 */
+        EMPTY(false),
+        /** 寒暄/致谢/确认/续写 */
+        SMALL_TALK(false),
+        /** 询问助手自身 */
+        ABOUT_ASSISTANT(false),
+        /** 分类器判定无需检索 */
+        LOW_SCORE(false),
+        /** 问题与知识库质心相似度过低 */
+        OFF_TOPIC(false);
+
+        private final boolean retrieve;
+
+        Reason(boolean retrieve) {
+            this.retrieve = retrieve;
+        }
+    }
+
+    /**
+     * 门控判定结果
+     */
+    public record Decision(boolean retrieve, Reason reason) {}
+
+    /**
+     * 判断当前输入是否需要检索
+     *
+     * @param input 用户原始输入
+     * @return 判定结果
+     */
+    public Decision evaluate(String input) {
+        Decision decision = classify(input);
+        evaluated.increment();
+        decisions.get(decision.reason()).increment();
+        if (!decision.retrieve()) {
+            log.debug("检索门控跳过 RAG: reason={}", decision.reason());
+        }
+        return decision;
+    }
+
+    private Decision classify(String input) {
+        if (!enabled) {
+            return new Decision(true, Reason.DISABLED);
+        }
+        String normalized = input == null ? "" : NON_WORD.matcher(input.toLowerCase(Locale.ROOT)).replaceAll("");
+        if (normalized.isEmpty()) {
+            return new Decision(false, Reason.EMPTY);
+        }
+        if (SMALL_TALK_MESSAGE.matcher(normalized).matches()) {
+            return new Decision(false, Reason.SMALL_TALK);
+        }
+        if (ABOUT_ASSISTANT_MESSAGE.matcher(normalized).matches()) {
+            return new Decision(false, Reason.ABOUT_ASSISTANT);
+        }
+        if (classifierEnabled && score(input, normalized) < classifierThreshold) {
+            return new Decision(false, Reason.LOW_SCORE);
+        }
+        if (centroidEnabled && isOffTopic(input)) {
+            return new Decision(false, Reason.OFF_TOPIC);
+        }
+        return new Decision(true, classifierEnabled ? Reason.CLASSIFIER : Reason.DEFAULT);
+    }
+
+    /**
+     * 逻辑回归：估计本轮检索的必要性（0-1）
+     *
+     * @param input 原始输入（疑问标记和英文术语在原文上判断）
+     * @param normalized 去掉标点空白并小写后的输入
+     */
+    static double score(String input, String normalized) {
+        String lower = input.toLowerCase(Locale.ROOT);
+        int length = normalized.length();
+        double coverage = (double) phaticLength(normalized) / length;
+        boolean questionMark = input.contains("?") || input.contains("？")
+            || "吗呢么".indexOf(normalized.charAt(length - 1)) >= 0;
+        boolean techTerm = TECH_TERM.matcher(lower).results()
+            .map(MatchResult::group)
+            .anyMatch(term -> !PHATIC.contains(term) && !REACTIONS.contains(term));
+
+        double z = BIAS
+            + W_PHATIC_COVERAGE * coverage
+            + W_REACTION * indicator(REACTIONS.stream().anyMatch(normalized::contains))
+            + W_QUESTION_MARK * indicator(questionMark)
+            + W_QUESTION_WORD * indicator(QUESTION_WORDS.stream().anyMatch(normalized::contains))
+            + W_TECH_TERM * indicator(techTerm)
+            + W_CONTENT_LENGTH * Math.log1p(length * (1 - coverage));
+        return 1 / (1 + Math.exp(-z));
+    }
+
+    /**
+     * 寒暄短语和语气词覆盖的字符数（从左到右贪心匹配最长短语）
+     */
+    private static int phaticLength(String normalized) {
+        int covered = 0;
+        int i = 0;
+        while (i < normalized.length()) {
+            int matched = 0;
+            for (String phrase : PHATIC) {
+                if (normalized.startsWith(phrase, i)) {
+                    matched = phrase.length();
+                    break;
+                }
+            }
+            covered += matched;
+            i += Math.max(matched, 1);
+        }
+        return covered;
+    }
+
+    private static double indicator(boolean value) {
+        return value ? 1 : 0;
+    }
+
+    /**
+     * 整条输入由至少一个给定短语加任意语气词组成，如"谢谢你"、"好的谢谢"、"你是谁呀"；
+     * 混入其他内容（"可以吗"、"好的那报销呢"）即不匹配
+     */
+    private static Pattern wholeMessage(Set<String> phrases) {
+        String phrase = alternation(phrases);
+        String filler = alternation(FILLERS);
+        return Pattern.compile("(?:" + filler + ")*(?:" + phrase + ")(?:" + phrase + "|" + filler + ")*");
+    }
+
+    private static String alternation(Set<String> words) {
+        // 长的在前，避免短语互为前缀时提前匹配
+        return words.stream()
+            .sorted(Comparator.comparingInt(String::length).reversed())
+            .map(Pattern::quote)
+            .collect(Collectors.joining("|"));
+    }
+
+    /**
+     * 问题向量与知识库质心相似度低于阈值时视为离题
+     */
+    private boolean isOffTopic(String input) {
+        try {
+            float[] centroid = embeddingService.getCentroid();
+            if (centroid == null) {
+                return false;
+            }
+            float[] query = embeddingService.embedQuery(input).vector();
+            return cosine(query, centroid) < centroidMinSimilarity;
+        } catch (Exception e) {
+            log.debug("质心比较失败，保守地执行检索: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 1;
+        }
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 1 : dot / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+
+    /**
+     * 跳过率（0-1）
+     */
+    public double skipRate() {
+        long total = evaluated.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long skipped = decisions.entrySet().stream()
+            .filter(e -> !e.getKey().retrieve)
+            .mapToLong(e -> e.getValue().sum())
+            .sum();
+        return (double) skipped / total;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (Reason reason : Reason.values()) {
+            FunctionCounter.builder("rag.gate.decisions", decisions.get(reason), LongAdder::sum)
+                .description("检索门控判定次数")
+                .tag("decision", reason.retrieve ? "retrieve" : "skip")
+                .tag("reason", reason.name().toLowerCase(Locale.ROOT))
+                .register(registry);
+        }
+        Gauge.builder("rag.gate.skip.ratio", this, RetrievalGate::skipRate)
+            .description("检索门控跳过率")
+            .register(registry);
+    }
+}
@@ -0,0 +1,50 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+
+import java.util.List;
+
+/**
+ * 多端点路由的 ChatModel
+ *
+ * 按 {@link ModelRouter} 给出的顺序依次调用，失败（含超时）时切换到下一个端点，
+ * 全部失败时抛出最后一个端点的异常。请求原样交给端点模型，由端点补全自己的默认参数。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+public class RoutingChatModel implements ChatModel {
+
+    private final ModelRouter router;
+
+    public RoutingChatModel(ModelRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        List<ModelRouter.Endpoint> candidates = router.rank(ModelRouter.Kind.CHAT);
+        RuntimeException lastError = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            ModelRouter.Endpoint endpoint = candidates.get(i);
+            long start = System.nanoTime();
+            try {
+                ChatResponse response = endpoint.chatModel().chat(request);
+                router.recordSuccess(endpoint, ModelRouter.Kind.CHAT, System.nanoTime() - start);
+                return response;
+            } catch (RuntimeException e) {
+                if (ModelRouter.isRequestError(e)) {
+                    throw e;
+                }
+                router.recordFailure(endpoint, e);
+                lastError = e;
+                if (i + 1 < candidates.size()) {
+                    router.recordFailover(endpoint, e);
+                }
+            }
+        }
+        throw lastError;
+    }
+}
@@ -0,0 +1,162 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多端点路由的 StreamingChatModel
+ *
+ * 在首个 token 发出之前可以切换端点：当前端点出错或超过首个 token 超时时间仍未返回，
+ * 就改用下一个端点，调用方只会看到一个端点的输出。首个 token 发出后出错直接交给调用方。
+ * 被放弃的端点之后再返回 token 时立即取消该调用。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+public class RoutingStreamingChatModel implements StreamingChatModel {
+
+    private final ModelRouter router;
+
+    public RoutingStreamingChatModel(ModelRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+        new RoutedCall(request, handler, router.rank(ModelRouter.Kind.STREAM)).next(null);
+    }
+
+    /**
+     * 一次路由调用：依次尝试候选端点，直到某个端点发出首个 token 或全部失败
+     */
+    private final class RoutedCall {
+        private final ChatRequest request;
+        private final StreamingChatResponseHandler handler;
+        private final List<ModelRouter.Endpoint> candidates;
+        private int index;
+
+        private RoutedCall(ChatRequest request, StreamingChatResponseHandler handler,
+                           List<ModelRouter.Endpoint> candidates) {
+            this.request = request;
+            this.handler = handler;
+            this.candidates = candidates;
+        }
+
+        /**
+         * 尝试下一个端点；没有可用端点时把最后一个错误交给调用方
+         */
+        void next(Throwable lastError) {
+            if (index >= candidates.size()) {
+                handler.onError(lastError);
+                return;
+            }
+            ModelRouter.Endpoint endpoint = candidates.get(index++);
+            Attempt attempt = new Attempt(endpoint);
+            try {
+                endpoint.streamingModel().chat(request, attempt);
+            } catch (RuntimeException e) {
+                attempt.onError(e);
+            }
+        }
+
+        /**
+         * 对单个端点的一次尝试
+         */
+        private final class Attempt implements StreamingChatResponseHandler {
+            private static final int WAITING = 0;
+            private static final int STREAMING = 1;
+            private static final int DONE = 2;
+
+            private final ModelRouter.Endpoint endpoint;
+            private final long start = System.nanoTime();
+            private final AtomicInteger state = new AtomicInteger(WAITING);
+            private final ScheduledFuture<?> firstTokenTimer;
+
+            private Attempt(ModelRouter.Endpoint endpoint) {
+                this.endpoint = endpoint;
+                this.firstTokenTimer = router.scheduleFirstTokenTimeout(this::onFirstTokenTimeout);
+            }
+
+            @Override
+            public void onPartialResponse(String partialResponse) {
+                if (started()) {
+                    handler.onPartialResponse(partialResponse);
+                }
+            }
+
+            @Override
+            public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                if (started()) {
+                    handler.onPartialResponse(partialResponse, context);
+                } else {
+                    // 已放弃该端点（超时后切换），取消仍在进行的调用
+                    context.streamingHandle().cancel();
+                }
+            }
+
+            /**
+             * 收到 token：首个 token 时确定使用该端点
+             *
+             * @return 是否应转发给调用方
+             */
+            private boolean started() {
+                if (state.compareAndSet(WAITING, STREAMING)) {
+                    firstTokenTimer.cancel(false);
+                    router.recordSuccess(endpoint, ModelRouter.Kind.STREAM, System.nanoTime() - start);
+                    return true;
+                }
+                return state.get() == STREAMING;
+            }
+
+            @Override
+            public void onCompleteResponse(ChatResponse response) {
+                if (state.compareAndSet(WAITING, DONE)) {
+                    // 没有任何 token 的回答（例如只有工具调用）
+                    firstTokenTimer.cancel(false);
+                    router.recordSuccess(endpoint, ModelRouter.Kind.STREAM, System.nanoTime() - start);
+                    handler.onCompleteResponse(response);
+                } else if (state.compareAndSet(STREAMING, DONE)) {
+                    handler.onCompleteResponse(response);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                if (state.compareAndSet(WAITING, DONE)) {
+                    firstTokenTimer.cancel(false);
+                    if (ModelRouter.isRequestError(error)) {
+                        handler.onError(error);
+                        return;
+                    }
+                    failover(error);
+                } else if (state.compareAndSet(STREAMING, DONE)) {
+                    router.recordFailure(endpoint, error);
+                    handler.onError(error);
+                }
+            }
+
+            private void onFirstTokenTimeout() {
+                if (state.compareAndSet(WAITING, DONE)) {
+                    failover(new TimeoutException("模型端点 " + endpoint.name() + " 首个 token 超时"));
+                }
+            }
+
+            private void failover(Throwable error) {
+                router.recordFailure(endpoint, error);
+                if (index < candidates.size()) {
+                    router.recordFailover(endpoint, error);
+                }
+                next(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.alex.ai.service;
+
+import com.alex.ai.exception.BusinessException;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 会话串行执行通道
+ *
+ * 每个会话一条通道：同一会话的请求按到达顺序排队依次执行，不同会话之间互不影响。
+ * 通道以 CompletableFuture 链实现，每个请求等待前一个请求的完成信号，
+ * 只在登记排队时对该会话的通道做一次 compute，不存在全局锁。
+ * 通道空闲（无请求排队）时自动移除，不会随会话数量增长而泄漏。
+ *
+ * 释放可以发生在其他线程（例如流式响应完成回调），且可重复调用。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+class SessionLanes {
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final int maxQueueDepth;
+    private final Duration waitTimeout;
+
+    /**
+     * @param maxQueueDepth 单个会话允许的最大请求数（含正在执行的请求）
+     * @param waitTimeout 排队等待超时时间
+     */
+    SessionLanes(int maxQueueDepth, Duration waitTimeout) {
+        this.maxQueueDepth = maxQueueDepth;
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * 单个会话的通道状态（只在 ConcurrentHashMap.compute 内修改）
+     */
+    private static final class Lane {
+        private int depth;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 执行许可，使用完毕后必须调用 {@link #release()}
+     */
+    final class Permit {
+        private final String sessionId;
+        private final CompletableFuture<Void> turn;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(String sessionId, CompletableFuture<Void> turn) {
+            this.sessionId = sessionId;
+            this.turn = turn;
+        }
+
+        /**
+         * 释放许可，放行同一会话的下一个请求（可重复调用）
+         */
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            turn.complete(null);
+            lanes.computeIfPresent(sessionId, (id, lane) -> --lane.depth == 0 ? null : lane);
+        }
+    }
+
+    /**
+     * 进入会话通道，等待同一会话之前的请求全部完成
+     *
+     * @param sessionId 会话 ID
+     * @return 执行许可
+     * @throws BusinessException 排队请求过多或等待超时（429）
+     */
+    Permit acquire(String sessionId) {
+        Queued queued = enqueue(sessionId);
+        try {
+            queued.previous().get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            return queued.permit();
+        } catch (TimeoutException e) {
+            abandon(queued.previous(), queued.permit());
+            throw BusinessException.tooManyRequests("会话繁忙，排队等待超时");
+        } catch (InterruptedException e) {
+            abandon(queued.previous(), queued.permit());
+            Thread.currentThread().interrupt();
+            throw new BusinessException("会话排队被中断", e);
+        } catch (ExecutionException e) {
+            // 完成信号只会正常完成，不会出现
+            abandon(queued.previous(), queued.permit());
+            throw new BusinessException("会话排队异常", e);
+        }
+    }
+
+    /**
+     * 进入会话通道，不阻塞调用线程：轮到本请求时返回的 Future 以许可完成，
+     * 等待超时则以 429 异常完成（此时许可会在前一个请求完成后自动释放）
+     *
+     * @param sessionId 会话 ID
+     * @return 执行许可
+     * @throws BusinessException 排队请求过多（429）
+     */
+    CompletableFuture<Permit> acquireAsync(String sessionId) {
+        Queued queued = enqueue(sessionId);
+        return queued.previous().copy()
+            .orTimeout(waitTimeout.toMillis(), TimeUnit.MILLISECONDS)
+            .handle((result, error) -> {
+                if (error != null) {
+                    abandon(queued.previous(), queued.permit());
+                    throw BusinessException.tooManyRequests("会话繁忙，排队等待超时");
+                }
+                return queued.permit();
+            });
+    }
+
+    /**
+     * 会话通道空闲（没有请求执行或排队）时立即进入，否则不排队直接返回 null
+     *
+     * @param sessionId 会话 ID
+     * @return 执行许可，会话繁忙时返回 null
+     */
+    Permit tryAcquire(String sessionId) {
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        AtomicBoolean entered = new AtomicBoolean();
+        lanes.computeIfAbsent(sessionId, id -> {
+            Lane lane = new Lane();
+            lane.depth = 1;
+            lane.tail = turn;
+            entered.set(true);
+            return lane;
+        });
+        return entered.get() ? new Permit(sessionId, turn) : null;
+    }
+
+    private record Queued(CompletableFuture<Void> previous, Permit permit) {}
+
+    private Queued enqueue(String sessionId) {
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        AtomicReference<CompletableFuture<Void>> previous = new AtomicReference<>();
+        lanes.compute(sessionId, (id, existing) -> {
+            Lane lane = existing != null ? existing : new Lane();
+            if (lane.depth >= maxQueueDepth) {
+                throw BusinessException.tooManyRequests("该会话有过多请求正在排队，请等待上一条回复完成");
+            }
+            lane.depth++;
+            previous.set(lane.tail);
+            lane.tail = turn;
+            return lane;
+        });
+        return new Queued(previous.get(), new Permit(sessionId, turn));
+    }
+
+    /**
+     * 放弃排队：前一个请求完成后再释放，保证后续请求仍按顺序执行
+     */
+    private static void abandon(CompletableFuture<Void> previous, Permit permit) {
+        previous.whenComplete((result, error) -> permit.release());
+    }
+
+    /**
+     * 当前有请求执行或排队的会话数
+     */
+    int activeLanes() {
+        return lanes.size();
+    }
+}
@@ -0,0 +1,448 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 空闲会话溢写存储
+ *
+ * 从内存淘汰的会话追加写入本地段文件（segment-NNNNNN.log），内存中只保留
+ * 「会话 ID -> 段号/偏移/长度」索引，下次访问时按索引读取一条记录即可恢复。
+ * 容量受磁盘而非堆限制。
+ *
+ * 记录格式：长度(int) + CRC32(int) + 写入时间(long) + 类型(byte) + 会话 ID + 历史编码。
+ * 删除写入墓碑记录；启动时顺序扫描全部段文件重建索引，遇到校验失败的尾部记录即停止。
+ * 段文件写满后滚动。空间回收：
+ * - 最老一端不再有存活记录或超过保留时间的段整体删除
+ * - 存活比例低于一半的段压缩：存活记录（和仍可能覆盖更老数据记录的墓碑）复制到当前写入段后删除该段，
+ *   索引随之指向新位置
+ * - 磁盘上限在写入时检查：超出时先删除过期段、压缩存活比例最低的段，
+ *   全部是存活记录仍放不下时拒绝写入，不会删除其他存活会话
+ *
+ * 编码在调用线程中完成，只有追加写入串行，多个线程可以并行写入；读取使用按位置读，可与写入并发。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+class SessionSpillStore implements AutoCloseable {
+
+    private static final byte DATA = 1;
+    private static final byte TOMBSTONE = 0;
+    private static final int HEADER_BYTES = 4 + 4;
+
+    /**
+     * 存活字节占比低于该值的段定期压缩
+     */
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long maxDiskBytes;
+    private final Duration retention;
+    private final HistoryCodec codec;
+
+    /**
+     * 会话索引
+     */
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    /**
+     * 段文件（段号 -> 段）
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private Segment active;
+
+    /**
+     * 溢写的会话
+     *
+     * @param messages 历史消息
+     * @param ragEnabled 会话 RAG 开关
+     */
+    record Spilled(List<ChatMessage> messages, boolean ragEnabled) {}
+
+    private record Location(Segment segment, long offset, int length) {}
+
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile long size;
+        private volatile long lastWriteMillis;
+
+        private double liveRatio() {
+            return size == 0 ? 1 : (double) liveBytes.get() / size;
+        }
+
+        private Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            this.size = channel.size();
+            this.lastWriteMillis = Files.getLastModifiedTime(path).toMillis();
+        }
+    }
+
+    /**
+     * @param directory 段文件目录
+     * @param segmentBytes 单个段文件大小上限
+     * @param maxDiskBytes 全部段文件大小上限
+     * @param retention 溢写会话的保留时间
+     * @param codec 历史编码器
+     */
+    SessionSpillStore(Path directory, long segmentBytes, long maxDiskBytes, Duration retention, HistoryCodec codec) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.retention = retention;
+        this.codec = codec;
+        try {
+            Files.createDirectories(directory);
+            recover();
+            active = segments.isEmpty() ? openSegment(1) : segments.lastEntry().getValue();
+            dropOldSegments();
+        } catch (IOException e) {
+            throw new UncheckedIOException("无法初始化会话溢写目录: " + directory, e);
+        }
+        log.info("会话溢写存储: {}，已有 {} 个会话，{} 个段文件", directory.toAbsolutePath(), index.size(), segments.size());
+    }
+
+    /**
+     * 写入会话（覆盖旧记录）
+     *
+     * @throws IOException 写入失败，或回收空间后仍超出磁盘上限
+     */
+    void put(String sessionId, List<ChatMessage> messages, boolean ragEnabled) throws IOException {
+        byte[] history = codec.toBytes(messages);
+        byte[] payload = new byte[history.length + 1];
+        payload[0] = (byte) (ragEnabled ? 1 : 0);
+        System.arraycopy(history, 0, payload, 1, history.length);
+        ByteBuffer record = encodeRecord(DATA, sessionId, payload);
+        synchronized (this) {
+            if (diskBytes() + record.remaining() > maxDiskBytes && !reclaim(record.remaining())) {
+                throw new IOException("会话溢写已达磁盘上限 " + maxDiskBytes + " 字节");
+            }
+            replace(sessionId, append(record));
+            dropOldSegments();
+        }
+    }
+
+    /**
+     * 删除会话
+     */
+    synchronized void remove(String sessionId) throws IOException {
+        if (!index.containsKey(sessionId)) {
+            return;
+        }
+        append(encodeRecord(TOMBSTONE, sessionId, new byte[0]));
+        replace(sessionId, null);
+        dropOldSegments();
+    }
+
+    /**
+     * 读取会话
+     */
+    Optional<Spilled> load(String sessionId) throws IOException {
+        Location location = index.get(sessionId);
+        if (location == null) {
+            return Optional.empty();
+        }
+        ByteBuffer record = ByteBuffer.allocate(location.length());
+        try {
+            location.segment().channel.read(record, location.offset());
+        } catch (ClosedChannelException e) {
+            // 读取期间段被压缩：索引已先指向新位置，按新位置重读
+            if (index.get(sessionId) == location) {
+                throw e;
+            }
+            return load(sessionId);
+        }
+        record.flip();
+        Record parsed = parse(record);
+        if (parsed == null || parsed.type() != DATA || !parsed.sessionId().equals(sessionId)) {
+            log.warn("会话 {} 溢写记录损坏，忽略", sessionId);
+            return Optional.empty();
+        }
+        ByteBuffer payload = parsed.payload();
+        boolean ragEnabled = payload.get() == 1;
+        return Optional.of(new Spilled(codec.fromBytes(payload), ragEnabled));
+    }
+
+    boolean contains(String sessionId) {
+        return index.containsKey(sessionId);
+    }
+
+    /**
+     * 当前存储的全部会话 ID（快照）
+     */
+    List<String> sessionIds() {
+        return List.copyOf(index.keySet());
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    long diskBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    /**
+     * 定期回收空间：删除最老一端无存活记录或过期的段，压缩存活比例低于一半的段（不含当前写入段）
+     */
+    synchronized void evictOldSegments() {
+        dropOldSegments();
+        for (Segment segment : List.copyOf(segments.values())) {
+            if (segment != active && segments.containsKey(segment.id) && segment.liveRatio() < COMPACT_LIVE_RATIO) {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    log.warn("压缩会话溢写段 {} 失败: {}", segment.path.getFileName(), e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入前磁盘空间不足：删除过期段后按存活比例从低到高压缩，直到放得下
+     *
+     * @return 是否已腾出 needed 字节
+     */
+    private boolean reclaim(long needed) throws IOException {
+        dropOldSegments();
+        List<Segment> candidates = segments.values().stream()
+            .filter(segment -> segment != active)
+            .sorted(Comparator.comparingDouble(Segment::liveRatio))
+            .toList();
+        for (Segment segment : candidates) {
+            if (diskBytes() + needed <= maxDiskBytes || segment.liveRatio() >= 1) {
+                break;
+            }
+            compact(segment);
+        }
+        return diskBytes() + needed <= maxDiskBytes;
+    }
+
+    /**
+     * 从最老的段开始删除无存活记录或超过保留时间的段（不含当前写入段），
+     * 只从最老一端删除，保证墓碑记录不会先于被它覆盖的数据记录消失
+     */
+    private void dropOldSegments() {
+        long cutoff = System.currentTimeMillis() - retention.toMillis();
+        for (Segment segment : segments.values()) {
+            if (segment == active || (segment.liveBytes.get() > 0 && segment.lastWriteMillis >= cutoff)) {
+                return;
+            }
+            deleteSegment(segment);
+        }
+    }
+
+    /**
+     * 压缩一个段：存活记录原样复制到当前写入段并更新索引，然后删除该段
+     *
+     * 超过保留时间的存活记录不再复制；段之前还有更老的段时，
+     * 其中的墓碑（对应会话未再写入）和过期记录的墓碑一并写到当前写入段，防止重启扫描时旧数据复活。
+     */
+    private void compact(Segment segment) throws IOException {
+        boolean oldest = segments.firstKey() == segment.id;
+        long cutoff = System.currentTimeMillis() - retention.toMillis();
+        long offset = 0;
+        int moved = 0;
+        ByteBuffer record;
+        while ((record = readRecord(segment, offset)) != null) {
+            int length = record.remaining();
+            Record parsed = parse(record.duplicate());
+            if (parsed == null) {
+                break;
+            }
+            String sessionId = parsed.sessionId();
+            if (parsed.type() == DATA) {
+                if (new Location(segment, offset, length).equals(index.get(sessionId))) {
+                    if (parsed.writeMillis() >= cutoff) {
+                        replace(sessionId, append(record));
+                        moved++;
+                    } else {
+                        if (!oldest) {
+                            append(encodeRecord(TOMBSTONE, sessionId, new byte[0]));
+                        }
+                        replace(sessionId, null);
+                    }
+                }
+            } else if (!oldest && !index.containsKey(sessionId)) {
+                append(record);
+            }
+            offset += length;
+        }
+        log.debug("压缩会话溢写段 {}: 复制 {} 个存活会话", segment.path.getFileName(), moved);
+        deleteSegment(segment);
+    }
+
+    private static ByteBuffer encodeRecord(byte type, String sessionId, byte[] payload) {
+        byte[] key = sessionId.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 8 + 1 + 4 + key.length + payload.length;
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.putLong(System.currentTimeMillis()).put(type).putInt(key.length).put(key).put(payload).flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+        record.putInt(bodyLength).putInt((int) crc.getValue()).put(body).flip();
+        return record;
+    }
+
+    private Location append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (active.size > 0 && active.size + length > segmentBytes) {
+            active = openSegment(active.id + 1);
+        }
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size = offset + length;
+        active.lastWriteMillis = System.currentTimeMillis();
+        return new Location(active, offset, length);
+    }
+
+    /**
+     * 更新索引并维护各段的存活字节数
+     */
+    private void replace(String sessionId, Location location) {
+        Location previous = location == null ? index.remove(sessionId) : index.put(sessionId, location);
+        if (location != null) {
+            location.segment().liveBytes.addAndGet(location.length());
+        }
+        if (previous != null) {
+            previous.segment().liveBytes.addAndGet(-previous.length());
+        }
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Segment segment = new Segment(id, directory.resolve("segment-%06d.log".formatted(id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        index.values().removeIf(location -> location.segment() == segment);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+            log.debug("删除会话溢写段: {}", segment.path.getFileName());
+        } catch (IOException e) {
+            log.warn("删除会话溢写段失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 顺序扫描段文件重建索引
+     */
+    private void recover() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.filter(p -> p.getFileName().toString().matches("segment-\\d+\\.log")).sorted().toList()) {
+                String name = path.getFileName().toString();
+                long id = Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length()));
+                Segment segment = new Segment(id, path);
+                segments.put(id, segment);
+                scan(segment);
+            }
+        }
+    }
+
+    private void scan(Segment segment) throws IOException {
+        long offset = 0;
+        ByteBuffer record;
+        while ((record = readRecord(segment, offset)) != null) {
+            int length = record.remaining();
+            Record parsed = parse(record);
+            if (parsed == null) {
+                break;
+            }
+            Location location = new Location(segment, offset, length);
+            replace(parsed.sessionId(), parsed.type() == DATA ? location : null);
+            offset += length;
+        }
+        if (offset < segment.size) {
+            log.warn("会话溢写段 {} 尾部 {} 字节不完整，已截断", segment.path.getFileName(), segment.size - offset);
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    /**
+     * 读取 offset 处的一条完整记录（含头部）
+     *
+     * @return 记录，到达段末尾或长度不合法时返回 null
+     */
+    private static ByteBuffer readRecord(Segment segment, long offset) throws IOException {
+        if (offset + HEADER_BYTES > segment.size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        segment.channel.read(header, offset);
+        header.flip();
+        int bodyLength = header.getInt();
+        if (bodyLength <= 0 || offset + HEADER_BYTES + bodyLength > segment.size) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+        segment.channel.read(record, offset);
+        record.flip();
+        return record;
+    }
+
+    private record Record(byte type, String sessionId, long writeMillis, ByteBuffer payload) {}
+
+    private static Record parse(ByteBuffer record) {
+        int bodyLength = record.getInt();
+        int expectedCrc = record.getInt();
+        ByteBuffer body = record.slice(record.position(), bodyLength);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+        long writeMillis = body.getLong();
+        byte type = body.get();
+        byte[] key = new byte[body.getInt()];
+        body.get(key);
+        return new Record(type, new String(key, StandardCharsets.UTF_8), writeMillis, body.slice());
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.force(true);
+                segment.channel.close();
+            } catch (IOException e) {
+                log.warn("关闭会话溢写段失败: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.alex.ai.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SimHash 指纹索引 - 用于入库前的近似重复片段检测
+ *
+ * 每个片段计算 64 位 SimHash（基于字符 3-gram），索引按 4 个 16 位分带存储。
+ * 汉明距离不超过 3 的两个指纹至少有一个分带完全相同（鸽巢原理），
+ * 因此只需比较同分带的候选，查询代价与知识库规模基本无关。
+ *
+ * 入库时通过 {@link #reserve} 在同一把锁内完成「查找 + 登记」，并发上传同一文档时
+ * 只有一方登记成功，另一方判定为重复，不会双双通过去重后各自向量化。
+ * 每个分组记录引用它的来源（拥有该组片段或因重复而跳过的条目），
+ * 删除来源时仍被其他来源引用的指纹转交给其中一个来源，内容不随原条目删除而丢失。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+class SimHashIndex {
+
+    private static final int SHINGLE_SIZE = 3;
+    private static final int BANDS = 4;
+    private static final int BAND_BITS = 64 / BANDS;
+
+    /**
+     * 分带索引（分带键 -> 指纹集合）
+     */
+    private final Map<Long, Set<Fingerprint>> bands = new ConcurrentHashMap<>();
+
+    /**
+     * 来源索引（source -> 该来源的全部指纹），用于删除
+     */
+    private final Map<String, List<Fingerprint>> bySource = new ConcurrentHashMap<>();
+
+    /**
+     * 分组引用（group -> 引用该组的来源），只在持有锁时读写
+     */
+    private final Map<String, Set<String>> groupReferences = new HashMap<>();
+
+    /**
+     * 来源引用的分组（source -> 分组集合），用于删除时解除引用
+     */
+    private final Map<String, Set<String>> referencedGroups = new HashMap<>();
+
+    /**
+     * 已索引的片段指纹
+     *
+     * @param hash 64 位 SimHash
+     * @param source 所属知识条目 ID
+     * @param segmentIndex 片段序号
+     * @param group 近似重复分组（关联片段沿用原片段的分组）
+     */
+    record Fingerprint(long hash, String source, int segmentIndex, String group) {}
+
+    /**
+     * 近似重复匹配结果
+     */
+    record Match(Fingerprint fingerprint, int distance) {}
+
+    /**
+     * 入库预留结果
+     *
+     * @param fingerprint 已登记的指纹；判定为重复而跳过时为 null
+     * @param match 最接近的已有片段，没有则为 null
+     */
+    record Reservation(Fingerprint fingerprint, Match match) {
+        boolean skipped() {
+            return fingerprint == null;
+        }
+    }
+
+    /**
+     * 查找与给定指纹最接近的已索引片段
+     *
+     * @param hash 待检测指纹
+     * @param maxDistance 允许的最大汉明距离（不超过分带数 - 1 时召回完整）
+     * @param excludedSource 跳过该来源自己的片段
+     * @return 最接近的匹配，没有则为 null
+     */
+    private Match nearest(long hash, int maxDistance, String excludedSource) {
+        Match best = null;
+        for (int band = 0; band < BANDS; band++) {
+            Set<Fingerprint> candidates = bands.get(bandKey(hash, band));
+            if (candidates == null) {
+                continue;
+            }
+            for (Fingerprint candidate : candidates) {
+                if (candidate.source().equals(excludedSource)) {
+                    continue;
+                }
+                int distance = Long.bitCount(candidate.hash() ^ hash);
+                if (distance <= maxDistance && (best == null || distance < best.distance())) {
+                    best = new Match(candidate, distance);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 原子地查找近似重复并登记片段指纹
+     *
+     * 距离不超过 skipDistance：不登记，来源记为该分组的引用方；
+     * 距离不超过 linkDistance：登记到原片段的分组；否则登记为新分组 source#segmentIndex。
+     *
+     * @param hash 片段指纹
+     * @param source 所属知识条目 ID
+     * @param segmentIndex 片段序号
+     * @param skipDistance 跳过阈值
+     * @param linkDistance 关联阈值
+     * @return 预留结果
+     */
+    synchronized Reservation reserve(long hash, String source, int segmentIndex, int skipDistance, int linkDistance) {
+        // 只与其他条目比较，同一文档内的重复不处理
+        Match match = nearest(hash, Math.max(skipDistance, linkDistance), source);
+        if (match != null && match.distance() <= skipDistance) {
+            reference(match.fingerprint().group(), source);
+            return new Reservation(null, match);
+        }
+        String group = match != null ? match.fingerprint().group() : source + "#" + segmentIndex;
+        Fingerprint fingerprint = new Fingerprint(hash, source, segmentIndex, group);
+        add(fingerprint);
+        return new Reservation(fingerprint, match);
+    }
+
+    /**
+     * 添加片段指纹（启动恢复时使用）
+     */
+    synchronized void add(Fingerprint fingerprint) {
+        bySource.compute(fingerprint.source(), (k, list) -> {
+            List<Fingerprint> fingerprints = list != null ? list : new ArrayList<>();
+            fingerprints.add(fingerprint);
+            return fingerprints;
+        });
+        for (int band = 0; band < BANDS; band++) {
+            bands.computeIfAbsent(bandKey(fingerprint.hash(), band), k -> ConcurrentHashMap.newKeySet())
+                .add(fingerprint);
+        }
+        reference(fingerprint.group(), fingerprint.source());
+    }
+
+    /**
+     * 记录来源对分组的引用（启动恢复跳过片段的引用时也使用）
+     */
+    synchronized void reference(String group, String source) {
+        groupReferences.computeIfAbsent(group, k -> new LinkedHashSet<>()).add(source);
+        referencedGroups.computeIfAbsent(source, k -> new LinkedHashSet<>()).add(group);
+    }
+
+    /**
+     * 来源因重复而跳过、但自身没有片段的分组
+     */
+    synchronized List<String> sharedGroups(String source) {
+        Set<String> groups = referencedGroups.getOrDefault(source, Set.of());
+        Set<String> owned = new LinkedHashSet<>();
+        bySource.getOrDefault(source, List.of()).forEach(fingerprint -> owned.add(fingerprint.group()));
+        return groups.stream().filter(group -> !owned.contains(group)).toList();
+    }
+
+    /**
+     * 移除某个来源：解除其引用，仍被其他来源引用的指纹转交给其中一个来源
+     *
+     * @return 被转交的分组（group -> 接手的来源）
+     */
+    synchronized Map<String, String> removeSource(String source) {
+        return remove(source, true);
+    }
+
+    /**
+     * 撤销某个来源的预留（向量化失败或整篇重复），不转交指纹
+     */
+    synchronized void discard(String source) {
+        remove(source, false);
+    }
+
+    private Map<String, String> remove(String source, boolean transfer) {
+        Set<String> groups = referencedGroups.remove(source);
+        if (groups != null) {
+            for (String group : groups) {
+                Set<String> sources = groupReferences.get(group);
+                if (sources != null) {
+                    sources.remove(source);
+                    if (sources.isEmpty()) {
+                        groupReferences.remove(group);
+                    }
+                }
+            }
+        }
+        List<Fingerprint> removed = bySource.remove(source);
+        if (removed == null) {
+            return Map.of();
+        }
+        Map<String, String> heirs = new HashMap<>();
+        for (Fingerprint fingerprint : removed) {
+            unindex(fingerprint);
+            Set<String> sources = groupReferences.get(fingerprint.group());
+            if (transfer && sources != null && !sources.isEmpty()) {
+                String heir = sources.iterator().next();
+                add(new Fingerprint(fingerprint.hash(), heir, fingerprint.segmentIndex(), fingerprint.group()));
+                heirs.put(fingerprint.group(), heir);
+            }
+        }
+        return heirs;
+    }
+
+    private void unindex(Fingerprint fingerprint) {
+        for (int band = 0; band < BANDS; band++) {
+            bands.computeIfPresent(bandKey(fingerprint.hash(), band), (k, set) -> {
+                set.remove(fingerprint);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    /**
+     * 计算文本的 64 位 SimHash
+     * 只保留字母、数字和汉字并统一小写，忽略空白和标点差异
+     */
+    static long fingerprint(String text) {
+        int[] codePoints = text.codePoints()
+            .filter(Character::isLetterOrDigit)
+            .map(Character::toLowerCase)
+            .toArray();
+        if (codePoints.length == 0) {
+            return 0L;
+        }
+
+        int[] weights = new int[64];
+        int shingles = Math.max(1, codePoints.length - SHINGLE_SIZE + 1);
+        for (int i = 0; i < shingles; i++) {
+            long hash = hashShingle(codePoints, i, Math.min(SHINGLE_SIZE, codePoints.length - i));
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((hash >>> bit) & 1L) == 1L ? 1 : -1;
+            }
+        }
+
+        long result = 0L;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                result |= 1L << bit;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * FNV-1a 64 位哈希 + MurmurHash3 fmix64 混淆，保证各位分布均匀
+     */
+    private static long hashShingle(int[] codePoints, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= codePoints[i];
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long bandKey(long hash, int band) {
+        long bandValue = (hash >>> (band * BAND_BITS)) & 0xFFFFL;
+        return ((long) band << BAND_BITS) | bandValue;
+    }
+}
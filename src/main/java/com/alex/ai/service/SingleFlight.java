@@ -0,0 +1,272 @@
+package com.alex.ai.service;
+
+import com.alex.ai.exception.BusinessException;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 相同请求合并（single-flight）
+ *
+ * 同一个 key 同一时刻只有一个上游调用（leader），期间到达的相同请求（follower）
+ * 直接等待 leader 的结果：阻塞调用共享同一个结果，流式调用从头重放 leader 的 token 流。
+ * 调用结束即移除，之后的相同请求由响应缓存命中或重新调用，不会拿到过期结果。
+ *
+ * leader 失败（包括 Error）时所有 follower 收到同一个异常，由各自的调用方处理（例如返回演示响应）；
+ * 阻塞调用的 follower 最多等待 wait-timeout-seconds 秒，超时返回 504，不会随 leader 无限阻塞。
+ * 流式调用的所有订阅者都取消时才取消上游调用。
+ *
+ * 只有 leader 执行上游调用，并发名额（{@link ChatExecutor}）应在 loader / source 内部占用，
+ * follower 不占用名额。
+ *
+ * 每次调用结束时 follower 数记入 chat.singleflight.fanout。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Component
+public class SingleFlight implements MeterBinder {
+
+    @Value("${chat.single-flight.enabled:true}")
+    private boolean enabled = true;
+
+    /**
+     * 阻塞调用的 follower 等待 leader 结果的最长时间
+     */
+    @Value("${chat.single-flight.wait-timeout-seconds:90}")
+    private long waitTimeoutSeconds = 90;
+
+    /**
+     * 进行中的阻塞调用
+     */
+    private final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 进行中的流式调用
+     */
+    private final ConcurrentHashMap<String, SharedStream> streams = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+    private volatile DistributionSummary fanoutSummary;
+
+    /**
+     * 阻塞调用：同一 key 只执行一次 loader，并发的相同调用共享结果
+     *
+     * @param key 请求 key（调用方负责归一化）
+     * @param loader 上游调用（在 leader 的线程上执行）
+     * @return 结果
+     */
+    public String call(String key, Supplier<String> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        Call created = new Call();
+        Call existing = calls.putIfAbsent(key, created);
+        if (existing != null) {
+            existing.followers.incrementAndGet();
+            followers.increment();
+            return await(existing);
+        }
+
+        leaders.increment();
+        try {
+            String result = loader.get();
+            created.result.complete(result);
+            return result;
+        } catch (Throwable e) {
+            created.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, created);
+            recordFanout(created.followers.get());
+        }
+    }
+
+    /**
+     * follower 等待 leader 的结果，超时返回 504
+     */
+    private String await(Call call) {
+        try {
+            return call.result.get(waitTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            throw new BusinessException(504, "等待相同请求的结果超时，请稍后重试");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BusinessException(503, "请求已中断");
+        }
+    }
+
+    /**
+     * 流式调用：同一 key 只订阅一次上游，并发的相同调用从第一个 token 开始重放
+     *
+     * @param key 请求 key（调用方负责归一化）
+     * @param source 上游 token 流（由 leader 订阅时创建）
+     * @return token 流
+     */
+    public Flux<String> stream(String key, Supplier<Flux<String>> source) {
+        if (!enabled) {
+            return Flux.defer(source);
+        }
+        return Flux.defer(() -> {
+            while (true) {
+                SharedStream created = new SharedStream(key);
+                SharedStream shared = streams.putIfAbsent(key, created);
+                if (shared == null) {
+                    leaders.increment();
+                    Flux<String> tokens = created.attach();
+                    created.connect(Flux.defer(source));
+                    return tokens;
+                }
+                Flux<String> tokens = shared.attach();
+                if (tokens != null) {
+                    followers.increment();
+                    return tokens;
+                }
+                // 该流刚被取消，重新竞争 leader
+                streams.remove(key, shared);
+            }
+        });
+    }
+
+    /**
+     * 进行中的调用数
+     */
+    int inFlight() {
+        return calls.size() + streams.size();
+    }
+
+    long followerCount() {
+        return followers.sum();
+    }
+
+    private void recordFanout(int count) {
+        DistributionSummary summary = fanoutSummary;
+        if (summary != null) {
+            summary.record(count);
+        }
+    }
+
+    private static final class Call {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final AtomicInteger followers = new AtomicInteger();
+    }
+
+    /**
+     * 共享的流式调用：上游写入重放 Sink，每个订阅者从头读取
+     */
+    private final class SharedStream {
+        private final String key;
+        private final Sinks.Many<String> sink = Sinks.many().replay().all();
+        private Disposable producer;
+        private int attached;
+        private int followerCount = -1;
+        private boolean cancelled;
+
+        private SharedStream(String key) {
+            this.key = key;
+        }
+
+        /**
+         * 加入该流；已被取消时返回 null
+         */
+        synchronized Flux<String> attach() {
+            if (cancelled) {
+                return null;
+            }
+            attached++;
+            followerCount++;
+            return sink.asFlux().doFinally(signal -> detach());
+        }
+
+        void connect(Flux<String> tokens) {
+            Disposable subscription = tokens.subscribe(
+                sink::tryEmitNext,
+                error -> {
+                    finish();
+                    sink.tryEmitError(error);
+                },
+                () -> {
+                    finish();
+                    sink.tryEmitComplete();
+                });
+            synchronized (this) {
+                if (cancelled) {
+                    subscription.dispose();
+                } else {
+                    producer = subscription;
+                }
+            }
+        }
+
+        /**
+         * 上游结束：之后的相同请求不再加入该流
+         */
+        private void finish() {
+            if (streams.remove(key, this)) {
+                recordFanout(followerCount);
+            }
+        }
+
+        /**
+         * 最后一个订阅者离开时取消上游调用
+         */
+        private void detach() {
+            Disposable toCancel;
+            synchronized (this) {
+                if (--attached > 0 || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                toCancel = producer;
+            }
+            finish();
+            if (toCancel != null) {
+                toCancel.dispose();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("chat.singleflight.requests", leaders, LongAdder::sum)
+            .description("相同请求合并：实际发起上游调用的请求数")
+            .tag("role", "leader")
+            .register(registry);
+        FunctionCounter.builder("chat.singleflight.requests", followers, LongAdder::sum)
+            .description("相同请求合并：复用进行中调用结果的请求数")
+            .tag("role", "follower")
+            .register(registry);
+        Gauge.builder("chat.singleflight.inflight", this, SingleFlight::inFlight)
+            .description("进行中的合并调用数")
+            .register(registry);
+        fanoutSummary = DistributionSummary.builder("chat.singleflight.fanout")
+            .description("每次上游调用合并的 follower 数")
+            .register(registry);
+    }
+}
@@ -0,0 +1,564 @@
+package com.alex.ai.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSE 写出器 - 模型回调与客户端写出之间的有界缓冲
+ *
+ * 模型回调线程只把帧放入该流的有界队列，写出由独立的写出线程完成（JDK 21+ 为虚拟线程），
+ * 慢客户端只会让自己的队列变长，不会拖慢上游读取，也不会占用 HTTP 客户端的共享线程。
+ * WebSocket 对话通道通过 {@link Sink} 复用同一套队列和策略，每个连接一个通道。
+ *
+ * 队列满时按 slow-consumer-policy 处理，各策略下每个连接的内存占用都以 capacity 为上限：
+ * - coalesce：新 token 合并进同一流排队中的最后一帧，帧数不再增长（默认）；
+ *   无法合并的帧（done 等）继续排队，达到 2 倍容量时按 drop 处理
+ * - drop：丢弃排队的帧并断开该连接，客户端可以带 Last-Event-ID 重连，从续传缓冲区补齐
+ * - spill：超出容量的帧按顺序追加到该连接的临时文件，内存队列写空后读回写出；
+ *   临时文件达到 spill-max-bytes 时按 drop 处理，连接结束时删除临时文件
+ *
+ * 每个流的最大队列深度在连接结束时记入 chat.stream.writer.queue.depth。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+public class SseStreamWriter implements MeterBinder {
+
+    /**
+     * 慢客户端处理策略
+     */
+    public enum Policy {
+        COALESCE, DROP, SPILL
+    }
+
+    @Value("${chat.stream.writer.capacity:256}")
+    private int capacity = 256;
+
+    @Value("${chat.stream.writer.slow-consumer-policy:coalesce}")
+    private String policyName = "coalesce";
+
+    @Value("${chat.stream.writer.spill-max-bytes:4194304}")
+    private long spillMaxBytes = 4 * 1024 * 1024;
+
+    @Value("${chat.executor.virtual-threads:true}")
+    private boolean virtualThreadsEnabled = true;
+
+    private Policy policy;
+    private ExecutorService writers;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final Map<Policy, LongAdder> overflows = new EnumMap<>(Policy.class);
+    private volatile DistributionSummary depthSummary;
+
+    public SseStreamWriter() {
+        for (Policy value : Policy.values()) {
+            overflows.put(value, new LongAdder());
+        }
+    }
+
+    @PostConstruct
+    void init() {
+        policy = Policy.valueOf(policyName.trim().toUpperCase(Locale.ROOT));
+        writers = virtualThreadsEnabled ? ChatExecutor.newVirtualThreadExecutor("sse-writer-") : null;
+        if (writers == null) {
+            AtomicInteger counter = new AtomicInteger();
+            writers = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "sse-writer-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        log.info("SSE 写出器: 每流队列容量 {}，慢客户端策略 {}", capacity, policy);
+    }
+
+    /**
+     * 写出目标，所有方法都在写出线程中调用
+     */
+    public interface Sink {
+        /**
+         * 写出一帧
+         */
+        void send(StreamReplayBuffer.Frame frame) throws IOException;
+
+        /**
+         * 写完全部帧后正常关闭，或被 drop 策略关闭
+         */
+        void complete();
+
+        /**
+         * 写完全部帧后以错误关闭
+         */
+        void completeWithError(Throwable error);
+
+        /**
+         * 两帧是否属于同一个流，coalesce 策略只合并同一流的 token 帧（默认一个连接只有一个流）
+         */
+        default boolean sameStream(StreamReplayBuffer.Frame previous, StreamReplayBuffer.Frame next) {
+            return true;
+        }
+    }
+
+    /**
+     * 为一个 SSE 连接打开写出通道
+     *
+     * @param emitter SSE 连接
+     * @param onClosed 连接断开（写出失败或被 drop 策略关闭）时的回调，用于取消上游订阅
+     * @return 写出通道
+     */
+    public Channel open(SseEmitter emitter, Runnable onClosed) {
+        return new Channel(new EmitterSink(emitter), onClosed);
+    }
+
+    /**
+     * 为任意写出目标打开写出通道
+     *
+     * @param sink 写出目标
+     * @param onClosed 连接断开（写出失败或被 drop 策略关闭）时的回调，用于取消上游订阅
+     * @return 写出通道
+     */
+    public Channel open(Sink sink, Runnable onClosed) {
+        return new Channel(sink, onClosed);
+    }
+
+    /**
+     * 当前所有流排队中的帧数
+     */
+    int queuedFrames() {
+        return queued.get();
+    }
+
+    long overflowCount(Policy value) {
+        return overflows.get(value).sum();
+    }
+
+    /**
+     * 当前所有流溢出文件中待写出的字节数
+     */
+    long spilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * 单个连接的写出通道：offer 只入队，写出在写出线程中按顺序进行（同一时刻至多一个写出任务）
+     */
+    public final class Channel {
+        private final Sink sink;
+        private final Runnable onClosed;
+        private final LinkedList<StreamReplayBuffer.Frame> queue = new LinkedList<>();
+        private SpillFile spill;
+        private boolean draining;
+        private boolean finished;
+        private Throwable failure;
+        private boolean closed;
+        private int maxDepth;
+
+        private Channel(Sink sink, Runnable onClosed) {
+            this.sink = sink;
+            this.onClosed = onClosed;
+        }
+
+        /**
+         * 放入一帧（不阻塞）
+         */
+        public void offer(StreamReplayBuffer.Frame frame) {
+            boolean dropped = false;
+            synchronized (this) {
+                if (closed || finished) {
+                    return;
+                }
+                if (queue.size() < capacity && (spill == null || spill.isEmpty())) {
+                    enqueue(frame);
+                    schedule();
+                    return;
+                }
+                // 队列已满或已有帧溢出到文件（此时必然有写出任务在运行）
+                overflows.get(policy).increment();
+                switch (policy) {
+                    case COALESCE -> dropped = !coalesce(frame) && close();
+                    case DROP -> dropped = close();
+                    case SPILL -> dropped = !spill(frame) && close();
+                }
+            }
+            if (dropped) {
+                log.info("客户端过慢（队列已满 {} 帧{}），断开连接", capacity,
+                    policy == Policy.SPILL ? "，溢出文件已达上限" : "");
+                onClosed.run();
+                writers.execute(sink::complete);
+            }
+        }
+
+        /**
+         * 新 token 合并进同一流排队中的最后一帧，使用新帧的事件 ID，续传断点仍然准确
+         *
+         * @return 是否已合并或入队；无法合并且队列已达 2 倍容量时返回 false
+         */
+        private boolean coalesce(StreamReplayBuffer.Frame frame) {
+            if (frame.event() == null) {
+                ListIterator<StreamReplayBuffer.Frame> frames = queue.listIterator(queue.size());
+                while (frames.hasPrevious()) {
+                    StreamReplayBuffer.Frame previous = frames.previous();
+                    if (sink.sameStream(previous, frame)) {
+                        if (previous.event() == null) {
+                            frames.set(new StreamReplayBuffer.Frame(frame.id(), null, previous.data() + frame.data()));
+                            return true;
+                        }
+                        break;
+                    }
+                }
+            }
+            if (queue.size() >= 2 * capacity) {
+                return false;
+            }
+            enqueue(frame);
+            return true;
+        }
+
+        /**
+         * 帧追加到溢出文件（调用方已持有锁），文件达到上限或写入失败时返回 false
+         */
+        private boolean spill(StreamReplayBuffer.Frame frame) {
+            try {
+                if (spill == null) {
+                    spill = new SpillFile();
+                }
+                long appended = spill.append(frame, spillMaxBytes);
+                spilledBytes.addAndGet(appended);
+                return appended > 0;
+            } catch (IOException e) {
+                log.warn("SSE 帧写入溢出文件失败: {}", e.getMessage());
+                return false;
+            }
+        }
+
+        private void schedule() {
+            // 调用方已持有锁
+            if (!draining) {
+                draining = true;
+                writers.execute(this::drain);
+            }
+        }
+
+        /**
+         * 上游正常结束：写完剩余帧后关闭连接
+         */
+        public void complete() {
+            finish(null);
+        }
+
+        /**
+         * 通道的所有者（连接）已关闭：丢弃排队的帧，不再写出，也不回调 onClosed
+         */
+        public void cancel() {
+            synchronized (this) {
+                close();
+            }
+        }
+
+        /**
+         * 上游出错：写完剩余帧后以错误关闭连接
+         */
+        public void error(Throwable error) {
+            finish(error);
+        }
+
+        private void finish(Throwable error) {
+            synchronized (this) {
+                if (closed || finished) {
+                    return;
+                }
+                finished = true;
+                failure = error;
+                schedule();
+            }
+        }
+
+        /**
+         * 当前排队帧数
+         */
+        public synchronized int depth() {
+            return queue.size();
+        }
+
+        private void enqueue(StreamReplayBuffer.Frame frame) {
+            queue.addLast(frame);
+            queued.incrementAndGet();
+            maxDepth = Math.max(maxDepth, queue.size());
+        }
+
+        /**
+         * 下一帧：先取内存队列，取空后按顺序读回溢出文件中的帧（调用方已持有锁）
+         */
+        private StreamReplayBuffer.Frame next() throws IOException {
+            StreamReplayBuffer.Frame frame = queue.pollFirst();
+            if (frame != null) {
+                queued.decrementAndGet();
+                return frame;
+            }
+            if (spill == null || spill.isEmpty()) {
+                return null;
+            }
+            long before = spill.pendingBytes();
+            frame = spill.poll();
+            spilledBytes.addAndGet(spill.pendingBytes() - before);
+            return frame;
+        }
+
+        private void drain() {
+            while (true) {
+                StreamReplayBuffer.Frame frame;
+                Throwable error = null;
+                try {
+                    synchronized (this) {
+                        frame = next();
+                        if (frame == null) {
+                            draining = false;
+                            if (!finished || closed) {
+                                return;
+                            }
+                            closed = true;
+                            releaseSpill();
+                            error = failure;
+                        }
+                    }
+                    if (frame != null) {
+                        sink.send(frame);
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    log.info("SSE 写出失败，客户端可能已断开: {}", e.getMessage());
+                    boolean transitioned;
+                    synchronized (this) {
+                        transitioned = close();
+                        draining = false;
+                    }
+                    if (transitioned) {
+                        onClosed.run();
+                    }
+                    return;
+                }
+                if (frame == null) {
+                    recordDepth();
+                    if (error != null) {
+                        sink.completeWithError(error);
+                    } else {
+                        sink.complete();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 停止接收并丢弃排队的帧（调用方已持有锁），返回是否由本次调用关闭
+         */
+        private boolean close() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            queued.addAndGet(-queue.size());
+            queue.clear();
+            releaseSpill();
+            recordDepth();
+            return true;
+        }
+
+        /**
+         * 删除溢出文件（调用方已持有锁）
+         */
+        private void releaseSpill() {
+            if (spill != null) {
+                spilledBytes.addAndGet(-spill.pendingBytes());
+                spill.close();
+                spill = null;
+            }
+        }
+
+        private void recordDepth() {
+            DistributionSummary summary = depthSummary;
+            if (summary != null) {
+                summary.record(maxDepth);
+            }
+        }
+    }
+
+    /**
+     * SSE 连接：帧的事件 ID、事件名和数据分别写入 SSE 的 id / event / data 字段
+     */
+    private record EmitterSink(SseEmitter emitter) implements Sink {
+        @Override
+        public void send(StreamReplayBuffer.Frame frame) throws IOException {
+            SseEmitter.SseEventBuilder event = SseEmitter.event().data(frame.data());
+            if (frame.id() != null) {
+                event.id(frame.id());
+            }
+            if (frame.event() != null) {
+                event.name(frame.event());
+            }
+            emitter.send(event);
+        }
+
+        @Override
+        public void complete() {
+            emitter.complete();
+        }
+
+        @Override
+        public void completeWithError(Throwable error) {
+            emitter.completeWithError(error);
+        }
+    }
+
+    /**
+     * 单个连接的溢出文件：帧按顺序追加，写出线程按顺序读回，读空后清空复用
+     *
+     * 记录格式：长度(int) + 3 个可空字符串（长度 int，-1 表示 null，+ UTF-8）。
+     */
+    private static final class SpillFile {
+        private final Path path;
+        private final FileChannel channel;
+        private long writePosition;
+        private long readPosition;
+        private int frames;
+
+        private SpillFile() throws IOException {
+            this.path = Files.createTempFile("sse-", ".spill");
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        boolean isEmpty() {
+            return frames == 0;
+        }
+
+        long pendingBytes() {
+            return writePosition - readPosition;
+        }
+
+        /**
+         * @return 追加的字节数，文件将超过 maxBytes 时不写入并返回 0
+         */
+        long append(StreamReplayBuffer.Frame frame, long maxBytes) throws IOException {
+            byte[][] fields = {bytes(frame.id()), bytes(frame.event()), bytes(frame.data())};
+            int length = 0;
+            for (byte[] field : fields) {
+                length += 4 + (field == null ? 0 : field.length);
+            }
+            if (writePosition + 4 + length > maxBytes) {
+                return 0;
+            }
+            ByteBuffer record = ByteBuffer.allocate(4 + length).putInt(length);
+            for (byte[] field : fields) {
+                record.putInt(field == null ? -1 : field.length);
+                if (field != null) {
+                    record.put(field);
+                }
+            }
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record, writePosition + record.position());
+            }
+            writePosition += record.limit();
+            frames++;
+            return record.limit();
+        }
+
+        StreamReplayBuffer.Frame poll() throws IOException {
+            ByteBuffer header = read(readPosition, 4);
+            ByteBuffer record = read(readPosition + 4, header.getInt());
+            readPosition += 4 + record.limit();
+            if (--frames == 0) {
+                readPosition = 0;
+                writePosition = 0;
+                channel.truncate(0);
+            }
+            return new StreamReplayBuffer.Frame(string(record), string(record), string(record));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("删除 SSE 溢出文件 {} 失败: {}", path, e.getMessage());
+            }
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("SSE 溢出文件不完整");
+                }
+            }
+            return buffer.flip();
+        }
+
+        private static byte[] bytes(String value) {
+            return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String string(ByteBuffer record) {
+            int length = record.getInt();
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+            record.position(record.position() + length);
+            return value;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writers.shutdown();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("chat.stream.writer.queued", queued, AtomicInteger::get)
+            .description("所有 SSE 连接排队待写出的帧数")
+            .register(registry);
+        Gauge.builder("chat.stream.writer.spilled.bytes", spilledBytes, AtomicLong::get)
+            .description("所有 SSE 连接溢出文件中待写出的字节数")
+            .register(registry);
+        depthSummary = DistributionSummary.builder("chat.stream.writer.queue.depth")
+            .description("每个 SSE 连接的最大队列深度")
+            .publishPercentiles(0.5, 0.99)
+            .register(registry);
+        for (Policy value : Policy.values()) {
+            FunctionCounter.builder("chat.stream.writer.overflow", overflows.get(value), LongAdder::sum)
+                .description("SSE 连接队列已满的次数")
+                .tag("policy", value.name().toLowerCase(Locale.ROOT))
+                .register(registry);
+        }
+    }
+}
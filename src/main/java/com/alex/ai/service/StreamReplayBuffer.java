@@ -0,0 +1,337 @@
+package com.alex.ai.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可续传的流式响应缓冲区
+ *
+ * 每个流式响应分配一个流 ID，每帧带事件 ID（流 ID:序号），最近 max-frames 帧保存在环形缓冲区中。
+ * 网络抖动导致连接中断后，客户端带上 Last-Event-ID 重新连接，从缓冲区续传断点之后的帧
+ * （生成仍在进行时继续接收后续帧），不需要重新调用模型。
+ *
+ * 生成与客户端连接解耦：最后一个连接断开后保留 grace-seconds 秒等待重连，
+ * 期间没有重连才取消上游模型调用；响应结束后缓冲区再保留 ttl-seconds 秒。
+ * 断点已被环形缓冲区覆盖或缓冲区已过期时无法续传，由调用方重新生成。
+ *
+ * 每个流记录所属会话和用户消息的摘要，续传时必须一致，事件 ID 不能用来读取其他会话的回答。
+ * 客户端已收到 done 帧后再带该 ID 请求视为新问题，同样由调用方重新生成。
+ *
+ * 容量上限 max-streams 只按已结束的流淘汰，生成中的流不会因容量被取消；
+ * 生成中的流达到上限时，新的流式响应不再缓冲（正常输出，但不可续传）。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+public class StreamReplayBuffer implements MeterBinder {
+
+    /**
+     * 生成中的流最长保留时间（防止异常情况下永不结束的流常驻内存）
+     */
+    private static final Duration MAX_ACTIVE = Duration.ofMinutes(10);
+
+    @Value("${chat.stream.resume.ttl-seconds:60}")
+    private long ttlSeconds = 60;
+
+    @Value("${chat.stream.resume.max-frames:1024}")
+    private int maxFrames = 1024;
+
+    @Value("${chat.stream.resume.grace-seconds:5}")
+    private long graceSeconds = 5;
+
+    @Value("${chat.stream.resume.max-streams:10000}")
+    private long maxStreams = 10000;
+
+    private Cache<String, ReplayStream> streams;
+
+    /**
+     * 生成中的流数
+     */
+    private final AtomicLong activeStreams = new AtomicLong();
+
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder resumeMisses = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * SSE 帧
+     *
+     * @param id 事件 ID（未启用续传时为 null）
+     * @param event 事件名（普通 token 为 null）
+     * @param data 数据
+     */
+    public record Frame(String id, String event, String data) {}
+
+    @PostConstruct
+    void init() {
+        long ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        streams = Caffeine.newBuilder()
+            // 生成中的流权重为 0，不参与容量淘汰；结束后重新计算权重
+            .maximumWeight(maxStreams)
+            .weigher((String id, ReplayStream stream) -> stream.completed.get() ? 1 : 0)
+            .expireAfter(new Expiry<String, ReplayStream>() {
+                @Override
+                public long expireAfterCreate(String id, ReplayStream stream, long currentTime) {
+                    return stream.completed.get() ? ttlNanos : MAX_ACTIVE.toNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(String id, ReplayStream stream, long currentTime, long currentDuration) {
+                    return expireAfterCreate(id, stream, currentTime);
+                }
+
+                @Override
+                public long expireAfterRead(String id, ReplayStream stream, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .removalListener((String id, ReplayStream stream, RemovalCause cause) -> {
+                // 只有超过 MAX_ACTIVE 仍未结束的流会在生成中被移除
+                if (stream != null && cause.wasEvicted()) {
+                    stream.cancel();
+                }
+            })
+            .build();
+    }
+
+    /**
+     * 开始一个可续传的流：立即订阅 token 流，帧写入环形缓冲区
+     *
+     * @param sessionId 所属会话 ID
+     * @param message 本轮用户消息
+     * @param tokens 模型 token 流
+     * @return 帧流（从第一帧开始，最后一帧为 done）；生成中的流已达上限时不缓冲，帧不带事件 ID
+     */
+    public Flux<Frame> start(String sessionId, String message, Flux<String> tokens) {
+        if (activeStreams.incrementAndGet() > maxStreams) {
+            activeStreams.decrementAndGet();
+            rejected.increment();
+            log.warn("生成中的可续传流已达上限 {}，本次响应不可续传", maxStreams);
+            return plain(tokens);
+        }
+        ReplayStream stream = new ReplayStream(UUID.randomUUID().toString(), sessionId, digest(message));
+        streams.put(stream.id, stream);
+        stream.subscribe(tokens);
+        return stream.frames(0);
+    }
+
+    /**
+     * 按 Last-Event-ID 续传
+     *
+     * @param lastEventId 客户端收到的最后一个事件 ID
+     * @param sessionId 请求的会话 ID，须与流所属会话一致
+     * @param message 请求的用户消息，须与生成该流的消息一致
+     * @return 断点之后的帧流；流不存在、已过期、不属于该会话/消息、断点已被覆盖，
+     *         或客户端已收到最后一帧时为空
+     */
+    public Optional<Flux<Frame>> resume(String lastEventId, String sessionId, String message) {
+        int separator = lastEventId.lastIndexOf(':');
+        ReplayStream stream = separator > 0 ? streams.getIfPresent(lastEventId.substring(0, separator)) : null;
+        if (stream != null && !stream.ownedBy(sessionId, message)) {
+            log.warn("事件 ID {} 不属于会话 {} 的当前消息，拒绝续传", lastEventId, sessionId);
+            stream = null;
+        }
+        long afterSeq = -1;
+        if (stream != null) {
+            try {
+                afterSeq = Long.parseLong(lastEventId.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                afterSeq = -1;
+            }
+        }
+        if (stream == null || afterSeq < 0 || afterSeq + 1 < stream.firstRetainedSeq()
+                || stream.fullyDelivered(afterSeq)) {
+            resumeMisses.increment();
+            return Optional.empty();
+        }
+        resumed.increment();
+        log.info("续传流式响应 {}，从第 {} 帧之后开始", stream.id, afterSeq);
+        return Optional.of(stream.frames(afterSeq));
+    }
+
+    /**
+     * 未启用续传时的帧流（无事件 ID）
+     */
+    public static Flux<Frame> plain(Flux<String> tokens) {
+        return tokens.map(token -> new Frame(null, null, token))
+            .concatWith(Flux.just(new Frame(null, "done", "[DONE]")));
+    }
+
+    /**
+     * 缓冲区中的流数（含生成中和已结束）
+     */
+    long size() {
+        streams.cleanUp();
+        return streams.estimatedSize();
+    }
+
+    /**
+     * 用户消息摘要（流只保存摘要，不保存原文）
+     */
+    private static String digest(String message) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Sequenced(long seq, Frame frame) {}
+
+    /**
+     * 单个流式响应：生成端写入重放 Sink，客户端连接从 Sink 读取
+     */
+    private final class ReplayStream {
+        private final String id;
+        private final String sessionId;
+        private final String messageDigest;
+        private final Sinks.Many<Sequenced> sink = Sinks.many().replay().limit(maxFrames);
+        private final AtomicLong seq = new AtomicLong();
+        private final AtomicInteger attached = new AtomicInteger();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile Disposable producer;
+
+        private ReplayStream(String id, String sessionId, String messageDigest) {
+            this.id = id;
+            this.sessionId = sessionId;
+            this.messageDigest = messageDigest;
+        }
+
+        void subscribe(Flux<String> tokens) {
+            producer = tokens.subscribe(
+                token -> sink.tryEmitNext(next(null, token)),
+                error -> {
+                    if (markCompleted()) {
+                        sink.tryEmitError(error);
+                    }
+                },
+                () -> {
+                    sink.tryEmitNext(next("done", "[DONE]"));
+                    if (markCompleted()) {
+                        sink.tryEmitComplete();
+                    }
+                });
+        }
+
+        /**
+         * 标记生成结束（只生效一次），并重新计算过期时间和权重：结束后只保留 ttl-seconds，参与容量淘汰
+         */
+        private boolean markCompleted() {
+            if (!completed.compareAndSet(false, true)) {
+                return false;
+            }
+            activeStreams.decrementAndGet();
+            streams.asMap().replace(id, this);
+            return true;
+        }
+
+        boolean ownedBy(String sessionId, String message) {
+            return Objects.equals(this.sessionId, sessionId) && messageDigest.equals(digest(message));
+        }
+
+        /**
+         * 生成已结束且客户端已收到最后一帧
+         */
+        boolean fullyDelivered(long afterSeq) {
+            return completed.get() && afterSeq >= seq.get();
+        }
+
+        private Sequenced next(String event, String data) {
+            long next = seq.incrementAndGet();
+            return new Sequenced(next, new Frame(id + ":" + next, event, data));
+        }
+
+        /**
+         * 环形缓冲区中最早一帧的序号
+         */
+        long firstRetainedSeq() {
+            return Math.max(1, seq.get() - maxFrames + 1);
+        }
+
+        Flux<Frame> frames(long afterSeq) {
+            return sink.asFlux()
+                .filter(frame -> frame.seq() > afterSeq)
+                .map(Sequenced::frame)
+                .doOnSubscribe(subscription -> attached.incrementAndGet())
+                .doFinally(signal -> detach());
+        }
+
+        /**
+         * 最后一个连接断开后等待重连，超时仍无连接则取消生成
+         */
+        private void detach() {
+            if (attached.decrementAndGet() > 0 || completed.get()) {
+                return;
+            }
+            Schedulers.parallel().schedule(() -> {
+                if (attached.get() == 0 && !completed.get()) {
+                    log.info("流式响应 {} 在 {} 秒内没有重连，取消生成", id, graceSeconds);
+                    cancel();
+                }
+            }, graceSeconds, TimeUnit.SECONDS);
+        }
+
+        /**
+         * 取消生成；仍在读取的连接以错误结束
+         */
+        void cancel() {
+            Disposable current = producer;
+            if (current != null) {
+                current.dispose();
+            }
+            if (markCompleted()) {
+                sink.tryEmitError(new IllegalStateException("流式响应已取消"));
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("chat.stream.replay.streams", this, StreamReplayBuffer::size)
+            .description("续传缓冲区中的流式响应数")
+            .register(registry);
+        FunctionCounter.builder("chat.stream.resume", resumed, LongAdder::sum)
+            .description("通过 Last-Event-ID 续传的请求数")
+            .tag("result", "hit")
+            .register(registry);
+        FunctionCounter.builder("chat.stream.resume", resumeMisses, LongAdder::sum)
+            .description("通过 Last-Event-ID 续传的请求数")
+            .tag("result", "miss")
+            .register(registry);
+        FunctionCounter.builder("chat.stream.replay.rejected", rejected, LongAdder::sum)
+            .description("生成中的流达到上限、未缓冲的流式响应数")
+            .register(registry);
+    }
+}
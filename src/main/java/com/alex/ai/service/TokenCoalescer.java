@@ -0,0 +1,202 @@
+package com.alex.ai.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 流式 token 合并器
+ *
+ * 模型每生成一个 token 就回调一次，逐个发送意味着每个 token 一次写入、一次刷新、一个 SSE 帧。
+ * 合并器为每个流维护一个缓冲区：首个 token 立即发出（不影响首字延迟），
+ * 之后的 token 先缓存，满 interval-ms 毫秒或 max-bytes 字节时合并为一帧发出，流结束时发出剩余内容。
+ *
+ * 指标：chat.stream.tokens（收到的 token 数）、chat.stream.frames（发出的帧数，按触发原因区分），
+ * 两者的速率之比即合并效果。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Component
+public class TokenCoalescer implements MeterBinder {
+
+    @Value("${chat.stream.coalesce.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${chat.stream.coalesce.interval-ms:40}")
+    private long intervalMillis = 40;
+
+    @Value("${chat.stream.coalesce.max-bytes:256}")
+    private int maxBytes = 256;
+
+    private final LongAdder tokens = new LongAdder();
+    private final Map<Trigger, LongAdder> frames = new EnumMap<>(Trigger.class);
+
+    /**
+     * 发出一帧的原因
+     */
+    enum Trigger {
+        /** 首个 token 直接发出 */
+        FIRST,
+        /** 缓冲区达到字节上限 */
+        SIZE,
+        /** 距上一次发出达到时间间隔 */
+        INTERVAL,
+        /** 流结束时发出剩余内容 */
+        COMPLETE
+    }
+
+    public TokenCoalescer() {
+        for (Trigger trigger : Trigger.values()) {
+            frames.put(trigger, new LongAdder());
+        }
+    }
+
+    /**
+     * 合并 token 流
+     *
+     * 取消订阅时同时取消上游和未触发的定时刷新。
+     *
+     * @param source 模型 token 流
+     * @return 合并后的帧流（未启用时原样返回）
+     */
+    public Flux<String> coalesce(Flux<String> source) {
+        if (!enabled) {
+            return source;
+        }
+        return Flux.create(sink -> {
+            Frame frame = new Frame(sink);
+            Disposable upstream = source.subscribe(frame::onToken, frame::onError, frame::onComplete);
+            sink.onDispose(() -> {
+                upstream.dispose();
+                frame.cancelTimer();
+            });
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    /**
+     * 已发出的帧数
+     */
+    long frameCount(Trigger trigger) {
+        return frames.get(trigger).sum();
+    }
+
+    long tokenCount() {
+        return tokens.sum();
+    }
+
+    /**
+     * 单个流的合并状态（模型回调线程与定时刷新线程之间同步）
+     */
+    private final class Frame {
+        private final FluxSink<String> sink;
+        private final StringBuilder pending = new StringBuilder();
+        private int pendingBytes;
+        private boolean first = true;
+        private Disposable timer;
+
+        private Frame(FluxSink<String> sink) {
+            this.sink = sink;
+        }
+
+        synchronized void onToken(String token) {
+            tokens.increment();
+            if (first) {
+                first = false;
+                emit(token, Trigger.FIRST);
+                return;
+            }
+            pending.append(token);
+            pendingBytes += utf8Length(token);
+            if (pendingBytes >= maxBytes) {
+                flush(Trigger.SIZE);
+            } else if (timer == null) {
+                timer = Schedulers.parallel().schedule(this::onTimer, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        synchronized void onTimer() {
+            timer = null;
+            flush(Trigger.INTERVAL);
+        }
+
+        synchronized void onComplete() {
+            flush(Trigger.COMPLETE);
+            sink.complete();
+        }
+
+        synchronized void onError(Throwable error) {
+            flush(Trigger.COMPLETE);
+            sink.error(error);
+        }
+
+        synchronized void cancelTimer() {
+            if (timer != null) {
+                timer.dispose();
+                timer = null;
+            }
+        }
+
+        private void flush(Trigger trigger) {
+            cancelTimer();
+            if (pending.isEmpty()) {
+                return;
+            }
+            String frame = pending.toString();
+            pending.setLength(0);
+            pendingBytes = 0;
+            emit(frame, trigger);
+        }
+
+        private void emit(String frame, Trigger trigger) {
+            frames.get(trigger).increment();
+            sink.next(frame);
+        }
+    }
+
+    /**
+     * UTF-8 编码后的字节数（不创建字节数组）
+     */
+    static int utf8Length(String text) {
+        int bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                // 代理对共 4 字节，每个 char 计 2
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("chat.stream.tokens", tokens, LongAdder::sum)
+            .description("流式响应收到的 token 数")
+            .register(registry);
+        for (Trigger trigger : Trigger.values()) {
+            FunctionCounter.builder("chat.stream.frames", frames.get(trigger), LongAdder::sum)
+                .description("流式响应发出的帧数（每帧一次写入和刷新）")
+                .tag("trigger", trigger.name().toLowerCase(Locale.ROOT))
+                .register(registry);
+        }
+    }
+}
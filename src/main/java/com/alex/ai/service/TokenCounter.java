@@ -0,0 +1,78 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * 本地 Token 计数器
+ *
+ * 基于 jtokkit 的 BPE 分词在本地估算 token 数，不发起任何网络请求。
+ * 通义千问等模型没有公开的 Java 分词器，使用 OpenAI 编码作为近似，
+ * 用于上下文预算控制已经足够准确。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@Slf4j
+@Component
+public class TokenCounter {
+
+    /**
+     * 默认用于估算的编码模型
+     */
+    public static final String DEFAULT_MODEL = "gpt-4o";
+
+    private final TokenCountEstimator estimator;
+
+    public TokenCounter(@Value("${langchain4j.tokenizer.model-name:" + DEFAULT_MODEL + "}") String modelName) {
+        this.estimator = createEstimator(modelName);
+    }
+
+    /**
+     * 获取默认计数器（未注入 Spring Bean 时使用，例如单元测试）
+     */
+    public static TokenCounter defaultCounter() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * 估算文本 token 数
+     */
+    public int count(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        return estimator.estimateTokenCountInText(text);
+    }
+
+    /**
+     * 估算单条消息 token 数（包含角色等格式开销）
+     */
+    public int count(ChatMessage message) {
+        return estimator.estimateTokenCountInMessage(message);
+    }
+
+    /**
+     * 估算消息列表 token 数
+     */
+    public int count(Iterable<ChatMessage> messages) {
+        return estimator.estimateTokenCountInMessages(messages);
+    }
+
+    private static TokenCountEstimator createEstimator(String modelName) {
+        try {
+            return new OpenAiTokenCountEstimator(modelName);
+        } catch (Exception e) {
+            log.warn("无法为模型 {} 创建分词器，使用 {} 近似: {}", modelName, DEFAULT_MODEL, e.getMessage());
+            return new OpenAiTokenCountEstimator(DEFAULT_MODEL);
+        }
+    }
+
+    private static class Holder {
+        private static final TokenCounter INSTANCE = new TokenCounter(DEFAULT_MODEL);
+    }
+}
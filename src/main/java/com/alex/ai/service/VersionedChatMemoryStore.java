@@ -0,0 +1,64 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带版本号和会话元数据的会话历史存储
+ *
+ * 每个会话保存为一条记录：完整历史、会话元数据（如 RAG 开关）和版本号。
+ * 每次写入版本号递增；{@link #compareAndSet} 只在存储中的版本与预期一致时写入，
+ * 多个副本同时处理同一会话时，后写入的一方会发现冲突，不会静默覆盖对方追加的消息。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+public interface VersionedChatMemoryStore extends ChatMemoryStore {
+
+    /**
+     * 存储中的会话记录
+     *
+     * @param messages 完整历史
+     * @param metadata 会话元数据
+     * @param version 版本号（会话不存在时为 0）
+     */
+    record StoredSession(List<ChatMessage> messages, Map<String, String> metadata, long version) {
+        public static final StoredSession EMPTY = new StoredSession(List.of(), Map.of(), 0);
+
+        public StoredSession {
+            messages = List.copyOf(messages);
+            metadata = Map.copyOf(metadata);
+        }
+    }
+
+    /**
+     * 读取会话记录
+     *
+     * @return 会话记录，不存在时返回 {@link StoredSession#EMPTY}
+     */
+    StoredSession load(Object memoryId);
+
+    /**
+     * 读取会话当前的版本号（不读取历史，供读缓存校验）
+     *
+     * @return 版本号，不存在时返回 0
+     */
+    long version(Object memoryId);
+
+    /**
+     * 版本一致时写入会话记录
+     *
+     * @param expectedVersion 预期的当前版本（新会话为 0）
+     * @param session 新的会话记录（版本号须大于 expectedVersion）
+     * @return 是否写入；存储中的版本已被其他副本更新时返回 false
+     */
+    boolean compareAndSet(Object memoryId, long expectedVersion, StoredSession session);
+
+    @Override
+    default List<ChatMessage> getMessages(Object memoryId) {
+        return load(memoryId).messages();
+    }
+}
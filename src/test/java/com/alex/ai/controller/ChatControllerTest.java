@@ -1,5 +1,7 @@
 package com.alex.ai.controller;
 
+import com.alex.ai.exception.BusinessException;
+import com.alex.ai.service.ChatExecutor;
 import com.alex.ai.service.ChatService;
 import com.alex.ai.service.ConversationService;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -8,13 +10,22 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import reactor.core.publisher.Flux;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
@@ -25,6 +36,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  * @since 2026-01-05
  */
 @WebMvcTest(ChatController.class)
+@Import(ChatExecutor.class)
 @DisplayName("ChatController 集成测试")
 class ChatControllerTest {
 
@@ -149,6 +161,132 @@ class ChatControllerTest {
         verify(conversationService).clearSession(sessionId);
     }
 
+    @Test
+    @DisplayName("POST /api/chat/conversation/{sessionId}/fork - 分叉会话")
+    void forkConversation_shouldReturnNewSessionId() throws Exception {
+        // Given
+        when(conversationService.forkSession("session-1", 2)).thenReturn("fork-1");
+
+        // When & Then
+        mockMvc.perform(post("/api/chat/conversation/{sessionId}/fork", "session-1")
+                .param("keepMessages", "2"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.message").value("会话已分叉"))
+            .andExpect(jsonPath("$.sessionId").value("fork-1"));
+    }
+
+    @Test
+    @DisplayName("POST /api/chat/conversation/stream - 带 Last-Event-ID 时续传，不重新生成")
+    void streamConversation_shouldResumeWithLastEventId() throws Exception {
+        // Given
+        when(conversationService.resumeStream(eq("stream-1:3"), eq("s1"), eq("你好"), any())).thenReturn(true);
+
+        // When & Then
+        mockMvc.perform(post("/api/chat/conversation/stream")
+                .header("Last-Event-ID", "stream-1:3")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Map.of("message", "你好", "sessionId", "s1"))))
+            .andExpect(request().asyncStarted());
+        verify(conversationService).resumeStream(eq("stream-1:3"), eq("s1"), eq("你好"), any());
+        verify(conversationService, never()).streamConversation(anyString(), anyString(), any());
+    }
+
+    @Test
+    @DisplayName("POST /api/chat/conversation/flux - 响应式流式对话")
+    void fluxConversation_shouldStreamTokensThenDone() throws Exception {
+        // Given
+        when(conversationService.streamReply("flux-session", "你好")).thenReturn(Flux.just("你", "好"));
+
+        // When
+        MvcResult result = mockMvc.perform(post("/api/chat/conversation/flux")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Map.of("message", "你好", "sessionId", "flux-session"))))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        result.getAsyncResult(5000);
+
+        // Then - 每个 token 一个事件，最后是完成信号
+        String body = result.getResponse().getContentAsString(StandardCharsets.UTF_8);
+        assertThat(body).isEqualTo("data:你\n\ndata:好\n\nevent:done\ndata:[DONE]\n\n");
+    }
+
+    @Test
+    @DisplayName("POST /api/chat/simple/stream - 流式简单对话")
+    void streamSimpleChat_shouldStreamTokensThenDone() throws Exception {
+        // Given
+        when(chatService.streamChat(null, "你好")).thenReturn(Flux.just("你", "好"));
+
+        // When
+        MvcResult result = mockMvc.perform(post("/api/chat/simple/stream")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Map.of("message", "你好"))))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        result.getAsyncResult(5000);
+
+        // Then - 与流式多轮对话相同的事件格式
+        String body = result.getResponse().getContentAsString(StandardCharsets.UTF_8);
+        assertThat(body).isEqualTo("data:你\n\ndata:好\n\nevent:done\ndata:[DONE]\n\n");
+    }
+
+    @Test
+    @DisplayName("POST /api/chat/simple/stream - 模型并发名额已满时返回 error 事件")
+    void streamSimpleChat_shouldSendErrorEventWhenRejected() throws Exception {
+        // Given
+        when(chatService.streamChat(null, "你好"))
+            .thenReturn(Flux.error(BusinessException.tooManyRequests("当前对话请求过多，请稍后重试")));
+
+        // When
+        MvcResult result = mockMvc.perform(post("/api/chat/simple/stream")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Map.of("message", "你好"))))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+        result.getAsyncResult(5000);
+
+        // Then
+        String body = result.getResponse().getContentAsString(StandardCharsets.UTF_8);
+        assertThat(body).isEqualTo("event:error\ndata:当前对话请求过多，请稍后重试\n\n");
+    }
+
+    @Test
+    @DisplayName("GET /api/chat/sessions/stream - 分页查询会话")
+    void streamSessions_shouldWriteNdjsonWithCursor() throws Exception {
+        // Given
+        Instant now = Instant.now();
+        when(conversationService.listSessions(eq("session-0"), eq(2), any())).thenReturn(
+            new ConversationService.SessionPage(List.of(
+                new ConversationService.SessionSummary("session-1", 3, true, now, now, 0),
+                new ConversationService.SessionSummary("session-2", 5, false, now, now, 60)
+            ), "session-2"));
+
+        // When
+        MvcResult result = mockMvc.perform(get("/api/chat/sessions/stream")
+                .param("cursor", "session-0")
+                .param("limit", "2")
+                .param("ragEnabled", "true"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        // Then - 每行一个会话，游标在响应头中
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(header().string("X-Next-Cursor", "session-2"))
+            .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON));
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(objectMapper.readTree(lines[1]).get("messageCount").asInt()).isEqualTo(5);
+        verify(conversationService).listSessions(eq("session-0"), eq(2),
+            eq(new ConversationService.SessionFilter(null, null, null, null, true)));
+    }
+
+    @Test
+    @DisplayName("GET /api/chat/sessions/stream - 超出单页上限返回 400")
+    void streamSessions_shouldRejectOversizedPage() throws Exception {
+        mockMvc.perform(get("/api/chat/sessions/stream").param("limit", "5000"))
+            .andExpect(status().isBadRequest());
+    }
+
     @Test
     @DisplayName("GET /api/chat/health - 健康检查")
     void health_shouldReturnOk() throws Exception {
@@ -0,0 +1,297 @@
+package com.alex.ai.controller;
+
+import com.alex.ai.config.ApiSecurityProperties;
+import com.alex.ai.exception.BusinessException;
+import com.alex.ai.model.ChatSocketMessage;
+import com.alex.ai.security.RateLimiter;
+import com.alex.ai.service.ChatExecutor;
+import com.alex.ai.service.ConversationService;
+import com.alex.ai.service.SseStreamWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * ChatWebSocketHandler 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("ChatWebSocketHandler 单元测试")
+class ChatWebSocketHandlerTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ConversationService conversationService;
+    private ChatExecutor chatExecutor;
+    private SseStreamWriter streamWriter;
+    private ChatWebSocketHandler handler;
+    private WebSocketSession session;
+    private final List<ChatSocketMessage> sent = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        setUp(256, "coalesce");
+    }
+
+    private void setUp(int capacity, String policy) throws Exception {
+        if (streamWriter != null) {
+            tearDown();
+        }
+        conversationService = mock(ConversationService.class);
+        chatExecutor = new ChatExecutor();
+        ReflectionTestUtils.setField(chatExecutor, "maxConcurrent", 4);
+        ReflectionTestUtils.invokeMethod(chatExecutor, "init");
+        streamWriter = new SseStreamWriter();
+        ReflectionTestUtils.setField(streamWriter, "capacity", capacity);
+        ReflectionTestUtils.setField(streamWriter, "policyName", policy);
+        ReflectionTestUtils.invokeMethod(streamWriter, "init");
+        handler = new ChatWebSocketHandler(conversationService, chatExecutor, objectMapper,
+            new RateLimiter(new ApiSecurityProperties()), streamWriter);
+
+        session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("ws-1");
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(ChatWebSocketHandler.CLIENT_IP_ATTRIBUTE, "10.0.0.1");
+        when(session.getAttributes()).thenReturn(attributes);
+        when(session.isOpen()).thenReturn(true);
+        doAnswer(invocation -> {
+            WebSocketMessage<?> message = invocation.getArgument(0);
+            sent.add(objectMapper.readValue((String) message.getPayload(), ChatSocketMessage.class));
+            return null;
+        }).when(session).sendMessage(any());
+        handler.afterConnectionEstablished(session);
+    }
+
+    @AfterEach
+    void tearDown() {
+        chatExecutor.shutdown();
+        streamWriter.shutdown();
+    }
+
+    private void receive(Map<String, String> frame) throws Exception {
+        handler.handleTextMessage(session, new TextMessage(objectMapper.writeValueAsString(frame)));
+    }
+
+    /**
+     * 写出在写出线程中进行，等待满足条件的帧写出
+     */
+    private void awaitSent(Predicate<List<ChatSocketMessage>> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.test(sent) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitFrames(String id, int count) throws InterruptedException {
+        awaitSent(frames -> framesOf(id).size() >= count);
+    }
+
+    private List<String> framesOf(String id) {
+        return sent.stream()
+            .filter(frame -> id.equals(frame.getId()))
+            .map(frame -> frame.getType() + (frame.getData() != null ? ":" + frame.getData() : ""))
+            .toList();
+    }
+
+    @Test
+    @DisplayName("多路复用 - 同一连接上多个会话的对话按对话 ID 分帧返回")
+    void chat_shouldMultiplexSessionsOverOneConnection() throws Exception {
+        // Given
+        when(conversationService.streamReply("session-a", "你好")).thenReturn(Flux.just("你", "好"));
+        when(conversationService.streamReply("session-b", "在吗")).thenReturn(Flux.just("在"));
+
+        // When
+        receive(Map.of("type", "chat", "id", "t1", "sessionId", "session-a", "message", "你好"));
+        receive(Map.of("type", "chat", "id", "t2", "sessionId", "session-b", "message", "在吗"));
+        receive(Map.of("type", "ping", "id", "p1"));
+
+        // Then
+        awaitFrames("t1", 3);
+        awaitFrames("t2", 2);
+        awaitFrames("p1", 1);
+        assertThat(framesOf("t1")).containsExactly("delta:你", "delta:好", "done");
+        assertThat(framesOf("t2")).containsExactly("delta:在", "done");
+        assertThat(framesOf("p1")).containsExactly("pong");
+        assertThat(chatExecutor.inFlight()).isZero();
+    }
+
+    @Test
+    @DisplayName("取消 - cancel 帧只取消对应的一轮，连接关闭时取消其余对话")
+    void cancel_shouldDisposeTurnAndCloseShouldDisposeRest() throws Exception {
+        // Given - 两轮生成中的对话
+        AtomicBoolean firstCancelled = new AtomicBoolean();
+        AtomicBoolean secondCancelled = new AtomicBoolean();
+        Sinks.Many<String> first = Sinks.many().unicast().onBackpressureBuffer();
+        Sinks.Many<String> second = Sinks.many().unicast().onBackpressureBuffer();
+        when(conversationService.streamReply("session-a", "写一首诗"))
+            .thenReturn(first.asFlux().doOnCancel(() -> firstCancelled.set(true)));
+        when(conversationService.streamReply("session-b", "写一篇文章"))
+            .thenReturn(second.asFlux().doOnCancel(() -> secondCancelled.set(true)));
+        receive(Map.of("type", "chat", "id", "t1", "sessionId", "session-a", "message", "写一首诗"));
+        receive(Map.of("type", "chat", "id", "t2", "sessionId", "session-b", "message", "写一篇文章"));
+        first.tryEmitNext("春");
+        assertThat(chatExecutor.inFlight()).isEqualTo(2);
+
+        // When - 取消第一轮；重复的对话 ID 被拒绝
+        receive(Map.of("type", "cancel", "id", "t1"));
+        receive(Map.of("type", "chat", "id", "t2", "sessionId", "session-b", "message", "写一篇文章"));
+
+        // Then
+        awaitFrames("t1", 2);
+        awaitFrames("t2", 1);
+        assertThat(framesOf("t1")).containsExactly("delta:春", "cancelled");
+        assertThat(firstCancelled).isTrue();
+        assertThat(secondCancelled).isFalse();
+        assertThat(sent.get(sent.size() - 1).getCode()).isEqualTo(400);
+        assertThat(chatExecutor.inFlight()).isEqualTo(1);
+
+        // When - 连接关闭
+        handler.afterConnectionClosed(session, CloseStatus.GOING_AWAY);
+
+        // Then
+        assertThat(secondCancelled).isTrue();
+        assertThat(chatExecutor.inFlight()).isZero();
+        assertThat(handler.connectionCount()).isZero();
+    }
+
+    @Test
+    @DisplayName("限流 - 每轮对话消耗 chat-stream 令牌，超出后返回 429")
+    void chat_shouldApplyPerIpRateLimit() throws Exception {
+        // Given
+        when(conversationService.streamReply(any(), any())).thenReturn(Flux.just("好"));
+
+        // When - 与 HTTP 流式接口相同，每分钟 20 轮
+        for (int i = 0; i < 21; i++) {
+            receive(Map.of("type", "chat", "id", "t" + i, "message", "你好"));
+        }
+
+        // Then
+        awaitFrames("t20", 1);
+        assertThat(framesOf("t19")).containsExactly("delta:好", "done");
+        assertThat(sent.get(sent.size() - 1).getCode()).isEqualTo(429);
+        verify(conversationService, times(20)).streamReply(any(), any());
+    }
+
+    @Test
+    @DisplayName("错误 - error 帧只包含固定提示，不回显异常信息")
+    void chat_shouldNotEchoErrorMessage() throws Exception {
+        // Given
+        when(conversationService.streamReply("session-a", "你好"))
+            .thenReturn(Flux.error(new IllegalStateException("upstream https://internal:8443 refused")));
+        when(conversationService.streamReply("session-b", "你好"))
+            .thenReturn(Flux.error(BusinessException.tooManyRequests("会话 session-b 繁忙")));
+
+        // When
+        receive(Map.of("type", "chat", "id", "t1", "sessionId", "session-a", "message", "你好"));
+        receive(Map.of("type", "chat", "id", "t2", "sessionId", "session-b", "message", "你好"));
+
+        // Then
+        awaitFrames("t1", 1);
+        awaitFrames("t2", 1);
+        assertThat(sent).filteredOn(frame -> "t1".equals(frame.getId())).singleElement()
+            .satisfies(frame -> {
+                assertThat(frame.getCode()).isEqualTo(500);
+                assertThat(frame.getData()).isEqualTo("系统繁忙，请稍后重试");
+            });
+        assertThat(sent).filteredOn(frame -> "t2".equals(frame.getId())).singleElement()
+            .satisfies(frame -> {
+                assertThat(frame.getCode()).isEqualTo(429);
+                assertThat(frame.getData()).isEqualTo("请求过于频繁，请稍后再试");
+            });
+    }
+
+    @Test
+    @DisplayName("慢客户端 - coalesce 只合并同一轮对话的 delta 帧")
+    void send_shouldCoalesceDeltasPerTurn() throws Exception {
+        // Given - 队列容量 2，第一帧写出阻塞
+        setUp(2, "coalesce");
+        CountDownLatch release = blockFirstSend();
+        Sinks.Many<String> first = Sinks.many().unicast().onBackpressureBuffer();
+        Sinks.Many<String> second = Sinks.many().unicast().onBackpressureBuffer();
+        when(conversationService.streamReply("session-a", "写一首诗")).thenReturn(first.asFlux());
+        when(conversationService.streamReply("session-b", "写一篇文章")).thenReturn(second.asFlux());
+        receive(Map.of("type", "chat", "id", "t1", "sessionId", "session-a", "message", "写一首诗"));
+        receive(Map.of("type", "chat", "id", "t2", "sessionId", "session-b", "message", "写一篇文章"));
+
+        // When - 两轮交替输出
+        first.tryEmitNext("春");
+        first.tryEmitNext("眠");
+        second.tryEmitNext("从");
+        first.tryEmitNext("不");
+        second.tryEmitNext("前");
+        first.tryEmitNext("觉");
+        first.tryEmitComplete();
+        second.tryEmitComplete();
+        release.countDown();
+
+        // Then - 每轮的内容完整且不串轮
+        awaitFrames("t1", 3);
+        awaitFrames("t2", 2);
+        assertThat(String.join("", framesOf("t1"))).isEqualTo("delta:春delta:眠不觉done");
+        assertThat(String.join("", framesOf("t2"))).isEqualTo("delta:从前done");
+    }
+
+    @Test
+    @DisplayName("慢客户端 - drop 策略队列满时关闭连接并取消进行中的对话，模型回调不阻塞")
+    void send_shouldCloseSessionWhenQueueIsFull() throws Exception {
+        // Given - 队列容量 1，第一帧写出阻塞
+        setUp(1, "drop");
+        CountDownLatch release = blockFirstSend();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Sinks.Many<String> tokens = Sinks.many().unicast().onBackpressureBuffer();
+        when(conversationService.streamReply("session-a", "写一首诗"))
+            .thenReturn(tokens.asFlux().doOnCancel(() -> cancelled.set(true)));
+        receive(Map.of("type", "chat", "id", "t1", "sessionId", "session-a", "message", "写一首诗"));
+
+        // When
+        tokens.tryEmitNext("春");
+        tokens.tryEmitNext("眠");
+        tokens.tryEmitNext("不");
+
+        // Then
+        assertThat(cancelled).isTrue();
+        assertThat(chatExecutor.inFlight()).isZero();
+        verify(session, timeout(5000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+        release.countDown();
+    }
+
+    /**
+     * 第一次写出阻塞到返回的闩被释放，模拟慢客户端
+     */
+    private CountDownLatch blockFirstSend() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            if (sending.getCount() > 0) {
+                sending.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            WebSocketMessage<?> message = invocation.getArgument(0);
+            sent.add(objectMapper.readValue((String) message.getPayload(), ChatSocketMessage.class));
+            return null;
+        }).when(session).sendMessage(any());
+        return release;
+    }
+}
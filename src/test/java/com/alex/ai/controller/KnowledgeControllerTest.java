@@ -45,7 +45,8 @@ class KnowledgeControllerTest {
         String title = "测试标题";
         String content = "测试内容";
         String entryId = "abc12345";
-        when(knowledgeService.addKnowledge(anyString(), anyString())).thenReturn(entryId);
+        when(knowledgeService.ingestKnowledge(anyString(), anyString()))
+            .thenReturn(new IngestResult(entryId, 1, 1, List.of()));
 
         // When & Then
         mockMvc.perform(post("/api/knowledge")
@@ -57,9 +58,11 @@ class KnowledgeControllerTest {
             .andExpect(status().isOk())
             .andExpect(jsonPath("$.success").value(true))
             .andExpect(jsonPath("$.id").value(entryId))
-            .andExpect(jsonPath("$.message").value("知识添加成功"));
+            .andExpect(jsonPath("$.message").value("知识添加成功"))
+            .andExpect(jsonPath("$.storedSegments").value(1))
+            .andExpect(jsonPath("$.collapsed").isEmpty());
         
-        verify(knowledgeService).addKnowledge(title, content);
+        verify(knowledgeService).ingestKnowledge(title, content);
     }
 
     @Test
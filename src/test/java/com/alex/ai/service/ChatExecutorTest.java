@@ -0,0 +1,82 @@
+package com.alex.ai.service;
+
+import com.alex.ai.exception.BusinessException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * ChatExecutor 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("ChatExecutor 单元测试")
+class ChatExecutorTest {
+
+    private ChatExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = new ChatExecutor();
+        ReflectionTestUtils.setField(executor, "maxConcurrent", 2);
+        ReflectionTestUtils.setField(executor, "virtualThreadsEnabled", true);
+        executor.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    @DisplayName("阻塞调用 - 在当前线程执行并归还名额")
+    void call_shouldRunOnCallerThread() {
+        // When
+        String thread = executor.call(() -> Thread.currentThread().getName());
+
+        // Then
+        assertThat(thread).isEqualTo(Thread.currentThread().getName());
+        assertThat(executor.inFlight()).isZero();
+    }
+
+    @Test
+    @DisplayName("流式任务 - 连接结束前占用名额，超出上限返回 429")
+    void stream_shouldHoldPermitUntilEmitterCompletes() throws Exception {
+        // Given - 捕获 SSE 连接的完成回调
+        SseEmitter first = mock(SseEmitter.class);
+        SseEmitter second = mock(SseEmitter.class);
+        Runnable[] completion = new Runnable[1];
+        doAnswer(inv -> completion[0] = inv.getArgument(0)).when(first).onCompletion(any());
+        CountDownLatch started = new CountDownLatch(2);
+
+        // When - 任务本身很快返回，但连接还没有结束
+        executor.stream(first, started::countDown);
+        executor.stream(second, started::countDown);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // Then
+        assertThat(executor.inFlight()).isEqualTo(2);
+        assertThatThrownBy(() -> executor.call(() -> "第三个"))
+            .isInstanceOf(BusinessException.class);
+
+        // When - 连接结束（重复回调只归还一次）
+        completion[0].run();
+        completion[0].run();
+
+        // Then
+        assertThat(executor.inFlight()).isEqualTo(1);
+        assertThat(executor.call(() -> "ok")).isEqualTo("ok");
+    }
+}
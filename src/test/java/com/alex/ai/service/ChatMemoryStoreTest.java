@@ -0,0 +1,375 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * 会话历史存储单元测试
+ *
+ * Redis 存储使用测试内的 RESP 替身服务（只实现哈希读取、DEL 和写入脚本的语义），无需真实 Redis。
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("会话历史存储单元测试")
+class ChatMemoryStoreTest {
+
+    private static final List<ChatMessage> HISTORY = List.of(
+        SystemMessage.from("你是一个助手"),
+        UserMessage.from("你好"),
+        AiMessage.from("你好！有什么可以帮助你的？")
+    );
+
+    private FakeRespServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new FakeRespServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    @DisplayName("本地磁盘存储 - 写入、读取、删除")
+    void fileStore_shouldRoundTrip(@TempDir Path directory) {
+        // Given
+        FileChatMemoryStore store = new FileChatMemoryStore(directory);
+
+        // When
+        store.updateMessages("session-1", HISTORY);
+
+        // Then - 新实例（模拟重启）也能读到
+        assertThat(new FileChatMemoryStore(directory).getMessages("session-1")).isEqualTo(HISTORY);
+        assertThat(store.getMessages("missing")).isEmpty();
+
+        store.deleteMessages("session-1");
+        assertThat(store.getMessages("session-1")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("本地磁盘存储 - 元数据随历史保存，版本不一致时拒绝写入")
+    void fileStore_shouldCompareVersionBeforeWrite(@TempDir Path directory) {
+        // Given
+        FileChatMemoryStore store = new FileChatMemoryStore(directory);
+        assertThat(store.compareAndSet("session-1", 0, session(HISTORY, 1))).isTrue();
+
+        // When - 基于旧版本写入
+        boolean stale = store.compareAndSet("session-1", 0, session(HISTORY.subList(0, 1), 1));
+
+        // Then
+        assertThat(stale).isFalse();
+        VersionedChatMemoryStore.StoredSession stored = new FileChatMemoryStore(directory).load("session-1");
+        assertThat(stored.messages()).isEqualTo(HISTORY);
+        assertThat(stored.metadata()).containsEntry("ragEnabled", "false");
+        assertThat(stored.version()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Redis 存储 - 写入、读取、删除")
+    void redisStore_shouldRoundTrip() {
+        // Given
+        RedisChatMemoryStore store = new RedisChatMemoryStore(
+            "localhost", server.port(), null, 0, "conversation:", Duration.ofMinutes(10), Duration.ofSeconds(2));
+
+        // When
+        store.updateMessages("session-1", HISTORY);
+
+        // Then
+        assertThat(server.data).containsKey("conversation:session-1");
+        assertThat(store.getMessages("session-1")).isEqualTo(HISTORY);
+
+        store.deleteMessages("session-1");
+        assertThat(store.getMessages("session-1")).isEmpty();
+        store.close();
+    }
+
+    @Test
+    @DisplayName("Redis 存储 - 版本一致才写入，元数据随历史保存")
+    void redisStore_shouldCompareVersionBeforeWrite() {
+        // Given - 两个副本
+        RedisChatMemoryStore replicaA = redisStore();
+        RedisChatMemoryStore replicaB = redisStore();
+        assertThat(replicaA.compareAndSet("session-1", 0, session(HISTORY, 1))).isTrue();
+
+        // When - B 基于旧版本写入
+        boolean stale = replicaB.compareAndSet("session-1", 0, session(HISTORY.subList(0, 1), 1));
+
+        // Then
+        assertThat(stale).isFalse();
+        VersionedChatMemoryStore.StoredSession stored = replicaB.load("session-1");
+        assertThat(stored.messages()).isEqualTo(HISTORY);
+        assertThat(stored.metadata()).containsEntry("ragEnabled", "false");
+        assertThat(replicaB.version("session-1")).isEqualTo(1);
+        replicaA.close();
+        replicaB.close();
+    }
+
+    @Test
+    @DisplayName("批量存储 - 合并同一会话的多次更新并通过管道写入")
+    void batchingStore_shouldCoalesceWrites() throws Exception {
+        // Given
+        RedisChatMemoryStore redis = new RedisChatMemoryStore(
+            "localhost", server.port(), null, 0, "conversation:", Duration.ZERO, Duration.ofSeconds(2));
+        BatchingChatMemoryStore store = new BatchingChatMemoryStore(
+            redis, Duration.ofMinutes(1), 100, Duration.ofSeconds(10), 100);
+
+        // When - 同一会话更新 3 次，另一会话更新 1 次
+        store.updateMessages("session-1", HISTORY.subList(0, 1));
+        store.updateMessages("session-1", HISTORY.subList(0, 2));
+        store.updateMessages("session-1", HISTORY);
+        store.updateMessages("session-2", HISTORY.subList(0, 1));
+
+        // Then - 写入前即可读到最新历史（写穿读缓存）
+        assertThat(store.getMessages("session-1")).isEqualTo(HISTORY);
+        assertThat(server.commands.get()).isZero();
+
+        store.flush();
+
+        // Then - 只写入 2 条命令
+        assertThat(server.commands.get()).isEqualTo(2);
+        assertThat(redis.getMessages("session-1")).isEqualTo(HISTORY);
+        store.close();
+    }
+
+    @Test
+    @DisplayName("批量存储 - 其他副本已写入时在最新历史上重放本机追加的消息")
+    void batchingStore_shouldReplayLocalTurnsOnConflict() {
+        // Given - 两个副本基于同一版本各自追加一轮
+        BatchingChatMemoryStore replicaA = batchingStore();
+        BatchingChatMemoryStore replicaB = batchingStore();
+        replicaA.compareAndSet("session-1", 0, session(HISTORY.subList(0, 1), 1));
+        replicaA.flush();
+        VersionedChatMemoryStore.StoredSession baseA = replicaA.load("session-1");
+        VersionedChatMemoryStore.StoredSession baseB = replicaB.load("session-1");
+        List<ChatMessage> turnA = append(baseA.messages(), UserMessage.from("A 的问题"), AiMessage.from("A 的回答"));
+        List<ChatMessage> turnB = append(baseB.messages(), UserMessage.from("B 的问题"), AiMessage.from("B 的回答"));
+        replicaA.compareAndSet("session-1", baseA.version(), session(turnA, baseA.version() + 1));
+        replicaB.compareAndSet("session-1", baseB.version(), session(turnB, baseB.version() + 1));
+
+        // When - A 先写入，B 写入时版本冲突，重放后再次写入
+        replicaA.flush();
+        replicaB.flush();
+        replicaB.flush();
+
+        // Then - 两轮都保留
+        List<ChatMessage> stored = redisStore().getMessages("session-1");
+        assertThat(stored).hasSize(5);
+        assertThat(stored.subList(1, 3)).isEqualTo(turnA.subList(1, 3));
+        assertThat(stored.subList(3, 5)).isEqualTo(turnB.subList(1, 3));
+        replicaA.close();
+        replicaB.close();
+    }
+
+    @Test
+    @DisplayName("批量存储 - 读缓存按版本号校验，其他副本的更新立即可见")
+    void batchingStore_shouldInvalidateCacheWhenVersionChanges() {
+        // Given - B 已缓存旧历史
+        BatchingChatMemoryStore replicaA = batchingStore();
+        BatchingChatMemoryStore replicaB = batchingStore();
+        replicaA.compareAndSet("session-1", 0, session(HISTORY.subList(0, 1), 1));
+        replicaA.flush();
+        assertThat(replicaB.getMessages("session-1")).hasSize(1);
+
+        // When - A 写入新的一轮
+        replicaA.compareAndSet("session-1", 1, session(HISTORY, 2));
+        replicaA.flush();
+
+        // Then
+        assertThat(replicaB.load("session-1").messages()).isEqualTo(HISTORY);
+        assertThat(replicaB.load("session-1").metadata()).containsEntry("ragEnabled", "false");
+        replicaA.close();
+        replicaB.close();
+    }
+
+    @Test
+    @DisplayName("批量存储 - 读缓存命中时不访问底层存储")
+    void batchingStore_shouldServeReadsFromCache() throws Exception {
+        // Given
+        VersionedChatMemoryStore delegate = mock(VersionedChatMemoryStore.class);
+        when(delegate.load(any())).thenReturn(new VersionedChatMemoryStore.StoredSession(HISTORY, Map.of(), 1));
+        when(delegate.version(any())).thenReturn(1L);
+        BatchingChatMemoryStore store = new BatchingChatMemoryStore(
+            delegate, Duration.ofMinutes(1), 100, Duration.ofSeconds(10), 100);
+
+        // When
+        store.getMessages("session-1");
+        store.getMessages("session-1");
+        store.deleteMessages("session-1");
+
+        // Then - 命中缓存时只查询版本号
+        verify(delegate, times(1)).load("session-1");
+        assertThat(store.getMessages("session-1")).isEmpty();
+        store.close();
+        verify(delegate).deleteMessages("session-1");
+    }
+
+    private RedisChatMemoryStore redisStore() {
+        return new RedisChatMemoryStore(
+            "localhost", server.port(), null, 0, "conversation:", Duration.ZERO, Duration.ofSeconds(2));
+    }
+
+    private BatchingChatMemoryStore batchingStore() {
+        return new BatchingChatMemoryStore(redisStore(), Duration.ofMinutes(1), 100, Duration.ofSeconds(10), 100);
+    }
+
+    private static VersionedChatMemoryStore.StoredSession session(List<ChatMessage> messages, long version) {
+        return new VersionedChatMemoryStore.StoredSession(messages, Map.of("ragEnabled", "false"), version);
+    }
+
+    private static List<ChatMessage> append(List<ChatMessage> messages, ChatMessage... turn) {
+        List<ChatMessage> result = new ArrayList<>(messages);
+        result.addAll(List.of(turn));
+        return result;
+    }
+
+    /**
+     * 测试用 RESP 替身服务，只支持 HGET/HGETALL/DEL，EVAL 按会话写入脚本的语义模拟
+     */
+    private static class FakeRespServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final Map<String, Map<String, String>> data = new ConcurrentHashMap<>();
+        private final AtomicInteger commands = new AtomicInteger();
+
+        FakeRespServer() throws IOException {
+            Thread acceptor = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        Thread handler = new Thread(() -> handle(socket));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void handle(Socket socket) {
+            try (socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                while (true) {
+                    List<String> command = readCommand(in);
+                    if (command == null) {
+                        return;
+                    }
+                    String name = command.get(0).toUpperCase();
+                    if (!name.startsWith("HGET")) {
+                        commands.incrementAndGet();
+                    }
+                    String reply = switch (name) {
+                        case "EVAL" -> ":" + eval(command) + "\r\n";
+                        case "HGET" -> {
+                            String value = data.getOrDefault(command.get(1), Map.of()).get(command.get(2));
+                            yield value == null ? "$-1\r\n" : bulk(value);
+                        }
+                        case "HGETALL" -> {
+                            Map<String, String> hash = data.getOrDefault(command.get(1), Map.of());
+                            StringBuilder builder = new StringBuilder("*" + hash.size() * 2 + "\r\n");
+                            hash.forEach((field, value) -> builder.append(bulk(field)).append(bulk(value)));
+                            yield builder.toString();
+                        }
+                        case "DEL" -> ":" + (data.remove(command.get(1)) == null ? 0 : 1) + "\r\n";
+                        default -> "-ERR unknown command\r\n";
+                    };
+                    out.write(reply.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // 连接关闭
+            }
+        }
+
+        /**
+         * EVAL script 1 key expected version ttl field value ...
+         */
+        private synchronized long eval(List<String> command) {
+            Map<String, String> hash = data.computeIfAbsent(command.get(3), key -> new ConcurrentHashMap<>());
+            long current = Long.parseLong(hash.getOrDefault("version", "0"));
+            if (!"*".equals(command.get(4)) && current != Long.parseLong(command.get(4))) {
+                return 0;
+            }
+            long version = "*".equals(command.get(5)) ? current + 1 : Long.parseLong(command.get(5));
+            hash.put("version", String.valueOf(version));
+            for (int i = 7; i + 1 < command.size(); i += 2) {
+                hash.put(command.get(i), command.get(i + 1));
+            }
+            return version;
+        }
+
+        private static String bulk(String value) {
+            return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+        }
+
+        private static List<String> readCommand(InputStream in) throws IOException {
+            String header = readLine(in);
+            if (header == null) {
+                return null;
+            }
+            int count = Integer.parseInt(header.substring(1));
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = Integer.parseInt(readLine(in).substring(1));
+                byte[] bytes = in.readNBytes(length);
+                readLine(in);
+                args.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return args;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\r') {
+                if (b < 0) {
+                    return null;
+                }
+                buffer.write(b);
+            }
+            in.read();
+            return buffer.toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -1,19 +1,38 @@
 package com.alex.ai.service;
 
+import com.alex.ai.exception.BusinessException;
+import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -121,4 +140,195 @@ class ChatServiceTest {
         assertThat(result).isNotNull();
         verify(chatModel).chat(userInput);
     }
+
+    @Test
+    @DisplayName("响应缓存 - 归一化后相同的问题只调用一次模型")
+    void chat_shouldServeRepeatedQuestionFromCache() throws Exception {
+        // Given
+        ResponseCache cache = new ResponseCache(null, true, 10, 100, false, 0.95, 100);
+        var field = ChatService.class.getDeclaredField("responseCache");
+        field.setAccessible(true);
+        field.set(chatService, cache);
+        when(chatModel.chat(anyString())).thenReturn("Spring Boot 是一个框架");
+
+        // When
+        String first = chatService.chat("什么是 Spring Boot？");
+        String second = chatService.chat("  什么是  spring boot ");
+
+        // Then
+        assertThat(second).isEqualTo(first);
+        verify(chatModel, times(1)).chat(anyString());
+    }
+
+    @Test
+    @DisplayName("响应缓存 - 不同系统提示词互不复用")
+    void chatWithContext_shouldScopeCacheBySystemPrompt() throws Exception {
+        // Given
+        ResponseCache cache = new ResponseCache(null, true, 10, 100, false, 0.95, 100);
+        var field = ChatService.class.getDeclaredField("responseCache");
+        field.setAccessible(true);
+        field.set(chatService, cache);
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("回答"));
+        when(chatModel.chat(any(SystemMessage.class), any(UserMessage.class))).thenReturn(mockResponse);
+
+        // When
+        chatService.chatWithContext("你是 Java 专家", "什么是多态？");
+        chatService.chatWithContext("你是 Python 专家", "什么是多态？");
+
+        // Then
+        verify(chatModel, times(2)).chat(any(SystemMessage.class), any(UserMessage.class));
+    }
+
+    @Test
+    @DisplayName("流式对话 - 逐 token 返回，完成后写入响应缓存")
+    void streamChat_shouldStreamTokensAndStoreAnswer() throws Exception {
+        // Given
+        StreamingChatModel streamingChatModel = mock(StreamingChatModel.class);
+        doAnswer(invocation -> {
+            List<ChatMessage> messages = invocation.getArgument(0);
+            assertThat(messages.get(0)).isInstanceOf(SystemMessage.class);
+            StreamingChatResponseHandler handler = invocation.getArgument(1);
+            handler.onPartialResponse("你");
+            handler.onPartialResponse("好");
+            handler.onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from("你好")).build());
+            return null;
+        }).when(streamingChatModel).chat(anyList(), any(StreamingChatResponseHandler.class));
+        ResponseCache cache = new ResponseCache(null, true, 10, 100, false, 0.95, 100);
+        ReflectionTestUtils.setField(chatService, "streamingChatModel", streamingChatModel);
+        ReflectionTestUtils.setField(chatService, "responseCache", cache);
+
+        // When & Then
+        StepVerifier.create(chatService.streamChat("你是助手", "打个招呼"))
+            .expectNext("你", "好")
+            .expectComplete()
+            .verify(Duration.ofSeconds(5));
+        assertThat(chatService.chatWithContext("你是助手", "打个招呼")).isEqualTo("你好");
+        verify(chatModel, never()).chat(any(ChatMessage[].class));
+    }
+
+    @Test
+    @DisplayName("流式对话 - 未配置流式模型时返回完整回答，模型失败时返回演示响应")
+    void streamChat_shouldFallBackWithoutStreamingModel() {
+        // Given
+        when(chatModel.chat(anyString())).thenReturn("完整回答");
+
+        // When & Then - 未配置流式模型
+        StepVerifier.create(chatService.streamChat(null, "你好"))
+            .expectNext("完整回答")
+            .expectComplete()
+            .verify(Duration.ofSeconds(5));
+
+        // Given - 流式模型在首个 token 之前失败
+        StreamingChatModel streamingChatModel = mock(StreamingChatModel.class);
+        doAnswer(invocation -> {
+            StreamingChatResponseHandler handler = invocation.getArgument(1);
+            handler.onError(new RuntimeException("401"));
+            return null;
+        }).when(streamingChatModel).chat(anyList(), any(StreamingChatResponseHandler.class));
+        ReflectionTestUtils.setField(chatService, "streamingChatModel", streamingChatModel);
+
+        // When & Then
+        StepVerifier.create(chatService.streamChat(null, "你好"))
+            .assertNext(reply -> assertThat(reply).contains("演示模式").contains("你好"))
+            .expectComplete()
+            .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    @DisplayName("并发名额 - 只有合并后的 leader 占用名额，名额已满时返回 429 而非演示响应")
+    void chat_shouldAcquirePermitOnlyForLeader() throws Exception {
+        // Given - 并发上限为 1，模型调用阻塞直到放行
+        ChatExecutor chatExecutor = new ChatExecutor();
+        ReflectionTestUtils.setField(chatExecutor, "maxConcurrent", 1);
+        ReflectionTestUtils.invokeMethod(chatExecutor, "init");
+        SingleFlight singleFlight = new SingleFlight();
+        ReflectionTestUtils.setField(chatService, "chatExecutor", chatExecutor);
+        ReflectionTestUtils.setField(chatService, "singleFlight", singleFlight);
+        CountDownLatch modelStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(chatModel.chat("你好")).thenAnswer(invocation -> {
+            modelStarted.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "你好！";
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> chatService.chat("你好")));
+            assertThat(modelStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // When - 3 个相同请求在模型调用期间到达
+            for (int i = 0; i < 3; i++) {
+                results.add(pool.submit(() -> chatService.chat("你好")));
+            }
+            while (singleFlight.followerCount() < 3) {
+                Thread.sleep(5);
+            }
+
+            // Then - follower 不占用名额，不同的请求被拒绝
+            assertThat(chatExecutor.inFlight()).isEqualTo(1);
+            assertThatThrownBy(() -> chatService.chat("另一个问题"))
+                .isInstanceOfSatisfying(BusinessException.class, e -> assertThat(e.getCode()).isEqualTo(429));
+
+            release.countDown();
+            for (Future<String> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("你好！");
+            }
+            assertThat(chatExecutor.inFlight()).isZero();
+            verify(chatModel, times(1)).chat("你好");
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+            chatExecutor.shutdown();
+        }
+    }
+
+    @Test
+    @DisplayName("语义缓存 - 并发的相同问题只在 leader 中计算一次问题向量")
+    void chat_shouldEmbedOnceForCoalescedRequests() throws Exception {
+        // Given - 语义层已有相近问题的回答，问题向量化阻塞直到放行
+        EmbeddingService embeddingService = mock(EmbeddingService.class);
+        when(embeddingService.embedQueryAsync("年假有几天"))
+            .thenReturn(Mono.just(Embedding.from(new float[]{1f, 0f})));
+        CountDownLatch embedding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(embeddingService.embedQuery("年假一共几天")).thenAnswer(invocation -> {
+            embedding.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Embedding.from(new float[]{0.99f, 0.01f});
+        });
+        SingleFlight singleFlight = new SingleFlight();
+        ReflectionTestUtils.setField(chatService, "responseCache",
+            new ResponseCache(embeddingService, true, 10, 100, true, 0.95, 100));
+        ReflectionTestUtils.setField(chatService, "singleFlight", singleFlight);
+        when(chatModel.chat("年假有几天")).thenReturn("五天");
+        chatService.chat("年假有几天");
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            // When - 4 个相同问题并发到达
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> chatService.chat("年假一共几天")));
+            assertThat(embedding.await(5, TimeUnit.SECONDS)).isTrue();
+            for (int i = 0; i < 3; i++) {
+                results.add(pool.submit(() -> chatService.chat("年假一共几天")));
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (singleFlight.followerCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            // Then - 全部语义命中，只计算一次问题向量，不调用模型
+            for (Future<String> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("五天");
+            }
+            verify(embeddingService, times(1)).embedQuery("年假一共几天");
+            verify(chatModel, never()).chat("年假一共几天");
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
 }
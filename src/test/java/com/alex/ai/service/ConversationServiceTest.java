@@ -1,19 +1,51 @@
 package com.alex.ai.service;
 
+import com.alex.ai.config.ConversationProperties;
+import com.alex.ai.exception.BusinessException;
 import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.store.memory.chat.ChatMemoryStore;
+import dev.langchain4j.store.memory.chat.InMemoryChatMemoryStore;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
 /**
@@ -45,6 +77,11 @@ class ConversationServiceTest {
         } catch (Exception e) {
             // 忽略，某些测试不需要 knowledgeService
         }
+        // 默认没有相关知识：返回原始输入，各测试可按需覆盖
+        lenient().when(knowledgeService.augment(anyString()))
+            .thenAnswer(invocation -> KnowledgeService.AugmentedPrompt.none(invocation.getArgument(0)));
+        lenient().when(knowledgeService.augmentAsync(anyString()))
+            .thenAnswer(invocation -> Mono.just(KnowledgeService.AugmentedPrompt.none(invocation.getArgument(0))));
     }
 
     @Test
@@ -172,4 +209,726 @@ class ConversationServiceTest {
         assertThat(result).contains("抱歉");
         assertThat(result).contains("问题");
     }
+
+    @Test
+    @DisplayName("检索门控 - 寒暄跳过检索，问题正常检索")
+    void continueConversation_shouldSkipRetrievalForSmallTalk() throws Exception {
+        // Given
+        RetrievalGate gate = new RetrievalGate(mock(EmbeddingService.class));
+        var field = ConversationService.class.getDeclaredField("retrievalGate");
+        field.setAccessible(true);
+        field.set(conversationService, gate);
+        
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("OK"));
+        when(chatModel.chat(anyList())).thenReturn(mockResponse);
+        when(knowledgeService.augment(anyString()))
+            .thenAnswer(inv -> new KnowledgeService.AugmentedPrompt(inv.getArgument(0), List.of(), null));
+
+        // When
+        conversationService.continueConversation("gate-session", "谢谢！");
+        conversationService.continueConversation("gate-session", "好的");
+        conversationService.continueConversation("gate-session", "如何配置 Chroma 向量库？");
+
+        // Then
+        verify(knowledgeService, times(1)).augment(anyString());
+        verify(knowledgeService).augment("如何配置 Chroma 向量库？");
+        assertThat(gate.skipRate()).isCloseTo(2.0 / 3, within(0.001));
+    }
+
+    @Test
+    @DisplayName("RAG - 参考资料只随本轮请求发送，历史保留原始输入")
+    @SuppressWarnings("unchecked")
+    void continueConversation_shouldKeepRawInputInHistory() {
+        // Given
+        String sessionId = "rag-history-session";
+        String augmentedPrompt = "【参考资料】\n[1]\nLangChain4j 是 Java LLM 框架\n\n【用户问题】\n什么是 LangChain4j？";
+        when(knowledgeService.augment("什么是 LangChain4j？"))
+            .thenReturn(new KnowledgeService.AugmentedPrompt(augmentedPrompt, List.of("kb-1"), "参考资料：《LangChain4j》"));
+        when(knowledgeService.augment("它支持哪些模型？"))
+            .thenReturn(new KnowledgeService.AugmentedPrompt("它支持哪些模型？", List.of(), null));
+        
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("OK"));
+        List<List<ChatMessage>> requests = new ArrayList<>();
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            requests.add(new ArrayList<>((List<ChatMessage>) inv.getArgument(0)));
+            return mockResponse;
+        });
+
+        // When
+        conversationService.continueConversation(sessionId, "什么是 LangChain4j？");
+        conversationService.continueConversation(sessionId, "它支持哪些模型？");
+
+        // Then - 第一轮请求携带参考资料
+        assertThat(((UserMessage) requests.get(0).get(1)).singleText()).isEqualTo(augmentedPrompt);
+        // Then - 第二轮请求中的历史只有原始问题
+        assertThat(requests.get(1)).hasSize(4);
+        assertThat(((UserMessage) requests.get(1).get(1)).singleText()).isEqualTo("什么是 LangChain4j？");
+    }
+
+    @Test
+    @DisplayName("RAG 开关 - 随会话一起清除")
+    void clearSession_shouldResetRagFlag() {
+        // Given
+        String sessionId = "rag-clear-session";
+        conversationService.setRagEnabled(sessionId, false);
+        assertThat(conversationService.sessionExists(sessionId)).isTrue();
+
+        // When
+        conversationService.clearSession(sessionId);
+
+        // Then
+        assertThat(conversationService.sessionExists(sessionId)).isFalse();
+        assertThat(conversationService.isRagEnabled(sessionId)).isTrue();
+    }
+
+    @Test
+    @DisplayName("持久化存储 - 多副本共享会话历史")
+    @SuppressWarnings("unchecked")
+    void continueConversation_shouldShareHistoryThroughStore() throws Exception {
+        // Given - 两个副本共享同一存储
+        ChatMemoryStore store = new InMemoryChatMemoryStore();
+        ConversationService replicaA = new ConversationService(chatModel);
+        ConversationService replicaB = new ConversationService(chatModel);
+        for (ConversationService replica : List.of(replicaA, replicaB)) {
+            var field = ConversationService.class.getDeclaredField("chatMemoryStore");
+            field.setAccessible(true);
+            field.set(replica, store);
+        }
+        
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("OK"));
+        List<Integer> requestSizes = new ArrayList<>();
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            requestSizes.add(((List<ChatMessage>) inv.getArgument(0)).size());
+            return mockResponse;
+        });
+
+        // When - 第一轮由 A 处理，第二轮由 B 处理
+        replicaA.continueConversation("shared-session", "第一轮");
+        replicaB.continueConversation("shared-session", "第二轮");
+
+        // Then - B 的请求包含 A 处理的第一轮
+        assertThat(requestSizes).containsExactly(2, 4);
+        assertThat(store.getMessages("shared-session")).hasSize(5);
+    }
+
+    @Test
+    @DisplayName("持久化存储 - RAG 开关随会话保存，其他副本可见")
+    void setRagEnabled_shouldPersistThroughStore(@TempDir Path directory) throws Exception {
+        // Given - 两个副本共享同一存储
+        ChatMemoryStore store = new FileChatMemoryStore(directory);
+        ConversationService replicaA = new ConversationService(chatModel);
+        ConversationService replicaB = new ConversationService(chatModel);
+        for (ConversationService replica : List.of(replicaA, replicaB)) {
+            var field = ConversationService.class.getDeclaredField("chatMemoryStore");
+            field.setAccessible(true);
+            field.set(replica, store);
+        }
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("OK"));
+        when(chatModel.chat(anyList())).thenReturn(mockResponse);
+        replicaB.continueConversation("shared-session", "第一轮");
+
+        // When - A 关闭 RAG
+        replicaA.setRagEnabled("shared-session", false);
+
+        // Then - B 下一轮读取存储中的设置，历史没有被覆盖
+        replicaB.continueConversation("shared-session", "第二轮");
+        assertThat(replicaB.isRagEnabled("shared-session")).isFalse();
+        assertThat(store.getMessages("shared-session")).hasSize(5);
+    }
+
+    @Test
+    @DisplayName("会话串行 - 同一会话依次执行，不同会话并行")
+    void continueConversation_shouldSerializePerSession() throws Exception {
+        // Given - 模型调用阻塞，直到放行
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunningSameSession = new AtomicInteger();
+        CountDownLatch otherSessionDone = new CountDownLatch(1);
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("OK"));
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            @SuppressWarnings("unchecked")
+            List<ChatMessage> request = inv.getArgument(0);
+            String text = ((UserMessage) request.get(request.size() - 1)).singleText();
+            if (text.startsWith("other")) {
+                otherSessionDone.countDown();
+                return mockResponse;
+            }
+            maxRunningSameSession.accumulateAndGet(running.incrementAndGet(), Math::max);
+            gate.await(5, TimeUnit.SECONDS);
+            running.decrementAndGet();
+            return mockResponse;
+        });
+
+        // When - 同一会话并发 3 个请求
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String message = "消息" + i;
+            results.add(executor.submit(() -> conversationService.continueConversation("lane-session", message)));
+        }
+
+        // Then - 其他会话不受影响
+        Thread.sleep(200);
+        conversationService.continueConversation("other-session", "other");
+        assertThat(otherSessionDone.await(1, TimeUnit.SECONDS)).isTrue();
+
+        gate.countDown();
+        for (Future<String> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("OK");
+        }
+        executor.shutdown();
+        assertThat(maxRunningSameSession.get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("会话串行 - 排队超过上限时拒绝")
+    void sessionLanes_shouldRejectWhenQueueIsFull() {
+        // Given
+        SessionLanes lanes = new SessionLanes(2, Duration.ofSeconds(1));
+        SessionLanes.Permit first = lanes.acquire("flood-session");
+
+        // When - 第二个请求排队等待超时
+        assertThatThrownBy(() -> lanes.acquire("flood-session"))
+            .isInstanceOf(BusinessException.class)
+            .hasMessageContaining("超时");
+
+        // Then - 超时的请求在前一个完成前仍占据队列，第三个请求直接拒绝
+        assertThatThrownBy(() -> lanes.acquire("flood-session"))
+            .isInstanceOf(BusinessException.class)
+            .hasMessageContaining("排队");
+
+        first.release();
+        assertThat(lanes.activeLanes()).isZero();
+        lanes.acquire("flood-session").release();
+        assertThat(lanes.activeLanes()).isZero();
+    }
+
+    @Test
+    @DisplayName("历史窗口 - 按 token 预算移出旧轮次并在后台生成摘要")
+    @SuppressWarnings("unchecked")
+    void continueConversation_shouldSummarizeTurnsOutsideTokenBudget() throws Exception {
+        // Given - 历史预算 150 tokens
+        ConversationProperties properties = new ConversationProperties();
+        properties.getHistory().setMaxTokens(150);
+        ConversationService service = new ConversationService(chatModel, properties);
+        
+        TokenCounter tokenCounter = TokenCounter.defaultCounter();
+        List<List<ChatMessage>> requests = new CopyOnWriteArrayList<>();
+        CountDownLatch summarized = new CountDownLatch(1);
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            List<ChatMessage> request = new ArrayList<>((List<ChatMessage>) inv.getArgument(0));
+            ChatResponse response = mock(ChatResponse.class);
+            if (((SystemMessage) request.get(0)).text().startsWith("你负责压缩")) {
+                when(response.aiMessage()).thenReturn(AiMessage.from("用户在了解向量数据库"));
+                summarized.countDown();
+            } else {
+                requests.add(request);
+                when(response.aiMessage()).thenReturn(AiMessage.from("这是一个比较长的回答，用来占用历史窗口中的 token 预算。"));
+            }
+            return response;
+        });
+
+        // When - 多轮长对话
+        for (int i = 0; i < 4; i++) {
+            service.continueConversation("window-session", "第 " + i + " 个问题：请详细介绍一下向量数据库的索引结构和检索流程");
+        }
+        assertThat(summarized.await(5, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(100);
+        service.continueConversation("window-session", "继续");
+
+        // Then - 每次请求的历史都不超过预算
+        for (List<ChatMessage> request : requests) {
+            assertThat(tokenCounter.count(request)).isLessThanOrEqualTo(150 + 10);
+        }
+        // Then - 摘要作为第二条系统消息出现在后续请求中
+        List<ChatMessage> last = requests.get(requests.size() - 1);
+        assertThat(last.get(1)).isInstanceOf(SystemMessage.class);
+        assertThat(((SystemMessage) last.get(1)).text()).contains("用户在了解向量数据库");
+    }
+
+    @Test
+    @DisplayName("堆外存储 - 历史编码后按需解码，多轮上下文不丢失")
+    @SuppressWarnings("unchecked")
+    void continueConversation_shouldKeepContextWithOffHeapStorage() {
+        // Given
+        ConversationProperties properties = new ConversationProperties();
+        properties.getSession().setStorage("offheap");
+        ConversationService service = new ConversationService(chatModel, properties);
+        
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("好的，我记住了"));
+        List<List<ChatMessage>> requests = new ArrayList<>();
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            requests.add(new ArrayList<>((List<ChatMessage>) inv.getArgument(0)));
+            return mockResponse;
+        });
+
+        // When - 两轮之间会话空闲，后台编码到堆外
+        properties.getSession().setOffheapIdleSeconds(0);
+        service.continueConversation("offheap-session", "我叫小明");
+        service.compactIdleSessions();
+        long encodedBytes = ((HistoryCodec) ReflectionTestUtils.getField(service, "historyCodec")).offHeapBytes();
+        service.continueConversation("offheap-session", "我叫什么？");
+
+        // Then - 第二轮请求包含解码后的第一轮
+        assertThat(encodedBytes).isPositive();
+        assertThat(requests.get(1)).hasSize(4);
+        assertThat(((UserMessage) requests.get(1).get(1)).singleText()).isEqualTo("我叫小明");
+        assertThat(((AiMessage) requests.get(1).get(2)).text()).isEqualTo("好的，我记住了");
+    }
+
+    @Test
+    @DisplayName("堆外存储 - 编解码往返且系统提示词只存一份")
+    void historyCodec_shouldRoundTripAndDeduplicatePrompts() {
+        // Given
+        HistoryCodec codec = new HistoryCodec();
+        String prompt = "你是一个友好、专业的 AI 助手，能够帮助用户解决各种问题。".repeat(5);
+        List<ChatMessage> history = List.of(
+            SystemMessage.from(prompt),
+            HistorySummarizer.toMessage("用户在了解向量数据库"),
+            UserMessage.from("你好"),
+            AiMessage.from("你好！")
+        );
+
+        // When
+        HistoryCodec.Encoded first = codec.encode(history);
+        HistoryCodec.Encoded second = codec.encode(history);
+
+        // Then - 提示词以字典编号编码，体积远小于原文；相同的历史共享同一个块
+        assertThat(first.length()).isLessThan(prompt.getBytes(StandardCharsets.UTF_8).length);
+        assertThat(codec.offHeapBytes()).isEqualTo(HistoryArena.BLOCK_SIZE);
+        assertThat(codec.decode(first)).isEqualTo(history);
+        assertThat(codec.offHeapBytes()).isEqualTo(HistoryArena.BLOCK_SIZE);
+        assertThat(codec.decode(second)).isEqualTo(history);
+        assertThat(codec.offHeapBytes()).isZero();
+        assertThat(codec.reservedOffHeapBytes()).isPositive();
+    }
+
+    @Test
+    @DisplayName("堆外存储 - 分叉的会话共享前缀块，块归还后才计入释放")
+    void historyCodec_shouldShareForkedPrefix() {
+        // Given - 原会话约 5 个块，分叉后各自追加一轮
+        HistoryCodec codec = new HistoryCodec();
+        List<ChatMessage> prefix = new ArrayList<>();
+        prefix.add(SystemMessage.from("你是一个助手"));
+        for (int i = 0; i < 10; i++) {
+            prefix.add(UserMessage.from("第 " + i + " 个问题：" + "向量数据库如何选型？".repeat(10)));
+            prefix.add(AiMessage.from("第 " + i + " 个回答：" + "要看数据规模和延迟要求。".repeat(10)));
+        }
+        List<ChatMessage> source = new ArrayList<>(prefix);
+        source.add(UserMessage.from("继续"));
+        List<ChatMessage> fork = new ArrayList<>(prefix);
+        fork.add(UserMessage.from("换个话题"));
+
+        // When
+        HistoryCodec.Encoded sourceEncoded = codec.encode(source);
+        long sourceBytes = codec.offHeapBytes();
+        HistoryCodec.Encoded forkEncoded = codec.encode(fork);
+
+        // Then - 分叉只新增末尾不同的块
+        assertThat(sourceBytes).isGreaterThanOrEqualTo(5L * HistoryArena.BLOCK_SIZE);
+        assertThat(codec.offHeapBytes() - sourceBytes).isEqualTo(HistoryArena.BLOCK_SIZE);
+        codec.released(sourceEncoded);
+        codec.released(sourceEncoded);
+        assertThat(codec.offHeapBytes()).isEqualTo(sourceBytes);
+        assertThat(codec.decode(forkEncoded)).isEqualTo(fork);
+        assertThat(codec.offHeapBytes()).isZero();
+    }
+
+    @Test
+    @DisplayName("会话溢写 - 段文件写入、读取、删除，重启后重建索引")
+    void sessionSpillStore_shouldRoundTripAndRecover(@TempDir Path directory) throws Exception {
+        // Given - 段文件很小，每条记录都会滚动到新段
+        List<ChatMessage> history = List.of(
+            SystemMessage.from("你是一个助手"),
+            UserMessage.from("我叫小明"),
+            AiMessage.from("好的，我记住了")
+        );
+        SessionSpillStore store = new SessionSpillStore(directory, 64, 1024 * 1024, Duration.ofDays(1), new HistoryCodec());
+
+        // When
+        store.put("session-1", history, false);
+        store.put("session-2", history.subList(0, 2), true);
+        store.put("session-3", history, true);
+        store.remove("session-3");
+
+        // Then
+        assertThat(store.load("session-1")).hasValueSatisfying(spilled -> {
+            assertThat(spilled.messages()).isEqualTo(history);
+            assertThat(spilled.ragEnabled()).isFalse();
+        });
+        assertThat(store.load("session-3")).isEmpty();
+        store.close();
+
+        // Then - 新实例（模拟重启）扫描段文件恢复索引，墓碑记录仍然生效
+        SessionSpillStore reopened = new SessionSpillStore(directory, 64, 1024 * 1024, Duration.ofDays(1), new HistoryCodec());
+        assertThat(reopened.size()).isEqualTo(2);
+        assertThat(reopened.load("session-2")).hasValueSatisfying(spilled ->
+            assertThat(spilled.messages()).isEqualTo(history.subList(0, 2)));
+        assertThat(reopened.contains("session-3")).isFalse();
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("会话溢写 - 压缩存活比例低的段，墓碑随之保留，重启后已删除的会话不复活")
+    void sessionSpillStore_shouldCompactSegmentsAndKeepTombstones(@TempDir Path directory) throws Exception {
+        // Given - 每个段放两条数据记录
+        List<ChatMessage> history = List.of(UserMessage.from("你好"), AiMessage.from("你好！"));
+        long recordBytes = spillRecordBytes(directory.resolve("probe"), history);
+        Path spillDirectory = directory.resolve("spill");
+        SessionSpillStore store = new SessionSpillStore(spillDirectory, 2 * recordBytes, 1024 * 1024,
+            Duration.ofDays(1), new HistoryCodec());
+        store.put("session-x", history, false);
+        store.put("session-y", history, false);
+        store.put("session-z", history, false);
+        store.remove("session-x");
+        store.put("session-z", history, true);
+        store.put("session-w", history, false);
+        long before = store.diskBytes();
+
+        // When - 第二个段只剩失效的数据记录和 session-x 的墓碑
+        store.evictOldSegments();
+
+        // Then
+        assertThat(store.diskBytes()).isLessThan(before);
+        assertThat(store.load("session-z")).hasValueSatisfying(spilled -> assertThat(spilled.ragEnabled()).isTrue());
+        store.close();
+        SessionSpillStore reopened = new SessionSpillStore(spillDirectory, 2 * recordBytes, 1024 * 1024,
+            Duration.ofDays(1), new HistoryCodec());
+        assertThat(reopened.sessionIds()).containsExactlyInAnyOrder("session-y", "session-z", "session-w");
+        reopened.close();
+    }
+
+    @Test
+    @DisplayName("会话溢写 - 超出磁盘上限时先压缩旧段，全部存活时拒绝写入而不删除其他会话")
+    void sessionSpillStore_shouldEnforceDiskCapOnWrite(@TempDir Path directory) throws Exception {
+        // Given - 上限为三条记录
+        List<ChatMessage> history = List.of(UserMessage.from("你好"), AiMessage.from("你好！"));
+        long recordBytes = spillRecordBytes(directory.resolve("probe"), history);
+        SessionSpillStore store = new SessionSpillStore(directory.resolve("spill"), 2 * recordBytes, 3 * recordBytes,
+            Duration.ofDays(1), new HistoryCodec());
+        store.put("session-a", history, false);
+        store.put("session-b", history, false);
+        store.put("session-a", history, true);
+
+        // When - 第一个段只有一半存活，压缩后放得下
+        store.put("session-c", history, false);
+
+        // Then
+        assertThat(store.diskBytes()).isLessThanOrEqualTo(3 * recordBytes);
+        assertThat(store.sessionIds()).containsExactlyInAnyOrder("session-a", "session-b", "session-c");
+
+        // When / Then - 全部是存活记录，拒绝写入
+        assertThatThrownBy(() -> store.put("session-d", history, false))
+            .isInstanceOf(IOException.class);
+        assertThat(store.sessionIds()).containsExactlyInAnyOrder("session-a", "session-b", "session-c");
+        assertThat(store.load("session-b")).isPresent();
+        store.close();
+    }
+
+    private static long spillRecordBytes(Path directory, List<ChatMessage> history) throws IOException {
+        SessionSpillStore probe = new SessionSpillStore(directory, 1024 * 1024, 1024 * 1024, Duration.ofDays(1),
+            new HistoryCodec());
+        probe.put("session-0", history, false);
+        long bytes = probe.diskBytes();
+        probe.close();
+        return bytes;
+    }
+
+    @Test
+    @DisplayName("会话溢写 - 超出数量的会话写入磁盘，再次访问时恢复上下文")
+    @SuppressWarnings("unchecked")
+    void continueConversation_shouldReloadSpilledSession(@TempDir Path directory) throws Exception {
+        // Given - 内存中只保留 1 个会话
+        ConversationProperties properties = new ConversationProperties();
+        properties.getSession().setMaxSessions(1);
+        properties.getSession().getSpill().setEnabled(true);
+        properties.getSession().getSpill().setDirectory(directory.toString());
+        ConversationService service = new ConversationService(chatModel, properties);
+
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("好的，我记住了"));
+        List<List<ChatMessage>> requests = new CopyOnWriteArrayList<>();
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            requests.add(new ArrayList<>((List<ChatMessage>) inv.getArgument(0)));
+            return mockResponse;
+        });
+
+        // When - 两个会话各一轮，其中一个被淘汰并写入磁盘
+        service.continueConversation("session-a", "我叫小明");
+        service.continueConversation("session-b", "我叫小红");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getSessionCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(service.getSessionCount()).isEqualTo(1);
+        assertThat(service.sessionExists("session-a")).isTrue();
+        assertThat(service.sessionExists("session-b")).isTrue();
+
+        service.continueConversation("session-a", "我叫什么？");
+        service.continueConversation("session-b", "我叫什么？");
+
+        // Then - 两个会话的第二轮都带着各自的第一轮
+        assertThat(((UserMessage) requests.get(2).get(1)).singleText()).isEqualTo("我叫小明");
+        assertThat(((UserMessage) requests.get(3).get(1)).singleText()).isEqualTo("我叫小红");
+        service.shutdown();
+    }
+
+    @Test
+    @DisplayName("停机快照 - 停机时写入会话，重启后恢复上下文")
+    @SuppressWarnings("unchecked")
+    void shutdown_shouldSnapshotSessionsAndRestoreOnStartup(@TempDir Path directory) throws Exception {
+        // Given
+        ConversationProperties properties = new ConversationProperties();
+        properties.getSession().getSnapshot().setEnabled(true);
+        properties.getSession().getSnapshot().setDirectory(directory.toString());
+
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("好的，我记住了"));
+        List<List<ChatMessage>> requests = new CopyOnWriteArrayList<>();
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            requests.add(new ArrayList<>((List<ChatMessage>) inv.getArgument(0)));
+            return mockResponse;
+        });
+
+        ConversationService before = new ConversationService(chatModel, properties);
+        before.continueConversation("warm-session", "我叫小明");
+        before.continueConversation("lazy-session", "我叫小红");
+        before.setRagEnabled("lazy-session", false);
+
+        // When - 停机写入快照，新实例（模拟重启）在后台预热
+        before.shutdown();
+        ConversationService after = new ConversationService(chatModel, properties);
+        after.startSnapshotRestore();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (after.getSessionCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+
+        // Then - 会话已预热到内存，上下文和 RAG 开关都保留
+        assertThat(after.getSessionCount()).isEqualTo(2);
+        assertThat(after.isRagEnabled("lazy-session")).isFalse();
+        after.continueConversation("warm-session", "我叫什么？");
+        assertThat(((UserMessage) requests.get(2).get(1)).singleText()).isEqualTo("我叫小明");
+        after.shutdown();
+
+        // Then - 预热预算为 0 时不预热，首次访问时从快照加载
+        properties.getSession().getSnapshot().setRestoreBudgetSeconds(0);
+        ConversationService lazy = new ConversationService(chatModel, properties);
+        lazy.continueConversation("lazy-session", "我叫什么？");
+        assertThat(((UserMessage) requests.get(3).get(1)).singleText()).isEqualTo("我叫小红");
+        lazy.shutdown();
+    }
+
+    @Test
+    @DisplayName("会话分叉 - 共享历史前缀，分叉后各自独立")
+    @SuppressWarnings("unchecked")
+    void forkSession_shouldShareHistoryAndDiverge() {
+        // Given
+        ChatResponse mockResponse = mock(ChatResponse.class);
+        when(mockResponse.aiMessage()).thenReturn(AiMessage.from("好的"));
+        List<List<ChatMessage>> requests = new ArrayList<>();
+        when(chatModel.chat(anyList())).thenAnswer(inv -> {
+            requests.add(new ArrayList<>((List<ChatMessage>) inv.getArgument(0)));
+            return mockResponse;
+        });
+        conversationService.setRagEnabled("origin", false);
+        conversationService.continueConversation("origin", "我叫小明");
+        conversationService.continueConversation("origin", "我喜欢蓝色");
+
+        // When - 完整分叉，以及只保留第一轮的分叉
+        String full = conversationService.forkSession("origin", null);
+        String edited = conversationService.forkSession("origin", 2);
+        conversationService.continueConversation(full, "我喜欢什么颜色？");
+        conversationService.continueConversation(edited, "其实我喜欢红色");
+        conversationService.continueConversation("origin", "继续");
+
+        // Then - 分叉继承历史和 RAG 开关，之后的消息互不可见
+        assertThat(conversationService.isRagEnabled(full)).isFalse();
+        assertThat(requests.get(2)).hasSize(6);
+        assertThat(requests.get(3)).hasSize(4);
+        assertThat(((UserMessage) requests.get(3).get(1)).singleText()).isEqualTo("我叫小明");
+        assertThat(requests.get(4)).hasSize(6);
+        assertThat(((UserMessage) requests.get(4).get(5)).singleText()).isEqualTo("继续");
+        assertThatThrownBy(() -> conversationService.forkSession("missing", null))
+            .isInstanceOf(BusinessException.class);
+    }
+
+    @Test
+    @DisplayName("会话分叉 - 不可变历史的追加、移出和截断")
+    void chatHistory_shouldSupportPersistentOperations() {
+        // Given
+        ChatHistory base = ChatHistory.of(List.of(SystemMessage.from("你是一个助手")));
+        for (int i = 0; i < 40; i++) {
+            base = base.append(UserMessage.from("问题 " + i));
+        }
+
+        // When
+        ChatHistory branch = base.append(UserMessage.from("分支"));
+        ChatHistory trimmed = base.dropOldest(30);
+        ChatHistory summarized = trimmed.withSummary("用户问了很多问题");
+
+        // Then - 原历史不受影响
+        assertThat(base.size()).isEqualTo(41);
+        assertThat(branch.size()).isEqualTo(42);
+        assertThat(((UserMessage) branch.last()).singleText()).isEqualTo("分支");
+        assertThat(trimmed.bodySize()).isEqualTo(10);
+        assertThat(((UserMessage) trimmed.body().get(0)).singleText()).isEqualTo("问题 30");
+        assertThat(summarized.summary()).isEqualTo("用户问了很多问题");
+        assertThat(summarized.toList().get(1)).isEqualTo(HistorySummarizer.toMessage("用户问了很多问题"));
+        assertThat(base.truncate(2).toList()).extracting(m -> m instanceof UserMessage u ? u.singleText() : "system")
+            .containsExactly("system", "问题 0", "问题 1");
+    }
+
+    @Test
+    @DisplayName("会话列表 - 按游标分页并按条件过滤")
+    void listSessions_shouldPageByCursorAndFilter() {
+        // Given - 5 个会话，其中 2 个关闭 RAG
+        for (int i = 1; i <= 5; i++) {
+            conversationService.setRagEnabled("session-" + i, i % 2 != 0);
+        }
+
+        // When
+        ConversationService.SessionPage first = conversationService.listSessions(null, 2, ConversationService.SessionFilter.none());
+        ConversationService.SessionPage second = conversationService.listSessions(first.nextCursor(), 2, ConversationService.SessionFilter.none());
+        ConversationService.SessionPage last = conversationService.listSessions(second.nextCursor(), 2, ConversationService.SessionFilter.none());
+        ConversationService.SessionPage ragOff = conversationService.listSessions(null, 10,
+            new ConversationService.SessionFilter(null, null, 1, 1, false));
+
+        // Then
+        assertThat(first.sessions()).extracting(ConversationService.SessionSummary::sessionId)
+            .containsExactly("session-1", "session-2");
+        assertThat(second.sessions()).extracting(ConversationService.SessionSummary::sessionId)
+            .containsExactly("session-3", "session-4");
+        assertThat(last.sessions()).extracting(ConversationService.SessionSummary::sessionId)
+            .containsExactly("session-5");
+        assertThat(last.nextCursor()).isNull();
+        assertThat(ragOff.sessions()).extracting(ConversationService.SessionSummary::sessionId)
+            .containsExactly("session-2", "session-4");
+
+        // Then - 清除后不再出现在列表中
+        conversationService.clearSession("session-1");
+        assertThat(conversationService.listSessions(null, 10, ConversationService.SessionFilter.none()).sessions())
+            .hasSize(4);
+    }
+
+    @Test
+    @DisplayName("响应式流式对话 - 按需拉取 token，完成后写入历史并释放会话通道")
+    void streamReply_shouldBridgeHandlerWithBackpressure() throws Exception {
+        // Given - 模型回调一次性推送全部 token
+        StreamingChatModel streamingChatModel = mock(StreamingChatModel.class);
+        List<List<ChatMessage>> requests = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            requests.add(List.copyOf(invocation.getArgument(0)));
+            StreamingChatResponseHandler handler = invocation.getArgument(1);
+            handler.onPartialResponse("你");
+            handler.onPartialResponse("好");
+            handler.onPartialResponse("！");
+            handler.onCompleteResponse(ChatResponse.builder().aiMessage(AiMessage.from("你好！")).build());
+            return null;
+        }).when(streamingChatModel).chat(anyList(), any(StreamingChatResponseHandler.class));
+        var field = ConversationService.class.getDeclaredField("streamingChatModel");
+        field.setAccessible(true);
+        field.set(conversationService, streamingChatModel);
+        when(knowledgeService.augmentAsync(anyString())).thenAnswer(invocation -> Mono.just(
+            new KnowledgeService.AugmentedPrompt("【参考资料】...\n" + invocation.getArgument(0), List.of("k1"), "参考资料：《k1》")));
+
+        // When / Then - 下游每次只请求一个 token
+        StepVerifier.create(conversationService.streamReply("reactive-session", "你好"), 1)
+            .expectNext("你")
+            .thenRequest(1)
+            .expectNext("好")
+            .thenRequest(1)
+            .expectNext("！")
+            .verifyComplete();
+
+        // Then - 会话通道已释放，下一轮可以立即开始
+        StepVerifier.create(conversationService.streamReply("reactive-session", "再见"))
+            .expectNext("你", "好", "！")
+            .expectComplete()
+            .verify(Duration.ofSeconds(5));
+
+        // Then - 参考资料只进入本轮请求，历史记录原始输入和完整回答
+        assertThat(((UserMessage) requests.get(0).get(requests.get(0).size() - 1)).singleText()).contains("【参考资料】");
+        assertThat(requests.get(1))
+            .extracting(m -> m instanceof UserMessage u ? u.singleText() : m instanceof AiMessage a ? a.text() : "system")
+            .containsExactly("system", "你好", "你好！", "【参考资料】...\n再见");
+    }
+
+    @Test
+    @DisplayName("响应式流式对话 - 模型出错时以错误结束并释放会话通道")
+    void streamReply_shouldPropagateErrorAndReleaseLane() throws Exception {
+        // Given
+        StreamingChatModel streamingChatModel = mock(StreamingChatModel.class);
+        doAnswer(invocation -> {
+            StreamingChatResponseHandler handler = invocation.getArgument(1);
+            handler.onPartialResponse("部分");
+            handler.onError(new IllegalStateException("上游断开"));
+            return null;
+        }).when(streamingChatModel).chat(anyList(), any(StreamingChatResponseHandler.class));
+        var field = ConversationService.class.getDeclaredField("streamingChatModel");
+        field.setAccessible(true);
+        field.set(conversationService, streamingChatModel);
+        conversationService.setRagEnabled("reactive-error", false);
+
+        // When / Then - 连续两轮都能执行（第一轮出错后通道已释放）
+        for (int i = 0; i < 2; i++) {
+            StepVerifier.create(conversationService.streamReply("reactive-error", "问题 " + i))
+                .expectNext("部分")
+                .expectErrorMessage("上游断开")
+                .verify(Duration.ofSeconds(5));
+        }
+        verify(streamingChatModel, times(2)).chat(anyList(), any(StreamingChatResponseHandler.class));
+    }
+
+    @Test
+    @DisplayName("响应式流式对话 - 客户端断开时取消模型调用，按配置丢弃或保留部分回答")
+    void streamReply_shouldCancelUpstreamWhenSubscriberCancels() throws Exception {
+        for (boolean storePartial : new boolean[] {false, true}) {
+            // Given - 模型先返回一个 token 后持续生成（不会主动结束）
+            ConversationProperties properties = new ConversationProperties();
+            properties.getStream().setStorePartialOnCancel(storePartial);
+            ConversationService service = new ConversationService(chatModel, properties);
+            StreamingChatModel streamingChatModel = mock(StreamingChatModel.class);
+            StreamingHandle handle = mock(StreamingHandle.class);
+            List<List<ChatMessage>> requests = new CopyOnWriteArrayList<>();
+            doAnswer(invocation -> {
+                requests.add(List.copyOf(invocation.getArgument(0)));
+                StreamingChatResponseHandler handler = invocation.getArgument(1);
+                handler.onPartialResponse(new PartialResponse("部分"), new PartialResponseContext(handle));
+                return null;
+            }).when(streamingChatModel).chat(anyList(), any(StreamingChatResponseHandler.class));
+            var field = ConversationService.class.getDeclaredField("streamingChatModel");
+            field.setAccessible(true);
+            field.set(service, streamingChatModel);
+            service.setRagEnabled("reactive-cancel", false);
+
+            // When - 收到首个 token 后断开
+            StepVerifier.create(service.streamReply("reactive-cancel", "第一问"))
+                .expectNext("部分")
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+            // Then - 上游被取消，会话通道已释放
+            verify(handle, timeout(1000)).cancel();
+            StepVerifier.create(service.streamReply("reactive-cancel", "第二问"))
+                .expectNext("部分")
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+            // Then - 第二轮请求中的历史取决于是否保留部分回答
+            List<String> second = requests.get(1).stream()
+                .map(m -> m instanceof UserMessage u ? u.singleText() : m instanceof AiMessage a ? a.text() : "system")
+                .toList();
+            assertThat(second).isEqualTo(storePartial
+                ? List.of("system", "第一问", "部分", "第二问")
+                : List.of("system", "第二问"));
+            service.shutdown();
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.alex.ai.service;
 
+import com.alex.ai.exception.BusinessException;
 import dev.langchain4j.data.document.Metadata;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.store.embedding.EmbeddingMatch;
@@ -11,8 +12,15 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -42,7 +50,7 @@ class KnowledgeServiceTest {
         // Given
         String title = "测试标题";
         String content = "这是一段简短的测试内容";
-        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong()))
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
             .thenReturn(List.of("id-001"));
 
         // When
@@ -51,7 +59,7 @@ class KnowledgeServiceTest {
         // Then
         assertThat(entryId).isNotNull();
         assertThat(entryId).hasSize(8);
-        verify(embeddingService).storeTexts(anyList(), anyString(), eq(title), anyLong());
+        verify(embeddingService).storeTexts(anyList(), anyString(), eq(title), anyLong(), anyList(), anyList());
     }
 
     @Test
@@ -61,7 +69,7 @@ class KnowledgeServiceTest {
         String title = "长文本测试";
         // 创建超过 500 字符的内容
         String content = "这是一段很长的测试内容。".repeat(100);
-        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong()))
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
             .thenReturn(List.of("id-001", "id-002", "id-003"));
 
         // When
@@ -74,7 +82,9 @@ class KnowledgeServiceTest {
             argThat(list -> list.size() > 1),
             anyString(),
             eq(title),
-            anyLong()
+            anyLong(),
+            anyList(),
+            anyList()
         );
     }
 
@@ -82,7 +92,7 @@ class KnowledgeServiceTest {
     @DisplayName("获取知识列表")
     void listKnowledge_shouldReturnAllEntries() {
         // Given - 先添加一些知识
-        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong()))
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
             .thenReturn(List.of("id-001"));
         
         knowledgeService.addKnowledge("标题1", "内容1");
@@ -99,7 +109,7 @@ class KnowledgeServiceTest {
     @DisplayName("删除知识 - 存在的条目")
     void deleteKnowledge_shouldRemoveExistingEntry() {
         // Given
-        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong()))
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
             .thenReturn(List.of("segment-001"));
         
         String entryId = knowledgeService.addKnowledge("待删除", "测试内容");
@@ -196,7 +206,7 @@ class KnowledgeServiceTest {
     @DisplayName("获取统计信息")
     void getStats_shouldReturnCorrectStats() {
         // Given
-        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong()))
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
             .thenReturn(List.of("id-001", "id-002"));
         when(embeddingService.getModelInfo()).thenReturn("text-embedding-v3");
         
@@ -209,4 +219,236 @@ class KnowledgeServiceTest {
         assertThat(stats.totalEntries()).isEqualTo(1);
         assertThat(stats.totalSegments()).isGreaterThanOrEqualTo(1);
     }
+
+    @Test
+    @DisplayName("获取统计信息 - 删除后计数同步扣减")
+    void getStats_shouldDecrementAfterDelete() {
+        // Given
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
+            .thenReturn(List.of("id-001"));
+        when(embeddingService.getModelInfo()).thenReturn("text-embedding-v3");
+        
+        String keepId = knowledgeService.addKnowledge("保留", "保留的内容");
+        String removeId = knowledgeService.addKnowledge("删除", "待删除的内容");
+
+        // When
+        knowledgeService.deleteKnowledge(removeId);
+        knowledgeService.deleteKnowledge(removeId); // 重复删除不应重复扣减
+        var stats = knowledgeService.getStats();
+        var histogram = knowledgeService.getHistogram();
+
+        // Then
+        assertThat(stats.totalEntries()).isEqualTo(1);
+        assertThat(stats.totalSegments()).isEqualTo(1);
+        assertThat(stats.totalCharacters()).isEqualTo("保留的内容".length());
+        assertThat(histogram.segmentsBySource()).containsOnlyKeys("保留");
+        assertThat(histogram.entriesByDay().values())
+            .singleElement()
+            .satisfies(day -> assertThat(day.entries()).isEqualTo(1));
+    }
+
+    @Test
+    @DisplayName("分布统计 - 同一来源的条目合并计数，全部删除后移除来源和日期")
+    void getHistogram_shouldGroupBySourceAndPruneEmptyBuckets() {
+        // Given
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
+            .thenReturn(List.of("id-001"));
+        String first = knowledgeService.addKnowledge("员工手册", "第一部分内容");
+        String second = knowledgeService.addKnowledge("员工手册", "第二部分内容");
+
+        // Then
+        assertThat(knowledgeService.getHistogram().segmentsBySource()).containsExactlyEntriesOf(Map.of("员工手册", 2L));
+
+        // When
+        knowledgeService.deleteKnowledge(first);
+        knowledgeService.deleteKnowledge(second);
+
+        // Then
+        var histogram = knowledgeService.getHistogram();
+        assertThat(histogram.segmentsBySource()).isEmpty();
+        assertThat(histogram.entriesByDay()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("添加知识 - 全部片段近似重复时拒绝入库，不创建空条目")
+    void ingestKnowledge_shouldRejectFullyDuplicateDocument() {
+        // Given
+        String original = "这是一段很长的测试内容，讲述了知识库如何对文档进行切分与向量化，并在检索阶段选出最相关的片段。".repeat(5);
+        String edited = original.replaceFirst("切分", "拆分");
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
+            .thenReturn(List.of("id-001"));
+        String originalId = knowledgeService.ingestKnowledge("原文", original).id();
+
+        // When & Then
+        assertThatThrownBy(() -> knowledgeService.ingestKnowledge("修改版", edited))
+            .isInstanceOf(BusinessException.class)
+            .hasMessageContaining(originalId)
+            .satisfies(e -> assertThat(((BusinessException) e).getCode()).isEqualTo(409));
+        assertThat(knowledgeService.listKnowledge()).hasSize(1);
+        verify(embeddingService, times(1)).storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList());
+    }
+
+    @Test
+    @DisplayName("添加知识 - 片段分组写入元数据")
+    void ingestKnowledge_shouldPersistSegmentGroups() {
+        // Given
+        String content = "这是一段很长的测试内容，讲述了知识库如何对文档进行切分与向量化，并在检索阶段选出最相关的片段。".repeat(5);
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
+            .thenReturn(List.of("id-001"));
+
+        // When
+        String entryId = knowledgeService.ingestKnowledge("原文", content).id();
+
+        // Then
+        verify(embeddingService).storeTexts(anyList(), eq(entryId), eq("原文"), anyLong(), eq(List.of(entryId + "#0")), eq(List.of()));
+    }
+
+    @Test
+    @DisplayName("启动恢复 - 使用元数据中的分组，检索时同组片段只保留一条")
+    void initializeFromVectorStore_shouldRestorePersistedGroups() {
+        // Given - doc-2 的片段在入库时与 doc-1 归为同组
+        String text = "这是一段很长的测试内容，讲述了知识库如何对文档进行切分与向量化，并在检索阶段选出最相关的片段。".repeat(5);
+        Metadata original = Metadata.from("source", "doc-1");
+        original.put("group", "doc-1#0");
+        Metadata linked = Metadata.from("source", "doc-2");
+        linked.put("group", "doc-1#0");
+        EmbeddingMatch<TextSegment> first = new EmbeddingMatch<>(0.9, "e1", null, TextSegment.from(text, original));
+        EmbeddingMatch<TextSegment> second = new EmbeddingMatch<>(0.8, "e2", null,
+            TextSegment.from(text.replaceFirst("切分", "拆分").replaceFirst("最相关", "最相近"), linked));
+        when(embeddingService.getAllDocuments(anyInt())).thenReturn(List.of(first, second));
+        when(embeddingService.search(anyString(), anyInt(), anyDouble())).thenReturn(List.of(first, second));
+        knowledgeService.initializeFromVectorStore();
+
+        // When
+        var results = knowledgeService.retrieveKnowledge("问题", 5);
+
+        // Then
+        assertThat(results).singleElement()
+            .satisfies(r -> assertThat(r.sourceId()).isEqualTo("doc-1"));
+    }
+
+    @Test
+    @DisplayName("添加知识 - 并发上传同一文档时只向量化一次")
+    void ingestKnowledge_shouldReserveFingerprintsBeforeEmbedding() throws Exception {
+        // Given - 第一次向量化阻塞，期间第二次上传到达
+        String content = "这是一段很长的测试内容，讲述了知识库如何对文档进行切分与向量化，并在检索阶段选出最相关的片段。".repeat(5);
+        CountDownLatch embedding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
+            .thenAnswer(invocation -> {
+                embedding.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return List.of("id-001");
+            });
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<KnowledgeService.IngestResult> first = pool.submit(() -> knowledgeService.ingestKnowledge("原文", content));
+            assertThat(embedding.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // When & Then
+            assertThatThrownBy(() -> knowledgeService.ingestKnowledge("副本", content))
+                .isInstanceOfSatisfying(BusinessException.class, e -> assertThat(e.getCode()).isEqualTo(409));
+            release.countDown();
+            assertThat(first.get(5, TimeUnit.SECONDS).storedSegments()).isEqualTo(1);
+            verify(embeddingService, times(1)).storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList());
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("添加知识 - 向量化失败时撤销预留的指纹")
+    void ingestKnowledge_shouldReleaseFingerprintsWhenEmbeddingFails() {
+        // Given
+        String content = "这是一段很长的测试内容，讲述了知识库如何对文档进行切分与向量化，并在检索阶段选出最相关的片段。".repeat(5);
+        when(embeddingService.storeTexts(anyList(), anyString(), anyString(), anyLong(), anyList(), anyList()))
+            .thenThrow(new RuntimeException("embedding unavailable"))
+            .thenReturn(List.of("id-001"));
+        assertThatThrownBy(() -> knowledgeService.ingestKnowledge("原文", content))
+            .hasMessageContaining("embedding unavailable");
+
+        // When
+        var result = knowledgeService.ingestKnowledge("原文", content);
+
+        // Then
+        assertThat(result.storedSegments()).isEqualTo(1);
+        assertThat(result.collapsed()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("删除知识 - 仍被其他条目引用的片段转交给引用方，未被引用的片段清理分组")
+    void deleteKnowledge_shouldTransferReferencedSegments() {
+        // Given - doc-2 入库时与 doc-1 重复的片段被跳过（引用记录在元数据中）
+        String text = "这是一段很长的测试内容，讲述了知识库如何对文档进行切分与向量化，并在检索阶段选出最相关的片段。".repeat(5);
+        Metadata original = Metadata.from("source", "doc-1");
+        original.put("group", "doc-1#0");
+        Metadata referrer = Metadata.from("source", "doc-2");
+        referrer.put("refs", "doc-1#0");
+        EmbeddingMatch<TextSegment> shared = new EmbeddingMatch<>(0.9, "e1", null, TextSegment.from(text, original));
+        EmbeddingMatch<TextSegment> own = new EmbeddingMatch<>(0.8, "e2", null, TextSegment.from("doc-2 自己的内容", referrer));
+        when(embeddingService.getAllDocuments(anyInt())).thenReturn(List.of(shared, own));
+        knowledgeService.initializeFromVectorStore();
+
+        // When
+        knowledgeService.deleteKnowledge("doc-1");
+
+        // Then - 相同内容仍判定为重复，归属转交给 doc-2
+        assertThatThrownBy(() -> knowledgeService.ingestKnowledge("副本", text))
+            .isInstanceOf(BusinessException.class)
+            .hasMessageContaining("doc-2");
+        assertThat(knowledgeService.listKnowledge()).singleElement()
+            .satisfies(entry -> assertThat(entry.segmentIds()).containsExactlyInAnyOrder("e1", "e2"));
+
+        // When - 最后一个引用方删除后分组全部清理
+        knowledgeService.deleteKnowledge("doc-2");
+        knowledgeService.retrieveKnowledge("问题", 5);
+
+        // Then
+        verify(embeddingService).search(anyString(), eq(5), anyDouble());
+    }
+
+    @Test
+    @DisplayName("构建增强提示词 - 合并同源相邻片段并去除重叠")
+    void buildAugmentedPrompt_shouldMergeAdjacentSegments() {
+        // Given - 两个相邻片段共享 30 个字符的重叠
+        String overlap = "重叠部分的文本内容用于保证分段之间语义连贯不被截断";
+        String first = "第一段的开头内容。" + overlap;
+        String second = overlap + "第二段的后续内容。";
+        TextSegment seg1 = TextSegment.from(first, Metadata.from("source", "doc-1"));
+        TextSegment seg2 = TextSegment.from(second, Metadata.from("source", "doc-1"));
+        when(embeddingService.search(anyString(), anyInt(), anyDouble()))
+            .thenReturn(List.of(
+                new EmbeddingMatch<>(0.9, "e1", null, seg2),
+                new EmbeddingMatch<>(0.8, "e2", null, seg1)
+            ));
+
+        // When
+        String augmented = knowledgeService.buildAugmentedPrompt("问题");
+
+        // Then
+        assertThat(augmented).contains("第一段的开头内容。" + overlap + "第二段的后续内容。");
+        assertThat(augmented).doesNotContain("[2]");
+    }
+
+    @Test
+    @DisplayName("构建增强提示词 - 超出 token 预算的片段被舍弃")
+    void buildAugmentedPrompt_shouldRespectTokenBudget() {
+        // Given
+        knowledgeService = new KnowledgeService(embeddingService, TokenCounter.defaultCounter(), 50);
+        TextSegment shortSeg = TextSegment.from("简短且相关的参考资料", Metadata.from("source", "doc-1"));
+        TextSegment longSeg = TextSegment.from("冗长的参考资料内容。".repeat(50), Metadata.from("source", "doc-2"));
+        when(embeddingService.search(anyString(), anyInt(), anyDouble()))
+            .thenReturn(List.of(
+                new EmbeddingMatch<>(0.9, "e1", null, longSeg),
+                new EmbeddingMatch<>(0.8, "e2", null, shortSeg)
+            ));
+
+        // When
+        String augmented = knowledgeService.buildAugmentedPrompt("问题");
+
+        // Then
+        assertThat(augmented).contains("简短且相关的参考资料");
+        assertThat(augmented).doesNotContain("冗长的参考资料内容");
+    }
 }
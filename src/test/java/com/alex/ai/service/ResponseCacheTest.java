@@ -0,0 +1,74 @@
+package com.alex.ai.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * ResponseCache 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@ExtendWith(MockitoExtension.class)
+@DisplayName("响应缓存单元测试")
+class ResponseCacheTest {
+
+    @Mock
+    private EmbeddingService embeddingService;
+
+    private ResponseCache cache;
+
+    private final String scope = ResponseCache.scope(null, -1);
+
+    @BeforeEach
+    void setUp() {
+        cache = new ResponseCache(embeddingService, true, 10, 100, true, 0.95, 100);
+    }
+
+    @Test
+    @DisplayName("语义层为空 - 未命中时不计算问题向量，写入回答时异步补算")
+    void lookup_shouldSkipEmbeddingWhenScopeIsEmpty() {
+        // Given
+        when(embeddingService.embedQueryAsync("年假有几天"))
+            .thenReturn(Mono.just(Embedding.from(new float[]{1f, 0f})));
+
+        // When
+        ResponseCache.Lookup lookup = cache.lookup(scope, "年假有几天");
+        lookup.store("五天");
+
+        // Then
+        assertThat(lookup.hit()).isEmpty();
+        verify(embeddingService, never()).embedQuery(anyString());
+        verify(embeddingService).embedQueryAsync("年假有几天");
+    }
+
+    @Test
+    @DisplayName("语义命中 - 只比较同作用域的条目，其他作用域为空时不计算向量")
+    void lookup_shouldMatchWithinScopeOnly() {
+        // Given
+        when(embeddingService.embedQueryAsync("年假有几天"))
+            .thenReturn(Mono.just(Embedding.from(new float[]{1f, 0f})));
+        when(embeddingService.embedQuery("年假一共几天"))
+            .thenReturn(Embedding.from(new float[]{0.99f, 0.01f}));
+        cache.lookup(scope, "年假有几天").store("五天");
+
+        // When
+        ResponseCache.Lookup similar = cache.lookup(scope, "年假一共几天");
+        ResponseCache.Lookup otherScope = cache.lookup(ResponseCache.scope("你是翻译助手", -1), "年假一共几天");
+
+        // Then
+        assertThat(similar.hit()).contains("五天");
+        assertThat(otherScope.hit()).isEmpty();
+        verify(embeddingService, times(1)).embedQuery("年假一共几天");
+    }
+}
@@ -0,0 +1,112 @@
+package com.alex.ai.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.NullAndEmptySource;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+
+/**
+ * RetrievalGate 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("检索门控单元测试")
+class RetrievalGateTest {
+
+    private RetrievalGate gate;
+
+    @BeforeEach
+    void setUp() {
+        gate = new RetrievalGate(mock(EmbeddingService.class));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"年假政策", "报销流程", "公司年假规定", "请假审批流程说明", "产品价格表"})
+    @DisplayName("短关键词查询 - 执行检索")
+    void evaluate_shouldRetrieveShortKeywordQueries(String input) {
+        assertThat(gate.evaluate(input).retrieve()).isTrue();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"redis", "k8s", "Kafka", "Spring Boot 配置", "Chroma持久化"})
+    @DisplayName("英文术语及中英混合查询 - 执行检索")
+    void evaluate_shouldRetrieveTechnicalTerms(String input) {
+        assertThat(gate.evaluate(input).retrieve()).isTrue();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"好的，那报销呢", "谢谢，再问一下年假", "可以吗", "可以吗？怎么申请", "你好吗", "继续讲讲 Kafka"})
+    @DisplayName("以寒暄开头的追问 - 整条输入不是寒暄，执行检索")
+    void evaluate_shouldRetrieveFollowUps(String input) {
+        assertThat(gate.evaluate(input).retrieve()).isTrue();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"你好", "谢谢！", "谢谢你", "好的谢谢", "嗯嗯，好的", "OK", "Thank you!", "继续", "continue", "拜拜~"})
+    @DisplayName("整条输入是寒暄/致谢/续写 - 跳过检索")
+    void evaluate_shouldSkipSmallTalk(String input) {
+        RetrievalGate.Decision decision = gate.evaluate(input);
+
+        assertThat(decision.retrieve()).isFalse();
+        assertThat(decision.reason()).isEqualTo(RetrievalGate.Reason.SMALL_TALK);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"你是谁", "你是谁呀？", "Who are you?"})
+    @DisplayName("询问助手自身 - 跳过检索")
+    void evaluate_shouldSkipQuestionsAboutAssistant(String input) {
+        assertThat(gate.evaluate(input).reason()).isEqualTo(RetrievalGate.Reason.ABOUT_ASSISTANT);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"哈哈哈哈", "你真棒", "太厉害了", "原来如此", "666", "谢谢你的解释，很有帮助"})
+    @DisplayName("规则未覆盖的情绪/反应类输入 - 分类器判定跳过检索")
+    void evaluate_shouldSkipReactionsByClassifier(String input) {
+        assertThat(gate.evaluate(input).reason()).isEqualTo(RetrievalGate.Reason.LOW_SCORE);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"年假政策", "k8s", "产品价格表", "合同", "好的，那报销呢", "可以吗", "你好吗"})
+    @DisplayName("分类器 - 知识类输入和追问的得分高于阈值")
+    void score_shouldStayAboveThresholdForKnowledgeQueries(String input) {
+        String normalized = input.replaceAll("[\\p{Punct}\\p{IsPunctuation}\\s]+", "").toLowerCase();
+
+        assertThat(RetrievalGate.score(input, normalized)).isGreaterThan(0.5);
+        assertThat(gate.evaluate(input).reason()).isEqualTo(RetrievalGate.Reason.CLASSIFIER);
+    }
+
+    @Test
+    @DisplayName("分类器关闭 - 规则未覆盖的输入默认检索")
+    void evaluate_shouldRetrieveByDefaultWhenClassifierDisabled() {
+        ReflectionTestUtils.setField(gate, "classifierEnabled", false);
+
+        assertThat(gate.evaluate("哈哈哈哈").reason()).isEqualTo(RetrievalGate.Reason.DEFAULT);
+    }
+
+    @ParameterizedTest
+    @NullAndEmptySource
+    @ValueSource(strings = {"  ", "？！"})
+    @DisplayName("空输入 - 跳过检索")
+    void evaluate_shouldSkipEmptyInput(String input) {
+        assertThat(gate.evaluate(input).reason()).isEqualTo(RetrievalGate.Reason.EMPTY);
+    }
+
+    @Test
+    @DisplayName("跳过率按判定结果统计")
+    void skipRate_shouldCountSkippedDecisions() {
+        gate.evaluate("谢谢");
+        gate.evaluate("年假政策");
+        gate.evaluate("k8s");
+        gate.evaluate("");
+
+        assertThat(gate.skipRate()).isCloseTo(0.5, within(0.001));
+    }
+}
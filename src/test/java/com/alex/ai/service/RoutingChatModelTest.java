@@ -0,0 +1,259 @@
+package com.alex.ai.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * RoutingChatModel / RoutingStreamingChatModel 单元测试（本地 OpenAI 兼容桩服务）
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("模型端点路由单元测试")
+class RoutingChatModelTest {
+
+    private final List<StubServer> servers = new ArrayList<>();
+    private ModelRouter router;
+
+    /**
+     * 桩服务行为
+     */
+    private enum Mode {
+        OK, FAIL, SLOW, HANG
+    }
+
+    /**
+     * OpenAI 兼容的 /chat/completions 桩服务
+     */
+    private static final class StubServer {
+        private final HttpServer server;
+        private final AtomicInteger hits = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private StubServer(Mode mode, String answer) throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/v1/chat/completions", exchange -> {
+                hits.incrementAndGet();
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                try {
+                    if (mode == Mode.FAIL) {
+                        respond(exchange, 500, "application/json",
+                            "{\"error\":{\"message\":\"upstream unavailable\",\"type\":\"server_error\"}}");
+                        return;
+                    }
+                    if (mode == Mode.SLOW) {
+                        Thread.sleep(200);
+                    } else if (mode == Mode.HANG) {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    if (body.replace(" ", "").contains("\"stream\":true")) {
+                        stream(exchange, answer);
+                    } else {
+                        respond(exchange, 200, "application/json", completion(answer));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    // 客户端已取消
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        String baseUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+        }
+
+        void stop() {
+            release.countDown();
+            server.stop(0);
+        }
+
+        private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+
+        private static void stream(HttpExchange exchange, String answer) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            for (String token : answer.split("")) {
+                out.write(("data: " + chunk("{\"content\":\"" + token + "\"}", "null") + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            out.write(("data: " + chunk("{}", "\"stop\"") + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private static String completion(String answer) {
+            return "{\"id\":\"stub\",\"object\":\"chat.completion\",\"created\":1,\"model\":\"stub\","
+                + "\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"" + answer + "\"},"
+                + "\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":1,\"completion_tokens\":1,\"total_tokens\":2}}";
+        }
+
+        private static String chunk(String delta, String finishReason) {
+            return "{\"id\":\"stub\",\"object\":\"chat.completion.chunk\",\"created\":1,\"model\":\"stub\","
+                + "\"choices\":[{\"index\":0,\"delta\":" + delta + ",\"finish_reason\":" + finishReason + "}]}";
+        }
+    }
+
+    private StubServer server(Mode mode, String answer) throws IOException {
+        StubServer server = new StubServer(mode, answer);
+        servers.add(server);
+        return server;
+    }
+
+    private ModelRouter.Endpoint endpoint(String name, StubServer server) {
+        return new ModelRouter.Endpoint(name,
+            OpenAiChatModel.builder()
+                .apiKey("test")
+                .baseUrl(server.baseUrl())
+                .modelName("stub")
+                .timeout(Duration.ofSeconds(5))
+                .maxRetries(0)
+                .build(),
+            OpenAiStreamingChatModel.builder()
+                .apiKey("test")
+                .baseUrl(server.baseUrl())
+                .modelName("stub")
+                .timeout(Duration.ofSeconds(5))
+                .build());
+    }
+
+    private void createRouter(ModelRouter.Endpoint... endpoints) {
+        // 一次失败即进入冷却期
+        router = new ModelRouter(List.of(endpoints), 0.5, 0.5, Duration.ofMinutes(1), Duration.ofMillis(300));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (router != null) {
+            router.shutdown();
+        }
+        servers.forEach(StubServer::stop);
+    }
+
+    /**
+     * 收集流式输出
+     */
+    private static final class CollectingHandler implements StreamingChatResponseHandler {
+        private final List<String> tokens = new CopyOnWriteArrayList<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        @Override
+        public void onPartialResponse(String partialResponse) {
+            tokens.add(partialResponse);
+        }
+
+        @Override
+        public void onCompleteResponse(ChatResponse response) {
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    @Test
+    @DisplayName("非流式 - 端点失败时切换到下一个端点，失败端点进入冷却期")
+    void chat_shouldFailOverAndCoolDownFailingEndpoint() throws IOException {
+        // Given
+        StubServer failing = server(Mode.FAIL, null);
+        StubServer healthy = server(Mode.OK, "你好");
+        createRouter(endpoint("failing", failing), endpoint("healthy", healthy));
+        RoutingChatModel model = new RoutingChatModel(router);
+
+        // When
+        String first = model.chat("你好");
+        String second = model.chat("你好");
+
+        // Then - 第二次调用不再尝试冷却中的端点
+        assertThat(first).isEqualTo("你好");
+        assertThat(second).isEqualTo("你好");
+        assertThat(failing.hits).hasValue(1);
+        assertThat(healthy.hits).hasValue(2);
+    }
+
+    @Test
+    @DisplayName("非流式 - 各端点探测一次后按 EWMA 延迟选择最快的端点")
+    void chat_shouldRouteToFastestEndpoint() throws IOException {
+        // Given
+        StubServer slow = server(Mode.SLOW, "慢");
+        StubServer fast = server(Mode.OK, "快");
+        createRouter(endpoint("slow", slow), endpoint("fast", fast));
+        RoutingChatModel model = new RoutingChatModel(router);
+
+        // When
+        List<String> answers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            answers.add(model.chat("你好"));
+        }
+
+        // Then
+        assertThat(answers).containsExactly("慢", "快", "快", "快", "快");
+        assertThat(slow.hits).hasValue(1);
+    }
+
+    @Test
+    @DisplayName("流式 - 首个 token 之前出错或超时切换端点，调用方只收到一个端点的输出")
+    void stream_shouldFailOverBeforeFirstToken() throws Exception {
+        // Given - 第一个端点出错，第二个端点不返回，第三个端点正常
+        StubServer failing = server(Mode.FAIL, null);
+        StubServer hanging = server(Mode.HANG, "慢回答");
+        StubServer healthy = server(Mode.OK, "你好");
+        createRouter(endpoint("failing", failing), endpoint("hanging", hanging), endpoint("healthy", healthy));
+        RoutingStreamingChatModel model = new RoutingStreamingChatModel(router);
+        CollectingHandler handler = new CollectingHandler();
+
+        // When
+        model.chat("你好", handler);
+
+        // Then
+        assertThat(handler.done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.error).isNull();
+        assertThat(String.join("", handler.tokens)).isEqualTo("你好");
+        assertThat(failing.hits).hasValue(1);
+        assertThat(hanging.hits).hasValue(1);
+
+        // When - 被放弃的端点之后返回，不影响已完成的输出
+        hanging.release.countDown();
+        Thread.sleep(200);
+
+        // Then
+        assertThat(String.join("", handler.tokens)).isEqualTo("你好");
+    }
+}
@@ -0,0 +1,200 @@
+package com.alex.ai.service;
+
+import com.alex.ai.exception.BusinessException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * SingleFlight 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("SingleFlight 单元测试")
+class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    @DisplayName("阻塞调用 - 并发的相同请求只调用一次上游并共享结果")
+    void call_shouldCoalesceConcurrentIdenticalRequests() throws Exception {
+        // Given - 上游调用阻塞直到所有请求都已到达
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> singleFlight.call("q", () -> {
+                upstreamCalls.incrementAndGet();
+                leaderStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "答案";
+            })));
+            assertThat(leaderStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // When - 4 个相同请求在上游调用期间到达
+            for (int i = 0; i < 4; i++) {
+                results.add(pool.submit(() -> singleFlight.call("q", () -> {
+                    upstreamCalls.incrementAndGet();
+                    return "重复调用";
+                })));
+            }
+            while (singleFlight.followerCount() < 4) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            // Then
+            for (Future<String> result : results) {
+                assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("答案");
+            }
+            assertThat(upstreamCalls).hasValue(1);
+            assertThat(singleFlight.inFlight()).isZero();
+
+            // 调用结束后相同请求重新调用上游
+            assertThat(singleFlight.call("q", () -> "新答案")).isEqualTo("新答案");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("阻塞调用 - leader 抛出 Error 时 follower 收到同一个错误，调用被移除")
+    void call_shouldPropagateErrorToFollowers() throws Exception {
+        // Given
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = pool.submit(() -> singleFlight.call("q", () -> {
+                leaderStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new OutOfMemoryError("模拟错误");
+            }));
+            assertThat(leaderStarted.await(5, TimeUnit.SECONDS)).isTrue();
+            Future<String> follower = pool.submit(() -> singleFlight.call("q", () -> "重复调用"));
+            while (singleFlight.followerCount() < 1) {
+                Thread.sleep(5);
+            }
+
+            // When
+            release.countDown();
+
+            // Then
+            assertThatThrownBy(() -> leader.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(OutOfMemoryError.class);
+            assertThatThrownBy(() -> follower.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(OutOfMemoryError.class);
+            assertThat(singleFlight.inFlight()).isZero();
+            assertThat(singleFlight.call("q", () -> "新答案")).isEqualTo("新答案");
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("阻塞调用 - follower 等待超时返回 504，不影响 leader")
+    void call_shouldTimeOutWaitingFollower() throws Exception {
+        // Given - leader 一直不返回
+        ReflectionTestUtils.setField(singleFlight, "waitTimeoutSeconds", 1L);
+        CountDownLatch leaderStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> leader = pool.submit(() -> singleFlight.call("q", () -> {
+                leaderStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "答案";
+            }));
+            assertThat(leaderStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+            // When & Then
+            assertThatThrownBy(() -> singleFlight.call("q", () -> "重复调用"))
+                .isInstanceOfSatisfying(BusinessException.class, e -> assertThat(e.getCode()).isEqualTo(504));
+
+            release.countDown();
+            assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("答案");
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    @DisplayName("流式调用 - follower 从头重放 token，所有订阅者取消后才取消上游")
+    void stream_shouldReplayTokensAndCancelWhenAllSubscribersLeave() {
+        // Given - 一个生成中的上游流
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Sinks.Many<String> tokens = Sinks.many().unicast().onBackpressureBuffer();
+        Flux<String> upstream = tokens.asFlux().doOnCancel(() -> cancelled.set(true));
+        Flux<String> leader = singleFlight.stream("q", () -> {
+            upstreamCalls.incrementAndGet();
+            return upstream;
+        });
+
+        // When - leader 收到第一个 token 后 follower 加入
+        List<String> leaderTokens = new CopyOnWriteArrayList<>();
+        List<String> followerTokens = new CopyOnWriteArrayList<>();
+        Disposable leaderSubscription = leader.subscribe(leaderTokens::add);
+        tokens.tryEmitNext("你");
+        Disposable followerSubscription = singleFlight.stream("q", () -> Flux.just("重复调用"))
+            .subscribe(followerTokens::add);
+        tokens.tryEmitNext("好");
+
+        // Then - follower 从第一个 token 开始
+        assertThat(leaderTokens).containsExactly("你", "好");
+        assertThat(followerTokens).containsExactly("你", "好");
+
+        // When - leader 离开，不影响 follower
+        leaderSubscription.dispose();
+        tokens.tryEmitNext("！");
+
+        // Then
+        assertThat(cancelled).isFalse();
+        assertThat(followerTokens).containsExactly("你", "好", "！");
+
+        // When - 最后一个订阅者离开
+        followerSubscription.dispose();
+
+        // Then
+        assertThat(cancelled).isTrue();
+        assertThat(upstreamCalls).hasValue(1);
+        assertThat(singleFlight.inFlight()).isZero();
+    }
+}
@@ -0,0 +1,182 @@
+package com.alex.ai.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * SseStreamWriter 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("SseStreamWriter 单元测试")
+class SseStreamWriterTest {
+
+    private SseStreamWriter writer;
+
+    /**
+     * 第一次写出时阻塞，模拟慢客户端
+     */
+    private static class SlowEmitter extends SseEmitter {
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final CountDownLatch completed = new CountDownLatch(1);
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            sending.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sent.add(builder.build().stream()
+                .map(part -> part.getData().toString())
+                .reduce("", String::concat));
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+        }
+    }
+
+    private void createWriter(int capacity, String policy) {
+        writer = new SseStreamWriter();
+        ReflectionTestUtils.setField(writer, "capacity", capacity);
+        ReflectionTestUtils.setField(writer, "policyName", policy);
+        writer.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        writer.shutdown();
+    }
+
+    private static StreamReplayBuffer.Frame frame(int seq, String data) {
+        return new StreamReplayBuffer.Frame("s:" + seq, null, data);
+    }
+
+    @Test
+    @DisplayName("慢客户端 - coalesce 策略合并队尾帧，上游入队不阻塞")
+    void coalesce_shouldMergeFramesWhenQueueIsFull() throws Exception {
+        // Given - 每个连接最多排队 2 帧
+        createWriter(2, "coalesce");
+        SlowEmitter emitter = new SlowEmitter();
+        SseStreamWriter.Channel channel = writer.open(emitter, () -> {});
+
+        // When - 第一帧写出阻塞期间继续入队
+        channel.offer(frame(1, "a"));
+        assertThat(emitter.sending.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 2; i <= 5; i++) {
+            channel.offer(frame(i, String.valueOf((char) ('a' + i - 1))));
+        }
+        channel.complete();
+
+        // Then - 队列深度不超过容量
+        assertThat(channel.depth()).isEqualTo(2);
+        assertThat(writer.overflowCount(SseStreamWriter.Policy.COALESCE)).isEqualTo(2);
+
+        // When - 客户端恢复
+        emitter.release.countDown();
+
+        // Then - 合并后的帧内容完整，连接正常结束
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(emitter.sent).hasSize(3);
+        assertThat(emitter.sent.get(2)).contains("id:s:5").contains("cde");
+        assertThat(writer.queuedFrames()).isZero();
+    }
+
+    @Test
+    @DisplayName("慢客户端 - drop 策略断开连接并取消上游订阅")
+    void drop_shouldCloseConnectionWhenQueueIsFull() throws Exception {
+        // Given
+        createWriter(1, "drop");
+        SlowEmitter emitter = new SlowEmitter();
+        AtomicBoolean closed = new AtomicBoolean();
+        SseStreamWriter.Channel channel = writer.open(emitter, () -> closed.set(true));
+
+        // When
+        channel.offer(frame(1, "a"));
+        assertThat(emitter.sending.await(5, TimeUnit.SECONDS)).isTrue();
+        channel.offer(frame(2, "b"));
+        channel.offer(frame(3, "c"));
+
+        // Then
+        assertThat(closed).isTrue();
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(channel.depth()).isZero();
+        assertThat(writer.overflowCount(SseStreamWriter.Policy.DROP)).isEqualTo(1);
+        emitter.release.countDown();
+    }
+
+    @Test
+    @DisplayName("慢客户端 - spill 策略超出的帧写入临时文件，按顺序写出后删除")
+    void spill_shouldWriteOverflowFramesInOrder() throws Exception {
+        // Given
+        createWriter(1, "spill");
+        SlowEmitter emitter = new SlowEmitter();
+        SseStreamWriter.Channel channel = writer.open(emitter, () -> {});
+
+        // When - 第一帧写出阻塞期间继续入队
+        channel.offer(frame(1, "a"));
+        assertThat(emitter.sending.await(5, TimeUnit.SECONDS)).isTrue();
+        for (int i = 2; i <= 5; i++) {
+            channel.offer(frame(i, String.valueOf((char) ('a' + i - 1))));
+        }
+        channel.complete();
+
+        // Then - 内存队列不超过容量，其余帧在溢出文件中
+        assertThat(channel.depth()).isEqualTo(1);
+        assertThat(writer.spilledBytes()).isPositive();
+        assertThat(writer.overflowCount(SseStreamWriter.Policy.SPILL)).isEqualTo(3);
+
+        // When - 客户端恢复
+        emitter.release.countDown();
+
+        // Then - 所有帧按顺序写出，溢出文件已清空
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(emitter.sent).hasSize(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(emitter.sent.get(i)).contains("id:s:" + (i + 1)).contains(String.valueOf((char) ('a' + i)));
+        }
+        assertThat(writer.spilledBytes()).isZero();
+    }
+
+    @Test
+    @DisplayName("慢客户端 - spill 策略溢出文件达到上限时断开连接")
+    void spill_shouldCloseConnectionWhenFileIsFull() throws Exception {
+        // Given - 溢出文件只放得下一帧
+        createWriter(1, "spill");
+        ReflectionTestUtils.setField(writer, "spillMaxBytes", 32L);
+        SlowEmitter emitter = new SlowEmitter();
+        AtomicBoolean closed = new AtomicBoolean();
+        SseStreamWriter.Channel channel = writer.open(emitter, () -> closed.set(true));
+
+        // When
+        channel.offer(frame(1, "a"));
+        assertThat(emitter.sending.await(5, TimeUnit.SECONDS)).isTrue();
+        channel.offer(frame(2, "b"));
+        channel.offer(frame(3, "c"));
+        channel.offer(frame(4, "d"));
+
+        // Then
+        assertThat(closed).isTrue();
+        assertThat(emitter.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(writer.spilledBytes()).isZero();
+        emitter.release.countDown();
+    }
+}
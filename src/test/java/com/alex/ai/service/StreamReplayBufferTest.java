@@ -0,0 +1,163 @@
+package com.alex.ai.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * StreamReplayBuffer 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("StreamReplayBuffer 单元测试")
+class StreamReplayBufferTest {
+
+    private static final String SESSION = "session-1";
+    private static final String MESSAGE = "你好";
+
+    private StreamReplayBuffer buffer;
+
+    @BeforeEach
+    void setUp() {
+        buffer = new StreamReplayBuffer();
+        ReflectionTestUtils.setField(buffer, "maxFrames", 4);
+        ReflectionTestUtils.setField(buffer, "graceSeconds", 1L);
+        buffer.init();
+    }
+
+    @Test
+    @DisplayName("续传 - 断线后按 Last-Event-ID 接收剩余帧，生成不重新开始")
+    void resume_shouldReplayFramesAfterLastEventId() {
+        // Given - 生成中的流，客户端收到两帧后断开
+        Sinks.Many<String> tokens = Sinks.many().unicast().onBackpressureBuffer();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flux<StreamReplayBuffer.Frame> frames = buffer.start(SESSION, MESSAGE, tokens.asFlux().doOnCancel(() -> cancelled.set(true)));
+        tokens.tryEmitNext("你");
+        tokens.tryEmitNext("好");
+        StreamReplayBuffer.Frame[] received = new StreamReplayBuffer.Frame[2];
+        StepVerifier.create(frames)
+            .consumeNextWith(frame -> received[0] = frame)
+            .consumeNextWith(frame -> received[1] = frame)
+            .thenCancel()
+            .verify(Duration.ofSeconds(5));
+        assertThat(received[1].id()).endsWith(":2");
+
+        // When - 重连期间生成继续
+        tokens.tryEmitNext("！");
+        var resumed = buffer.resume(received[0].id(), SESSION, MESSAGE);
+        tokens.tryEmitComplete();
+
+        // Then - 从第 2 帧开始，以 done 结束，上游没有被取消
+        assertThat(resumed).isPresent();
+        StepVerifier.create(resumed.get().map(StreamReplayBuffer.Frame::data))
+            .expectNext("好", "！", "[DONE]")
+            .expectComplete()
+            .verify(Duration.ofSeconds(5));
+        assertThat(cancelled).isFalse();
+    }
+
+    @Test
+    @DisplayName("续传 - 未知 ID 或断点已被环形缓冲区覆盖时无法续传")
+    void resume_shouldMissWhenUnknownOrOverwritten() {
+        // Given - 6 帧 + done，只保留最近 4 帧
+        Flux<StreamReplayBuffer.Frame> frames = buffer.start(SESSION, MESSAGE, Flux.just("1", "2", "3", "4", "5", "6"));
+        String firstId = frames.blockFirst(Duration.ofSeconds(5)).id();
+        String streamId = firstId.substring(0, firstId.lastIndexOf(':'));
+
+        // Then
+        assertThat(buffer.resume("unknown:1", SESSION, MESSAGE)).isEmpty();
+        assertThat(buffer.resume(streamId + ":not-a-number", SESSION, MESSAGE)).isEmpty();
+        assertThat(buffer.resume(streamId + ":1", SESSION, MESSAGE)).isEmpty();
+        StepVerifier.create(buffer.resume(streamId + ":5", SESSION, MESSAGE).orElseThrow().map(StreamReplayBuffer.Frame::data))
+            .expectNext("6", "[DONE]")
+            .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("续传 - 断开后宽限期内没有重连则取消生成")
+    void detach_shouldCancelProducerAfterGracePeriod() throws InterruptedException {
+        // Given
+        Sinks.Many<String> tokens = Sinks.many().unicast().onBackpressureBuffer();
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Flux<StreamReplayBuffer.Frame> frames = buffer.start(SESSION, MESSAGE, tokens.asFlux().doOnCancel(cancelled::countDown));
+        tokens.tryEmitNext("你");
+
+        // When
+        StepVerifier.create(frames).expectNextCount(1).thenCancel().verify(Duration.ofSeconds(5));
+
+        // Then
+        assertThat(cancelled.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    @DisplayName("续传 - 会话或消息不一致时拒绝续传")
+    void resume_shouldRejectOtherSessionOrMessage() {
+        // Given
+        Sinks.Many<String> tokens = Sinks.many().unicast().onBackpressureBuffer();
+        Flux<StreamReplayBuffer.Frame> frames = buffer.start(SESSION, MESSAGE, tokens.asFlux());
+        tokens.tryEmitNext("你");
+        String firstId = frames.blockFirst(Duration.ofSeconds(5)).id();
+
+        // Then
+        assertThat(buffer.resume(firstId, "session-2", MESSAGE)).isEmpty();
+        assertThat(buffer.resume(firstId, SESSION, "另一个问题")).isEmpty();
+        assertThat(buffer.resume(firstId, SESSION, MESSAGE)).isPresent();
+    }
+
+    @Test
+    @DisplayName("续传 - 已收到 done 帧后重新请求视为新问题")
+    void resume_shouldMissAfterDoneFrame() {
+        // Given
+        var frames = buffer.start(SESSION, MESSAGE, Flux.just("1", "2")).collectList().block(Duration.ofSeconds(5));
+        String doneId = frames.get(frames.size() - 1).id();
+        String lastTokenId = frames.get(frames.size() - 2).id();
+
+        // Then - 从 done 帧续传没有内容，由调用方重新生成；done 之前断开仍可续传
+        assertThat(buffer.resume(doneId, SESSION, MESSAGE)).isEmpty();
+        StepVerifier.create(buffer.resume(lastTokenId, SESSION, MESSAGE).orElseThrow().map(StreamReplayBuffer.Frame::data))
+            .expectNext("[DONE]")
+            .verifyComplete();
+    }
+
+    @Test
+    @DisplayName("容量 - 只淘汰已结束的流，生成中的流达到上限时新流不缓冲")
+    void start_shouldNotEvictActiveStreams() {
+        // Given - 最多 2 个流
+        buffer = new StreamReplayBuffer();
+        ReflectionTestUtils.setField(buffer, "maxStreams", 2L);
+        buffer.init();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Sinks.Many<String> first = Sinks.many().unicast().onBackpressureBuffer();
+        Sinks.Many<String> second = Sinks.many().unicast().onBackpressureBuffer();
+        buffer.start(SESSION, MESSAGE, first.asFlux().doOnCancel(() -> cancelled.set(true)));
+        buffer.start(SESSION, MESSAGE, second.asFlux().doOnCancel(() -> cancelled.set(true)));
+
+        // When - 第三个流到达时两个流都在生成
+        var third = buffer.start(SESSION, MESSAGE, Flux.just("a")).collectList().block(Duration.ofSeconds(5));
+
+        // Then - 生成中的流不被取消，第三个流正常输出但不带事件 ID
+        assertThat(cancelled).isFalse();
+        assertThat(third).extracting(StreamReplayBuffer.Frame::data).containsExactly("a", "[DONE]");
+        assertThat(third).allSatisfy(frame -> assertThat(frame.id()).isNull());
+
+        // When - 一个流结束后，新的流可以缓冲
+        first.tryEmitComplete();
+        var fourth = buffer.start(SESSION, MESSAGE, Flux.just("b")).blockFirst(Duration.ofSeconds(5));
+
+        // Then
+        assertThat(fourth.id()).isNotNull();
+        assertThat(cancelled).isFalse();
+    }
+}
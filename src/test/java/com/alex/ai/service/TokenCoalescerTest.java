@@ -0,0 +1,62 @@
+package com.alex.ai.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * TokenCoalescer 单元测试
+ *
+ * @author Alex
+ * @since 2026-01-12
+ */
+@DisplayName("TokenCoalescer 单元测试")
+class TokenCoalescerTest {
+
+    private TokenCoalescer coalescer;
+
+    @BeforeEach
+    void setUp() {
+        coalescer = new TokenCoalescer();
+        ReflectionTestUtils.setField(coalescer, "intervalMillis", 20L);
+        ReflectionTestUtils.setField(coalescer, "maxBytes", 6);
+    }
+
+    @Test
+    @DisplayName("合并 - 首个 token 立即发出，其余按字节上限和流结束合并")
+    void coalesce_shouldEmitFirstTokenThenMergeBySize() {
+        // When / Then - "你好" 为 6 字节，达到上限立即发出
+        StepVerifier.create(coalescer.coalesce(Flux.just("A", "你", "好", "b", "c")))
+            .expectNext("A", "你好", "bc")
+            .verifyComplete();
+
+        assertThat(coalescer.tokenCount()).isEqualTo(5);
+        assertThat(coalescer.frameCount(TokenCoalescer.Trigger.FIRST)).isEqualTo(1);
+        assertThat(coalescer.frameCount(TokenCoalescer.Trigger.SIZE)).isEqualTo(1);
+        assertThat(coalescer.frameCount(TokenCoalescer.Trigger.COMPLETE)).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("合并 - 上游停顿时按时间间隔发出缓冲内容")
+    void coalesce_shouldFlushOnInterval() {
+        // Given - 前两个 token 之后上游停顿 200ms
+        Flux<String> tokens = Flux.concat(Flux.just("a", "b"), Mono.delay(Duration.ofMillis(200)).thenReturn("c"));
+
+        // When / Then
+        StepVerifier.create(coalescer.coalesce(tokens))
+            .expectNext("a", "b", "c")
+            .expectComplete()
+            .verify(Duration.ofSeconds(5));
+
+        assertThat(coalescer.frameCount(TokenCoalescer.Trigger.INTERVAL)).isEqualTo(1);
+        assertThat(TokenCoalescer.utf8Length("a你😀")).isEqualTo(1 + 3 + 4);
+    }
+}